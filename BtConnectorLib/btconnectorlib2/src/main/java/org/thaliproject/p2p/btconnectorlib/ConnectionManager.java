@@ -11,6 +11,8 @@ import android.os.Handler;
 import android.util.Log;
 import org.thaliproject.p2p.btconnectorlib.internal.AbstractBluetoothConnectivityAgent;
 import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.BluetoothConnector;
+import org.thaliproject.p2p.btconnectorlib.utils.MessageFrameCodec;
+import org.thaliproject.p2p.btconnectorlib.utils.RetryPolicy;
 import java.util.UUID;
 
 /**
@@ -63,14 +65,34 @@ public class ConnectionManager
         void onConnectionFailed(PeerProperties peerProperties, String errorMessage);
     }
 
+    public interface EarlyDataListener {
+        /**
+         * Called right before ConnectionManagerListener.onConnected(), if the handshake of the
+         * connection carried early data (see connect(PeerProperties, byte[])). If an outgoing
+         * connection is reported without this being called first, the peer did not process our
+         * early data and it should be sent again using the socket.
+         *
+         * @param bluetoothSocket The Bluetooth socket associated with the peer.
+         * @param isIncoming True, if the connection was incoming. False, if outgoing.
+         * @param peerProperties The properties of the peer we're connected to.
+         * @param earlyData If incoming, the early data the peer attached to its handshake. If
+         *                  outgoing, the response of the peer to our early data.
+         */
+        void onEarlyData(BluetoothSocket bluetoothSocket, boolean isIncoming,
+                         PeerProperties peerProperties, byte[] earlyData);
+    }
+
     private static final String TAG = ConnectionManager.class.getName();
     private final ConnectionManagerListener mListener;
+    private volatile EarlyDataListener mEarlyDataListener = null;
     private final Handler mHandler;
     private final BluetoothConnector mBluetoothConnector;
     private ConnectionManagerState mState = ConnectionManagerState.NOT_STARTED;
     private UUID mMyUuid = null;
     private String mMyName = null;
     private ConnectionManagerSettings mSettings = null;
+    private boolean mMultiplexingSupported = false;
+    private int mMaxFrameSize = MessageFrameCodec.DEFAULT_MAX_PAYLOAD_LENGTH_IN_BYTES;
 
     /**
      * Constructor.
@@ -96,6 +118,7 @@ public class ConnectionManager
 
         mHandler = new Handler(mContext.getMainLooper());
 
+        mAdvertiseCompressionSupport = mSettings.getCompressionEnabled();
         verifyIdentityString(); // Creates the identity string
 
         mBluetoothConnector = new BluetoothConnector(
@@ -182,7 +205,22 @@ public class ConnectionManager
      * @param peerToConnectTo The peer to connect to.
      * @return True, if the connection process was started successfully.
      */
-    public synchronized boolean connect(PeerProperties peerToConnectTo) {
+    public boolean connect(PeerProperties peerToConnectTo) {
+        return connect(peerToConnectTo, null);
+    }
+
+    /**
+     * Tries to connect to the given device sending the given early data (e.g. the first request)
+     * with the handshake. The peer can respond to it in its handshake reply (see
+     * setEarlyDataHandler()) saving a round trip. The response is delivered to the early data
+     * listener (see setEarlyDataListener()); if none is delivered, the peer did not process the
+     * early data and it should be sent again using the socket.
+     *
+     * @param peerToConnectTo The peer to connect to.
+     * @param earlyData The early data or null, if none.
+     * @return True, if the connection process was started successfully.
+     */
+    public synchronized boolean connect(PeerProperties peerToConnectTo, byte[] earlyData) {
         boolean success = false;
 
         if (peerToConnectTo != null) {
@@ -194,10 +232,9 @@ public class ConnectionManager
 
             Log.i(TAG, "connect: " + peerToConnectTo.toString());
 
-
             try {
                 BluetoothDevice device = mBluetoothManager.getRemoteDevice(peerToConnectTo.getBluetoothMacAddress());
-                success = mBluetoothConnector.connect(device, peerToConnectTo);
+                success = mBluetoothConnector.connect(device, peerToConnectTo, earlyData);
             } catch (NullPointerException e) {
                 Log.e(TAG, "connect: Failed to start connecting to peer "
                         + peerToConnectTo.toString() + ": " + e.getMessage(), e);
@@ -209,6 +246,25 @@ public class ConnectionManager
         return success;
     }
 
+    /**
+     * Sets the policy deciding whether and when a failed connection attempt is retried (see
+     * BluetoothConnector.setRetryPolicy()). The policy applies to every connect() call, thus the
+     * retry budget of a peer is shared by the manual and the automatic connection attempts.
+     *
+     * @param retryPolicy The retry policy.
+     * @throws NullPointerException Thrown, if the retry policy is null.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) throws NullPointerException {
+        mBluetoothConnector.setRetryPolicy(retryPolicy);
+    }
+
+    /**
+     * @return The retry policy containing, in case of BackoffRetryPolicy, the retries spent per peer.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return mBluetoothConnector.getRetryPolicy();
+    }
+
     /**
      * Cancels an ongoing connection attempt to the peer with the given properties.
      *
@@ -226,6 +282,79 @@ public class ConnectionManager
         mBluetoothConnector.cancelAllConnectionAttempts();
     }
 
+    /**
+     * Sets the handler producing the responses to the early data the peers attach to the
+     * handshakes of the incoming connections.
+     *
+     * @param earlyDataHandler The handler or null, if the early data should not be responded to.
+     */
+    public void setEarlyDataHandler(BluetoothConnector.EarlyDataHandler earlyDataHandler) {
+        mBluetoothConnector.setEarlyDataHandler(earlyDataHandler);
+    }
+
+    /**
+     * Sets the listener for the early data received with the handshakes.
+     *
+     * @param earlyDataListener The listener or null, if the early data is not needed.
+     */
+    public void setEarlyDataListener(EarlyDataListener earlyDataListener) {
+        mEarlyDataListener = earlyDataListener;
+    }
+
+    /**
+     * Checks whether the messages on a connection with the given peer should be compressed i.e.
+     * whether both we and the peer support compression. If true, both ends should enable
+     * compression on their BluetoothSocketIoThread instances (see
+     * BluetoothSocketIoThread.setCompression()).
+     *
+     * @param peerProperties The properties of the peer as given in onConnected().
+     * @return True, if compression should be used.
+     */
+    public boolean shouldUseCompression(PeerProperties peerProperties) {
+        return (mSettings.getCompressionEnabled()
+                && peerProperties != null && peerProperties.getCompressionSupported());
+    }
+
+    /**
+     * Sets the capabilities advertised to the peers in the binary handshake. Restart listening
+     * for the incoming connections to apply the new values to them.
+     *
+     * @param multiplexingSupported True, if we support stream multiplexing (see StreamMultiplexer).
+     * @param maxFrameSize The maximum frame payload size we accept in bytes.
+     */
+    public void setCapabilities(boolean multiplexingSupported, int maxFrameSize) {
+        mMultiplexingSupported = multiplexingSupported;
+        mMaxFrameSize = maxFrameSize;
+        mBluetoothConnector.setCapabilities(multiplexingSupported, maxFrameSize);
+    }
+
+    /**
+     * Checks whether the streams on a connection with the given peer can be multiplexed i.e.
+     * whether both we and the peer support it.
+     *
+     * @param peerProperties The properties of the peer as given in onConnected().
+     * @return True, if multiplexing can be used.
+     */
+    public boolean shouldUseMultiplexing(PeerProperties peerProperties) {
+        return (mMultiplexingSupported
+                && peerProperties != null && peerProperties.getMultiplexingSupported());
+    }
+
+    /**
+     * Resolves the maximum frame payload size to use on a connection with the given peer i.e. the
+     * smaller of ours and the one advertised by the peer.
+     *
+     * @param peerProperties The properties of the peer as given in onConnected().
+     * @return The maximum frame payload size in bytes.
+     */
+    public int getNegotiatedMaxFrameSize(PeerProperties peerProperties) {
+        if (peerProperties == null || peerProperties.getMaxFrameSize() == PeerProperties.MAX_FRAME_SIZE_UNKNOWN) {
+            return mMaxFrameSize;
+        }
+
+        return Math.min(mMaxFrameSize, peerProperties.getMaxFrameSize());
+    }
+
     /**
      * When the peer name is changed, the identity string is recreated. We need to provide the
      * updated string to the Bluetooth connector instance.
@@ -255,6 +384,14 @@ public class ConnectionManager
         mBluetoothConnector.setConnectionTimeout(mSettings.getConnectionTimeout());
         mBluetoothConnector.setInsecureRfcommSocketPort(mSettings.getInsecureRfcommSocketPortNumber());
         mBluetoothConnector.setMaxNumberOfOutgoingConnectionAttemptRetries(mSettings.getMaxNumberOfConnectionAttemptRetries());
+
+        if (mAdvertiseCompressionSupport != mSettings.getCompressionEnabled()) {
+            // Recreate the identity string
+            mAdvertiseCompressionSupport = mSettings.getCompressionEnabled();
+            mMyIdentityString = null;
+            verifyIdentityString();
+            mBluetoothConnector.setIdentityString(mMyIdentityString);
+        }
     }
 
     /**
@@ -324,22 +461,30 @@ public class ConnectionManager
     }
 
     /**
-     * Notifies the listener about a successful connection.
+     * Notifies the listener about a successful connection and the early data listener about the
+     * early data, if any.
      *
      * @param bluetoothSocket The Bluetooth socket.
      * @param isIncoming True, if the connection was incoming. False, if it was outgoing.
      * @param peerProperties The properties of the peer connected to.
+     * @param earlyData The early data or the response to ours, if any.
      */
     @Override
     public void onConnected(
             final BluetoothSocket bluetoothSocket, final boolean isIncoming,
-            final PeerProperties peerProperties) {
+            final PeerProperties peerProperties, final byte[] earlyData) {
         Log.i(TAG, "onConnected: " + peerProperties);
 
         if (mListener != null) {
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
+                    EarlyDataListener earlyDataListener = mEarlyDataListener;
+
+                    if (earlyData != null && earlyDataListener != null) {
+                        earlyDataListener.onEarlyData(bluetoothSocket, isIncoming, peerProperties, earlyData);
+                    }
+
                     mListener.onConnected(bluetoothSocket, isIncoming, peerProperties);
                 }
             });
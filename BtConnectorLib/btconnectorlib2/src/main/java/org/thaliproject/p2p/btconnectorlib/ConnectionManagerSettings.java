@@ -24,12 +24,14 @@ public class ConnectionManagerSettings extends AbstractSettings {
     public static final int DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT = BluetoothConnector.DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT;
     public static final int DEFAULT_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES = BluetoothConnector.DEFAULT_MAX_NUMBER_OF_RETRIES;
     public static final boolean DEFAULT_HANDSHAKE_REQUIRED = BluetoothConnector.DEFAULT_HANDSHAKE_REQUIRED;
+    public static final boolean DEFAULT_COMPRESSION_ENABLED = BluetoothConnector.DEFAULT_COMPRESSION_ENABLED;
 
     // Keys for shared preferences
     private static final String KEY_CONNECTION_TIMEOUT = "connection_timeout";
     private static final String KEY_PORT_NUMBER = "port_number";
     private static final String KEY_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES = "max_number_of_connection_attempt_retries";
     private static final String KEY_HANDSHAKE_REQUIRED = "require_handshake";
+    private static final String KEY_COMPRESSION_ENABLED = "compression_enabled";
 
     private static final String TAG = ConnectionManagerSettings.class.getName();
     private static final int MAX_INSECURE_RFCOMM_SOCKET_PORT = 30;
@@ -40,6 +42,7 @@ public class ConnectionManagerSettings extends AbstractSettings {
     private int mInsecureRfcommSocketPortNumber = DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT;
     private int mMaxNumberOfConnectionAttemptRetries = DEFAULT_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES;
     private boolean mHandshakeRequired = DEFAULT_HANDSHAKE_REQUIRED;
+    private boolean mCompressionEnabled = DEFAULT_COMPRESSION_ENABLED;
 
     /**
      * @param context The application context for the shared preferences.
@@ -218,6 +221,34 @@ public class ConnectionManagerSettings extends AbstractSettings {
         }
     }
 
+    /**
+     * @return True, if we advertise support for compressed messages in our identity.
+     */
+    public boolean getCompressionEnabled() {
+        return mCompressionEnabled;
+    }
+
+    /**
+     * Sets the value indicating whether we advertise support for compressed messages in our
+     * identity or not. Compression is used on a connection only, if both peers support it (see
+     * ConnectionManager.shouldUseCompression()). Requires the handshake to be enabled.
+     * @param compressionEnabled True, if compression should be supported.
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        if (mCompressionEnabled != compressionEnabled) {
+            Log.d(TAG, "setCompressionEnabled: " + mCompressionEnabled + " -> " + compressionEnabled);
+            mCompressionEnabled = compressionEnabled;
+            mSharedPreferencesEditor.putBoolean(KEY_COMPRESSION_ENABLED, mCompressionEnabled);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
     @Override
     public void load() {
         if (!mLoaded) {
@@ -229,12 +260,14 @@ public class ConnectionManagerSettings extends AbstractSettings {
             mMaxNumberOfConnectionAttemptRetries = mSharedPreferences.getInt(
                     KEY_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES, DEFAULT_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES);
             mHandshakeRequired = mSharedPreferences.getBoolean(KEY_HANDSHAKE_REQUIRED, DEFAULT_HANDSHAKE_REQUIRED);
+            mCompressionEnabled = mSharedPreferences.getBoolean(KEY_COMPRESSION_ENABLED, DEFAULT_COMPRESSION_ENABLED);
 
             Log.v(TAG, "load: "
                     + "\n    - Connection timeout in milliseconds: " + mConnectionTimeoutInMilliseconds
                     + "\n    - Insecure RFCOMM socket port number: " + mInsecureRfcommSocketPortNumber
                     + "\n    - Maximum number of connection attempt retries: " + mMaxNumberOfConnectionAttemptRetries
-                    + "\n    - Handshake required: " + mHandshakeRequired);
+                    + "\n    - Handshake required: " + mHandshakeRequired
+                    + "\n    - Compression enabled: " + mCompressionEnabled);
         } else {
             Log.v(TAG, "load: Already loaded");
         }
@@ -246,5 +279,6 @@ public class ConnectionManagerSettings extends AbstractSettings {
         setInsecureRfcommSocketPortNumber(SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT);
         setMaxNumberOfConnectionAttemptRetries(DEFAULT_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES);
         setHandshakeRequired(DEFAULT_HANDSHAKE_REQUIRED);
+        setCompressionEnabled(DEFAULT_COMPRESSION_ENABLED);
     }
 }
@@ -16,6 +16,7 @@ public class PeerProperties {
     public static final int DISCOVERY_VIA_BLUETOOTH_LE = 3;
     public static final int DISCOVERY_VIA_WIFI_PEERLIST = 4;
     public static final int DISCOVERY_VIA_BLUETOOTH_INCOMING_HANDSHAKE = 5;
+    public static final int MAX_FRAME_SIZE_UNKNOWN = 0;
 
     private int discoveryMethodMostRecent = DISCOVERY_VIA_UNKNOWN;
     private String mName; // The peer name
@@ -23,6 +24,10 @@ public class PeerProperties {
     private String mServiceType;
     private String mDeviceName;
     private String mDeviceAddress;
+    private boolean mCompressionSupported = false;
+    private boolean mMultiplexingSupported = false;
+    private boolean mResumptionSupported = false;
+    private int mMaxFrameSize = MAX_FRAME_SIZE_UNKNOWN;
     private int timesCopiedMerged = 0;
 
     /**
@@ -128,6 +133,53 @@ public class PeerProperties {
         mDeviceAddress = deviceAddress;
     }
 
+    /**
+     * @return True, if the peer advertised support for compressed messages in its identity.
+     */
+    public boolean getCompressionSupported() {
+        return mCompressionSupported;
+    }
+
+    public void setCompressionSupported(boolean compressionSupported) {
+        mCompressionSupported = compressionSupported;
+    }
+
+    /**
+     * @return True, if the peer advertised support for stream multiplexing (see StreamMultiplexer)
+     * in its binary handshake.
+     */
+    public boolean getMultiplexingSupported() {
+        return mMultiplexingSupported;
+    }
+
+    public void setMultiplexingSupported(boolean multiplexingSupported) {
+        mMultiplexingSupported = multiplexingSupported;
+    }
+
+    /**
+     * @return True, if the peer advertised support for session resumption (see SessionResumption)
+     * in its binary handshake.
+     */
+    public boolean getResumptionSupported() {
+        return mResumptionSupported;
+    }
+
+    public void setResumptionSupported(boolean resumptionSupported) {
+        mResumptionSupported = resumptionSupported;
+    }
+
+    /**
+     * @return The maximum frame payload size the peer accepts in bytes or MAX_FRAME_SIZE_UNKNOWN,
+     * if the peer did not advertise it (JSON handshake).
+     */
+    public int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    public void setMaxFrameSize(int maxFrameSize) {
+        mMaxFrameSize = maxFrameSize;
+    }
+
     /**
      * Copies the content of the given source to this one.
      * @param sourcePeerProperties The source peer properties.
@@ -143,6 +195,10 @@ public class PeerProperties {
             }
             mDeviceName = sourcePeerProperties.mDeviceName;
             mDeviceAddress = sourcePeerProperties.mDeviceAddress;
+            mCompressionSupported = sourcePeerProperties.mCompressionSupported;
+            mMultiplexingSupported = sourcePeerProperties.mMultiplexingSupported;
+            mResumptionSupported = sourcePeerProperties.mResumptionSupported;
+            mMaxFrameSize = sourcePeerProperties.mMaxFrameSize;
             timesCopiedMerged++;
         }
     }
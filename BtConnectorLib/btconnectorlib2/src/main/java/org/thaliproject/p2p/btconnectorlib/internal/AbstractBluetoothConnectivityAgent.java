@@ -21,11 +21,13 @@ public abstract class AbstractBluetoothConnectivityAgent implements BluetoothMan
     protected static String TAG = AbstractBluetoothConnectivityAgent.class.getName();
     protected static final String JSON_ID_PEER_NAME = "name";
     protected static final String JSON_ID_PEER_BLUETOOTH_MAC_ADDRESS = "address";
+    protected static final String JSON_ID_COMPRESSION_SUPPORTED = "compression";
     protected final Context mContext;
     protected final BluetoothManager mBluetoothManager;
     protected String mMyPeerName = PeerProperties.NO_PEER_NAME_STRING;
     protected String mMyIdentityString = "";
     protected boolean mEmulateMarshmallow = false;
+    protected boolean mAdvertiseCompressionSupport = false;
 
     /**
      * Constructor.
@@ -142,6 +144,7 @@ public abstract class AbstractBluetoothConnectivityAgent implements BluetoothMan
         JSONObject jsonObject = new JSONObject(identityString);
         peerProperties.setName(jsonObject.getString(JSON_ID_PEER_NAME));
         peerProperties.setBluetoothMacAddress(jsonObject.getString(JSON_ID_PEER_BLUETOOTH_MAC_ADDRESS));
+        peerProperties.setCompressionSupported(jsonObject.optBoolean(JSON_ID_COMPRESSION_SUPPORTED, false));
 
         return peerProperties.isValid();
     }
@@ -191,6 +194,12 @@ public abstract class AbstractBluetoothConnectivityAgent implements BluetoothMan
         try {
             jsonObject.put(JSON_ID_PEER_NAME, peerName);
             jsonObject.put(JSON_ID_PEER_BLUETOOTH_MAC_ADDRESS, bluetoothMacAddress);
+
+            if (mAdvertiseCompressionSupport) {
+                // Only added when supported to keep the identity compatible with older peers
+                jsonObject.put(JSON_ID_COMPRESSION_SUPPORTED, true);
+            }
+
             identityString = jsonObject.toString();
         } catch (JSONException e) {
             Log.e(TAG, "createIdentityString: Failed to construct a JSON object (from data "
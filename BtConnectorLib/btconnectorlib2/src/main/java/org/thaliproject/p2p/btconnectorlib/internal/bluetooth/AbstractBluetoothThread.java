@@ -3,16 +3,27 @@
  */
 package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
 
+import android.util.Log;
+import org.json.JSONException;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import org.thaliproject.p2p.btconnectorlib.internal.AbstractBluetoothConnectivityAgent;
 import org.thaliproject.p2p.btconnectorlib.utils.CommonUtils;
+import org.thaliproject.p2p.btconnectorlib.utils.IoExecutor;
 import java.util.UUID;
 
 /**
  * An abstract base class for BluetoothClientThread and BluetoothServerThread.
  */
 abstract class AbstractBluetoothThread extends Thread {
+    private static final String TAG = AbstractBluetoothThread.class.getName();
     protected UUID mServiceRecordUuid = null;
     protected String mMyIdentityString = null;
     protected boolean mHandshakeRequired = false;
+    private boolean mMultiplexingSupported = false;
+    private int mMaxFrameSize = PeerProperties.MAX_FRAME_SIZE_UNKNOWN;
+    protected ResumptionTokenCache mResumptionTokenCache = null;
+    private PeerProperties mMyPeerProperties = null; // Resolved from the identity string
+    private byte[] mBinaryHandshakeMessage = null;
 
     /**
      * Constructor.
@@ -20,8 +31,15 @@ abstract class AbstractBluetoothThread extends Thread {
      * @param serviceRecordUuid Our UUID (service record UUID to lookup RFCOMM channel).
      * @param myIdentityString Our identity (possible name and the Bluetooth MAC address). Used for
      *                         handshake (if required).
+     * @param category The thread category, which determines the thread settings (see IoExecutor).
      */
-    public AbstractBluetoothThread(UUID serviceRecordUuid, String myIdentityString) {
+    public AbstractBluetoothThread(
+            UUID serviceRecordUuid, String myIdentityString, IoExecutor.Category category) {
+        super(IoExecutor.getDefault().getThreadGroup(category), null,
+                IoExecutor.getDefault().createThreadName(category),
+                IoExecutor.getDefault().getStackSize(category));
+        IoExecutor.getDefault().applyPriority(this, category);
+
         if (serviceRecordUuid == null) {
             throw new NullPointerException("Service record UUID is null");
         }
@@ -38,6 +56,32 @@ abstract class AbstractBluetoothThread extends Thread {
         mHandshakeRequired = handshakeRequired;
     }
 
+    /**
+     * Sets the capabilities advertised in the binary handshake in addition to the compression
+     * support, which is taken from the identity string. Must be called before starting this thread.
+     *
+     * @param multiplexingSupported True, if we support stream multiplexing.
+     * @param maxFrameSize The maximum frame payload size we accept in bytes.
+     */
+    public void setCapabilities(boolean multiplexingSupported, int maxFrameSize) {
+        mMultiplexingSupported = multiplexingSupported;
+        mMaxFrameSize = maxFrameSize;
+        mMyPeerProperties = null;
+        mBinaryHandshakeMessage = null;
+    }
+
+    /**
+     * Sets the cache of the session resumption tokens (see SessionResumption) shared by the
+     * threads. Must be called before starting this thread.
+     *
+     * @param resumptionTokenCache The cache or null, if the session resumption is disabled.
+     */
+    public void setResumptionTokenCache(ResumptionTokenCache resumptionTokenCache) {
+        mResumptionTokenCache = resumptionTokenCache;
+        mMyPeerProperties = null;
+        mBinaryHandshakeMessage = null;
+    }
+
     abstract public void shutdown();
 
     /**
@@ -50,4 +94,63 @@ abstract class AbstractBluetoothThread extends Thread {
         return (CommonUtils.isNonEmptyString(mMyIdentityString)
                 ? mMyIdentityString.getBytes() : CommonUtils.createSimpleHandshakeMessage());
     }
+
+    /**
+     * Creates a binary handshake message (see BinaryHandshake) from the identity string and the
+     * capabilities. The message without early data is created only once.
+     *
+     * @param earlyData The early data to attach to the message. Can be null.
+     * @return The binary handshake message or null, if the identity string is not valid.
+     */
+    protected byte[] getBinaryHandshakeMessage(byte[] earlyData) {
+        return getBinaryHandshakeMessage(earlyData, null);
+    }
+
+    /**
+     * Creates a binary handshake message (see BinaryHandshake) from the identity string and the
+     * capabilities. The message without early data and resumption token is created only once.
+     *
+     * @param earlyData The early data to attach to the message. Can be null.
+     * @param resumptionToken The resumption token to issue. Can be null.
+     * @return The binary handshake message or null, if the identity string is not valid.
+     */
+    protected synchronized byte[] getBinaryHandshakeMessage(byte[] earlyData, byte[] resumptionToken) {
+        if (getMyPeerProperties() == null) {
+            return null;
+        }
+
+        if (earlyData != null || resumptionToken != null) {
+            return BinaryHandshake.encode(mMyPeerProperties, earlyData, resumptionToken);
+        }
+
+        if (mBinaryHandshakeMessage == null) {
+            mBinaryHandshakeMessage = BinaryHandshake.encode(mMyPeerProperties);
+        }
+
+        return mBinaryHandshakeMessage;
+    }
+
+    /**
+     * @return Our properties resolved from the identity string and the capabilities or null, if
+     * the identity string is not valid.
+     */
+    protected synchronized PeerProperties getMyPeerProperties() {
+        if (mMyPeerProperties == null && CommonUtils.isNonEmptyString(mMyIdentityString)) {
+            PeerProperties myPeerProperties = new PeerProperties();
+
+            try {
+                if (AbstractBluetoothConnectivityAgent.getPropertiesFromIdentityString(
+                        mMyIdentityString, myPeerProperties)) {
+                    myPeerProperties.setMultiplexingSupported(mMultiplexingSupported);
+                    myPeerProperties.setMaxFrameSize(mMaxFrameSize);
+                    myPeerProperties.setResumptionSupported(mResumptionTokenCache != null);
+                    mMyPeerProperties = myPeerProperties;
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "getMyPeerProperties: Invalid identity string: " + e.getMessage());
+            }
+        }
+
+        return mMyPeerProperties;
+    }
 }
@@ -0,0 +1,529 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.util.Log;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import org.thaliproject.p2p.btconnectorlib.utils.MessageFrameCodec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * Encodes and decodes the binary handshake message.
+ *
+ * The layout of the message is:
+ *
+ * [magic (2 bytes)][version (1 byte)][Bluetooth MAC address (6 bytes)]
+ * [name length (1 byte)][name (UTF-8)][capabilities (1 byte)][max frame size as a varint]
+ * [early data length as a varint][early data][resumption token length (1 byte)][resumption token]
+ *
+ * The early data field was added in version 2. It carries the first application payload of the
+ * sender so that it needs no round trip of its own: the client attaches its first request to the
+ * handshake and the server its first response to the handshake reply. A peer replying with
+ * version 1 ignored the early data of the client.
+ *
+ * The resumption token field was added in version 3. The server issues a token in its reply, if
+ * the client advertised CAPABILITY_RESUMPTION; the token lets the next connection between the two
+ * peers skip the full handshake (see SessionResumption). The field is empty otherwise.
+ *
+ * The first magic byte is a UTF-8 continuation byte, thus it never starts a JSON identity string
+ * (see AbstractBluetoothConnectivityAgent.createIdentityString()) nor the simple handshake message
+ * (see CommonUtils.createSimpleHandshakeMessage()). This allows telling the formats apart from
+ * the first bytes.
+ *
+ * Later versions may only append fields; the decoder ignores any fields it does not know. The
+ * length of the message can be resolved from its first bytes (see getRequiredLength()), so
+ * reading it never consumes the bytes following it on the stream.
+ */
+public class BinaryHandshake {
+    private static final String TAG = BinaryHandshake.class.getName();
+    public static final byte MAGIC_BYTE_1 = (byte) 0xb7;
+    public static final byte MAGIC_BYTE_2 = (byte) 0x48;
+    public static final byte VERSION = 3;
+    public static final byte MIN_VERSION_WITH_EARLY_DATA = 2;
+    public static final byte MIN_VERSION_WITH_RESUMPTION_TOKEN = 3;
+    public static final byte CAPABILITY_COMPRESSION = 0x1; // See FrameCompressor
+    public static final byte CAPABILITY_MULTIPLEXING = 0x2; // See StreamMultiplexer
+    public static final byte CAPABILITY_RESUMPTION = 0x4; // See SessionResumption
+    public static final int MAX_NAME_LENGTH_IN_BYTES = 255;
+    public static final int MAX_EARLY_DATA_LENGTH_IN_BYTES = 16 * 1024;
+    private static final int VERSION_OFFSET = 2;
+    private static final int NAME_LENGTH_OFFSET = VERSION_OFFSET + 1 + BluetoothUtils.BLUETOOTH_ADDRESS_BYTE_COUNT;
+    private static final int MIN_LENGTH_IN_BYTES = NAME_LENGTH_OFFSET + 1 + 0 + 1 + 1;
+    private static final int MAX_LEGACY_HANDSHAKE_MESSAGE_LENGTH_IN_BYTES = 256;
+    private static final String CHARSET = "UTF-8";
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Checks whether the given bytes start a binary handshake message.
+     *
+     * @param bytes The array containing the message.
+     * @param offset The offset of the message in the array.
+     * @param size The number of valid bytes.
+     * @return True, if the bytes start with the magic bytes.
+     */
+    public static boolean isBinaryHandshake(byte[] bytes, int offset, int size) {
+        return (bytes != null && size >= 2
+                && bytes[offset] == MAGIC_BYTE_1 && bytes[offset + 1] == MAGIC_BYTE_2);
+    }
+
+    /**
+     * Encodes a binary handshake message.
+     *
+     * @param peerProperties Our properties (name, Bluetooth MAC address and capabilities).
+     * @return The encoded message or null, if the Bluetooth MAC address is not valid.
+     */
+    public static byte[] encode(PeerProperties peerProperties) {
+        return encode(peerProperties, null, null);
+    }
+
+    /**
+     * Encodes a binary handshake message.
+     *
+     * @param peerProperties Our properties (name, Bluetooth MAC address and capabilities).
+     * @param earlyData The early data to attach. Can be null.
+     * @param resumptionToken The resumption token to issue to the peer (see SessionResumption).
+     *                        Can be null.
+     * @return The encoded message or null, if the Bluetooth MAC address is not valid or the early
+     * data is too long.
+     */
+    public static byte[] encode(PeerProperties peerProperties, byte[] earlyData, byte[] resumptionToken) {
+        byte[] bluetoothMacAddressBytes = bluetoothMacAddressToBytes(peerProperties.getBluetoothMacAddress());
+
+        if (bluetoothMacAddressBytes == null) {
+            Log.e(TAG, "encode: Invalid Bluetooth MAC address: " + peerProperties.getBluetoothMacAddress());
+            return null;
+        }
+
+        int earlyDataLength = (earlyData != null) ? earlyData.length : 0;
+        int resumptionTokenLength = (resumptionToken != null) ? resumptionToken.length : 0;
+
+        if (earlyDataLength > MAX_EARLY_DATA_LENGTH_IN_BYTES) {
+            Log.e(TAG, "encode: Early data too long: " + earlyDataLength + " bytes");
+            return null;
+        }
+
+        if (resumptionTokenLength != 0 && resumptionTokenLength != SessionResumption.TOKEN_LENGTH_IN_BYTES) {
+            Log.e(TAG, "encode: Invalid resumption token length: " + resumptionTokenLength);
+            return null;
+        }
+
+        byte[] nameBytes = toUtf8(peerProperties.getName());
+        int nameLength = Math.min(nameBytes.length, MAX_NAME_LENGTH_IN_BYTES);
+        int maxFrameSize = Math.max(peerProperties.getMaxFrameSize(), PeerProperties.MAX_FRAME_SIZE_UNKNOWN);
+        byte capabilities = 0;
+
+        if (peerProperties.getCompressionSupported()) {
+            capabilities |= CAPABILITY_COMPRESSION;
+        }
+
+        if (peerProperties.getMultiplexingSupported()) {
+            capabilities |= CAPABILITY_MULTIPLEXING;
+        }
+
+        if (peerProperties.getResumptionSupported()) {
+            capabilities |= CAPABILITY_RESUMPTION;
+        }
+
+        byte[] message = new byte[MIN_LENGTH_IN_BYTES - 1 + nameLength
+                + MessageFrameCodec.getVarIntLength(maxFrameSize)
+                + MessageFrameCodec.getVarIntLength(earlyDataLength) + earlyDataLength
+                + 1 + resumptionTokenLength];
+        int offset = 0;
+        message[offset++] = MAGIC_BYTE_1;
+        message[offset++] = MAGIC_BYTE_2;
+        message[offset++] = VERSION;
+        System.arraycopy(bluetoothMacAddressBytes, 0, message, offset, bluetoothMacAddressBytes.length);
+        offset += bluetoothMacAddressBytes.length;
+        message[offset++] = (byte) nameLength;
+        System.arraycopy(nameBytes, 0, message, offset, nameLength);
+        offset += nameLength;
+        message[offset++] = capabilities;
+        offset = MessageFrameCodec.writeVarInt(maxFrameSize, message, offset);
+        offset = MessageFrameCodec.writeVarInt(earlyDataLength, message, offset);
+
+        if (earlyDataLength > 0) {
+            System.arraycopy(earlyData, 0, message, offset, earlyDataLength);
+            offset += earlyDataLength;
+        }
+
+        message[offset++] = (byte) resumptionTokenLength;
+
+        if (resumptionTokenLength > 0) {
+            System.arraycopy(resumptionToken, 0, message, offset, resumptionTokenLength);
+        }
+
+        return message;
+    }
+
+    /**
+     * Resolves the length of a binary handshake message from its first bytes.
+     *
+     * @param bytes The array containing the beginning of the message.
+     * @param offset The offset of the message in the array.
+     * @param size The number of bytes available.
+     * @return The length of the message, if the given bytes suffice to resolve it. Otherwise, a
+     * value greater than the given size; the number of bytes needed before trying again.
+     * @throws IOException Thrown, if the message is invalid.
+     */
+    public static int getRequiredLength(byte[] bytes, int offset, int size) throws IOException {
+        if (SessionResumption.isResumptionMessage(bytes, offset, size)) {
+            return SessionResumption.getRequiredLength(bytes, offset, size);
+        }
+
+        if (size < NAME_LENGTH_OFFSET + 1) {
+            return NAME_LENGTH_OFFSET + 1;
+        }
+
+        if (!isBinaryHandshake(bytes, offset, size)) {
+            throw new IOException("Not a binary handshake message");
+        }
+
+        final int version = bytes[offset + VERSION_OFFSET] & 0xff;
+        int position = NAME_LENGTH_OFFSET + 1 + (bytes[offset + NAME_LENGTH_OFFSET] & 0xff) + 1;
+        int numberOfVarInts = (version >= MIN_VERSION_WITH_EARLY_DATA) ? 2 : 1;
+        int value = 0;
+
+        for (int i = 0; i < numberOfVarInts; ++i) {
+            if (size <= position) {
+                return position + 1;
+            }
+
+            int varIntLength = 0;
+
+            while ((bytes[offset + position + varIntLength] & 0x80) != 0) {
+                if (++varIntLength >= MessageFrameCodec.MAX_VARINT_LENGTH_IN_BYTES) {
+                    throw new IOException("Invalid varint");
+                }
+
+                if (position + varIntLength >= size) {
+                    return position + varIntLength + 1;
+                }
+            }
+
+            value = MessageFrameCodec.readVarInt(bytes, offset + position, varIntLength + 1);
+            position += varIntLength + 1;
+        }
+
+        if (numberOfVarInts == 1) {
+            return position;
+        }
+
+        if (value < 0 || value > MAX_EARLY_DATA_LENGTH_IN_BYTES) {
+            throw new IOException("Invalid early data length: " + value);
+        }
+
+        position += value;
+
+        if (version < MIN_VERSION_WITH_RESUMPTION_TOKEN) {
+            return position;
+        }
+
+        if (size <= position) {
+            return position + 1;
+        }
+
+        int resumptionTokenLength = bytes[offset + position] & 0xff;
+
+        if (resumptionTokenLength != 0 && resumptionTokenLength != SessionResumption.TOKEN_LENGTH_IN_BYTES) {
+            throw new IOException("Invalid resumption token length: " + resumptionTokenLength);
+        }
+
+        return position + 1 + resumptionTokenLength;
+    }
+
+    /**
+     * Reads a handshake message from the given input stream. A binary message is read exactly,
+     * leaving any data following it in the stream. A legacy (JSON) message is read up to the end
+     * of the JSON object, at most MAX_LEGACY_HANDSHAKE_MESSAGE_LENGTH_IN_BYTES.
+     *
+     * @param inputStream The input stream.
+     * @return The message.
+     * @throws IOException Thrown, if reading fails, the stream ends or the message is invalid.
+     */
+    public static byte[] readHandshakeMessage(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[MAX_LEGACY_HANDSHAKE_MESSAGE_LENGTH_IN_BYTES];
+        // No binary message is shorter than this, thus nothing following the message is consumed
+        int size = readAtLeastOnce(inputStream, buffer, 0, NAME_LENGTH_OFFSET + 1);
+
+        if (buffer[0] != MAGIC_BYTE_1) {
+            // Legacy message, read byte by byte so that nothing following the object is consumed
+            int length;
+
+            while ((length = getLegacyMessageLength(buffer, size)) < 0) {
+                if (size == buffer.length) {
+                    throw new IOException("Legacy handshake message too long");
+                }
+
+                size += readAtLeastOnce(inputStream, buffer, size, 1);
+            }
+
+            return Arrays.copyOf(buffer, length);
+        }
+
+        int requiredLength;
+
+        while ((requiredLength = getRequiredLength(buffer, 0, size)) > size) {
+            if (requiredLength > buffer.length) {
+                buffer = Arrays.copyOf(buffer, requiredLength);
+            }
+
+            size += readAtLeastOnce(inputStream, buffer, size, requiredLength - size);
+        }
+
+        return (size == buffer.length) ? buffer : Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * Resolves the early data of the given binary handshake message.
+     *
+     * @param bytes The array containing the message.
+     * @param offset The offset of the message in the array.
+     * @param size The number of valid bytes.
+     * @return The early data or null, if the message has no early data field (version 1). An
+     * empty array, if the field is empty.
+     * @throws IOException Thrown, if the message is invalid.
+     */
+    public static byte[] getEarlyData(byte[] bytes, int offset, int size) throws IOException {
+        int length = getRequiredLength(bytes, offset, size);
+
+        if (length > size) {
+            throw new IOException("Truncated message");
+        }
+
+        if ((bytes[offset + VERSION_OFFSET] & 0xff) < MIN_VERSION_WITH_EARLY_DATA) {
+            return null;
+        }
+
+        int position = getEarlyDataLengthPosition(bytes, offset);
+        int earlyDataLength = MessageFrameCodec.readVarInt(bytes, offset + position, length - position);
+        position = skipVarInt(bytes, offset, position);
+        return Arrays.copyOfRange(bytes, offset + position, offset + position + earlyDataLength);
+    }
+
+    /**
+     * Resolves the resumption token issued in the given binary handshake message.
+     *
+     * @param bytes The array containing the message.
+     * @param offset The offset of the message in the array.
+     * @param size The number of valid bytes.
+     * @return The resumption token or null, if the message has none.
+     * @throws IOException Thrown, if the message is invalid.
+     */
+    public static byte[] getResumptionToken(byte[] bytes, int offset, int size) throws IOException {
+        int length = getRequiredLength(bytes, offset, size);
+
+        if (length > size) {
+            throw new IOException("Truncated message");
+        }
+
+        if ((bytes[offset + VERSION_OFFSET] & 0xff) < MIN_VERSION_WITH_RESUMPTION_TOKEN) {
+            return null;
+        }
+
+        int position = getEarlyDataLengthPosition(bytes, offset);
+        int earlyDataLength = MessageFrameCodec.readVarInt(bytes, offset + position, length - position);
+        position = skipVarInt(bytes, offset, position) + earlyDataLength;
+
+        if (bytes[offset + position] == 0) {
+            return null;
+        }
+
+        return Arrays.copyOfRange(bytes, offset + position + 1, offset + length);
+    }
+
+    /**
+     * Decodes a binary handshake message.
+     *
+     * @param bytes The array containing the message.
+     * @param offset The offset of the message in the array.
+     * @param size The number of valid bytes.
+     * @param peerProperties The peer properties to contain the decoded values.
+     * @return True, if the message was valid and the properties contain data. False otherwise.
+     */
+    public static boolean decode(byte[] bytes, int offset, int size, PeerProperties peerProperties) {
+        if (!isBinaryHandshake(bytes, offset, size) || size < MIN_LENGTH_IN_BYTES) {
+            Log.e(TAG, "decode: Not a binary handshake message or too short (" + size + " bytes)");
+            return false;
+        }
+
+        final int end = offset + size;
+        offset += 2;
+        int version = bytes[offset++] & 0xff;
+
+        if (version < 1) {
+            Log.e(TAG, "decode: Unsupported version: " + version);
+            return false;
+        }
+
+        peerProperties.setBluetoothMacAddress(bytesToBluetoothMacAddress(bytes, offset));
+        offset += BluetoothUtils.BLUETOOTH_ADDRESS_BYTE_COUNT;
+        int nameLength = bytes[offset++] & 0xff;
+
+        if (offset + nameLength + 2 > end) {
+            Log.e(TAG, "decode: Truncated message (name length " + nameLength + ", size " + size + ")");
+            return false;
+        }
+
+        try {
+            peerProperties.setName(new String(bytes, offset, nameLength, CHARSET));
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "decode: Failed to decode the name: " + e.getMessage(), e);
+            return false;
+        }
+
+        offset += nameLength;
+        byte capabilities = bytes[offset++];
+        peerProperties.setCompressionSupported((capabilities & CAPABILITY_COMPRESSION) != 0);
+        peerProperties.setMultiplexingSupported((capabilities & CAPABILITY_MULTIPLEXING) != 0);
+        peerProperties.setResumptionSupported((capabilities & CAPABILITY_RESUMPTION) != 0);
+
+        try {
+            peerProperties.setMaxFrameSize(MessageFrameCodec.readVarInt(bytes, offset, end - offset));
+        } catch (IOException e) {
+            Log.e(TAG, "decode: Invalid max frame size: " + e.getMessage());
+            return false;
+        }
+
+        return peerProperties.isValid();
+    }
+
+    /**
+     * @param bytes The array containing a valid message of version 2 or later.
+     * @param offset The offset of the message in the array.
+     * @return The position of the early data length relative to the offset.
+     */
+    private static int getEarlyDataLengthPosition(byte[] bytes, int offset) {
+        // Skip the max frame size
+        return skipVarInt(bytes, offset, NAME_LENGTH_OFFSET + 1 + (bytes[offset + NAME_LENGTH_OFFSET] & 0xff) + 1);
+    }
+
+    /**
+     * @param bytes The array containing a valid message.
+     * @param offset The offset of the message in the array.
+     * @param position The position of a varint relative to the offset.
+     * @return The position following the varint.
+     */
+    private static int skipVarInt(byte[] bytes, int offset, int position) {
+        while ((bytes[offset + position] & 0x80) != 0) {
+            position++;
+        }
+
+        return position + 1;
+    }
+
+    /**
+     * Resolves the length of the legacy (JSON) handshake message in the given bytes i.e. the
+     * position following the closing brace of the top-level object.
+     *
+     * @param bytes The array containing the start of the message.
+     * @param size The number of valid bytes.
+     * @return The length of the message or -1, if the object is not complete yet.
+     * @throws IOException Thrown, if the message does not start with a JSON object.
+     */
+    private static int getLegacyMessageLength(byte[] bytes, int size) throws IOException {
+        int depth = 0;
+        boolean isInString = false;
+        boolean isEscaped = false;
+
+        for (int i = 0; i < size; ++i) {
+            byte b = bytes[i];
+
+            if (depth == 0) {
+                if (b == '{') {
+                    depth = 1;
+                } else if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                    throw new IOException("Invalid handshake message");
+                }
+            } else if (isInString) {
+                if (isEscaped) {
+                    isEscaped = false;
+                } else if (b == '\\') {
+                    isEscaped = true;
+                } else if (b == '"') {
+                    isInString = false;
+                }
+            } else if (b == '"') {
+                isInString = true;
+            } else if (b == '{') {
+                depth++;
+            } else if (b == '}' && --depth == 0) {
+                return i + 1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Reads once from the given input stream.
+     *
+     * @param inputStream The input stream.
+     * @param buffer The buffer to read into.
+     * @param offset The offset in the buffer.
+     * @param maxLength The maximum number of bytes to read.
+     * @return The number of bytes read (at least one).
+     * @throws IOException Thrown, if reading fails or the stream ends.
+     */
+    /* Package */ static int readAtLeastOnce(InputStream inputStream, byte[] buffer, int offset, int maxLength)
+            throws IOException {
+        int numberOfBytesRead = inputStream.read(buffer, offset, maxLength); // Blocking call
+
+        if (numberOfBytesRead <= 0) {
+            throw new EOFException("Stream ended before the handshake message");
+        }
+
+        return numberOfBytesRead;
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address e.g. "01:23:45:67:89:AB".
+     * @return The address as bytes or null, if the address is not valid.
+     */
+    /* Package */ static byte[] bluetoothMacAddressToBytes(String bluetoothMacAddress) {
+        if (!BluetoothUtils.isValidBluetoothMacAddress(bluetoothMacAddress)) {
+            return null;
+        }
+
+        String[] bytesAsHexStringArray = bluetoothMacAddress.split(BluetoothUtils.BLUETOOTH_ADDRESS_SEPARATOR);
+        byte[] bluetoothMacAddressBytes = new byte[BluetoothUtils.BLUETOOTH_ADDRESS_BYTE_COUNT];
+
+        for (int i = 0; i < bluetoothMacAddressBytes.length; ++i) {
+            bluetoothMacAddressBytes[i] = (byte) Integer.parseInt(bytesAsHexStringArray[i], 16);
+        }
+
+        return bluetoothMacAddressBytes;
+    }
+
+    /**
+     * @param bytes The array containing the address.
+     * @param offset The offset of the address in the array.
+     * @return The Bluetooth MAC address in form "01:23:45:67:89:AB".
+     */
+    /* Package */ static String bytesToBluetoothMacAddress(byte[] bytes, int offset) {
+        StringBuilder stringBuilder = new StringBuilder(BluetoothUtils.BLUETOOTH_MAC_ADDRESS_STRING_LENGTH_MAX);
+
+        for (int i = 0; i < BluetoothUtils.BLUETOOTH_ADDRESS_BYTE_COUNT; ++i) {
+            if (i > 0) {
+                stringBuilder.append(BluetoothUtils.BLUETOOTH_ADDRESS_SEPARATOR);
+            }
+
+            int value = bytes[offset + i] & 0xff;
+            stringBuilder.append(HEX_DIGITS[value >>> 4]).append(HEX_DIGITS[value & 0xf]);
+        }
+
+        return stringBuilder.toString();
+    }
+
+    private static byte[] toUtf8(String string) {
+        try {
+            return (string != null) ? string.getBytes(CHARSET) : new byte[0];
+        } catch (UnsupportedEncodingException e) {
+            return new byte[0];
+        }
+    }
+}
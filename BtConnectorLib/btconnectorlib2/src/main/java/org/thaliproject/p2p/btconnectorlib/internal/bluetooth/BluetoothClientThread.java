@@ -6,16 +6,22 @@ package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.util.Log;
-import org.thaliproject.p2p.btconnectorlib.utils.BluetoothSocketIoThread;
+import org.thaliproject.p2p.btconnectorlib.utils.BackoffRetryPolicy;
+import org.thaliproject.p2p.btconnectorlib.utils.IoExecutor;
+import org.thaliproject.p2p.btconnectorlib.utils.RetryPolicy;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Thread for initiating outgoing connections.
  */
-class BluetoothClientThread extends AbstractBluetoothThread implements BluetoothSocketIoThread.Listener {
+class BluetoothClientThread extends AbstractBluetoothThread {
     /**
      * Thread listener.
      */
@@ -35,9 +41,13 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
          *
          * @param bluetoothSocket The Bluetooth socket associated with the connection.
          * @param peerProperties The peer properties.
+         * @param earlyData The early data the peer attached to its handshake response or null,
+         *                  if the peer did not process our early data (see setEarlyData()).
          * @param who The Bluetooth client thread instance calling this callback.
          */
-        void onHandshakeSucceeded(BluetoothSocket bluetoothSocket, PeerProperties peerProperties, BluetoothClientThread who);
+        void onHandshakeSucceeded(
+                BluetoothSocket bluetoothSocket, PeerProperties peerProperties,
+                byte[] earlyData, BluetoothClientThread who);
 
         /**
          * Called when connection attempt fails.
@@ -53,16 +63,25 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
     public static final int SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT = -1;
     public static final int DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT = 1;
     public static final int DEFAULT_MAX_NUMBER_OF_RETRIES = 0;
-    private static final int WAIT_BETWEEN_RETRIES_IN_MILLISECONDS = 300;
     private final BluetoothDevice mBluetoothDeviceToConnectTo;
     private Listener mListener = null;
     private BluetoothSocket mBluetoothSocket = null;
-    private BluetoothSocketIoThread mHandshakeThread = null;
     private PeerProperties mPeerProperties;
     private int mInsecureRfcommSocketPort = SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT;
     private int mMaxNumberOfRetries = DEFAULT_MAX_NUMBER_OF_RETRIES;
+    private RetryPolicy mRetryPolicy = new BackoffRetryPolicy();
     private long mTimeStarted = 0;
-    private boolean mIsShuttingDown = false;
+    private long mHandshakeDeadlineInMilliseconds = HandshakeWorkerPool.DEFAULT_DEADLINE_IN_MILLISECONDS;
+    private boolean mUseBinaryHandshake = false;
+    private volatile boolean mIsBinaryHandshakeSent = false;
+    private volatile boolean mIsBinaryHandshakeRejected = false;
+    private byte[] mEarlyData = null;
+    private ConnectionRaceStatistics mConnectionRaceStatistics = null;
+    private long mConnectionRaceStaggerInMilliseconds = ConnectionRace.DEFAULT_STAGGER_IN_MILLISECONDS;
+    private volatile ConnectionRace mConnectionRace = null;
+    private RfcommChannelCache mRfcommChannelCache = null;
+    private boolean mIsConnectedToCachedChannel = false; // True, if the current socket skipped the SDP lookup
+    private volatile boolean mIsShuttingDown = false;
 
     /**
      * Constructor.
@@ -78,7 +97,7 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
             Listener listener, BluetoothDevice bluetoothDeviceToConnectTo,
             UUID serviceRecordUuid, String myIdentityString)
             throws NullPointerException, IOException {
-        super(serviceRecordUuid, myIdentityString);
+        super(serviceRecordUuid, myIdentityString, IoExecutor.Category.CONNECT);
 
         if (listener == null || bluetoothDeviceToConnectTo == null) {
             throw new NullPointerException("Either the listener or the Bluetooth device instance is null");
@@ -116,49 +135,7 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         Log.d(TAG, "Bluetooth peer SPOTBA101");
 
         if (mHandshakeRequired && socketConnectSucceeded && !mIsShuttingDown) {
-            String errorMessage = "";
-
-            try {
-                Log.d(TAG, "Bluetooth peer SPOTBA000");
-                mHandshakeThread = new BluetoothSocketIoThread(mBluetoothSocket, this);
-                mHandshakeThread.setUncaughtExceptionHandler(this.getUncaughtExceptionHandler());
-                mHandshakeThread.setExitThreadAfterRead(true);
-                Log.d(TAG, "Bluetooth peer SPOTBA001");
-                mHandshakeThread.start();
-                Log.d(TAG, "Bluetooth peer SPOTBA002");
-                boolean handshakeSucceeded = mHandshakeThread.write(getHandshakeMessage()); // This does not throw exceptions
-                Log.d(TAG, "Bluetooth peer SPOTBA003");
-
-                if (handshakeSucceeded) {
-                    Log.d(TAG, "Outgoing connection initialized (*handshake* thread ID: "
-                            + mHandshakeThread.getId() + ")");
-                } else if (!mIsShuttingDown) {
-                    Log.e(TAG, "Failed to initiate handshake");
-                    close();
-
-                    if (mListener != null) {
-                        mListener.onConnectionFailed(mPeerProperties, errorMessage, this);
-                    }
-                }
-            } catch (IOException e) {
-                errorMessage = "Construction of a handshake thread failed: " + e.getMessage();
-                Log.e(TAG, errorMessage, e);
-
-                if (mListener != null) {
-                    mListener.onConnectionFailed(mPeerProperties, errorMessage, this);
-                }
-            } catch (NullPointerException e) {
-                errorMessage = "Unexpected error: " + e.getMessage();
-                Log.e(TAG, errorMessage, e);
-
-                if (mListener != null) {
-                    mListener.onConnectionFailed(mPeerProperties, errorMessage, this);
-                }
-            } catch (Exception e) {
-                errorMessage = "Unexpected error 2: " + e.getMessage();
-                Log.e(TAG, errorMessage, e);
-            }
-            Log.d(TAG, "Bluetooth peer SPOTBA010");
+            performHandshake();
         }
 
         if (mIsShuttingDown) {
@@ -188,6 +165,94 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         mMaxNumberOfRetries = maxNumberOfRetries;
     }
 
+    /**
+     * Sets the policy deciding whether and when to retry after a failed attempt. The retries are
+     * still limited by the maximum number of retries (see setMaxNumberOfRetries()).
+     *
+     * @param retryPolicy The retry policy.
+     * @throws NullPointerException Thrown, if the retry policy is null.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) throws NullPointerException {
+        if (retryPolicy == null) {
+            throw new NullPointerException("The retry policy is null");
+        }
+
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets the cache of the RFCOMM channels of the peers used to skip the SDP lookup when
+     * connecting using the system decided port. Must be called before starting this thread.
+     *
+     * @param rfcommChannelCache The channel cache or null, if the channels should not be cached.
+     */
+    public void setRfcommChannelCache(RfcommChannelCache rfcommChannelCache) {
+        mRfcommChannelCache = rfcommChannelCache;
+    }
+
+    /**
+     * Enables or disables racing the custom port against the system decided port (see
+     * ConnectionRace). Only used when the port set with setInsecureRfcommSocketPortNumber() is not
+     * the system decided one. When racing, the system decided port is not tried again as a fallback.
+     * Must be called before starting this thread.
+     *
+     * @param statistics The statistics to record the outcomes to. If null, racing is disabled.
+     * @param staggerInMilliseconds The delay before starting the system decided port.
+     */
+    public void setConnectionRace(ConnectionRaceStatistics statistics, long staggerInMilliseconds) {
+        mConnectionRaceStatistics = statistics;
+        mConnectionRaceStaggerInMilliseconds = staggerInMilliseconds;
+    }
+
+    /**
+     * Sets the time the peer has to respond to our handshake message. If the peer does not respond
+     * in time, the socket is closed and the handshake fails. Must be called before starting this
+     * thread.
+     *
+     * @param handshakeDeadlineInMilliseconds The deadline in milliseconds. If zero or less, the
+     *                                        default deadline (see HandshakeWorkerPool) is used.
+     */
+    public void setHandshakeDeadline(long handshakeDeadlineInMilliseconds) {
+        mHandshakeDeadlineInMilliseconds = (handshakeDeadlineInMilliseconds > 0)
+                ? handshakeDeadlineInMilliseconds : HandshakeWorkerPool.DEFAULT_DEADLINE_IN_MILLISECONDS;
+    }
+
+    /**
+     * Sets the handshake format. Must be called before starting this thread.
+     *
+     * @param useBinaryHandshake If true, the binary handshake (see BinaryHandshake) is used.
+     *                           Otherwise, the JSON identity string is sent.
+     */
+    public void setUseBinaryHandshake(boolean useBinaryHandshake) {
+        mUseBinaryHandshake = useBinaryHandshake;
+    }
+
+    /**
+     * Sets the early data to attach to the handshake (see BinaryHandshake). The early data is only
+     * sent with the binary handshake. Must be called before starting this thread.
+     *
+     * @param earlyData The early data or null, if none.
+     */
+    public void setEarlyData(byte[] earlyData) {
+        mEarlyData = earlyData;
+    }
+
+    /**
+     * @return True, if the binary handshake message was sent to the peer.
+     */
+    public boolean getBinaryHandshakeSent() {
+        return mIsBinaryHandshakeSent;
+    }
+
+    /**
+     * @return True, if the peer closed the connection right after receiving our binary handshake
+     * message or answered it with a non-binary or invalid response i.e. the peer does not seem to
+     * support the binary handshake.
+     */
+    public boolean getBinaryHandshakeRejected() {
+        return mIsBinaryHandshakeRejected;
+    }
+
     public PeerProperties getPeerProperties() {
         return mPeerProperties;
     }
@@ -207,53 +272,92 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
      * is called.
      */
     @Override
-    public synchronized void shutdown() {
+    public void shutdown() {
         Log.d(TAG, "shutdown SPOTAC000 (" + Thread.currentThread() + ")");
         mIsShuttingDown = true;
-        mListener = null;
-        close();
+        ConnectionRace connectionRace = mConnectionRace;
+
+        if (connectionRace != null) {
+            // Unblock tryToConnect(), which holds the lock while racing
+            connectionRace.cancel();
+        }
+
+        synchronized (this) {
+            mListener = null;
+            close();
+            notifyAll(); // Wake up waitBeforeRetry()
+        }
+
         Log.d(TAG, "shutdown finished SPOTAC000 (" + Thread.currentThread() + ")");
     }
 
     /**
-     * Tries to validate the read message, which should contain the identity of the peer. If the
-     * identity is valid, notify the user that we have established a connection.
-     *
-     * @param bytes The array of bytes read.
-     * @param size The size of the array.
-     * @param who The related BluetoothSocketIoThread instance.
+     * Resumes the session with the peer using a cached resumption token (see SessionResumption)
+     * or, if there is no token or the peer rejects it, sends our identity (and the early data, if
+     * any) to the peer and validates the identity in the response. If the identity is valid,
+     * notifies the listener that we have established a connection.
      */
-    @Override
-    public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
-        final long threadId = who.getId();
-        final BluetoothSocket bluetoothSocket = who.getSocket();
+    private void performHandshake() {
+        final BluetoothSocket bluetoothSocket = mBluetoothSocket;
+        final ResumptionTokenCache resumptionTokenCache = mResumptionTokenCache;
+        PeerProperties peerProperties = null;
+        byte[] earlyData = null;
+        String errorMessage = null;
 
-        Log.d(TAG, "onBytesRead: Read " + size + " bytes successfully (thread ID: " + threadId + ")");
+        try {
+            HandshakeWorkerPool.Result result = null;
 
-        PeerProperties peerProperties =
-                BluetoothUtils.validateReceivedHandshakeMessage(bytes, bluetoothSocket);
+            if (mUseBinaryHandshake && resumptionTokenCache != null) {
+                ResumptionTokenCache.Entry entry =
+                        resumptionTokenCache.get(mBluetoothDeviceToConnectTo.getAddress());
+
+                if (entry != null) {
+                    result = tryToResumeSession(bluetoothSocket, resumptionTokenCache, entry);
+                }
+            }
+
+            if (result == null) {
+                result = performFullHandshake(bluetoothSocket, resumptionTokenCache);
+            }
+
+            if (result != null) {
+                peerProperties = result.getPeerProperties();
+                earlyData = result.getEarlyData();
+            }
+        } catch (IOException | NullPointerException e) {
+            errorMessage = "Handshake failed: " + e.getMessage();
+        }
+
+        if (mIsShuttingDown) {
+            return;
+        }
 
         if (peerProperties != null) {
             Log.i(TAG, "Handshake succeeded with " + peerProperties.toString());
 
-            // Set the resolved properties to the associated thread
-            who.setPeerProperties(peerProperties);
-
             if (mListener != null) {
                 // On successful handshake, we'll pass the socket for the listener, so it's now
                 // the listeners responsibility to close the socket once done. Thus, do not
                 // close the socket here. Do not either close the input and output streams,
                 // since that will invalidate the socket as well.
-                mListener.onHandshakeSucceeded(bluetoothSocket, peerProperties, this);
-                mHandshakeThread = null;
+                mListener.onHandshakeSucceeded(bluetoothSocket, peerProperties, earlyData, this);
             } else {
                 // No listener to deal with the socket, shut it down
                 shutdown();
             }
         } else {
-            String errorMessage = "Handshake failed - unable to resolve peer properties, perhaps due to invalid identity";
+            if (errorMessage == null) {
+                errorMessage = "Handshake failed - unable to resolve peer properties, perhaps due to invalid identity";
+            }
+
             Log.e(TAG, errorMessage);
 
+            if (mIsConnectedToCachedChannel && mRfcommChannelCache != null) {
+                // The channel may now belong to another service or device, do the SDP lookup next time
+                Log.d(TAG, "performHandshake: Invalidating the cached RFCOMM channel");
+                mRfcommChannelCache.invalidate(mBluetoothDeviceToConnectTo.getAddress());
+            }
+
             if (mListener != null) {
                 mListener.onConnectionFailed(mPeerProperties, errorMessage, this);
             }
@@ -263,50 +367,172 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
     }
 
     /**
-     * Does nothing, but logs the event.
+     * Sends our identity (and the early data, if any) to the peer and validates the identity in
+     * the response. Caches the resumption token, if the peer issued one.
      *
-     * @param buffer The array of bytes read.
-     * @param size The size of the array.
-     * @param who The related BluetoothSocketIoThread instance.
+     * @param bluetoothSocket The socket.
+     * @param resumptionTokenCache The resumption token cache or null, if resumption is disabled.
+     * @return The properties of the peer and its early data or null, if the identity was not valid.
+     * @throws IOException Thrown, if reading or writing the socket fails.
      */
-    @Override
-    public void onBytesWritten(byte[] buffer, int size, BluetoothSocketIoThread who) {
-        final long threadId = who.getId();
-        Log.d(TAG, "onBytesWritten: " + size + " bytes successfully written (thread ID: " + threadId + ")");
+    private HandshakeWorkerPool.Result performFullHandshake(
+            BluetoothSocket bluetoothSocket, ResumptionTokenCache resumptionTokenCache) throws IOException {
+        byte[] handshakeMessage = mUseBinaryHandshake ? getBinaryHandshakeMessage(mEarlyData) : null;
+        mIsBinaryHandshakeSent = (handshakeMessage != null);
+
+        if (handshakeMessage == null) {
+            handshakeMessage = getHandshakeMessage();
+        }
+
+        bluetoothSocket.getOutputStream().write(handshakeMessage);
+        bluetoothSocket.getOutputStream().flush();
+        Log.d(TAG, "Outgoing connection initialized, waiting for the handshake response (thread ID: " + getId() + ")");
+
+        byte[] response;
+
+        try {
+            response = readHandshakeResponse(bluetoothSocket);
+        } catch (EOFException e) {
+            // The peer closed the connection without answering
+            mIsBinaryHandshakeRejected = mIsBinaryHandshakeSent;
+            throw e;
+        }
+
+        Log.d(TAG, "performFullHandshake: Read " + response.length + " bytes successfully (thread ID: " + getId() + ")");
+        PeerProperties peerProperties =
+                BluetoothUtils.validateReceivedHandshakeMessage(response, response.length, bluetoothSocket);
+
+        if (mIsBinaryHandshakeSent
+                && (peerProperties == null || !BinaryHandshake.isBinaryHandshake(response, 0, response.length))) {
+            mIsBinaryHandshakeRejected = true;
+        }
+
+        if (peerProperties == null) {
+            return null;
+        }
+
+        byte[] earlyData = null;
+
+        if (BinaryHandshake.isBinaryHandshake(response, 0, response.length)) {
+            if (mEarlyData != null) {
+                earlyData = BinaryHandshake.getEarlyData(response, 0, response.length);
+            }
+
+            byte[] resumptionToken = BinaryHandshake.getResumptionToken(response, 0, response.length);
+
+            if (resumptionTokenCache != null && resumptionToken != null) {
+                resumptionTokenCache.put(peerProperties, resumptionToken);
+            }
+        }
+
+        return new HandshakeWorkerPool.Result(peerProperties, earlyData);
     }
 
     /**
-     * If the handshake thread instance is still around, it means we got a connection failure in our
-     * hands and we need to notify the listener and shutdown.
+     * Presents the cached resumption token to the peer. The token is removed from the cache, since
+     * it can only be used once; if the peer accepts it, the new token issued by the peer is cached.
      *
-     * @param reason The reason why we got disconnected. Contains an exception message in case of failure.
-     * @param who The related BluetoothSocketIoThread instance.
+     * @param bluetoothSocket The socket.
+     * @param resumptionTokenCache The resumption token cache.
+     * @param entry The cache entry of the peer.
+     * @return The cached properties of the peer and its early data or null, if the peer rejected
+     * the token and expects the full handshake.
+     * @throws IOException Thrown, if reading or writing the socket fails or the response is invalid.
      */
-    @Override
-    public void onDisconnected(String reason, BluetoothSocketIoThread who) {
-        final long threadId = who.getId();
-        final PeerProperties peerProperties = who.getPeerProperties();
-        Log.i(TAG, "onDisconnected: " + peerProperties.toString() + " (thread " + Thread.currentThread() + ")");
+    private HandshakeWorkerPool.Result tryToResumeSession(
+            BluetoothSocket bluetoothSocket, ResumptionTokenCache resumptionTokenCache,
+            ResumptionTokenCache.Entry entry) throws IOException {
+        final String bluetoothMacAddress = mBluetoothDeviceToConnectTo.getAddress();
+        final PeerProperties myPeerProperties = getMyPeerProperties();
+        byte[] request = (myPeerProperties != null) ? SessionResumption.encode(SessionResumption.TYPE_REQUEST,
+                myPeerProperties.getBluetoothMacAddress(), entry.getToken(), mEarlyData) : null;
+
+        if (request == null) {
+            return null;
+        }
 
-        // If we were successful, the handshake thread instance was set to null
-        if (mHandshakeThread != null) {
-            if (mListener != null) {
-                mListener.onConnectionFailed(peerProperties, "Socket disconnected", this);
-            }
+        resumptionTokenCache.remove(bluetoothMacAddress);
+        mIsBinaryHandshakeSent = true;
+        bluetoothSocket.getOutputStream().write(request);
+        bluetoothSocket.getOutputStream().flush();
+        Log.d(TAG, "Resuming session, waiting for the response (thread ID: " + getId() + ")");
 
-            shutdown();
+        byte[] response = readHandshakeResponse(bluetoothSocket);
+
+        if (!SessionResumption.isResumptionMessage(response, 0, response.length)) {
+            throw new IOException("Unexpected response to the resumption request");
+        }
+
+        if (SessionResumption.getType(response) != SessionResumption.TYPE_ACCEPTED) {
+            Log.i(TAG, "tryToResumeSession: Rejected by " + bluetoothMacAddress + ", falling back to the full handshake");
+            return null;
         }
+
+        if (!bluetoothMacAddress.equals(SessionResumption.getBluetoothMacAddress(response))) {
+            throw new IOException("Bluetooth MAC address mismatch: "
+                    + SessionResumption.getBluetoothMacAddress(response));
+        }
+
+        PeerProperties peerProperties = entry.getPeerProperties();
+        resumptionTokenCache.put(peerProperties, SessionResumption.getToken(response));
+        Log.i(TAG, "Resumed session with " + peerProperties.toString());
+        return new HandshakeWorkerPool.Result(peerProperties,
+                (mEarlyData != null) ? SessionResumption.getEarlyData(response) : null);
     }
 
     /**
-     * Closes the handshake thread, if one exists, and the Bluetooth socket.
+     * Reads the handshake response of the peer. The socket is closed, if the peer does not respond
+     * before the deadline (see setHandshakeDeadline()), which unblocks the read.
+     *
+     * @param bluetoothSocket The socket.
+     * @return The response.
+     * @throws IOException Thrown, if reading the socket fails or the deadline passes.
      */
-    private synchronized void close() {
-        if (mHandshakeThread != null) {
-            mHandshakeThread.close(true, false);
-            mHandshakeThread = null;
+    private byte[] readHandshakeResponse(final BluetoothSocket bluetoothSocket) throws IOException {
+        final AtomicBoolean isDone = new AtomicBoolean(false);
+
+        ScheduledFuture<?> deadlineFuture = IoExecutor.getDefault().getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (isDone.compareAndSet(false, true)) {
+                    Log.w(TAG, "readHandshakeResponse: No response from "
+                            + mBluetoothDeviceToConnectTo.getAddress() + ", closing the socket");
+
+                    try {
+                        bluetoothSocket.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to close the socket: " + e.getMessage());
+                    }
+                }
+            }
+        }, mHandshakeDeadlineInMilliseconds, TimeUnit.MILLISECONDS);
+
+        byte[] response;
+
+        try {
+            response = BinaryHandshake.readHandshakeMessage(bluetoothSocket.getInputStream()); // Blocking call
+        } catch (IOException e) {
+            if (!isDone.compareAndSet(false, true)) {
+                throw new IOException("Handshake timed out");
+            }
+
+            throw e;
+        } finally {
+            deadlineFuture.cancel(false);
+        }
+
+        if (!isDone.compareAndSet(false, true)) {
+            // The deadline closed the socket right after the response was read
+            throw new IOException("Handshake timed out");
         }
 
+        return response;
+    }
+
+    /**
+     * Closes the Bluetooth socket.
+     */
+    private synchronized void close() {
         if (mBluetoothSocket != null) {
             try {
                 mBluetoothSocket.close();
@@ -318,6 +544,39 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         }
     }
 
+    /**
+     * Creates an insecure Bluetooth socket with the service record UUID. Does not touch the
+     * current socket, thus can be called from the threads of a connection race.
+     *
+     * @param port See createSocketAndConnect().
+     * @return The socket or null, if creating the socket with a custom port failed.
+     * @throws IOException Thrown, if BluetoothDevice.createInsecureRfcommSocketToServiceRecord fails.
+     */
+    private BluetoothSocket createSocket(final int port) throws IOException {
+        BluetoothSocket bluetoothSocket;
+
+        if (port == SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT) {
+            // Use the standard method of creating a socket
+            Log.d(TAG, "Bluetooth peer SPOTBA403");
+            bluetoothSocket = mBluetoothDeviceToConnectTo.createInsecureRfcommSocketToServiceRecord(mServiceRecordUuid);
+            Log.d(TAG, "Bluetooth peer SPOTBA404");
+        } else if (port == 0) {
+            Log.d(TAG, "Bluetooth peer SPOTBA405");
+            // Use a rotating port number
+            bluetoothSocket = BluetoothUtils.createBluetoothSocketToServiceRecordWithNextPort(
+                    mBluetoothDeviceToConnectTo, mServiceRecordUuid, false);
+            Log.d(TAG, "Bluetooth peer SPOTBA406");
+        } else {
+            // Use the given port number
+            Log.d(TAG, "Bluetooth peer SPOTBA407");
+            bluetoothSocket = BluetoothUtils.createBluetoothSocketToServiceRecord(
+                    mBluetoothDeviceToConnectTo, mServiceRecordUuid, port, false);
+            Log.d(TAG, "Bluetooth peer SPOTBA408");
+        }
+
+        return bluetoothSocket;
+    }
+
     /**
      * Creates an insecure Bluetooth socket with the service record UUID and tries to connect.
      *
@@ -342,25 +601,7 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         Exception exception = null;
 
         try {
-            if (port == SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT) {
-                // Use the standard method of creating a socket
-                Log.d(TAG, "Bluetooth peer SPOTBA403");
-                mBluetoothSocket = mBluetoothDeviceToConnectTo.createInsecureRfcommSocketToServiceRecord(mServiceRecordUuid);
-                Log.d(TAG, "Bluetooth peer SPOTBA404");
-            } else if (port == 0) {
-                Log.d(TAG, "Bluetooth peer SPOTBA405");
-                // Use a rotating port number
-                mBluetoothSocket = BluetoothUtils.createBluetoothSocketToServiceRecordWithNextPort(
-                        mBluetoothDeviceToConnectTo, mServiceRecordUuid, false);
-                Log.d(TAG, "Bluetooth peer SPOTBA406");
-            } else {
-                // Use the given port number
-                Log.d(TAG, "Bluetooth peer SPOTBA407");
-                mBluetoothSocket = BluetoothUtils.createBluetoothSocketToServiceRecord(
-                        mBluetoothDeviceToConnectTo, mServiceRecordUuid, port, false);
-                Log.d(TAG, "Bluetooth peer SPOTBA408");
-            }
-
+            mBluetoothSocket = createSocket(port);
             Log.d(TAG, "Bluetooth peer SPOTBA409");
             socketCreatedSuccessfully = true;
         } catch (IOException e) {
@@ -399,6 +640,127 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         return exception;
     }
 
+    /**
+     * Connects using the given port. When using the system decided port, the cached RFCOMM
+     * channel of the peer (see RfcommChannelCache), if any, is tried first skipping the SDP
+     * lookup. If that fails, the channel is invalidated and the SDP lookup is done. The channel
+     * resolved by the lookup is cached for the next time. If the handshake on a socket connected
+     * to the cached channel fails, the channel is invalidated by performHandshake().
+     *
+     * @param port See createSocketAndConnect().
+     * @return Null, if successfully connected. An exception in case of a failure.
+     */
+    private synchronized Exception connectUsingPort(final int port) {
+        mIsConnectedToCachedChannel = false;
+
+        if (port != SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT || mRfcommChannelCache == null) {
+            return createSocketAndConnect(port);
+        }
+
+        String bluetoothMacAddress = mBluetoothDeviceToConnectTo.getAddress();
+        int cachedChannel = mRfcommChannelCache.get(bluetoothMacAddress);
+
+        if (cachedChannel != RfcommChannelCache.NO_CHANNEL) {
+            Exception exception = connectToChannel(cachedChannel);
+
+            if (exception == null || mIsShuttingDown) {
+                mIsConnectedToCachedChannel = (exception == null);
+                return exception;
+            }
+
+            Log.d(TAG, "connectUsingPort: Failed to connect to the cached channel " + cachedChannel
+                    + ", falling back to the SDP lookup: " + exception.getMessage());
+            mRfcommChannelCache.invalidate(bluetoothMacAddress);
+        }
+
+        Exception exception = createSocketAndConnect(SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT);
+
+        if (exception == null) {
+            learnRfcommChannel();
+        }
+
+        return exception;
+    }
+
+    /**
+     * Creates a socket to the given RFCOMM channel (no SDP lookup) and tries to connect.
+     *
+     * @param channel The RFCOMM channel.
+     * @return Null, if successfully connected. An exception in case of a failure.
+     */
+    private synchronized Exception connectToChannel(int channel) {
+        close();
+        mBluetoothSocket = BluetoothUtils.createBluetoothSocketToChannel(mBluetoothDeviceToConnectTo, channel, false);
+
+        if (mBluetoothSocket == null) {
+            return new IOException("Failed to create a socket to channel " + channel);
+        }
+
+        try {
+            mBluetoothSocket.connect(); // Blocking call
+        } catch (IOException e) {
+            close();
+            return e;
+        }
+
+        return null;
+    }
+
+    /**
+     * Stores the RFCOMM channel of the current socket, connected using the SDP lookup, in the
+     * channel cache.
+     */
+    private void learnRfcommChannel() {
+        if (mRfcommChannelCache != null) {
+            int channel = BluetoothUtils.getRfcommChannel(mBluetoothSocket);
+
+            if (channel > 0) {
+                mRfcommChannelCache.put(mBluetoothDeviceToConnectTo.getAddress(), channel);
+            }
+        }
+    }
+
+    /**
+     * Races the custom port against the system decided port (see ConnectionRace) and stores the
+     * socket of the winner.
+     *
+     * @return Null, if either of the strategies connected. An exception in case of a failure.
+     */
+    private synchronized Exception raceToConnect() {
+        mIsConnectedToCachedChannel = false;
+        close();
+
+        ConnectionRace connectionRace = new ConnectionRace(new ConnectionRace.SocketFactory() {
+            @Override
+            public BluetoothSocket createSocket(int port) throws IOException {
+                return BluetoothClientThread.this.createSocket(port);
+            }
+        }, mInsecureRfcommSocketPort, SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT,
+                mConnectionRaceStaggerInMilliseconds, mConnectionRaceStatistics);
+
+        mConnectionRace = connectionRace;
+
+        if (mIsShuttingDown) {
+            connectionRace.cancel(); // Shutdown began before the race was visible to it
+        }
+
+        Exception exception = null;
+
+        try {
+            mBluetoothSocket = connectionRace.run();
+
+            if (connectionRace.getWinningPort() == SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT) {
+                learnRfcommChannel();
+            }
+        } catch (IOException e) {
+            exception = e;
+        } finally {
+            mConnectionRace = null;
+        }
+
+        return exception;
+    }
+
     /**
      * Tries to establish a socket connection.
      *
@@ -413,7 +775,9 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         Log.d(TAG, "Bluetooth peer SPOTBA201");
         while (!socketConnectSucceeded && !mIsShuttingDown) {
             Log.d(TAG, "Bluetooth peer SPOTBA201A");
-            Exception socketException = createSocketAndConnect(mInsecureRfcommSocketPort);
+            boolean isRacing = (mConnectionRaceStatistics != null && mInsecureRfcommSocketPort >= 0);
+            Exception socketException = isRacing
+                    ? raceToConnect() : connectUsingPort(mInsecureRfcommSocketPort);
 
             Log.d(TAG, "Bluetooth peer SPOTBA202");
             if (socketException == null) {
@@ -425,11 +789,16 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
 
                     socketConnectSucceeded = true;
 
+                    mRetryPolicy.onSuccess(mBluetoothDeviceToConnectTo.getAddress());
+
                     // Log the choice of port
                     String logMessage = "Socket connection succeeded";
 
                     Log.d(TAG, "Bluetooth peer SPOTBA204");
-                    if (mInsecureRfcommSocketPort == 0) {
+                    if (isRacing) {
+                        logMessage += " (racing port " + mInsecureRfcommSocketPort
+                                + " against the system decided port)";
+                    } else if (mInsecureRfcommSocketPort == 0) {
                         logMessage += " (using port" + BluetoothUtils.getPreviouslyUsedAlternativeChannelOrPort() + ")";
                     } else if (mInsecureRfcommSocketPort > 0) {
                         logMessage += " (using port " + mInsecureRfcommSocketPort + ")";
@@ -444,9 +813,9 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
                     // Shutting down probably due to connection timeout
                     Log.i(TAG, "Socket connection succeeded, but we are shutting down (thread ID: " + getId() + ")");
                 }
-            } else if (mInsecureRfcommSocketPort >= 0 && !mIsShuttingDown) {
+            } else if (mInsecureRfcommSocketPort >= 0 && !isRacing && !mIsShuttingDown) {
                 // We were using a custom port, fallback to the standard method of creating a socket
-                socketException = createSocketAndConnect(SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT);
+                socketException = connectUsingPort(SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT);
 
                 if (socketException == null) {
                     if (!mIsShuttingDown) {
@@ -455,6 +824,7 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
                         }
 
                         socketConnectSucceeded = true;
+                        mRetryPolicy.onSuccess(mBluetoothDeviceToConnectTo.getAddress());
 
                         Log.i(TAG, "Socket connection succeeded (using system decided port), total number of attempts: "
                                 + socketConnectAttemptNo + " (thread ID: " + getId() + ")");
@@ -474,17 +844,26 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
             if (!socketConnectSucceeded && !mIsShuttingDown) {
                 Log.d(TAG, errorMessage + " (thread ID: " + getId() + ")");
 
+                long retryDelayInMilliseconds = RetryPolicy.NO_RETRY;
+
                 if (socketConnectAttemptNo < mMaxNumberOfRetries + 1) {
-                    Log.d(TAG, "Trying to connect again in " + WAIT_BETWEEN_RETRIES_IN_MILLISECONDS
-                            + " ms... (thread ID: " + getId() + ")");
+                    retryDelayInMilliseconds = mRetryPolicy.onFailure(
+                            mBluetoothDeviceToConnectTo.getAddress(), socketConnectAttemptNo);
 
-                    try {
-                        Thread.sleep(WAIT_BETWEEN_RETRIES_IN_MILLISECONDS);
-                    } catch (InterruptedException e) {
+                    if (retryDelayInMilliseconds == RetryPolicy.NO_RETRY) {
+                        Log.d(TAG, "Retry denied by the retry policy (e.g. the retry budget of the peer is spent)"
+                                + ", giving up... (thread ID: " + getId() + ")");
                     }
                 } else {
                     Log.d(TAG, "Maximum number of allowed retries (" + mMaxNumberOfRetries
                             + ") reached, giving up... (thread ID: " + getId() + ")");
+                }
+
+                if (retryDelayInMilliseconds != RetryPolicy.NO_RETRY) {
+                    Log.d(TAG, "Trying to connect again in " + retryDelayInMilliseconds
+                            + " ms... (thread ID: " + getId() + ")");
+                    waitBeforeRetry(retryDelayInMilliseconds);
+                } else {
 
                     if (mListener != null) {
                         mListener.onConnectionFailed(mPeerProperties, errorMessage, this);
@@ -500,4 +879,25 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
 
         return socketConnectSucceeded;
     }
+
+    /**
+     * Waits the given time before the next connection attempt. The lock is released while
+     * waiting, thus shutdown() can interrupt the wait.
+     *
+     * @param delayInMilliseconds The time to wait.
+     */
+    private synchronized void waitBeforeRetry(long delayInMilliseconds) {
+        long deadline = System.currentTimeMillis() + delayInMilliseconds;
+        long timeLeftInMilliseconds = delayInMilliseconds;
+
+        while (timeLeftInMilliseconds > 0 && !mIsShuttingDown) {
+            try {
+                wait(timeLeftInMilliseconds);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            timeLeftInMilliseconds = deadline - System.currentTimeMillis();
+        }
+    }
 }
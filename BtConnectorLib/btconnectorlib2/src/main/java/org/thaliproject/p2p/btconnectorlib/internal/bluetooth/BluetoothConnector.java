@@ -12,9 +12,16 @@ import android.os.Handler;
 import android.util.Log;
 import org.thaliproject.p2p.btconnectorlib.ConnectionManagerSettings;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import org.thaliproject.p2p.btconnectorlib.utils.BackoffRetryPolicy;
+import org.thaliproject.p2p.btconnectorlib.utils.IoExecutor;
+import org.thaliproject.p2p.btconnectorlib.utils.MessageFrameCodec;
+import org.thaliproject.p2p.btconnectorlib.utils.RetryPolicy;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -49,8 +56,12 @@ public class BluetoothConnector
          * @param bluetoothSocket The Bluetooth socket.
          * @param isIncoming True, if the connection was incoming. False, if it was outgoing.
          * @param peerProperties The properties of the peer connected to.
+         * @param earlyData If incoming, the early data the peer attached to its handshake. If
+         *                  outgoing, the response of the peer to our early data. Null, if none
+         *                  (see EarlyDataHandler).
          */
-        void onConnected(BluetoothSocket bluetoothSocket, boolean isIncoming, PeerProperties peerProperties);
+        void onConnected(BluetoothSocket bluetoothSocket, boolean isIncoming,
+                         PeerProperties peerProperties, byte[] earlyData);
 
         /**
          * Called when the connection attempt times out.
@@ -68,14 +79,37 @@ public class BluetoothConnector
         void onConnectionFailed(PeerProperties peerProperties, String errorMessage);
     }
 
+    /**
+     * Produces the response to the early data (see BinaryHandshake) attached to the handshake of
+     * an incoming connection. The response is attached to our handshake reply.
+     */
+    public interface EarlyDataHandler {
+        /**
+         * Called from a handshake worker thread, when a peer attached early data to its handshake.
+         * Should return quickly, since the handshake deadline (see HandshakeWorkerPool) applies.
+         *
+         * @param peerProperties The properties of the peer.
+         * @param earlyData The early data.
+         * @return The response to attach to our handshake reply or null, if none.
+         */
+        byte[] onEarlyDataReceived(PeerProperties peerProperties, byte[] earlyData);
+    }
+
     private static final String TAG = BluetoothConnector.class.getName();
     public static final long DEFAULT_CONNECTION_TIMEOUT_IN_MILLISECONDS = 15000;
     public static final int SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT = BluetoothClientThread.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT;
     public static final int DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT = BluetoothClientThread.DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT;
     public static final int DEFAULT_MAX_NUMBER_OF_RETRIES = BluetoothClientThread.DEFAULT_MAX_NUMBER_OF_RETRIES;
     public static final boolean DEFAULT_HANDSHAKE_REQUIRED = true;
+    public static final boolean DEFAULT_COMPRESSION_ENABLED = false;
+    public static final boolean DEFAULT_PERSISTENT_LISTENING = false;
+    public static final boolean DEFAULT_BINARY_HANDSHAKE_ENABLED = true;
+    public static final boolean DEFAULT_SESSION_RESUMPTION_ENABLED = true;
+    public static final boolean DEFAULT_RFCOMM_CHANNEL_CACHE_ENABLED = true;
+    public static final boolean DEFAULT_CONNECTION_RACE_ENABLED = false;
+    public static final long DEFAULT_CONNECTION_RACE_STAGGER_IN_MILLISECONDS = ConnectionRace.DEFAULT_STAGGER_IN_MILLISECONDS;
     private static final long CONNECTION_TIMEOUT_TIMER_INTERVAL_IN_MILLISECONDS = 5000;
-    private static final long SERVER_RESTART_DELAY_IN_MILLISECONDS = 2000;
+    private static final long BINARY_HANDSHAKE_FALLBACK_EXPIRATION_IN_MILLISECONDS = 10 * 60 * 1000;
 
     private final BluetoothAdapter mBluetoothAdapter;
     private final BluetoothConnectorListener mListener;
@@ -83,16 +117,35 @@ public class BluetoothConnector
     private final String mMyBluetoothName;
     private final Handler mHandler;
     private final Thread.UncaughtExceptionHandler mUncaughtExceptionHandler;
+    private final Map<String, Long> mPeersWithoutBinaryHandshake =
+            Collections.synchronizedMap(new HashMap<String, Long>()); // Bluetooth MAC address, time of fallback
+    private final ResumptionTokenCache mResumptionTokenCache = new ResumptionTokenCache();
+    private final ConnectionRaceStatistics mConnectionRaceStatistics = new ConnectionRaceStatistics();
+    private final RfcommChannelCache mRfcommChannelCache;
+    private RetryPolicy mRetryPolicy = new BackoffRetryPolicy();
     private String mMyIdentityString = null;
     private BluetoothServerThread mServerThread = null;
+    private EarlyDataHandler mEarlyDataHandler = null;
     private CopyOnWriteArrayList<BluetoothClientThread> mClientThreads = new CopyOnWriteArrayList<>();
     private CountDownTimer mConnectionTimeoutTimer = null;
     private long mConnectionTimeoutInMilliseconds = DEFAULT_CONNECTION_TIMEOUT_IN_MILLISECONDS;
     private int mInsecureRfcommSocketPort = SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT;
     private int mMaxNumberOfOutgoingConnectionAttemptRetries = DEFAULT_MAX_NUMBER_OF_RETRIES;
     private boolean mHandshakeRequired = DEFAULT_HANDSHAKE_REQUIRED;
+    private int mMaxNumberOfHandshakeWorkers = HandshakeWorkerPool.DEFAULT_MAX_NUMBER_OF_WORKERS;
+    private int mHandshakeQueueCapacity = HandshakeWorkerPool.DEFAULT_QUEUE_CAPACITY;
+    private long mHandshakeDeadlineInMilliseconds = HandshakeWorkerPool.DEFAULT_DEADLINE_IN_MILLISECONDS;
+    private boolean mPersistentListening = DEFAULT_PERSISTENT_LISTENING;
+    private boolean mBinaryHandshakeEnabled = DEFAULT_BINARY_HANDSHAKE_ENABLED;
+    private boolean mSessionResumptionEnabled = DEFAULT_SESSION_RESUMPTION_ENABLED;
+    private boolean mRfcommChannelCacheEnabled = DEFAULT_RFCOMM_CHANNEL_CACHE_ENABLED;
+    private boolean mConnectionRaceEnabled = DEFAULT_CONNECTION_RACE_ENABLED;
+    private long mConnectionRaceStaggerInMilliseconds = DEFAULT_CONNECTION_RACE_STAGGER_IN_MILLISECONDS;
+    private boolean mMultiplexingSupported = false;
+    private int mMaxFrameSize = MessageFrameCodec.DEFAULT_MAX_PAYLOAD_LENGTH_IN_BYTES;
     private boolean mIsServerThreadAlive = false;
     private boolean mIsStoppingServer = false;
+    private boolean mRestartServerWhenStopped = false;
     private boolean mIsShuttingDown = false;
 
     /**
@@ -118,6 +171,7 @@ public class BluetoothConnector
         mServiceRecordUuid = serviceRecordUuid;
         mMyBluetoothName = myBluetoothName;
         mHandler = new Handler(context.getMainLooper());
+        mRfcommChannelCache = new RfcommChannelCache(context);
 
         ConnectionManagerSettings mConnectionManagerSettings = ConnectionManagerSettings.getInstance(context);
         mConnectionTimeoutInMilliseconds = mConnectionManagerSettings.getConnectionTimeout();
@@ -206,6 +260,178 @@ public class BluetoothConnector
         }
     }
 
+    /**
+     * Sets whether the RFCOMM channels of the peers are cached (see RfcommChannelCache) so that
+     * the outgoing connections using the system decided port can skip the SDP lookup. Disabling
+     * clears the cached channels.
+     *
+     * @param rfcommChannelCacheEnabled True, if the channels should be cached.
+     */
+    public void setRfcommChannelCacheEnabled(boolean rfcommChannelCacheEnabled) {
+        if (mRfcommChannelCacheEnabled != rfcommChannelCacheEnabled) {
+            Log.v(TAG, "setRfcommChannelCacheEnabled: " + mRfcommChannelCacheEnabled + " -> " + rfcommChannelCacheEnabled);
+            mRfcommChannelCacheEnabled = rfcommChannelCacheEnabled;
+
+            if (!rfcommChannelCacheEnabled) {
+                mRfcommChannelCache.clear();
+            }
+        }
+    }
+
+    /**
+     * @return The RFCOMM channel cache containing the hit and invalidation metrics.
+     */
+    public RfcommChannelCache getRfcommChannelCache() {
+        return mRfcommChannelCache;
+    }
+
+    /**
+     * Sets the policy deciding whether and when a failed outgoing connection attempt is retried.
+     * The same policy is used by all the connection attempts, thus it can keep a retry budget per
+     * peer. The retries are still limited by the maximum number of retries (see
+     * setMaxNumberOfOutgoingConnectionAttemptRetries()). The default policy is BackoffRetryPolicy.
+     *
+     * @param retryPolicy The retry policy.
+     * @throws NullPointerException Thrown, if the retry policy is null.
+     */
+    public synchronized void setRetryPolicy(RetryPolicy retryPolicy) throws NullPointerException {
+        if (retryPolicy == null) {
+            throw new NullPointerException("The retry policy is null");
+        }
+
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * @return The retry policy containing, in case of BackoffRetryPolicy, the retries spent per peer.
+     */
+    public synchronized RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * Sets whether the outgoing connection attempts race the custom port (see
+     * setInsecureRfcommSocketPort()) against the system decided port instead of trying them one
+     * after the other (see ConnectionRace). Has no effect, if the system decided port is used.
+     *
+     * @param connectionRaceEnabled True, if the ports should be raced.
+     * @param staggerInMilliseconds The delay before starting the system decided port.
+     */
+    public void setConnectionRace(boolean connectionRaceEnabled, long staggerInMilliseconds) {
+        if (mConnectionRaceEnabled != connectionRaceEnabled
+                || mConnectionRaceStaggerInMilliseconds != staggerInMilliseconds) {
+            Log.v(TAG, "setConnectionRace: " + mConnectionRaceEnabled + " -> " + connectionRaceEnabled
+                    + ", stagger: " + mConnectionRaceStaggerInMilliseconds + " -> " + staggerInMilliseconds + " ms");
+            mConnectionRaceEnabled = connectionRaceEnabled;
+            mConnectionRaceStaggerInMilliseconds = staggerInMilliseconds;
+        }
+    }
+
+    /**
+     * @return The per-port win rates of the connection races.
+     */
+    public ConnectionRaceStatistics getConnectionRaceStatistics() {
+        return mConnectionRaceStatistics;
+    }
+
+    /**
+     * Sets whether the binary handshake (see BinaryHandshake) is used for the outgoing
+     * connections. The incoming connections are always answered in the format used by the peer.
+     * If a peer drops a binary handshake (e.g. an older version of this library) or answers it
+     * with an invalid response, the JSON identity string is used with that peer for the next ten
+     * minutes.
+     *
+     * @param binaryHandshakeEnabled True, if the binary handshake should be used.
+     */
+    public void setBinaryHandshakeEnabled(boolean binaryHandshakeEnabled) {
+        if (mBinaryHandshakeEnabled != binaryHandshakeEnabled) {
+            Log.v(TAG, "setBinaryHandshakeEnabled: " + mBinaryHandshakeEnabled + " -> " + binaryHandshakeEnabled);
+            mBinaryHandshakeEnabled = binaryHandshakeEnabled;
+        }
+    }
+
+    /**
+     * Sets whether the reconnections to the peers we have recently completed a binary handshake
+     * with skip the full handshake using a resumption token (see SessionResumption). Restarts the
+     * Bluetooth server thread, if it was running. Disabling clears the cached tokens.
+     *
+     * @param sessionResumptionEnabled True, if the session resumption should be used.
+     */
+    public void setSessionResumptionEnabled(boolean sessionResumptionEnabled) {
+        if (mSessionResumptionEnabled != sessionResumptionEnabled) {
+            Log.v(TAG, "setSessionResumptionEnabled: " + mSessionResumptionEnabled + " -> " + sessionResumptionEnabled);
+            mSessionResumptionEnabled = sessionResumptionEnabled;
+
+            if (!sessionResumptionEnabled) {
+                mResumptionTokenCache.clear();
+            }
+
+            restartServerIfRunning();
+        }
+    }
+
+    /**
+     * @return The cache of the session resumption tokens containing the resumption metrics.
+     */
+    public ResumptionTokenCache getResumptionTokenCache() {
+        return mResumptionTokenCache;
+    }
+
+    /**
+     * Sets the capabilities advertised in the binary handshake. The compression support is
+     * advertised based on the identity string. The server thread must be restarted for the
+     * incoming connections to use the new values.
+     *
+     * @param multiplexingSupported True, if we support stream multiplexing (see StreamMultiplexer).
+     * @param maxFrameSize The maximum frame payload size we accept in bytes.
+     */
+    public void setCapabilities(boolean multiplexingSupported, int maxFrameSize) {
+        Log.v(TAG, "setCapabilities: Multiplexing supported: " + multiplexingSupported
+                + ", max frame size: " + maxFrameSize);
+        mMultiplexingSupported = multiplexingSupported;
+        mMaxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Sets the handler producing the responses to the early data of the incoming connections.
+     * Takes effect immediately.
+     *
+     * @param earlyDataHandler The handler or null, if the early data should not be responded to.
+     */
+    public synchronized void setEarlyDataHandler(EarlyDataHandler earlyDataHandler) {
+        mEarlyDataHandler = earlyDataHandler;
+
+        if (mServerThread != null) {
+            mServerThread.setEarlyDataHandler(earlyDataHandler);
+        }
+    }
+
+    /**
+     * Sets the limits for the handshakes of the incoming connections. The server thread must be
+     * restarted for the new limits to take effect.
+     *
+     * @param maxNumberOfWorkers The maximum number of concurrent handshakes.
+     * @param queueCapacity The maximum number of accepted sockets waiting for a handshake worker.
+     *                      The sockets exceeding this are closed right away.
+     * @param deadlineInMilliseconds The time after which a socket, whose handshake is not completed,
+     *                               is closed.
+     */
+    public void setIncomingHandshakeLimits(int maxNumberOfWorkers, int queueCapacity, long deadlineInMilliseconds) {
+        Log.v(TAG, "setIncomingHandshakeLimits: " + maxNumberOfWorkers + " workers, queue capacity "
+                + queueCapacity + ", deadline " + deadlineInMilliseconds + " ms");
+        mMaxNumberOfHandshakeWorkers = maxNumberOfWorkers;
+        mHandshakeQueueCapacity = queueCapacity;
+        mHandshakeDeadlineInMilliseconds = deadlineInMilliseconds;
+    }
+
+    /**
+     * @return The handshake worker pool of the server thread containing the metrics of the
+     * incoming handshakes (latency, timeouts etc.) or null, if not listening.
+     */
+    public synchronized HandshakeWorkerPool getIncomingHandshakeWorkerPool() {
+        return (mServerThread != null) ? mServerThread.getHandshakeWorkerPool() : null;
+    }
+
     /**
      * Sets the value indicating whether we require a handshake protocol when establishing a connection or not.
      * Restarts the Bluetooth server thread, if it was running.
@@ -217,17 +443,22 @@ public class BluetoothConnector
             Log.v(TAG, "setHandshakeRequired: " + mHandshakeRequired + " -> " + handshakeRequired);
             mHandshakeRequired = handshakeRequired;
 
-            if (mIsServerThreadAlive) {
-                stopListeningForIncomingConnections();
+            restartServerIfRunning();
+        }
+    }
 
-                // Stopping the server is asynchronous and may take a short while. Thus, we need to
-                // restart it with a small delay.
-                new Handler().postDelayed(new Runnable() {
-                    public void run() {
-                        startListeningForIncomingConnections();
-                    }
-                }, SERVER_RESTART_DELAY_IN_MILLISECONDS);
-            }
+    /**
+     * Sets the listening mode of the Bluetooth server thread. Restarts the thread, if it was running.
+     *
+     * @param persistentListening If true, the server socket is kept open and the incoming
+     *                            connections are accepted continuously. If false, the server
+     *                            socket is recreated after every accepted connection.
+     */
+    public void setPersistentListening(boolean persistentListening) {
+        if (mPersistentListening != persistentListening) {
+            Log.v(TAG, "setPersistentListening: " + mPersistentListening + " -> " + persistentListening);
+            mPersistentListening = persistentListening;
+            restartServerIfRunning();
         }
     }
 
@@ -247,7 +478,8 @@ public class BluetoothConnector
 
             try {
                 mServerThread = new BluetoothServerThread(
-                        this, mBluetoothAdapter, mServiceRecordUuid, mMyBluetoothName, mMyIdentityString);
+                        this, mBluetoothAdapter, mServiceRecordUuid, mMyBluetoothName, mMyIdentityString,
+                        mMaxNumberOfHandshakeWorkers, mHandshakeQueueCapacity, mHandshakeDeadlineInMilliseconds);
             } catch (IOException e) {
                 Log.e(TAG, "Failed to create the socket listener thread: " + e.getMessage(), e);
                 mServerThread = null;
@@ -256,6 +488,10 @@ public class BluetoothConnector
             if (mServerThread != null) {
                 mServerThread.setUncaughtExceptionHandler(mUncaughtExceptionHandler);
                 mServerThread.setHandshakeRequired(mHandshakeRequired);
+                mServerThread.setPersistentListening(mPersistentListening);
+                mServerThread.setCapabilities(mMultiplexingSupported, mMaxFrameSize);
+                mServerThread.setEarlyDataHandler(mEarlyDataHandler);
+                mServerThread.setResumptionTokenCache(mSessionResumptionEnabled ? mResumptionTokenCache : null);
                 mServerThread.start();
                 mIsServerThreadAlive = true;
                 mListener.onIsServerStartedChanged(true);
@@ -283,6 +519,17 @@ public class BluetoothConnector
         }
     }
 
+    /**
+     * Restarts the server thread, if it is running. Stopping the server thread is asynchronous,
+     * so the new thread is started once the old one has stopped (see onServerStopped()).
+     */
+    private synchronized void restartServerIfRunning() {
+        if (mIsServerThreadAlive && mServerThread != null) {
+            mRestartServerWhenStopped = true;
+            stopListeningForIncomingConnections();
+        }
+    }
+
     /**
      * Shuts down all operations.
      * Note that after calling this method, this instance cannot be used anymore and must be
@@ -313,8 +560,25 @@ public class BluetoothConnector
      * @param peerProperties The properties of the peer to connect to.
      * @return True, if started trying to connect successfully. False otherwise.
      */
+    public boolean connect(BluetoothDevice bluetoothDeviceToConnectTo, PeerProperties peerProperties) {
+        return connect(bluetoothDeviceToConnectTo, peerProperties, null);
+    }
+
+    /**
+     * Tries to connect to the given Bluetooth device sending the given early data with the
+     * handshake. This saves a round trip, when the first message is known before connecting.
+     * The early data is sent only with the binary handshake; if the peer does not process it,
+     * the early data in BluetoothConnectorListener.onConnected() is null and the data should be
+     * sent again using the socket.
+     *
+     * @param bluetoothDeviceToConnectTo The Bluetooth device to connect to.
+     * @param peerProperties The properties of the peer to connect to.
+     * @param earlyData The early data or null, if none. The maximum length is
+     *                  BinaryHandshake.MAX_EARLY_DATA_LENGTH_IN_BYTES.
+     * @return True, if started trying to connect successfully. False otherwise.
+     */
     public synchronized boolean connect(
-            BluetoothDevice bluetoothDeviceToConnectTo, PeerProperties peerProperties) {
+            BluetoothDevice bluetoothDeviceToConnectTo, PeerProperties peerProperties, byte[] earlyData) {
 
         boolean wasSuccessful = false;
         String errorMessage = "";
@@ -327,6 +591,21 @@ public class BluetoothConnector
                     + " in address " + bluetoothDeviceAddress);
             BluetoothClientThread bluetoothClientThread = null;
 
+            if (!IoExecutor.getDefault().hasCapacity(IoExecutor.Category.CONNECT)) {
+                errorMessage = "connect: Too many concurrent connection attempts ("
+                        + IoExecutor.getDefault().getNumberOfLiveThreads(IoExecutor.Category.CONNECT) + ")";
+                Log.e(TAG, errorMessage);
+                mListener.onConnectionFailed(peerProperties, errorMessage);
+                return false;
+            }
+
+            if (earlyData != null && earlyData.length > BinaryHandshake.MAX_EARLY_DATA_LENGTH_IN_BYTES) {
+                errorMessage = "connect: Too much early data (" + earlyData.length + " bytes)";
+                Log.e(TAG, errorMessage);
+                mListener.onConnectionFailed(peerProperties, errorMessage);
+                return false;
+            }
+
             try {
                 bluetoothClientThread = new BluetoothClientThread(
                         this, bluetoothDeviceToConnectTo, mServiceRecordUuid, mMyIdentityString);
@@ -341,6 +620,15 @@ public class BluetoothConnector
                 bluetoothClientThread.setPeerProperties(peerProperties);
                 bluetoothClientThread.setInsecureRfcommSocketPortNumber(mInsecureRfcommSocketPort);
                 bluetoothClientThread.setMaxNumberOfRetries(mMaxNumberOfOutgoingConnectionAttemptRetries);
+                bluetoothClientThread.setRetryPolicy(mRetryPolicy);
+                bluetoothClientThread.setRfcommChannelCache(mRfcommChannelCacheEnabled ? mRfcommChannelCache : null);
+                bluetoothClientThread.setConnectionRace(
+                        mConnectionRaceEnabled ? mConnectionRaceStatistics : null, mConnectionRaceStaggerInMilliseconds);
+                bluetoothClientThread.setCapabilities(mMultiplexingSupported, mMaxFrameSize);
+                bluetoothClientThread.setUseBinaryHandshake(mBinaryHandshakeEnabled
+                        && isBinaryHandshakeSupported(bluetoothDeviceAddress));
+                bluetoothClientThread.setEarlyData(earlyData);
+                bluetoothClientThread.setResumptionTokenCache(mSessionResumptionEnabled ? mResumptionTokenCache : null);
                 mClientThreads.add(bluetoothClientThread);
 
                 if (mConnectionTimeoutTimer == null) {
@@ -419,12 +707,12 @@ public class BluetoothConnector
                 final BluetoothClientThread finalBluetoothClientThread = bluetoothClientThread;
 
                 if (finalBluetoothClientThread != null) {
-                    new Thread() {
+                    IoExecutor.getDefault().execute(IoExecutor.Category.CLEANUP, new Runnable() {
                         @Override
                         public void run() {
                             finalBluetoothClientThread.shutdown();
                         }
-                    }.start();
+                    });
                 }
             }
 
@@ -437,10 +725,12 @@ public class BluetoothConnector
      *
      * @param bluetoothSocket The Bluetooth socket associated with the incoming connection.
      * @param peerProperties The peer properties.
+     * @param earlyData The early data the peer attached to its handshake or null, if none.
      */
     @Override
     public void onIncomingConnectionConnected(
-            final BluetoothSocket bluetoothSocket, final PeerProperties peerProperties) {
+            final BluetoothSocket bluetoothSocket, final PeerProperties peerProperties,
+            final byte[] earlyData) {
 
         Log.i(TAG, "onIncomingConnectionConnected: " + peerProperties.toString());
 
@@ -448,7 +738,7 @@ public class BluetoothConnector
             @Override
             public void run() {
                 if (bluetoothSocket.isConnected()) {
-                    mListener.onConnected(bluetoothSocket, true, peerProperties);
+                    mListener.onConnected(bluetoothSocket, true, peerProperties, earlyData);
                 } else {
                     onIncomingConnectionFailed("Disconnected");
                 }
@@ -481,11 +771,17 @@ public class BluetoothConnector
     @Override
     public void onServerStopped() {
         final boolean wasServerExplicitlyStopped = mIsStoppingServer;
+        final boolean restartServer = mRestartServerWhenStopped;
         Log.i(TAG, "onServerStopped: Was explicitly stopped: " + wasServerExplicitlyStopped);
         mIsStoppingServer = false;
         mIsServerThreadAlive = false;
+        mRestartServerWhenStopped = false;
 
-        if (wasServerExplicitlyStopped) {
+        if (restartServer && !mIsShuttingDown) {
+            // Stopped in order to apply new settings
+            Log.i(TAG, "onServerStopped: Restarting the server with the new settings...");
+            startListeningForIncomingConnections();
+        } else if (wasServerExplicitlyStopped) {
             // Was deliberately stopped
             mHandler.post(new Runnable() {
                 @Override
@@ -514,7 +810,7 @@ public class BluetoothConnector
         Log.i(TAG, "onSocketConnected: " + peerProperties.toString() + " (thread ID: " + who.getId() + ")");
 
         if (!who.getHandshakeRequired()) {
-            handleSuccessfulClientThread(who, bluetoothSocket, peerProperties); // Notifies the listener
+            handleSuccessfulClientThread(who, bluetoothSocket, peerProperties, null); // Notifies the listener
         }
     }
 
@@ -523,13 +819,15 @@ public class BluetoothConnector
      *
      * @param bluetoothSocket The Bluetooth socket associated with the connection.
      * @param peerProperties The peer properties.
+     * @param earlyData The response of the peer to our early data or null, if none.
      * @param who The Bluetooth client thread instance calling this callback.
      */
     @Override
     public void onHandshakeSucceeded(
-            BluetoothSocket bluetoothSocket, PeerProperties peerProperties, BluetoothClientThread who) {
+            BluetoothSocket bluetoothSocket, PeerProperties peerProperties,
+            byte[] earlyData, BluetoothClientThread who) {
         Log.i(TAG, "onHandshakeSucceeded: " + peerProperties.toString() + " (thread ID: " + who.getId() + ")");
-        handleSuccessfulClientThread(who, bluetoothSocket, peerProperties); // Notifies the listener
+        handleSuccessfulClientThread(who, bluetoothSocket, peerProperties, earlyData); // Notifies the listener
     }
 
     /**
@@ -542,6 +840,17 @@ public class BluetoothConnector
     @Override
     public void onConnectionFailed(PeerProperties peerProperties, String errorMessage, BluetoothClientThread who) {
         Log.e(TAG, "onConnectionFailed: " + errorMessage + " (thread ID: " + who.getId() + ")");
+
+        if (who.getBinaryHandshakeRejected()) {
+            // The peer may not support the binary handshake, use JSON with it for a while
+            String bluetoothMacAddress = (peerProperties != null) ? peerProperties.getBluetoothMacAddress() : null;
+
+            if (bluetoothMacAddress != null
+                    && mPeersWithoutBinaryHandshake.put(bluetoothMacAddress, System.currentTimeMillis()) == null) {
+                Log.i(TAG, "onConnectionFailed: Falling back to the JSON handshake with " + bluetoothMacAddress);
+            }
+        }
+
         final String tempErrorMessage = errorMessage;
         final PeerProperties tempPeerProperties = peerProperties;
 
@@ -555,6 +864,31 @@ public class BluetoothConnector
         shutdownAndRemoveClientThread(who);
     }
 
+    /**
+     * Checks whether the binary handshake can be used with the given peer i.e. the peer has not
+     * rejected it within BINARY_HANDSHAKE_FALLBACK_EXPIRATION_IN_MILLISECONDS. Removes the
+     * expired fallback.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return True, if the binary handshake should be used.
+     */
+    private boolean isBinaryHandshakeSupported(String bluetoothMacAddress) {
+        synchronized (mPeersWithoutBinaryHandshake) {
+            Long fallbackTime = mPeersWithoutBinaryHandshake.get(bluetoothMacAddress);
+
+            if (fallbackTime == null) {
+                return true;
+            }
+
+            if (System.currentTimeMillis() - fallbackTime < BINARY_HANDSHAKE_FALLBACK_EXPIRATION_IN_MILLISECONDS) {
+                return false;
+            }
+
+            mPeersWithoutBinaryHandshake.remove(bluetoothMacAddress);
+            return true;
+        }
+    }
+
     /**
      * Handles a successful Bluetooth client thread - one that has established a connection.
      * Notifies the listener that we are now fully connected.
@@ -562,15 +896,21 @@ public class BluetoothConnector
      * @param bluetoothClientThread The Bluetooth client thread instance.
      * @param bluetoothSocket The Bluetooth socket.
      * @param peerProperties The peer properties.
+     * @param earlyData The response of the peer to our early data or null, if none.
      */
     private synchronized void handleSuccessfulClientThread(
             final BluetoothClientThread bluetoothClientThread,
-            final BluetoothSocket bluetoothSocket, final PeerProperties peerProperties) {
+            final BluetoothSocket bluetoothSocket, final PeerProperties peerProperties,
+            final byte[] earlyData) {
         Log.i(TAG, "handleSuccessfulClientThread: " + peerProperties.toString() + " (thread ID: " + bluetoothClientThread.getId() + ")");
 
         // Only remove, but do not shutdown the client thread, since that would close the socket too
         mClientThreads.remove(bluetoothClientThread);
 
+        if (bluetoothClientThread.getBinaryHandshakeSent()) {
+            mPeersWithoutBinaryHandshake.remove(peerProperties.getBluetoothMacAddress());
+        }
+
         if (mConnectionTimeoutTimer != null && mClientThreads.size() == 0) {
             mConnectionTimeoutTimer.cancel();
             mConnectionTimeoutTimer = null;
@@ -581,7 +921,7 @@ public class BluetoothConnector
                 @Override
                 public void run() {
                     if (bluetoothSocket.isConnected()) {
-                        mListener.onConnected(bluetoothSocket, false, peerProperties);
+                        mListener.onConnected(bluetoothSocket, false, peerProperties, earlyData);
                     } else {
                         onConnectionFailed(peerProperties, "Disconnected", bluetoothClientThread);
                     }
@@ -637,12 +977,12 @@ public class BluetoothConnector
                                             + bluetoothClientThread.getId() + ")");
                                 }
 
-                                new Thread() {
+                                IoExecutor.getDefault().execute(IoExecutor.Category.CLEANUP, new Runnable() {
                                     @Override
                                     public void run() {
                                         bluetoothClientThread.shutdown(); // Try to cancel
                                     }
-                                }.start();
+                                });
 
                                 mHandler.post(new Runnable() {
                                     @Override
@@ -693,12 +1033,12 @@ public class BluetoothConnector
 
                         mClientThreads.remove(currentBluetoothClientThread);
 
-                        new Thread() {
+                        IoExecutor.getDefault().execute(IoExecutor.Category.CLEANUP, new Runnable() {
                             @Override
                             public void run() {
                                 bluetoothClientThread.shutdown();
                             }
-                        }.start();
+                        });
 
                         if (mConnectionTimeoutTimer != null && mClientThreads.size() == 0) {
                             mConnectionTimeoutTimer.cancel();
@@ -7,16 +7,17 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.util.Log;
-import org.thaliproject.p2p.btconnectorlib.utils.BluetoothSocketIoThread;
+import org.thaliproject.p2p.btconnectorlib.utils.ExponentialBackoff;
+import org.thaliproject.p2p.btconnectorlib.utils.IoExecutor;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 import java.io.IOException;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Thread listening to incoming connections via Bluetooth server socket.
  */
-class BluetoothServerThread extends AbstractBluetoothThread implements BluetoothSocketIoThread.Listener {
+class BluetoothServerThread extends AbstractBluetoothThread
+        implements HandshakeWorkerPool.Handshake, HandshakeWorkerPool.Listener {
     /**
      * Listener interface.
      */
@@ -27,8 +28,9 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
          *
          * @param bluetoothSocket The Bluetooth socket associated with the incoming connection.
          * @param peerProperties The peer properties.
+         * @param earlyData The early data the peer attached to its handshake or null, if none.
          */
-        void onIncomingConnectionConnected(BluetoothSocket bluetoothSocket, PeerProperties peerProperties);
+        void onIncomingConnectionConnected(BluetoothSocket bluetoothSocket, PeerProperties peerProperties, byte[] earlyData);
 
         /**
          * Called when the incoming connection fails.
@@ -43,13 +45,37 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
         void onServerStopped();
     }
 
+    /**
+     * A listening server socket. Wraps BluetoothServerSocket, which cannot be extended, so that
+     * the accept loop can also be run on a stand-in socket (see BluetoothServerThreadTest).
+     */
+    /* Package */ interface ListeningSocket {
+        BluetoothSocket accept() throws IOException;
+        void close() throws IOException;
+    }
+
+    /**
+     * Creates the listening server socket.
+     */
+    /* Package */ interface ListeningSocketFactory {
+        ListeningSocket listen() throws IOException;
+    }
+
     private static final String TAG = BluetoothServerThread.class.getName();
-    private final CopyOnWriteArrayList<BluetoothSocketIoThread> mSocketIoThreads = new CopyOnWriteArrayList<BluetoothSocketIoThread>();
+    private static final long INITIAL_RETRY_DELAY_IN_MILLISECONDS = 100;
+    private static final long MAX_RETRY_DELAY_IN_MILLISECONDS = 10000;
     private final Listener mListener;
-    private final BluetoothAdapter mBluetoothAdapter;
-    private final String mBluetoothName;
-    private BluetoothServerSocket mBluetoothServerSocket = null;
-    private boolean mStopThread = false;
+    private final ListeningSocketFactory mListeningSocketFactory;
+    private final HandshakeWorkerPool mHandshakeWorkerPool;
+    private final ExponentialBackoff mBackoff =
+            new ExponentialBackoff(INITIAL_RETRY_DELAY_IN_MILLISECONDS, MAX_RETRY_DELAY_IN_MILLISECONDS);
+    private final Object mBackoffLock = new Object();
+    private volatile BluetoothConnector.EarlyDataHandler mEarlyDataHandler = null;
+    private ListeningSocket mListeningSocket = null; // Guarded by this
+    private volatile boolean mStopThread = false;
+    private boolean mPersistentListening = false;
+    private volatile long mNumberOfAcceptedConnections = 0; // Written by this thread only
+    private volatile long mNumberOfServerSocketsCreated = 0; // Written by this thread only
 
     /**
      * Constructor.
@@ -67,250 +93,514 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
             Listener listener, BluetoothAdapter bluetoothAdapter,
             UUID serviceRecordUuid, String myBluetoothName, String myIdentityString)
             throws NullPointerException, IOException {
-        super(serviceRecordUuid, myIdentityString);
+        this(listener, bluetoothAdapter, serviceRecordUuid, myBluetoothName, myIdentityString,
+                HandshakeWorkerPool.DEFAULT_MAX_NUMBER_OF_WORKERS,
+                HandshakeWorkerPool.DEFAULT_QUEUE_CAPACITY,
+                HandshakeWorkerPool.DEFAULT_DEADLINE_IN_MILLISECONDS);
+    }
 
-        if (listener == null || bluetoothAdapter == null) {
-            throw new NullPointerException("Either the listener or the Bluetooth adapter instance is null");
+    /**
+     * Constructor.
+     *
+     * @param listener The listener.
+     * @param bluetoothAdapter The Bluetooth adapter.
+     * @param serviceRecordUuid Our UUID (service record UUID to lookup RFCOMM channel).
+     * @param myBluetoothName Our Bluetooth name for the server socket.
+     * @param myIdentityString Our identity (possible name and the Bluetooth MAC address). Used for
+     *                         handshake (if required).
+     * @param maxNumberOfHandshakeWorkers The maximum number of concurrent handshakes.
+     * @param handshakeQueueCapacity The maximum number of accepted sockets waiting for a handshake worker.
+     * @param handshakeDeadlineInMilliseconds The time after which a socket, whose handshake is not
+     *                                        completed, is closed.
+     * @throws NullPointerException Thrown, if either the given listener or the Bluetooth adapter instance is null.
+     * @throws IOException Thrown, if BluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord fails.
+     */
+    public BluetoothServerThread(
+            Listener listener, BluetoothAdapter bluetoothAdapter,
+            UUID serviceRecordUuid, String myBluetoothName, String myIdentityString,
+            int maxNumberOfHandshakeWorkers, int handshakeQueueCapacity, long handshakeDeadlineInMilliseconds)
+            throws NullPointerException, IOException {
+        this(listener, createListeningSocketFactory(bluetoothAdapter, serviceRecordUuid, myBluetoothName),
+                serviceRecordUuid, myIdentityString,
+                maxNumberOfHandshakeWorkers, handshakeQueueCapacity, handshakeDeadlineInMilliseconds);
+    }
+
+    /**
+     * Constructor for running the accept loop on the listening sockets created by the given
+     * factory instead of a Bluetooth adapter.
+     *
+     * @param listener The listener.
+     * @param listeningSocketFactory The factory for the listening socket.
+     * @param serviceRecordUuid Our UUID (service record UUID to lookup RFCOMM channel).
+     * @param myIdentityString Our identity (possible name and the Bluetooth MAC address). Used for
+     *                         handshake (if required).
+     * @param maxNumberOfHandshakeWorkers The maximum number of concurrent handshakes.
+     * @param handshakeQueueCapacity The maximum number of accepted sockets waiting for a handshake worker.
+     * @param handshakeDeadlineInMilliseconds The time after which a socket, whose handshake is not
+     *                                        completed, is closed.
+     * @throws NullPointerException Thrown, if either the given listener or the factory is null.
+     */
+    /* Package */ BluetoothServerThread(
+            Listener listener, ListeningSocketFactory listeningSocketFactory,
+            UUID serviceRecordUuid, String myIdentityString,
+            int maxNumberOfHandshakeWorkers, int handshakeQueueCapacity, long handshakeDeadlineInMilliseconds)
+            throws NullPointerException {
+        super(serviceRecordUuid, myIdentityString, IoExecutor.Category.ACCEPT);
+
+        if (listener == null || listeningSocketFactory == null) {
+            throw new NullPointerException("Either the listener or the listening socket factory is null");
         }
 
         mListener = listener;
-        mBluetoothAdapter = bluetoothAdapter;
-        mBluetoothName = myBluetoothName;
+        mListeningSocketFactory = listeningSocketFactory;
+        mHandshakeWorkerPool = new HandshakeWorkerPool(this, this,
+                maxNumberOfHandshakeWorkers, handshakeQueueCapacity, handshakeDeadlineInMilliseconds);
+    }
+
+    /**
+     * @return The handshake worker pool containing the handshake metrics.
+     */
+    public HandshakeWorkerPool getHandshakeWorkerPool() {
+        return mHandshakeWorkerPool;
+    }
+
+    /**
+     * @return True, if the server socket is kept open between the accepted connections.
+     */
+    public boolean getPersistentListening() {
+        return mPersistentListening;
+    }
+
+    /**
+     * Sets the listening mode. Must be called before starting this thread.
+     *
+     * @param persistentListening If true, the server socket is kept open and the connections are
+     *                            accepted continuously; the socket is only recreated, if it fails.
+     *                            If false, the server socket is closed and recreated (the service
+     *                            record is registered again) after every accepted connection.
+     */
+    public void setPersistentListening(boolean persistentListening) {
+        mPersistentListening = persistentListening;
+    }
+
+    /**
+     * Sets the handler for the early data attached to the handshakes of the incoming connections.
+     *
+     * @param earlyDataHandler The handler or null to ignore the early data (it is still delivered
+     *                         to the listener).
+     */
+    public void setEarlyDataHandler(BluetoothConnector.EarlyDataHandler earlyDataHandler) {
+        mEarlyDataHandler = earlyDataHandler;
+    }
+
+    /**
+     * @return The number of connections accepted.
+     */
+    public long getNumberOfAcceptedConnections() {
+        return mNumberOfAcceptedConnections;
+    }
+
+    /**
+     * @return The number of times the server socket has been created.
+     */
+    public long getNumberOfServerSocketsCreated() {
+        return mNumberOfServerSocketsCreated;
     }
 
     /**
      * From Thread.
      *
-     * Waits for the incoming connections and once received, will construct IO threads for each
-     * connection to handle them.
+     * Waits for the incoming connections and once received, hands them over to the handshake
+     * worker pool (or, if no handshake is required, directly to the listener).
+     *
+     * If creating the server socket or accepting fails, the next attempt is delayed with an
+     * exponential backoff, which is reset once a connection is accepted.
      */
     @Override
     public void run() {
         while (!mStopThread) {
-            try {
-                mBluetoothServerSocket =
-                        mBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                                mBluetoothName, mServiceRecordUuid);
-            } catch (IOException e) {
-                Log.e(TAG, "run: Failed to start listening: " + e.getMessage(), e);
-                // For the sake of device sanity pause a little
-                try {
-                    Thread.sleep(1200L);
-                } catch (InterruptedException e1) {
-                    e1.printStackTrace();
-                    return;
-                }
-            }
+            ListeningSocket listeningSocket;
 
-            if (mBluetoothServerSocket != null && !mStopThread) {
-                Log.i(TAG, "Waiting for incoming connections...");
-                BluetoothSocket bluetoothSocket = null;
+            synchronized (this) {
+                listeningSocket = mListeningSocket;
+            }
 
+            if (listeningSocket == null) {
                 try {
-                    bluetoothSocket = mBluetoothServerSocket.accept(); // Blocking call
-                    Log.i(TAG, "Incoming connection accepted");
-                } catch (IOException e) {
-                    if (!mStopThread) {
-                        Log.e(TAG, "Failed to accept socket: " + e.getMessage(), e);
-                        mListener.onIncomingConnectionFailed("Failed to accept socket: " + e.getMessage());
-                        mStopThread = true;
+                    listeningSocket = mListeningSocketFactory.listen();
+                    mNumberOfServerSocketsCreated++;
+
+                    synchronized (this) {
+                        mListeningSocket = listeningSocket;
                     }
 
-                    bluetoothSocket = null;
+                    if (mStopThread) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "run: Failed to start listening: " + e.getMessage(), e);
+                    // For the sake of device sanity pause a little
+                    waitBeforeRetry();
+                    continue;
                 }
+            }
 
-                if (bluetoothSocket != null) {
-                    if (mHandshakeRequired) {
-                        BluetoothSocketIoThread handshakeThread = null;
-
-                        try {
-                            handshakeThread = new BluetoothSocketIoThread(bluetoothSocket, this);
-                        } catch (IOException e) {
-                            Log.e(TAG, "Failed to create a handshake thread instance: " + e.getMessage(), e);
-                        }
-
-                        if (handshakeThread != null) {
-                            handshakeThread.setUncaughtExceptionHandler(this.getUncaughtExceptionHandler());
-                            handshakeThread.setExitThreadAfterRead(true);
-                            mSocketIoThreads.add(handshakeThread);
-                            handshakeThread.start();
-                            Log.d(TAG, "Incoming connection initialized (thread ID: " + handshakeThread.getId() + ")");
-                        }
-                    } else {
-                        // No handshake required
-                        String bluetoothMacAddress = BluetoothUtils.getBluetoothMacAddressFromSocket(bluetoothSocket);
-
-                        if (BluetoothUtils.isValidBluetoothMacAddress(bluetoothMacAddress)) {
-                            PeerProperties peerProperties = new PeerProperties(bluetoothMacAddress);
-                            mListener.onIncomingConnectionConnected(bluetoothSocket, peerProperties);
-                        } else {
-                            String errorMessage = "Invalid Bluetooth MAC address: " + bluetoothMacAddress;
-                            Log.e(TAG, errorMessage);
-                            mListener.onIncomingConnectionFailed(errorMessage);
-                        }
+            Log.i(TAG, "Waiting for incoming connections...");
+            BluetoothSocket bluetoothSocket = null;
+
+            try {
+                bluetoothSocket = listeningSocket.accept(); // Blocking call
+                Log.i(TAG, "Incoming connection accepted");
+                mNumberOfAcceptedConnections++;
+                mBackoff.onSuccess();
+            } catch (IOException e) {
+                if (!mStopThread) {
+                    Log.e(TAG, "Failed to accept socket: " + e.getMessage(), e);
+                    mListener.onIncomingConnectionFailed("Failed to accept socket: " + e.getMessage());
+
+                    if (mPersistentListening) {
+                        // Recreate the server socket after a pause
+                        closeListeningSocket();
+                        waitBeforeRetry();
+                        continue;
                     }
-                } else if (!mStopThread) {
-                    Log.e(TAG, "Socket is null");
-                    mListener.onIncomingConnectionFailed("Socket is null");
+
                     mStopThread = true;
                 }
 
-                try {
-                    mBluetoothServerSocket.close();
-                    Log.v(TAG, "Bluetooth server socket closed");
-                } catch (IOException | NullPointerException e) {
-                    Log.e(TAG, "Failed to close the Bluetooth server socket: " + e.getMessage(), e);
-                }
+                bluetoothSocket = null;
+            }
 
-                mBluetoothServerSocket = null;
-            } // if (mBluetoothServerSocket != null && !mStopThread)
+            if (bluetoothSocket != null) {
+                onIncomingConnectionAccepted(bluetoothSocket);
+            } else if (!mStopThread) {
+                Log.e(TAG, "Socket is null");
+                mListener.onIncomingConnectionFailed("Socket is null");
+                mStopThread = true;
+            }
+
+            if (!mPersistentListening || mStopThread) {
+                closeListeningSocket();
+            }
         } // while (!mStopThread)
 
+        closeListeningSocket();
         Log.d(TAG, "Exiting thread");
         mListener.onServerStopped();
     }
 
     /**
      * Shuts down this thread.
-     * Clears the list of IO threads and closes the server socket.
+     * Closes the sockets of the pending handshakes and the server socket.
      */
     @Override
     public synchronized void shutdown() {
         Log.d(TAG, "shutdown");
         mStopThread = true;
+        mHandshakeWorkerPool.shutdown();
+        closeListeningSocket();
 
-        for (BluetoothSocketIoThread thread : mSocketIoThreads) {
-            if (thread != null) {
-                thread.close(true, true);
+        synchronized (mBackoffLock) {
+            mBackoffLock.notifyAll();
+        }
+    }
+
+    /**
+     * Hands the accepted socket over to the handshake worker pool or, if no handshake is
+     * required, directly to the listener.
+     *
+     * @param bluetoothSocket The accepted socket.
+     */
+    private void onIncomingConnectionAccepted(BluetoothSocket bluetoothSocket) {
+        if (mHandshakeRequired) {
+            // The pool closes the socket, if it is full or the handshake takes too long
+            if (mHandshakeWorkerPool.submit(bluetoothSocket)) {
+                Log.d(TAG, "Incoming connection queued for handshake");
+            }
+        } else {
+            // No handshake required
+            String bluetoothMacAddress = BluetoothUtils.getBluetoothMacAddressFromSocket(bluetoothSocket);
+
+            if (BluetoothUtils.isValidBluetoothMacAddress(bluetoothMacAddress)) {
+                PeerProperties peerProperties = new PeerProperties(bluetoothMacAddress);
+                mListener.onIncomingConnectionConnected(bluetoothSocket, peerProperties, null);
+            } else {
+                String errorMessage = "Invalid Bluetooth MAC address: " + bluetoothMacAddress;
+                Log.e(TAG, errorMessage);
+                mListener.onIncomingConnectionFailed(errorMessage);
             }
         }
+    }
 
-        mSocketIoThreads.clear();
+    /**
+     * Waits for the current backoff delay or until this thread is shut down.
+     */
+    private void waitBeforeRetry() {
+        long delayInMilliseconds = mBackoff.onFailure();
+        Log.d(TAG, "waitBeforeRetry: Retrying in " + delayInMilliseconds + " ms (failure #"
+                + mBackoff.getNumberOfConsecutiveFailures() + ")");
 
-        if (mBluetoothServerSocket != null) {
+        synchronized (mBackoffLock) {
+            if (!mStopThread) {
+                try {
+                    mBackoffLock.wait(delayInMilliseconds);
+                } catch (InterruptedException e) {
+                    mStopThread = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the factory for the listening sockets, which are Bluetooth server sockets
+     * registering the given service record.
+     *
+     * @param bluetoothAdapter The Bluetooth adapter.
+     * @param serviceRecordUuid Our UUID (service record UUID to lookup RFCOMM channel).
+     * @param myBluetoothName Our Bluetooth name for the server socket.
+     * @return The factory.
+     * @throws NullPointerException Thrown, if the Bluetooth adapter is null.
+     */
+    private static ListeningSocketFactory createListeningSocketFactory(
+            final BluetoothAdapter bluetoothAdapter, final UUID serviceRecordUuid, final String myBluetoothName)
+            throws NullPointerException {
+        if (bluetoothAdapter == null) {
+            throw new NullPointerException("The Bluetooth adapter instance is null");
+        }
+
+        return new ListeningSocketFactory() {
+            @Override
+            public ListeningSocket listen() throws IOException {
+                final BluetoothServerSocket bluetoothServerSocket =
+                        bluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(
+                                myBluetoothName, serviceRecordUuid);
+
+                return new ListeningSocket() {
+                    @Override
+                    public BluetoothSocket accept() throws IOException {
+                        return bluetoothServerSocket.accept();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        bluetoothServerSocket.close();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Closes the server socket, if open.
+     */
+    private synchronized void closeListeningSocket() {
+        if (mListeningSocket != null) {
             try {
-                mBluetoothServerSocket.close();
-            } catch (IOException | NullPointerException e) {
+                mListeningSocket.close();
+                Log.v(TAG, "Bluetooth server socket closed");
+            } catch (IOException e) {
                 Log.e(TAG, "Failed to close the Bluetooth server socket: " + e.getMessage(), e);
             }
+
+            mListeningSocket = null;
         }
     }
 
     /**
-     * Validates the read message, which should contain the identity of the peer, and if OK, we will
-     * try to respond with our own identity.
+     * From HandshakeWorkerPool.Handshake.
      *
-     * @param bytes The array of bytes read.
-     * @param size The size of the array.
-     * @param who The related BluetoothSocketIoThread instance.
+     * Reads the message, which should contain the identity of the peer, and if valid, responds
+     * with our own identity. If the peer attached early data to its message, the early data
+     * handler may attach a response to ours. If the peer presented a resumption token instead of
+     * its identity (see SessionResumption), the session is resumed, if the token is valid. Called
+     * from a handshake worker thread.
+     *
+     * @param bluetoothSocket The socket of the incoming connection.
+     * @param deadline The deadline of the handshake, cancelled right before replying.
+     * @return The result or null, if the identity was not valid.
+     * @throws IOException Thrown, if reading or writing the socket fails or the deadline has passed.
      */
     @Override
-    public void onBytesRead(byte[] bytes, int size, BluetoothSocketIoThread who) {
-        final long threadId = who.getId();
-        Log.d(TAG, "onBytesRead: Read " + size + " bytes successfully (thread ID: " + threadId + ")");
+    public HandshakeWorkerPool.Result performHandshake(
+            BluetoothSocket bluetoothSocket, HandshakeWorkerPool.Deadline deadline) throws IOException {
+        byte[] message = BinaryHandshake.readHandshakeMessage(bluetoothSocket.getInputStream()); // Blocking call
+        Log.d(TAG, "performHandshake: Read " + message.length + " bytes successfully");
+
+        if (SessionResumption.isResumptionMessage(message, 0, message.length)) {
+            HandshakeWorkerPool.Result result = tryToResumeSession(bluetoothSocket, message, deadline);
+
+            if (result != null) {
+                return result;
+            }
+
+            // Rejected, the client continues with the full handshake
+            message = BinaryHandshake.readHandshakeMessage(bluetoothSocket.getInputStream()); // Blocking call
+
+            if (SessionResumption.isResumptionMessage(message, 0, message.length)) {
+                Log.e(TAG, "Got another resumption request instead of the full handshake");
+                return null;
+            }
+        }
 
         PeerProperties peerProperties =
-                BluetoothUtils.validateReceivedHandshakeMessage(bytes, who.getSocket());
+                BluetoothUtils.validateReceivedHandshakeMessage(message, message.length, bluetoothSocket);
+
+        if (peerProperties == null) {
+            Log.e(TAG, "Failed to receive valid identity");
+            return null;
+        }
 
-        if (peerProperties != null) {
-            Log.i(TAG, "Got valid identity from " + peerProperties.toString());
+        Log.i(TAG, "Got valid identity from " + peerProperties.toString());
+        byte[] handshakeMessage = null;
+        byte[] earlyData = null;
+        byte[] resumptionToken = null;
+        final ResumptionTokenCache resumptionTokenCache = mResumptionTokenCache;
 
-            // Set the resolved properties to the associated thread
-            who.setPeerProperties(peerProperties);
+        // Respond to client in the format it used
+        if (BinaryHandshake.isBinaryHandshake(message, 0, message.length)) {
+            earlyData = BinaryHandshake.getEarlyData(message, 0, message.length);
 
-            // Respond to client
-            if (!who.write(getHandshakeMessage())) {
-                Log.e(TAG, "Failed to respond to thread with ID " + threadId);
-                removeThreadFromList(threadId, true);
+            if (earlyData != null && earlyData.length == 0) {
+                earlyData = null;
             }
-        } else {
-            Log.e(TAG, "Failed to receive valid identity (thread ID: " + threadId + ")");
-            removeThreadFromList(threadId, true);
+
+            byte[] earlyDataResponse = getEarlyDataResponse(peerProperties, earlyData);
+
+            if (resumptionTokenCache != null && peerProperties.getResumptionSupported()) {
+                resumptionToken = ResumptionTokenCache.generateToken();
+            }
+
+            handshakeMessage = getBinaryHandshakeMessage(earlyDataResponse, resumptionToken);
+
+            if (handshakeMessage == null && earlyDataResponse != null) {
+                Log.e(TAG, "Failed to attach the early data response (" + earlyDataResponse.length
+                        + " bytes), replying without it");
+                handshakeMessage = getBinaryHandshakeMessage(null, resumptionToken);
+            }
+        }
+
+        cancelDeadline(deadline);
+        bluetoothSocket.getOutputStream().write(
+                (handshakeMessage != null) ? handshakeMessage : getHandshakeMessage());
+        bluetoothSocket.getOutputStream().flush();
+
+        if (handshakeMessage != null && resumptionToken != null) {
+            resumptionTokenCache.put(peerProperties, resumptionToken);
         }
+
+        return new HandshakeWorkerPool.Result(peerProperties, earlyData);
     }
 
     /**
-     * This will get called, if the response to an incoming connection was successful. Thus, we can
-     * assume we have initiated a connection.
+     * Tries to resume a session with the resumption token presented by the client. If the token is
+     * valid, replies with an acceptance containing a new token. Otherwise, replies with a rejection
+     * after which the client is expected to send the full handshake.
      *
-     * @param bytes The array of bytes written.
-     * @param size The size of the array.
-     * @param who The related BluetoothSocketIoThread instance.
+     * @param bluetoothSocket The socket.
+     * @param message The resumption request.
+     * @param deadline The deadline of the handshake, cancelled right before accepting.
+     * @return The result or null, if the session could not be resumed.
+     * @throws IOException Thrown, if reading or writing the socket fails or the deadline has passed.
      */
-    @Override
-    public void onBytesWritten(byte[] bytes, int size, BluetoothSocketIoThread who) {
-        final long threadId = who.getId();
-        Log.d(TAG, "onBytesWritten: " + size + " bytes successfully written (thread ID: " + threadId + ")");
+    private HandshakeWorkerPool.Result tryToResumeSession(
+            BluetoothSocket bluetoothSocket, byte[] message, HandshakeWorkerPool.Deadline deadline)
+            throws IOException {
+        final ResumptionTokenCache resumptionTokenCache = mResumptionTokenCache;
+        final PeerProperties myPeerProperties = getMyPeerProperties();
+        PeerProperties peerProperties = null;
+
+        if (resumptionTokenCache != null && myPeerProperties != null
+                && SessionResumption.getType(message) == SessionResumption.TYPE_REQUEST) {
+            String bluetoothMacAddress = SessionResumption.getBluetoothMacAddress(message);
+
+            if (bluetoothMacAddress.equals(BluetoothUtils.getBluetoothMacAddressFromSocket(bluetoothSocket))) {
+                peerProperties = resumptionTokenCache.redeem(bluetoothMacAddress, SessionResumption.getToken(message));
+            } else {
+                Log.e(TAG, "tryToResumeSession: Bluetooth MAC address mismatch: " + bluetoothMacAddress);
+            }
+        }
+
+        if (peerProperties == null) {
+            Log.i(TAG, "tryToResumeSession: Rejected, expecting the full handshake");
+            bluetoothSocket.getOutputStream().write(SessionResumption.encodeRejection());
+            bluetoothSocket.getOutputStream().flush();
+            return null;
+        }
 
-        // Remove the thread from the list, but do not close the socket associated with it, since
-        // it is now the responsibility of the listener to do that.
-        boolean threadRemoved = removeThreadFromList(who, false);
+        byte[] earlyData = SessionResumption.getEarlyData(message);
 
-        if (threadRemoved) {
-            Log.d(TAG, "Handshake thread disposed (thread ID: " + threadId + ")");
-        } else {
-            Log.e(TAG, "Failed to find the thread from the list (thread ID: " + threadId + ")");
+        if (earlyData.length == 0) {
+            earlyData = null;
+        }
+
+        byte[] earlyDataResponse = getEarlyDataResponse(peerProperties, earlyData);
+        byte[] resumptionToken = ResumptionTokenCache.generateToken();
+        byte[] acceptance = SessionResumption.encode(SessionResumption.TYPE_ACCEPTED,
+                myPeerProperties.getBluetoothMacAddress(), resumptionToken, earlyDataResponse);
+
+        if (acceptance == null && earlyDataResponse != null) {
+            Log.e(TAG, "tryToResumeSession: Failed to attach the early data response ("
+                    + earlyDataResponse.length + " bytes), replying without it");
+            acceptance = SessionResumption.encode(SessionResumption.TYPE_ACCEPTED,
+                    myPeerProperties.getBluetoothMacAddress(), resumptionToken, null);
         }
 
-        mListener.onIncomingConnectionConnected(who.getSocket(), who.getPeerProperties());
+        cancelDeadline(deadline);
+        bluetoothSocket.getOutputStream().write(acceptance);
+        bluetoothSocket.getOutputStream().flush();
+        resumptionTokenCache.put(peerProperties, resumptionToken);
+        Log.i(TAG, "Resumed session with " + peerProperties.toString());
+        return new HandshakeWorkerPool.Result(peerProperties, earlyData);
     }
 
     /**
-     * If a BluetoothSocketIoThread instance has succeeded, it has been removed from our list.
-     * This, if this callback gets called and we still have the given thread in our list, it means
-     * that the reason for the disconnect was an error.
+     * Cancels the deadline of the handshake before writing the final reply, since the peer
+     * considers the connection established once it has the reply.
      *
-     * @param reason The reason why we got disconnected. Contains an exception message in case of failure.
-     * @param who The related BluetoothSocketIoThread instance.
+     * @param deadline The deadline.
+     * @throws IOException Thrown, if the deadline has already passed and the socket was closed.
      */
-    @Override
-    public void onDisconnected(String reason, BluetoothSocketIoThread who) {
-        long threadId = who.getId();
-        boolean threadFound = removeThreadFromList(who, true);
-
-        if (threadFound) {
-            Log.e(TAG, "Handshake failed (thread ID: " + threadId + ")");
+    private static void cancelDeadline(HandshakeWorkerPool.Deadline deadline) throws IOException {
+        if (!deadline.cancel()) {
+            throw new IOException("Deadline passed before replying");
         }
     }
 
     /**
-     * Removes the given socket IO thread from the list of threads.
-     *
-     * @param threadId The ID of the thread to remove.
-     * @param closeSocketAndStreams If true, will close the socket and streams associated with the thread.
-     * @return True, if the thread was removed from the list. False, if not found.
+     * @param peerProperties The properties of the peer.
+     * @param earlyData The early data the peer attached to its handshake or null, if none.
+     * @return The response to the early data given by the early data handler or null, if none.
      */
-    private synchronized boolean removeThreadFromList(
-            final long threadId, boolean closeSocketAndStreams) {
-
-        boolean threadRemoved = false;
-
-        for (BluetoothSocketIoThread thread : mSocketIoThreads) {
-            if (thread != null && thread.getId() == threadId) {
-                Log.d(TAG, "removeThreadFromList: Removing thread with ID " + threadId);
-                mSocketIoThreads.remove(thread);
+    private byte[] getEarlyDataResponse(PeerProperties peerProperties, byte[] earlyData) {
+        final BluetoothConnector.EarlyDataHandler earlyDataHandler = mEarlyDataHandler;
 
-                if (closeSocketAndStreams) {
-                    thread.close(true, true);
-                }
-
-                threadRemoved = true;
-                break;
-            }
+        if (earlyData == null || earlyDataHandler == null) {
+            return null;
         }
 
-        return threadRemoved;
+        return earlyDataHandler.onEarlyDataReceived(peerProperties, earlyData);
+    }
+
+    /**
+     * From HandshakeWorkerPool.Listener.
+     *
+     * @param bluetoothSocket The socket, which is now the responsibility of our listener.
+     * @param peerProperties The peer properties.
+     * @param earlyData The early data the peer attached to its handshake or null, if none.
+     */
+    @Override
+    public void onHandshakeSucceeded(BluetoothSocket bluetoothSocket, PeerProperties peerProperties, byte[] earlyData) {
+        mListener.onIncomingConnectionConnected(bluetoothSocket, peerProperties, earlyData);
     }
 
     /**
-     * Removes the given socket IO thread from the list of threads.
+     * From HandshakeWorkerPool.Listener.
      *
-     * @param threadToRemove The thread to remove.
-     * @param closeSocketAndStreams If true, will close the socket and streams associated with the thread.
-     * @return True, if the thread was removed from the list. False, if not found.
+     * @param reason The reason for the failure.
      */
-    private synchronized boolean removeThreadFromList(
-            BluetoothSocketIoThread threadToRemove, boolean closeSocketAndStreams) {
-        return removeThreadFromList(threadToRemove.getId(), closeSocketAndStreams);
+    @Override
+    public void onHandshakeFailed(String reason) {
+        Log.e(TAG, "onHandshakeFailed: " + reason);
+        mListener.onIncomingConnectionFailed(reason);
     }
-}
\ No newline at end of file
+}
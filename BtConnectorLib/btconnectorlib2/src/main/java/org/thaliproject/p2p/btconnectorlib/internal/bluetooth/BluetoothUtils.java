@@ -11,6 +11,7 @@ import org.json.JSONException;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 import org.thaliproject.p2p.btconnectorlib.internal.AbstractBluetoothConnectivityAgent;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.UUID;
 
@@ -27,8 +28,14 @@ public class BluetoothUtils {
     private static final String UPPER_CASE_HEX_REGEXP_CONDITION = "-?[0-9A-F]+";
     private static final String METHOD_NAME_FOR_CREATING_SECURE_RFCOMM_SOCKET = "createRfcommSocket";
     private static final String METHOD_NAME_FOR_CREATING_INSECURE_RFCOMM_SOCKET = "createInsecureRfcommSocket";
+    private static final String FIELD_NAME_FOR_BLUETOOTH_SOCKET_PORT = "mPort";
     private static final int MAX_ALTERNATIVE_CHANNEL = 30;
     private static int mAlternativeChannel = 0;
+    private static Constructor<?> mBluetoothSocketConstructor = null; // Guarded by BluetoothUtils.class
+    private static Method mCreateSecureRfcommSocketMethod = null; // Guarded by BluetoothUtils.class
+    private static Method mCreateInsecureRfcommSocketMethod = null; // Guarded by BluetoothUtils.class
+    private static Field mBluetoothSocketPortField = null; // Guarded by BluetoothUtils.class
+    private static boolean mBluetoothSocketPortFieldLookedUp = false; // Guarded by BluetoothUtils.class
 
     /**
      * Checks if the given Bluetooth MAC address is unknown (as in not set/missing).
@@ -117,33 +124,49 @@ public class BluetoothUtils {
      */
     public static PeerProperties validateReceivedHandshakeMessage(
             byte[] handshakeMessage, BluetoothSocket bluetoothSocketOfSender) {
-        String identityString = new String(handshakeMessage);
+        return validateReceivedHandshakeMessage(
+                handshakeMessage, handshakeMessage.length, bluetoothSocketOfSender);
+    }
+
+    /**
+     * Checks the validity of the received handshake message. Both the binary (see BinaryHandshake)
+     * and the JSON identity string formats are accepted.
+     * @param handshakeMessage The array containing the received handshake message.
+     * @param size The size of the message i.e. the number of valid bytes in the array.
+     * @param bluetoothSocketOfSender The Bluetooth socket of the sender.
+     * @return The resolved peer properties of the sender, if the handshake was valid. Null otherwise.
+     */
+    public static PeerProperties validateReceivedHandshakeMessage(
+            byte[] handshakeMessage, int size, BluetoothSocket bluetoothSocketOfSender) {
         PeerProperties peerProperties = new PeerProperties();
         peerProperties.setDiscoveryMethod(PeerProperties.DISCOVERY_VIA_BLUETOOTH_INCOMING_HANDSHAKE);
         boolean receivedHandshakeMessageValidated = false;
 
-        if (!identityString.isEmpty()) {
+        if (BinaryHandshake.isBinaryHandshake(handshakeMessage, 0, size)) {
+            receivedHandshakeMessageValidated =
+                    BinaryHandshake.decode(handshakeMessage, 0, size, peerProperties);
+        } else if (size > 0) {
             try {
                 receivedHandshakeMessageValidated =
                         AbstractBluetoothConnectivityAgent.getPropertiesFromIdentityString(
-                                identityString, peerProperties);
+                                new String(handshakeMessage, 0, size), peerProperties);
             } catch (JSONException e) {
                 Log.e(TAG, "validateReceivedHandshakeMessage: Failed to resolve peer properties: "
                         + e.getMessage(), e);
             }
+        }
 
-            if (receivedHandshakeMessageValidated) {
-                String bluetoothMacAddress =
-                        BluetoothUtils.getBluetoothMacAddressFromSocket(bluetoothSocketOfSender);
+        if (receivedHandshakeMessageValidated) {
+            String bluetoothMacAddress =
+                    BluetoothUtils.getBluetoothMacAddressFromSocket(bluetoothSocketOfSender);
 
-                if (bluetoothMacAddress == null
-                        || !bluetoothMacAddress.equals(peerProperties.getBluetoothMacAddress())) {
-                    Log.e(TAG, "validateReceivedHandshakeMessage: Bluetooth MAC address mismatch: Got \""
-                            + peerProperties.getBluetoothMacAddress()
-                            + "\", but was expecting \"" + bluetoothMacAddress + "\"");
+            if (bluetoothMacAddress == null
+                    || !bluetoothMacAddress.equals(peerProperties.getBluetoothMacAddress())) {
+                Log.e(TAG, "validateReceivedHandshakeMessage: Bluetooth MAC address mismatch: Got \""
+                        + peerProperties.getBluetoothMacAddress()
+                        + "\", but was expecting \"" + bluetoothMacAddress + "\"");
 
-                    receivedHandshakeMessageValidated = false;
-                }
+                receivedHandshakeMessageValidated = false;
             }
         }
 
@@ -177,27 +200,11 @@ public class BluetoothUtils {
      */
     public static BluetoothSocket createBluetoothSocketToServiceRecord(
             BluetoothDevice bluetoothDevice, UUID serviceRecordUuid, int channelOrPort, boolean secure) {
-        Constructor[] bluetoothSocketConstructors = BluetoothSocket.class.getDeclaredConstructors();
-        Constructor bluetoothSocketConstructor = null;
-
-        for (Constructor constructor : bluetoothSocketConstructors) {
-            Class<?>[] parameterTypes = constructor.getParameterTypes();
-            boolean takesBluetoothDevice = false;
-            boolean takesParcelUuid = false;
-
-            for (Class<?> parameterType : parameterTypes) {
-                if (parameterType.equals(BluetoothDevice.class)) {
-                    takesBluetoothDevice = true;
-                } else if (parameterType.equals(ParcelUuid.class)) {
-                    takesParcelUuid = true;
-                }
-            }
+        Constructor<?> bluetoothSocketConstructor = getBluetoothSocketConstructor();
 
-            if (takesBluetoothDevice && takesParcelUuid) {
-                // We found the right constructor
-                bluetoothSocketConstructor = constructor;
-                break;
-            }
+        if (bluetoothSocketConstructor == null) {
+            Log.e(TAG, "createBluetoothSocketToServiceRecord: No suitable Bluetooth socket constructor found");
+            return null;
         }
 
         // This is the constructor we should now have:
@@ -215,7 +222,6 @@ public class BluetoothUtils {
                 new ParcelUuid(serviceRecordUuid)
         };
 
-        bluetoothSocketConstructor.setAccessible(true);
         BluetoothSocket bluetoothSocket = null;
 
         try {
@@ -253,27 +259,54 @@ public class BluetoothUtils {
      */
     public static BluetoothSocket createBluetoothSocket(
             BluetoothSocket originalBluetoothSocket, int channelOrPort, boolean secure) {
-        Log.d(TAG, "createBluetoothSocketWithSpecifiedChannel: Channel/port: " + channelOrPort + ", secure: " + secure);
-        Class<?> bluetoothDeviceClass = originalBluetoothSocket.getRemoteDevice().getClass();
-        Class<?>[] parameterTypes = new Class<?>[] { Integer.TYPE };
-
-        String methodName = secure
-                ? METHOD_NAME_FOR_CREATING_SECURE_RFCOMM_SOCKET
-                : METHOD_NAME_FOR_CREATING_INSECURE_RFCOMM_SOCKET;
+        return createBluetoothSocketToChannel(originalBluetoothSocket.getRemoteDevice(), channelOrPort, secure);
+    }
 
+    /**
+     * Creates a new Bluetooth socket connecting directly to the given RFCOMM channel of the given
+     * device. Unlike the sockets created with a service record UUID, no SDP lookup is done.
+     * @param bluetoothDevice The Bluetooth device.
+     * @param channelOrPort The RFCOMM channel or L2CAP psm to use.
+     * @param secure If true, will try to create a secure RFCOMM socket. If false, will try to create an insecure one.
+     * @return A new Bluetooth socket with the specified channel/port or null in case of a failure.
+     */
+    public static BluetoothSocket createBluetoothSocketToChannel(
+            BluetoothDevice bluetoothDevice, int channelOrPort, boolean secure) {
+        Log.d(TAG, "createBluetoothSocketToChannel: Channel/port: " + channelOrPort + ", secure: " + secure);
         BluetoothSocket newSocket = null;
 
         try {
-            Method createSocketMethod = bluetoothDeviceClass.getMethod(methodName, parameterTypes);
             Object[] parameters = new Object[] { Integer.valueOf(channelOrPort) };
-            newSocket = (BluetoothSocket) createSocketMethod.invoke(originalBluetoothSocket.getRemoteDevice(), parameters);
+            newSocket = (BluetoothSocket) getCreateRfcommSocketMethod(secure).invoke(bluetoothDevice, parameters);
         } catch (Exception e) {
-            Log.e(TAG, "createBluetoothSocketWithSpecifiedChannel: Failed to create a new Bluetooth socket: " + e.getMessage(), e);
+            Log.e(TAG, "createBluetoothSocketToChannel: Failed to create a new Bluetooth socket: " + e.getMessage(), e);
         }
 
         return newSocket;
     }
 
+    /**
+     * Resolves the RFCOMM channel of the given connected socket. When a socket is created with a
+     * service record UUID, the channel is resolved by the SDP lookup during connect().
+     * @param bluetoothSocket The connected Bluetooth socket.
+     * @return The RFCOMM channel or -1, if it could not be resolved.
+     */
+    public static int getRfcommChannel(BluetoothSocket bluetoothSocket) {
+        int channel = -1;
+
+        try {
+            Field portField = getBluetoothSocketPortField();
+
+            if (portField != null && bluetoothSocket != null) {
+                channel = portField.getInt(bluetoothSocket);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "getRfcommChannel: Failed to resolve the channel: " + e.getMessage());
+        }
+
+        return channel;
+    }
+
     /**
      * Creates a new Bluetooth socket based on the given one using a rotating channel/port.
      * @param originalBluetoothSocket The original Bluetooth socket.
@@ -288,4 +321,82 @@ public class BluetoothUtils {
 
         return createBluetoothSocket(originalBluetoothSocket, ++mAlternativeChannel, secure);
     }
+
+    /**
+     * Looks up the hidden BluetoothSocket constructor taking the device and the UUID. Once found,
+     * the constructor is cached.
+     * @return The constructor or null, if not found.
+     */
+    private static synchronized Constructor<?> getBluetoothSocketConstructor() {
+        if (mBluetoothSocketConstructor == null) {
+            for (Constructor<?> constructor : BluetoothSocket.class.getDeclaredConstructors()) {
+                Class<?>[] parameterTypes = constructor.getParameterTypes();
+                boolean takesBluetoothDevice = false;
+                boolean takesParcelUuid = false;
+
+                for (Class<?> parameterType : parameterTypes) {
+                    if (parameterType.equals(BluetoothDevice.class)) {
+                        takesBluetoothDevice = true;
+                    } else if (parameterType.equals(ParcelUuid.class)) {
+                        takesParcelUuid = true;
+                    }
+                }
+
+                if (takesBluetoothDevice && takesParcelUuid) {
+                    // We found the right constructor
+                    constructor.setAccessible(true);
+                    mBluetoothSocketConstructor = constructor;
+                    break;
+                }
+            }
+        }
+
+        return mBluetoothSocketConstructor;
+    }
+
+    /**
+     * Looks up the hidden BluetoothDevice method for creating a socket to a given channel. The
+     * lookup is done only once per method.
+     * @param secure If true, returns the method for secure sockets. Otherwise, the one for insecure sockets.
+     * @return The method.
+     * @throws NoSuchMethodException Thrown, if the method does not exist.
+     */
+    private static synchronized Method getCreateRfcommSocketMethod(boolean secure) throws NoSuchMethodException {
+        Class<?>[] parameterTypes = new Class<?>[] { Integer.TYPE };
+
+        if (secure) {
+            if (mCreateSecureRfcommSocketMethod == null) {
+                mCreateSecureRfcommSocketMethod = BluetoothDevice.class.getMethod(
+                        METHOD_NAME_FOR_CREATING_SECURE_RFCOMM_SOCKET, parameterTypes);
+            }
+
+            return mCreateSecureRfcommSocketMethod;
+        }
+
+        if (mCreateInsecureRfcommSocketMethod == null) {
+            mCreateInsecureRfcommSocketMethod = BluetoothDevice.class.getMethod(
+                    METHOD_NAME_FOR_CREATING_INSECURE_RFCOMM_SOCKET, parameterTypes);
+        }
+
+        return mCreateInsecureRfcommSocketMethod;
+    }
+
+    /**
+     * Looks up the private port field of BluetoothSocket. The lookup is done only once.
+     * @return The field or null, if not found.
+     */
+    private static synchronized Field getBluetoothSocketPortField() {
+        if (mBluetoothSocketPortField == null && !mBluetoothSocketPortFieldLookedUp) {
+            mBluetoothSocketPortFieldLookedUp = true;
+
+            try {
+                mBluetoothSocketPortField = BluetoothSocket.class.getDeclaredField(FIELD_NAME_FOR_BLUETOOTH_SOCKET_PORT);
+                mBluetoothSocketPortField.setAccessible(true);
+            } catch (NoSuchFieldException e) {
+                Log.e(TAG, "getBluetoothSocketPortField: " + e.getMessage());
+            }
+        }
+
+        return mBluetoothSocketPortField;
+    }
 }
@@ -0,0 +1,284 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+import org.thaliproject.p2p.btconnectorlib.utils.IoExecutor;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races two socket connection strategies (ports, see BluetoothClientThread) against each other in
+ * the manner of "happy eyeballs": the primary strategy is started right away and the alternative
+ * one after a stagger, or immediately, if the primary fails before that. The socket that connects
+ * first wins and the other one is closed.
+ *
+ * Since connect() blocks, both attempts run in threads of their own (category CONNECT, see
+ * IoExecutor). The stagger is timed by the shared scheduler.
+ */
+class ConnectionRace {
+    /**
+     * Creates the sockets for the attempts.
+     */
+    interface SocketFactory {
+        /**
+         * Creates an unconnected socket using the given strategy. Called from the attempt threads.
+         *
+         * @param port The port of the strategy.
+         * @return The socket.
+         * @throws IOException Thrown, if creating the socket fails.
+         */
+        BluetoothSocket createSocket(int port) throws IOException;
+    }
+
+    /**
+     * A single connection attempt.
+     */
+    private class Attempt implements Runnable {
+        private final int mPort;
+        private BluetoothSocket mBluetoothSocket = null; // Guarded by ConnectionRace.this
+        private boolean mIsStarted = false; // Guarded by ConnectionRace.this
+        private boolean mIsDone = false; // Guarded by ConnectionRace.this
+
+        private Attempt(int port) {
+            mPort = port;
+        }
+
+        /**
+         * From Runnable.
+         *
+         * Creates the socket and connects it.
+         */
+        @Override
+        public void run() {
+            Exception exception = null;
+
+            try {
+                BluetoothSocket bluetoothSocket = mSocketFactory.createSocket(mPort);
+
+                if (bluetoothSocket == null) {
+                    throw new IOException("Failed to create a socket");
+                }
+
+                synchronized (ConnectionRace.this) {
+                    mBluetoothSocket = bluetoothSocket;
+
+                    if (mWinner != null || mIsCancelled) {
+                        throw new IOException("Race already finished");
+                    }
+                }
+
+                bluetoothSocket.connect(); // Blocking call
+            } catch (Exception e) {
+                exception = e;
+            }
+
+            onAttemptDone(this, exception);
+        }
+    }
+
+    private static final String TAG = ConnectionRace.class.getName();
+    public static final long DEFAULT_STAGGER_IN_MILLISECONDS = 500;
+    public static final int NO_WINNER = Integer.MIN_VALUE;
+    private final SocketFactory mSocketFactory;
+    private final Attempt mPrimaryAttempt;
+    private final Attempt mAlternativeAttempt;
+    private final long mStaggerInMilliseconds;
+    private final ConnectionRaceStatistics mStatistics;
+    private Attempt mWinner = null; // Guarded by this
+    private Exception mLastException = null; // Guarded by this
+    private ScheduledFuture<?> mStaggerFuture = null; // Guarded by this
+    private boolean mIsCancelled = false; // Guarded by this
+
+    /**
+     * Constructor.
+     *
+     * @param socketFactory The socket factory.
+     * @param primaryPort The port of the primary strategy.
+     * @param alternativePort The port of the alternative strategy.
+     * @param staggerInMilliseconds The delay before starting the alternative strategy.
+     * @param statistics The statistics to record the outcome to. Can be null.
+     * @throws NullPointerException Thrown, if the socket factory is null.
+     */
+    public ConnectionRace(
+            SocketFactory socketFactory, int primaryPort, int alternativePort,
+            long staggerInMilliseconds, ConnectionRaceStatistics statistics)
+            throws NullPointerException {
+        if (socketFactory == null) {
+            throw new NullPointerException("The socket factory is null");
+        }
+
+        mSocketFactory = socketFactory;
+        mPrimaryAttempt = new Attempt(primaryPort);
+        mAlternativeAttempt = new Attempt(alternativePort);
+        mStaggerInMilliseconds = Math.max(staggerInMilliseconds, 0);
+        mStatistics = statistics;
+    }
+
+    /**
+     * Runs the race. Blocks until either of the strategies connects, both fail or the race is
+     * cancelled.
+     *
+     * @return The connected socket of the winner. The responsibility over the socket is
+     * transferred to the caller.
+     * @throws IOException Thrown, if both strategies failed (the exception of the latter failure)
+     * or the race was cancelled.
+     */
+    public BluetoothSocket run() throws IOException {
+        long startTime = System.nanoTime();
+
+        synchronized (this) {
+            startAttempt(mPrimaryAttempt);
+
+            mStaggerFuture = IoExecutor.getDefault().getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ConnectionRace.this) {
+                        if (mWinner == null && !mIsCancelled) {
+                            Log.d(TAG, "Primary strategy (port " + mPrimaryAttempt.mPort
+                                    + ") not connected in " + mStaggerInMilliseconds
+                                    + " ms, starting the alternative (port " + mAlternativeAttempt.mPort + ")");
+                            startAttempt(mAlternativeAttempt);
+                        }
+                    }
+                }
+            }, mStaggerInMilliseconds, TimeUnit.MILLISECONDS);
+
+            try {
+                while (mWinner == null && !mIsCancelled
+                        && !(mPrimaryAttempt.mIsDone && mAlternativeAttempt.mIsDone)) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                cancel();
+            }
+
+            long timeToConnectInMilliseconds = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+            if (mWinner != null && !mIsCancelled) {
+                Log.i(TAG, "run: Port " + mWinner.mPort + " won the race in " + timeToConnectInMilliseconds + " ms");
+
+                if (mStatistics != null) {
+                    mStatistics.recordRace(mWinner.mPort, true, timeToConnectInMilliseconds);
+                }
+
+                return mWinner.mBluetoothSocket;
+            }
+
+            if (mIsCancelled) {
+                throw new IOException("Connection race cancelled");
+            }
+
+            if (mStatistics != null) {
+                mStatistics.recordRace(NO_WINNER, false, timeToConnectInMilliseconds);
+            }
+
+            throw (mLastException instanceof IOException)
+                    ? (IOException) mLastException
+                    : new IOException("Both strategies failed", mLastException);
+        }
+    }
+
+    /**
+     * @return The port of the winning strategy or NO_WINNER, if the race has not been won.
+     */
+    public synchronized int getWinningPort() {
+        return (mWinner != null) ? mWinner.mPort : NO_WINNER;
+    }
+
+    /**
+     * Cancels the race and closes the sockets of both attempts, which unblocks run(). Does nothing,
+     * if the race has already been won.
+     */
+    public synchronized void cancel() {
+        if (!mIsCancelled && mWinner == null) {
+            mIsCancelled = true;
+
+            if (mStaggerFuture != null) {
+                mStaggerFuture.cancel(false);
+            }
+
+            closeSocket(mPrimaryAttempt);
+            closeSocket(mAlternativeAttempt);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Starts the given attempt in a new thread, unless already started.
+     *
+     * @param attempt The attempt.
+     */
+    private synchronized void startAttempt(Attempt attempt) {
+        if (!attempt.mIsStarted) {
+            attempt.mIsStarted = true;
+
+            if (mStatistics != null) {
+                mStatistics.recordAttempt(attempt.mPort);
+            }
+
+            IoExecutor.getDefault().newThread(IoExecutor.Category.CONNECT, attempt).start();
+        }
+    }
+
+    /**
+     * Called by the attempt threads when done. The first attempt to connect wins and closes the
+     * socket of the other. If the primary attempt fails before the stagger, the alternative one is
+     * started right away.
+     *
+     * @param attempt The attempt.
+     * @param exception Null, if connected. The exception in case of a failure.
+     */
+    private synchronized void onAttemptDone(Attempt attempt, Exception exception) {
+        attempt.mIsDone = true;
+        Attempt otherAttempt = (attempt == mPrimaryAttempt) ? mAlternativeAttempt : mPrimaryAttempt;
+
+        if (exception == null && mWinner == null && !mIsCancelled) {
+            mWinner = attempt;
+
+            if (mStaggerFuture != null) {
+                mStaggerFuture.cancel(false);
+            }
+
+            if (otherAttempt.mIsStarted) {
+                closeSocket(otherAttempt);
+            } else {
+                otherAttempt.mIsDone = true;
+            }
+        } else {
+            if (exception != null) {
+                Log.d(TAG, "onAttemptDone: Port " + attempt.mPort + " failed: " + exception.getMessage());
+                mLastException = exception;
+
+                if (mStatistics != null && mWinner == null && !mIsCancelled) {
+                    mStatistics.recordFailure(attempt.mPort);
+                }
+            }
+
+            closeSocket(attempt);
+
+            if (attempt == mPrimaryAttempt && mWinner == null && !mIsCancelled) {
+                if (mStaggerFuture != null) {
+                    mStaggerFuture.cancel(false);
+                }
+
+                startAttempt(mAlternativeAttempt);
+            }
+        }
+
+        notifyAll();
+    }
+
+    private static void closeSocket(Attempt attempt) {
+        if (attempt.mBluetoothSocket != null) {
+            try {
+                attempt.mBluetoothSocket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "closeSocket: Failed to close the socket: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.thaliproject.p2p.btconnectorlib.utils.Histogram;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the outcomes of the connection races (see ConnectionRace) per socket connection
+ * strategy. A strategy is identified by its port value (see BluetoothClientThread): -1 for the
+ * system decided port, 0 for the rotating port and a positive value for a fixed port.
+ */
+public class ConnectionRaceStatistics {
+    /**
+     * The counters of a single strategy.
+     */
+    public static class Strategy {
+        private final int mPort;
+        private long mNumberOfAttempts = 0;
+        private long mNumberOfWins = 0;
+        private long mNumberOfFailures = 0;
+
+        private Strategy(int port) {
+            mPort = port;
+        }
+
+        private Strategy(Strategy other) {
+            mPort = other.mPort;
+            mNumberOfAttempts = other.mNumberOfAttempts;
+            mNumberOfWins = other.mNumberOfWins;
+            mNumberOfFailures = other.mNumberOfFailures;
+        }
+
+        public int getPort() {
+            return mPort;
+        }
+
+        /**
+         * @return The number of races, in which the strategy was actually started.
+         */
+        public long getNumberOfAttempts() {
+            return mNumberOfAttempts;
+        }
+
+        public long getNumberOfWins() {
+            return mNumberOfWins;
+        }
+
+        /**
+         * @return The number of attempts that failed to connect (excluding the losers closed by
+         * the winner).
+         */
+        public long getNumberOfFailures() {
+            return mNumberOfFailures;
+        }
+
+        /**
+         * @return The ratio of the wins to the attempts or zero, if no attempts.
+         */
+        public double getWinRate() {
+            return (mNumberOfAttempts > 0) ? (double) mNumberOfWins / mNumberOfAttempts : 0d;
+        }
+
+        @Override
+        public String toString() {
+            return "[port: " + mPort
+                    + ", attempts: " + mNumberOfAttempts
+                    + ", wins: " + mNumberOfWins
+                    + ", failures: " + mNumberOfFailures + "]";
+        }
+    }
+
+    private final Map<Integer, Strategy> mStrategies = new TreeMap<>(); // Guarded by this
+    private final Histogram mTimeToConnectHistogram = new Histogram();
+    private long mNumberOfRaces = 0; // Guarded by this
+    private long mNumberOfLostRaces = 0; // Guarded by this
+
+    /**
+     * Records that the strategy of the given port was started.
+     *
+     * @param port The port of the strategy.
+     */
+    /* Package */ synchronized void recordAttempt(int port) {
+        getOrCreateStrategy(port).mNumberOfAttempts++;
+    }
+
+    /**
+     * Records that the strategy of the given port failed to connect.
+     *
+     * @param port The port of the strategy.
+     */
+    /* Package */ synchronized void recordFailure(int port) {
+        getOrCreateStrategy(port).mNumberOfFailures++;
+    }
+
+    /**
+     * Records the outcome of a race.
+     *
+     * @param winningPort The port of the winning strategy. Ignored, if the race was not won.
+     * @param wasWon True, if either of the strategies connected.
+     * @param timeToConnectInMilliseconds The time from the start of the race to the winner connecting.
+     */
+    /* Package */ void recordRace(int winningPort, boolean wasWon, long timeToConnectInMilliseconds) {
+        synchronized (this) {
+            mNumberOfRaces++;
+
+            if (!wasWon) {
+                mNumberOfLostRaces++;
+                return;
+            }
+
+            getOrCreateStrategy(winningPort).mNumberOfWins++;
+        }
+
+        mTimeToConnectHistogram.record(timeToConnectInMilliseconds);
+    }
+
+    /**
+     * @param port The port of the strategy.
+     * @return A snapshot of the counters of the given strategy or null, if the strategy has not
+     * taken part in any race.
+     */
+    public synchronized Strategy getStrategy(int port) {
+        Strategy strategy = mStrategies.get(port);
+        return (strategy != null) ? new Strategy(strategy) : null;
+    }
+
+    /**
+     * @param port The port of the strategy.
+     * @return The win rate of the given strategy or zero, if it has not taken part in any race.
+     */
+    public synchronized double getWinRate(int port) {
+        Strategy strategy = mStrategies.get(port);
+        return (strategy != null) ? strategy.getWinRate() : 0d;
+    }
+
+    public synchronized long getNumberOfRaces() {
+        return mNumberOfRaces;
+    }
+
+    /**
+     * @return The number of races, in which neither of the strategies connected.
+     */
+    public synchronized long getNumberOfLostRaces() {
+        return mNumberOfLostRaces;
+    }
+
+    /**
+     * @return A snapshot of the time from the start of a race to the winner connecting in milliseconds.
+     */
+    public Histogram.Snapshot getTimeToConnect() {
+        return mTimeToConnectHistogram.getSnapshot();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[races: " + mNumberOfRaces
+                + ", lost: " + mNumberOfLostRaces
+                + ", strategies: " + mStrategies.values()
+                + ", time to connect (ms): " + getTimeToConnect() + "]";
+    }
+
+    private Strategy getOrCreateStrategy(int port) {
+        Strategy strategy = mStrategies.get(port);
+
+        if (strategy == null) {
+            strategy = new Strategy(port);
+            mStrategies.put(port, strategy);
+        }
+
+        return strategy;
+    }
+}
@@ -0,0 +1,381 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import org.thaliproject.p2p.btconnectorlib.utils.Histogram;
+import org.thaliproject.p2p.btconnectorlib.utils.IoExecutor;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the handshakes of the incoming connections on a bounded pool of worker threads (category
+ * HANDSHAKE, see IoExecutor).
+ *
+ * Every handshake has a deadline counted from the moment the socket was accepted. The deadlines
+ * are enforced by the shared scheduler (see IoExecutor.getScheduler()): a socket whose handshake
+ * is not done in time is closed, which also unblocks the worker reading it. When all the workers
+ * are busy and the queue is full, new sockets are refused (closed) right away. Once the peer has
+ * received the final handshake reply, it considers the connection established; thus, the
+ * handshake must cancel the deadline before writing the reply (see Deadline).
+ */
+public class HandshakeWorkerPool {
+    /**
+     * The outcome of a successful handshake.
+     */
+    public static class Result {
+        private final PeerProperties mPeerProperties;
+        private final byte[] mEarlyData;
+
+        /**
+         * Constructor.
+         *
+         * @param peerProperties The properties of the peer.
+         * @param earlyData The early data the peer attached to its handshake (see BinaryHandshake)
+         *                  or null, if none.
+         */
+        public Result(PeerProperties peerProperties, byte[] earlyData) {
+            mPeerProperties = peerProperties;
+            mEarlyData = earlyData;
+        }
+
+        public PeerProperties getPeerProperties() {
+            return mPeerProperties;
+        }
+
+        public byte[] getEarlyData() {
+            return mEarlyData;
+        }
+    }
+
+    /**
+     * The deadline of a handshake in progress.
+     */
+    public interface Deadline {
+        /**
+         * Cancels the deadline so that the socket is no longer closed, if the deadline passes.
+         * Must be called right before writing the final handshake reply. If this fails, the
+         * socket has already been closed and the reply must not be written.
+         *
+         * @return True, if the deadline was cancelled. False, if it has already passed.
+         */
+        boolean cancel();
+    }
+
+    /**
+     * The handshake logic run by the workers.
+     */
+    public interface Handshake {
+        /**
+         * Performs the handshake on the given socket. Called from a worker thread.
+         *
+         * @param bluetoothSocket The socket.
+         * @param deadline The deadline of the handshake, which must be cancelled before writing
+         *                 the final reply.
+         * @return The result or null, if the handshake failed.
+         * @throws IOException Thrown, if reading or writing the socket fails.
+         */
+        Result performHandshake(BluetoothSocket bluetoothSocket, Deadline deadline) throws IOException;
+    }
+
+    /**
+     * Pool listener.
+     */
+    public interface Listener {
+        /**
+         * Called when a handshake has succeeded. The responsibility over the socket is
+         * transferred to the listener. Called from a worker thread.
+         *
+         * @param bluetoothSocket The socket.
+         * @param peerProperties The properties of the peer.
+         * @param earlyData The early data the peer attached to its handshake or null, if none.
+         */
+        void onHandshakeSucceeded(BluetoothSocket bluetoothSocket, PeerProperties peerProperties, byte[] earlyData);
+
+        /**
+         * Called when a handshake has failed or timed out. The socket has been closed.
+         *
+         * @param reason The reason for the failure.
+         */
+        void onHandshakeFailed(String reason);
+    }
+
+    /**
+     * A single handshake in progress.
+     */
+    private class Entry implements Runnable, Deadline {
+        private final BluetoothSocket mBluetoothSocket;
+        private final long mStartTime = System.nanoTime();
+        private final AtomicBoolean mIsDone = new AtomicBoolean(false);
+        private volatile ScheduledFuture<?> mDeadlineFuture = null;
+        private boolean mIsDeadlineCancelled = false; // Accessed by the worker only
+
+        private Entry(BluetoothSocket bluetoothSocket) {
+            mBluetoothSocket = bluetoothSocket;
+        }
+
+        /**
+         * From Runnable.
+         *
+         * Performs the handshake, unless the deadline has already passed.
+         */
+        @Override
+        public void run() {
+            if (mIsDone.get()) {
+                return; // Timed out while queued
+            }
+
+            Result result = null;
+            String failureReason = "Invalid handshake message";
+
+            try {
+                result = mHandshake.performHandshake(mBluetoothSocket, this);
+            } catch (IOException e) {
+                failureReason = "Handshake failed: " + e.getMessage();
+            }
+
+            if (!mIsDeadlineCancelled && !complete()) {
+                return; // Timed out, the socket was closed by the deadline
+            }
+
+            if (result != null) {
+                mNumberOfSucceededHandshakes.incrementAndGet();
+                mLatencyHistogram.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartTime));
+                mListener.onHandshakeSucceeded(mBluetoothSocket, result.getPeerProperties(), result.getEarlyData());
+            } else {
+                mNumberOfFailedHandshakes.incrementAndGet();
+                closeSocket(mBluetoothSocket);
+                mListener.onHandshakeFailed(failureReason);
+            }
+        }
+
+        /**
+         * From Deadline.
+         *
+         * Marks this handshake done so that the deadline no longer acts on the socket. Called by
+         * the handshake from the worker thread.
+         *
+         * @return True, if the deadline was cancelled. False, if it has already passed.
+         */
+        @Override
+        public boolean cancel() {
+            if (!mIsDeadlineCancelled) {
+                mIsDeadlineCancelled = complete();
+            }
+
+            return mIsDeadlineCancelled;
+        }
+
+        /**
+         * Called by the shared scheduler when the deadline is reached.
+         */
+        private void onDeadline() {
+            if (complete()) {
+                Log.w(TAG, "onDeadline: Handshake not completed in " + mDeadlineInMilliseconds + " ms, closing the socket");
+                mNumberOfTimedOutHandshakes.incrementAndGet();
+                closeSocket(mBluetoothSocket);
+                mListener.onHandshakeFailed("Handshake timed out");
+            }
+        }
+
+        /**
+         * Marks this handshake done. Only the first call succeeds, so that the worker and the
+         * deadline never both act on the socket.
+         *
+         * @return True, if this call marked the handshake done. False, if already done.
+         */
+        private boolean complete() {
+            if (!mIsDone.compareAndSet(false, true)) {
+                return false;
+            }
+
+            mEntries.remove(this);
+
+            if (mDeadlineFuture != null) {
+                mDeadlineFuture.cancel(false);
+            }
+
+            return true;
+        }
+    }
+
+    private static final String TAG = HandshakeWorkerPool.class.getName();
+    public static final int DEFAULT_MAX_NUMBER_OF_WORKERS = 4;
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+    public static final long DEFAULT_DEADLINE_IN_MILLISECONDS = 5000;
+    private static final long WORKER_KEEP_ALIVE_TIME_IN_MILLISECONDS = 30000;
+    private final Handshake mHandshake;
+    private final Listener mListener;
+    private final long mDeadlineInMilliseconds;
+    private final ThreadPoolExecutor mThreadPool;
+    private final Set<Entry> mEntries =
+            Collections.newSetFromMap(new ConcurrentHashMap<Entry, Boolean>());
+    private final Histogram mLatencyHistogram = new Histogram();
+    private final AtomicLong mNumberOfStartedHandshakes = new AtomicLong(0);
+    private final AtomicLong mNumberOfSucceededHandshakes = new AtomicLong(0);
+    private final AtomicLong mNumberOfFailedHandshakes = new AtomicLong(0);
+    private final AtomicLong mNumberOfTimedOutHandshakes = new AtomicLong(0);
+    private final AtomicLong mNumberOfRejectedSockets = new AtomicLong(0);
+
+    /**
+     * Constructor.
+     *
+     * @param handshake The handshake logic.
+     * @param listener The listener.
+     * @param maxNumberOfWorkers The maximum number of concurrent handshakes.
+     * @param queueCapacity The maximum number of sockets waiting for a free worker.
+     * @param deadlineInMilliseconds The maximum time from accepting a socket to the end of its handshake.
+     * @throws NullPointerException Thrown, if the handshake or the listener is null.
+     */
+    public HandshakeWorkerPool(
+            Handshake handshake, Listener listener,
+            int maxNumberOfWorkers, int queueCapacity, long deadlineInMilliseconds)
+            throws NullPointerException {
+        if (handshake == null || listener == null) {
+            throw new NullPointerException("Either the handshake or the listener is null");
+        }
+
+        mHandshake = handshake;
+        mListener = listener;
+        mDeadlineInMilliseconds = (deadlineInMilliseconds > 0) ? deadlineInMilliseconds : DEFAULT_DEADLINE_IN_MILLISECONDS;
+        int numberOfWorkers = (maxNumberOfWorkers > 0) ? maxNumberOfWorkers : DEFAULT_MAX_NUMBER_OF_WORKERS;
+
+        mThreadPool = new ThreadPoolExecutor(
+                numberOfWorkers, numberOfWorkers,
+                WORKER_KEEP_ALIVE_TIME_IN_MILLISECONDS, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>((queueCapacity > 0) ? queueCapacity : DEFAULT_QUEUE_CAPACITY),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return IoExecutor.getDefault().newThread(IoExecutor.Category.HANDSHAKE, runnable);
+                    }
+                });
+
+        mThreadPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the handshake of the given socket. If the pool is full, the socket is closed.
+     *
+     * @param bluetoothSocket The accepted socket.
+     * @return True, if the handshake was queued. False, if the socket was refused.
+     */
+    public boolean submit(BluetoothSocket bluetoothSocket) {
+        final Entry entry = new Entry(bluetoothSocket);
+        mEntries.add(entry);
+
+        try {
+            mThreadPool.execute(entry);
+        } catch (RejectedExecutionException e) {
+            mEntries.remove(entry);
+            mNumberOfRejectedSockets.incrementAndGet();
+            Log.w(TAG, "submit: Too many pending handshakes, refusing the incoming connection");
+            closeSocket(bluetoothSocket);
+            return false;
+        }
+
+        mNumberOfStartedHandshakes.incrementAndGet();
+
+        ScheduledFuture<?> deadlineFuture = IoExecutor.getDefault().getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                entry.onDeadline();
+            }
+        }, mDeadlineInMilliseconds, TimeUnit.MILLISECONDS);
+
+        entry.mDeadlineFuture = deadlineFuture;
+
+        if (entry.mIsDone.get()) {
+            deadlineFuture.cancel(false); // Completed before the deadline was scheduled
+        }
+
+        return true;
+    }
+
+    /**
+     * Stops the workers and closes the sockets of the handshakes in progress.
+     */
+    public void shutdown() {
+        mThreadPool.shutdownNow();
+
+        for (Entry entry : mEntries) {
+            if (entry.complete()) {
+                closeSocket(entry.mBluetoothSocket);
+            }
+        }
+    }
+
+    public long getDeadline() {
+        return mDeadlineInMilliseconds;
+    }
+
+    /**
+     * @return The number of handshakes currently queued or in progress.
+     */
+    public int getNumberOfPendingHandshakes() {
+        return mEntries.size();
+    }
+
+    public long getNumberOfStartedHandshakes() {
+        return mNumberOfStartedHandshakes.get();
+    }
+
+    public long getNumberOfSucceededHandshakes() {
+        return mNumberOfSucceededHandshakes.get();
+    }
+
+    public long getNumberOfFailedHandshakes() {
+        return mNumberOfFailedHandshakes.get();
+    }
+
+    public long getNumberOfTimedOutHandshakes() {
+        return mNumberOfTimedOutHandshakes.get();
+    }
+
+    /**
+     * @return The number of sockets closed right away, since the pool was full.
+     */
+    public long getNumberOfRejectedSockets() {
+        return mNumberOfRejectedSockets.get();
+    }
+
+    /**
+     * @return A snapshot of the latency of the successful handshakes (from accepting the socket
+     * to the end of the handshake) in milliseconds.
+     */
+    public Histogram.Snapshot getLatency() {
+        return mLatencyHistogram.getSnapshot();
+    }
+
+    @Override
+    public String toString() {
+        return "[pending: " + getNumberOfPendingHandshakes()
+                + ", started: " + getNumberOfStartedHandshakes()
+                + ", succeeded: " + getNumberOfSucceededHandshakes()
+                + ", failed: " + getNumberOfFailedHandshakes()
+                + ", timed out: " + getNumberOfTimedOutHandshakes()
+                + ", rejected: " + getNumberOfRejectedSockets()
+                + ", latency (ms): " + getLatency() + "]";
+    }
+
+    private static void closeSocket(BluetoothSocket bluetoothSocket) {
+        try {
+            bluetoothSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "closeSocket: Failed to close the socket: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the session resumption tokens (see SessionResumption) by the Bluetooth MAC address of the
+ * peer. Both the client and the server of a connection keep the same token, thus either of them can
+ * resume the next connection.
+ *
+ * The cache is bounded; when full, the least recently used token is evicted. A token expires after
+ * the time to live and is used only once: resuming a session replaces the token with a new one.
+ */
+public class ResumptionTokenCache {
+    /**
+     * A cached token and the properties of the peer resolved in the full handshake.
+     */
+    public static class Entry {
+        private final byte[] mToken;
+        private final PeerProperties mPeerProperties;
+        private final long mExpiryTime; // System.nanoTime()
+
+        private Entry(byte[] token, PeerProperties peerProperties, long expiryTime) {
+            mToken = token;
+            mPeerProperties = peerProperties;
+            mExpiryTime = expiryTime;
+        }
+
+        public byte[] getToken() {
+            return mToken;
+        }
+
+        /**
+         * @return A copy of the properties of the peer.
+         */
+        public PeerProperties getPeerProperties() {
+            PeerProperties peerProperties = new PeerProperties();
+            peerProperties.copyFrom(mPeerProperties);
+            peerProperties.setDiscoveryMethod(mPeerProperties.getDiscoveryMethod());
+            return peerProperties;
+        }
+    }
+
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final long DEFAULT_TIME_TO_LIVE_IN_MILLISECONDS = 30 * 60 * 1000;
+    private static final SecureRandom mSecureRandom = new SecureRandom();
+    private final LinkedHashMap<String, Entry> mEntries; // Guarded by this
+    private final int mCapacity;
+    private final long mTimeToLiveInNanoseconds;
+    private long mNumberOfResumedSessions = 0; // Guarded by this
+    private long mNumberOfRejectedTokens = 0; // Guarded by this
+    private long mNumberOfEvictedTokens = 0; // Guarded by this
+
+    /**
+     * Constructor.
+     */
+    public ResumptionTokenCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_TIME_TO_LIVE_IN_MILLISECONDS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximum number of tokens.
+     * @param timeToLiveInMilliseconds The time after which a token expires.
+     */
+    public ResumptionTokenCache(int capacity, long timeToLiveInMilliseconds) {
+        mCapacity = (capacity > 0) ? capacity : DEFAULT_CAPACITY;
+        mTimeToLiveInNanoseconds = TimeUnit.MILLISECONDS.toNanos(
+                (timeToLiveInMilliseconds > 0) ? timeToLiveInMilliseconds : DEFAULT_TIME_TO_LIVE_IN_MILLISECONDS);
+
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true /* Access order */) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > mCapacity) {
+                    mNumberOfEvictedTokens++;
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return A new random token.
+     */
+    public static byte[] generateToken() {
+        byte[] token = new byte[SessionResumption.TOKEN_LENGTH_IN_BYTES];
+        mSecureRandom.nextBytes(token);
+        return token;
+    }
+
+    /**
+     * Stores the token of the given peer replacing any previous one.
+     *
+     * @param peerProperties The properties of the peer resolved in the full handshake.
+     * @param token The token.
+     */
+    public synchronized void put(PeerProperties peerProperties, byte[] token) {
+        if (peerProperties == null || peerProperties.getBluetoothMacAddress() == null || token == null) {
+            throw new NullPointerException("Peer properties, Bluetooth MAC address or token is null");
+        }
+
+        PeerProperties copy = new PeerProperties();
+        copy.copyFrom(peerProperties);
+        copy.setDiscoveryMethod(peerProperties.getDiscoveryMethod());
+        mEntries.put(peerProperties.getBluetoothMacAddress(),
+                new Entry(token, copy, System.nanoTime() + mTimeToLiveInNanoseconds));
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The valid (not expired) entry of the given peer or null, if none.
+     */
+    public synchronized Entry get(String bluetoothMacAddress) {
+        Entry entry = mEntries.get(bluetoothMacAddress);
+
+        if (entry != null && System.nanoTime() - entry.mExpiryTime > 0) {
+            mEntries.remove(bluetoothMacAddress);
+            entry = null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Redeems the given token of the given peer. The token is removed in any case, since it can
+     * only be used once.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @param token The token presented by the peer.
+     * @return The cached properties of the peer or null, if the token was not valid.
+     */
+    public synchronized PeerProperties redeem(String bluetoothMacAddress, byte[] token) {
+        Entry entry = get(bluetoothMacAddress);
+
+        if (entry == null || !MessageDigest.isEqual(entry.mToken, token)) {
+            mEntries.remove(bluetoothMacAddress);
+            mNumberOfRejectedTokens++;
+            return null;
+        }
+
+        mEntries.remove(bluetoothMacAddress);
+        mNumberOfResumedSessions++;
+        return entry.getPeerProperties();
+    }
+
+    /**
+     * Removes the token of the given peer e.g. when the peer rejected it.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    public synchronized void remove(String bluetoothMacAddress) {
+        mEntries.remove(bluetoothMacAddress);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int getSize() {
+        return mEntries.size();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return The number of valid tokens redeemed by the peers.
+     */
+    public synchronized long getNumberOfResumedSessions() {
+        return mNumberOfResumedSessions;
+    }
+
+    /**
+     * @return The number of invalid (unknown, mismatching or expired) tokens presented by the peers.
+     */
+    public synchronized long getNumberOfRejectedTokens() {
+        return mNumberOfRejectedTokens;
+    }
+
+    /**
+     * @return The number of tokens evicted due to the cache being full.
+     */
+    public synchronized long getNumberOfEvictedTokens() {
+        return mNumberOfEvictedTokens;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[size: " + mEntries.size() + "/" + mCapacity
+                + ", resumed: " + mNumberOfResumedSessions
+                + ", rejected: " + mNumberOfRejectedTokens
+                + ", evicted: " + mNumberOfEvictedTokens + "]";
+    }
+}
@@ -0,0 +1,150 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caches the RFCOMM channel of our service on each peer by the Bluetooth MAC address of the peer,
+ * so that the outgoing connections can skip the SDP lookup done by
+ * BluetoothDevice.createInsecureRfcommSocketToServiceRecord().
+ *
+ * A channel is learned from a socket connected using the SDP lookup. It is invalidated when
+ * connecting to it fails or when the handshake or the identity check on a socket connected to it
+ * fails (e.g. the peer restarted its server and the channel now belongs to another service). If a
+ * context is given, the channels are persisted in the default shared preferences so that they
+ * survive restarts.
+ */
+public class RfcommChannelCache {
+    public static final int NO_CHANNEL = -1;
+    private static final String KEY_PREFIX = "rfcomm_channel_";
+    private final Map<String, Integer> mChannels = new HashMap<>(); // Guarded by this
+    private final SharedPreferences mSharedPreferences;
+    private final SharedPreferences.Editor mSharedPreferencesEditor;
+    private long mNumberOfHits = 0; // Guarded by this
+    private long mNumberOfInvalidations = 0; // Guarded by this
+    private long mNumberOfLearnedChannels = 0; // Guarded by this
+
+    /**
+     * Constructor.
+     *
+     * @param context The application context. If null, the channels are not persisted.
+     */
+    public RfcommChannelCache(Context context) {
+        mSharedPreferences = (context != null) ? PreferenceManager.getDefaultSharedPreferences(context) : null;
+        mSharedPreferencesEditor = (mSharedPreferences != null) ? mSharedPreferences.edit() : null;
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The cached channel of the given peer or NO_CHANNEL, if none.
+     */
+    public synchronized int get(String bluetoothMacAddress) {
+        Integer channel = mChannels.get(bluetoothMacAddress);
+
+        if (channel == null) {
+            // Not yet loaded; remember the misses too to avoid reading the preferences again
+            channel = (mSharedPreferences != null)
+                    ? mSharedPreferences.getInt(KEY_PREFIX + bluetoothMacAddress, NO_CHANNEL) : NO_CHANNEL;
+            mChannels.put(bluetoothMacAddress, channel);
+        }
+
+        if (channel != NO_CHANNEL) {
+            mNumberOfHits++;
+        }
+
+        return channel;
+    }
+
+    /**
+     * Stores the channel learned from a connection to the given peer.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @param channel The RFCOMM channel. Ignored, if not positive.
+     */
+    public synchronized void put(String bluetoothMacAddress, int channel) {
+        if (bluetoothMacAddress == null || channel <= 0) {
+            return;
+        }
+
+        Integer previousChannel = mChannels.put(bluetoothMacAddress, channel);
+
+        if (previousChannel == null || previousChannel != channel) {
+            mNumberOfLearnedChannels++;
+
+            if (mSharedPreferencesEditor != null) {
+                mSharedPreferencesEditor.putInt(KEY_PREFIX + bluetoothMacAddress, channel);
+                mSharedPreferencesEditor.apply();
+            }
+        }
+    }
+
+    /**
+     * Removes the channel of the given peer, since connecting to it or the handshake failed.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    public synchronized void invalidate(String bluetoothMacAddress) {
+        Integer previousChannel = mChannels.put(bluetoothMacAddress, NO_CHANNEL);
+
+        if (previousChannel != null && previousChannel != NO_CHANNEL) {
+            mNumberOfInvalidations++;
+        }
+
+        if (mSharedPreferencesEditor != null) {
+            mSharedPreferencesEditor.remove(KEY_PREFIX + bluetoothMacAddress);
+            mSharedPreferencesEditor.apply();
+        }
+    }
+
+    /**
+     * Removes all the channels including the persisted ones.
+     */
+    public synchronized void clear() {
+        mChannels.clear();
+
+        if (mSharedPreferences != null) {
+            for (String key : mSharedPreferences.getAll().keySet()) {
+                if (key.startsWith(KEY_PREFIX)) {
+                    mSharedPreferencesEditor.remove(key);
+                }
+            }
+
+            mSharedPreferencesEditor.apply();
+        }
+    }
+
+    /**
+     * @return The number of times a cached channel was handed out.
+     */
+    public synchronized long getNumberOfHits() {
+        return mNumberOfHits;
+    }
+
+    /**
+     * @return The number of cached channels removed, since connecting to them failed.
+     */
+    public synchronized long getNumberOfInvalidations() {
+        return mNumberOfInvalidations;
+    }
+
+    /**
+     * @return The number of new or changed channels learned.
+     */
+    public synchronized long getNumberOfLearnedChannels() {
+        return mNumberOfLearnedChannels;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[hits: " + mNumberOfHits
+                + ", invalidations: " + mNumberOfInvalidations
+                + ", learned: " + mNumberOfLearnedChannels
+                + ", persisted: " + (mSharedPreferences != null) + "]";
+    }
+}
@@ -0,0 +1,203 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.util.Log;
+import org.thaliproject.p2p.btconnectorlib.utils.MessageFrameCodec;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Encodes and decodes the session resumption messages, which replace the full handshake (see
+ * BinaryHandshake) when reconnecting to a peer we have recently completed a handshake with.
+ *
+ * After a full binary handshake, in which the client advertised
+ * BinaryHandshake.CAPABILITY_RESUMPTION, the server issues a token in its reply and both peers cache
+ * it (see ResumptionTokenCache). On the next connection, the client sends a resumption request
+ * containing the token instead of its identity. If the token matches, the server replies with an
+ * acceptance containing a new token and both use the cached peer properties. Otherwise, the server
+ * replies with a rejection and the client continues with the full handshake on the same socket.
+ *
+ * The layout of a request and an acceptance is:
+ *
+ * [magic (2 bytes)][version (1 byte)][type (1 byte)][Bluetooth MAC address of the sender (6 bytes)]
+ * [token (16 bytes)][early data length as a varint][early data]
+ *
+ * A rejection consists of the first four bytes only. The first magic byte is the same as in
+ * BinaryHandshake, but the second differs so that the messages can be told apart. A request is only
+ * ever sent to a peer that has issued a token, thus the peers not supporting resumption never
+ * receive one.
+ */
+public class SessionResumption {
+    private static final String TAG = SessionResumption.class.getName();
+    public static final byte MAGIC_BYTE_1 = BinaryHandshake.MAGIC_BYTE_1;
+    public static final byte MAGIC_BYTE_2 = (byte) 0x52;
+    public static final byte VERSION = 1;
+    public static final byte TYPE_REQUEST = 0;
+    public static final byte TYPE_ACCEPTED = 1;
+    public static final byte TYPE_REJECTED = 2;
+    public static final int TOKEN_LENGTH_IN_BYTES = 16;
+    private static final int TYPE_OFFSET = 3;
+    private static final int HEADER_LENGTH_IN_BYTES = TYPE_OFFSET + 1;
+    private static final int TOKEN_OFFSET = HEADER_LENGTH_IN_BYTES + BluetoothUtils.BLUETOOTH_ADDRESS_BYTE_COUNT;
+    private static final int EARLY_DATA_LENGTH_OFFSET = TOKEN_OFFSET + TOKEN_LENGTH_IN_BYTES;
+
+    /**
+     * Checks whether the given bytes start a session resumption message.
+     *
+     * @param bytes The array containing the message.
+     * @param offset The offset of the message in the array.
+     * @param size The number of valid bytes.
+     * @return True, if the bytes start with the magic bytes.
+     */
+    public static boolean isResumptionMessage(byte[] bytes, int offset, int size) {
+        return (bytes != null && size >= 2
+                && bytes[offset] == MAGIC_BYTE_1 && bytes[offset + 1] == MAGIC_BYTE_2);
+    }
+
+    /**
+     * Encodes a resumption request or an acceptance.
+     *
+     * @param type Either TYPE_REQUEST or TYPE_ACCEPTED.
+     * @param myBluetoothMacAddress Our Bluetooth MAC address.
+     * @param token The token to present (request) or the new token (acceptance).
+     * @param earlyData The early data to attach (see BinaryHandshake). Can be null.
+     * @return The encoded message or null, if the arguments are not valid.
+     */
+    public static byte[] encode(byte type, String myBluetoothMacAddress, byte[] token, byte[] earlyData) {
+        byte[] bluetoothMacAddressBytes = BinaryHandshake.bluetoothMacAddressToBytes(myBluetoothMacAddress);
+        int earlyDataLength = (earlyData != null) ? earlyData.length : 0;
+
+        if (bluetoothMacAddressBytes == null || token == null || token.length != TOKEN_LENGTH_IN_BYTES
+                || earlyDataLength > BinaryHandshake.MAX_EARLY_DATA_LENGTH_IN_BYTES) {
+            Log.e(TAG, "encode: Invalid Bluetooth MAC address, token or early data");
+            return null;
+        }
+
+        byte[] message = new byte[EARLY_DATA_LENGTH_OFFSET
+                + MessageFrameCodec.getVarIntLength(earlyDataLength) + earlyDataLength];
+        writeHeader(type, message);
+        System.arraycopy(bluetoothMacAddressBytes, 0, message, HEADER_LENGTH_IN_BYTES, bluetoothMacAddressBytes.length);
+        System.arraycopy(token, 0, message, TOKEN_OFFSET, TOKEN_LENGTH_IN_BYTES);
+        int offset = MessageFrameCodec.writeVarInt(earlyDataLength, message, EARLY_DATA_LENGTH_OFFSET);
+
+        if (earlyDataLength > 0) {
+            System.arraycopy(earlyData, 0, message, offset, earlyDataLength);
+        }
+
+        return message;
+    }
+
+    /**
+     * @return A rejection message.
+     */
+    public static byte[] encodeRejection() {
+        byte[] message = new byte[HEADER_LENGTH_IN_BYTES];
+        writeHeader(TYPE_REJECTED, message);
+        return message;
+    }
+
+    /**
+     * Resolves the length of a resumption message from its first bytes.
+     *
+     * @param bytes The array containing the beginning of the message.
+     * @param offset The offset of the message in the array.
+     * @param size The number of bytes available.
+     * @return The length of the message, if the given bytes suffice to resolve it. Otherwise, a
+     * value greater than the given size; the number of bytes needed before trying again.
+     * @throws IOException Thrown, if the message is invalid.
+     */
+    public static int getRequiredLength(byte[] bytes, int offset, int size) throws IOException {
+        if (size < HEADER_LENGTH_IN_BYTES) {
+            return HEADER_LENGTH_IN_BYTES;
+        }
+
+        if (!isResumptionMessage(bytes, offset, size)) {
+            throw new IOException("Not a resumption message");
+        }
+
+        byte type = bytes[offset + TYPE_OFFSET];
+
+        if (type == TYPE_REJECTED) {
+            return HEADER_LENGTH_IN_BYTES;
+        }
+
+        if (type != TYPE_REQUEST && type != TYPE_ACCEPTED) {
+            throw new IOException("Invalid resumption message type: " + type);
+        }
+
+        int position = EARLY_DATA_LENGTH_OFFSET;
+
+        while (true) {
+            if (size <= position) {
+                return position + 1;
+            }
+
+            if ((bytes[offset + position] & 0x80) == 0) {
+                break;
+            }
+
+            if (++position - EARLY_DATA_LENGTH_OFFSET >= MessageFrameCodec.MAX_VARINT_LENGTH_IN_BYTES) {
+                throw new IOException("Invalid varint");
+            }
+        }
+
+        int earlyDataLength = MessageFrameCodec.readVarInt(
+                bytes, offset + EARLY_DATA_LENGTH_OFFSET, position + 1 - EARLY_DATA_LENGTH_OFFSET);
+
+        if (earlyDataLength < 0 || earlyDataLength > BinaryHandshake.MAX_EARLY_DATA_LENGTH_IN_BYTES) {
+            throw new IOException("Invalid early data length: " + earlyDataLength);
+        }
+
+        return position + 1 + earlyDataLength;
+    }
+
+    /**
+     * @param message A complete resumption message.
+     * @return The type of the message.
+     */
+    public static byte getType(byte[] message) {
+        return message[TYPE_OFFSET];
+    }
+
+    /**
+     * @param message A complete request or acceptance.
+     * @return The Bluetooth MAC address of the sender.
+     */
+    public static String getBluetoothMacAddress(byte[] message) {
+        return BinaryHandshake.bytesToBluetoothMacAddress(message, HEADER_LENGTH_IN_BYTES);
+    }
+
+    /**
+     * @param message A complete request or acceptance.
+     * @return The token.
+     */
+    public static byte[] getToken(byte[] message) {
+        return Arrays.copyOfRange(message, TOKEN_OFFSET, TOKEN_OFFSET + TOKEN_LENGTH_IN_BYTES);
+    }
+
+    /**
+     * @param message A complete request or acceptance.
+     * @return The early data. An empty array, if none.
+     * @throws IOException Thrown, if the message is invalid.
+     */
+    public static byte[] getEarlyData(byte[] message) throws IOException {
+        int length = getRequiredLength(message, 0, message.length);
+
+        if (length != message.length) {
+            throw new IOException("Invalid message length: " + message.length + ", expected " + length);
+        }
+
+        int earlyDataLength = MessageFrameCodec.readVarInt(
+                message, EARLY_DATA_LENGTH_OFFSET, length - EARLY_DATA_LENGTH_OFFSET);
+        return Arrays.copyOfRange(message, length - earlyDataLength, length);
+    }
+
+    private static void writeHeader(byte type, byte[] message) {
+        message[0] = MAGIC_BYTE_1;
+        message[1] = MAGIC_BYTE_2;
+        message[2] = VERSION;
+        message[TYPE_OFFSET] = type;
+    }
+}
@@ -0,0 +1,105 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+/**
+ * Decides the size of a read buffer based on how full the recent reads filled it.
+ *
+ * The size is doubled when consecutive reads fill the buffer completely (more data is likely
+ * waiting) and halved when consecutive reads use only a small fraction of it. The size always
+ * stays within the given bounds. This class is not thread-safe; it is meant to be used by the
+ * reading thread only.
+ */
+public class AdaptiveBufferSizer {
+    public static final int DEFAULT_MIN_BUFFER_SIZE_IN_BYTES = 256;
+    public static final int DEFAULT_MAX_BUFFER_SIZE_IN_BYTES = 64 * 1024;
+    private static final int NUMBER_OF_FULL_READS_TO_GROW = 2;
+    private static final int NUMBER_OF_SPARSE_READS_TO_SHRINK = 8;
+    private static final int SPARSE_READ_FILL_RATIO_DIVISOR = 4; // A read filling less than 1/4 is sparse
+    private final int mMinBufferSizeInBytes;
+    private final int mMaxBufferSizeInBytes;
+    private int mBufferSizeInBytes;
+    private int mNumberOfConsecutiveFullReads = 0;
+    private int mNumberOfConsecutiveSparseReads = 0;
+    private long mNumberOfResizes = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param minBufferSizeInBytes The minimum buffer size.
+     * @param maxBufferSizeInBytes The maximum buffer size.
+     * @param initialBufferSizeInBytes The initial buffer size. Will be limited to the bounds.
+     * @throws IllegalArgumentException Thrown, if the bounds are invalid.
+     */
+    public AdaptiveBufferSizer(
+            int minBufferSizeInBytes, int maxBufferSizeInBytes, int initialBufferSizeInBytes)
+            throws IllegalArgumentException {
+        if (minBufferSizeInBytes <= 0 || maxBufferSizeInBytes < minBufferSizeInBytes) {
+            throw new IllegalArgumentException("Invalid buffer size bounds: "
+                    + minBufferSizeInBytes + " - " + maxBufferSizeInBytes);
+        }
+
+        mMinBufferSizeInBytes = minBufferSizeInBytes;
+        mMaxBufferSizeInBytes = maxBufferSizeInBytes;
+        mBufferSizeInBytes = Math.min(Math.max(initialBufferSizeInBytes, minBufferSizeInBytes), maxBufferSizeInBytes);
+    }
+
+    public int getMinBufferSize() {
+        return mMinBufferSizeInBytes;
+    }
+
+    public int getMaxBufferSize() {
+        return mMaxBufferSizeInBytes;
+    }
+
+    /**
+     * @return The current buffer size in bytes.
+     */
+    public int getBufferSize() {
+        return mBufferSizeInBytes;
+    }
+
+    /**
+     * @return The number of times the buffer size has changed.
+     */
+    public long getNumberOfResizes() {
+        return mNumberOfResizes;
+    }
+
+    /**
+     * Records a read and adjusts the buffer size, if needed.
+     *
+     * @param numberOfBytesRead The number of bytes read into a buffer of the current size.
+     * @return The buffer size to use for the next read.
+     */
+    public int onRead(int numberOfBytesRead) {
+        if (numberOfBytesRead >= mBufferSizeInBytes) {
+            mNumberOfConsecutiveSparseReads = 0;
+
+            if (++mNumberOfConsecutiveFullReads >= NUMBER_OF_FULL_READS_TO_GROW
+                    && mBufferSizeInBytes < mMaxBufferSizeInBytes) {
+                resize((int) Math.min((long) mBufferSizeInBytes * 2, mMaxBufferSizeInBytes));
+            }
+        } else if (numberOfBytesRead < mBufferSizeInBytes / SPARSE_READ_FILL_RATIO_DIVISOR) {
+            mNumberOfConsecutiveFullReads = 0;
+
+            if (++mNumberOfConsecutiveSparseReads >= NUMBER_OF_SPARSE_READS_TO_SHRINK
+                    && mBufferSizeInBytes > mMinBufferSizeInBytes) {
+                resize(Math.max(mBufferSizeInBytes / 2, mMinBufferSizeInBytes));
+            }
+        } else {
+            mNumberOfConsecutiveFullReads = 0;
+            mNumberOfConsecutiveSparseReads = 0;
+        }
+
+        return mBufferSizeInBytes;
+    }
+
+    private void resize(int newBufferSizeInBytes) {
+        mBufferSizeInBytes = newBufferSizeInBytes;
+        mNumberOfConsecutiveFullReads = 0;
+        mNumberOfConsecutiveSparseReads = 0;
+        mNumberOfResizes++;
+    }
+}
@@ -0,0 +1,244 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A retry policy with an exponential backoff, decorrelated jitter and a retry budget per peer.
+ *
+ * The first retry waits a random time between the base delay and three times the base delay.
+ * Each following retry waits a random time between the base delay and three times the previous
+ * delay, capped at the maximum delay. The randomness keeps the devices that failed at the same
+ * moment from retrying in lockstep.
+ *
+ * Every peer has a budget of retries, which is refilled by one retry per refill interval up to
+ * the budget size. When the budget of a peer is spent, the connection attempts to that peer are
+ * given up after the first failure until the budget has been refilled. A successful connection
+ * restores the full budget. The number of tracked peers is bounded; the least recently used peer
+ * is forgotten first.
+ */
+public class BackoffRetryPolicy implements RetryPolicy {
+    /**
+     * The state and the metrics of a single peer.
+     */
+    private static class Peer {
+        private double mBudget;
+        private long mLastRefillTime = System.nanoTime();
+        private long mPreviousDelayInMilliseconds = 0;
+        private long mNumberOfRetriesSpent = 0;
+        private long mNumberOfRetriesDenied = 0;
+
+        private Peer(double budget) {
+            mBudget = budget;
+        }
+    }
+
+    public static final long DEFAULT_BASE_DELAY_IN_MILLISECONDS = 300;
+    public static final long DEFAULT_MAX_DELAY_IN_MILLISECONDS = 10000;
+    public static final int DEFAULT_BUDGET_SIZE = 5;
+    public static final long DEFAULT_REFILL_INTERVAL_IN_MILLISECONDS = 60000;
+    private static final int MAX_NUMBER_OF_PEERS = 256;
+    private final long mBaseDelayInMilliseconds;
+    private final long mMaxDelayInMilliseconds;
+    private final int mBudgetSize;
+    private final long mRefillIntervalInNanoseconds;
+    private final Random mRandom = new Random();
+    private final LinkedHashMap<String, Peer> mPeers; // Guarded by this
+    private long mTotalNumberOfRetriesSpent = 0; // Guarded by this
+    private long mTotalNumberOfRetriesDenied = 0; // Guarded by this
+
+    /**
+     * Constructor.
+     */
+    public BackoffRetryPolicy() {
+        this(DEFAULT_BASE_DELAY_IN_MILLISECONDS, DEFAULT_MAX_DELAY_IN_MILLISECONDS,
+                DEFAULT_BUDGET_SIZE, DEFAULT_REFILL_INTERVAL_IN_MILLISECONDS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param baseDelayInMilliseconds The minimum delay.
+     * @param maxDelayInMilliseconds The maximum delay.
+     * @param budgetSize The maximum number of retries per peer without waiting for the refill.
+     * @param refillIntervalInMilliseconds The time to refill one retry to the budget of a peer.
+     * @throws IllegalArgumentException Thrown, if the arguments are invalid.
+     */
+    public BackoffRetryPolicy(
+            long baseDelayInMilliseconds, long maxDelayInMilliseconds,
+            int budgetSize, long refillIntervalInMilliseconds)
+            throws IllegalArgumentException {
+        if (baseDelayInMilliseconds <= 0 || maxDelayInMilliseconds < baseDelayInMilliseconds
+                || budgetSize < 0 || refillIntervalInMilliseconds <= 0) {
+            throw new IllegalArgumentException("Invalid arguments: delays "
+                    + baseDelayInMilliseconds + " - " + maxDelayInMilliseconds
+                    + ", budget " + budgetSize + ", refill interval " + refillIntervalInMilliseconds);
+        }
+
+        mBaseDelayInMilliseconds = baseDelayInMilliseconds;
+        mMaxDelayInMilliseconds = maxDelayInMilliseconds;
+        mBudgetSize = budgetSize;
+        mRefillIntervalInNanoseconds = TimeUnit.MILLISECONDS.toNanos(refillIntervalInMilliseconds);
+
+        mPeers = new LinkedHashMap<String, Peer>(16, 0.75f, true /* Access order */) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Peer> eldest) {
+                return size() > MAX_NUMBER_OF_PEERS;
+            }
+        };
+    }
+
+    public long getBaseDelay() {
+        return mBaseDelayInMilliseconds;
+    }
+
+    public long getMaxDelay() {
+        return mMaxDelayInMilliseconds;
+    }
+
+    public int getBudgetSize() {
+        return mBudgetSize;
+    }
+
+    /**
+     * From RetryPolicy.
+     *
+     * Spends one retry from the budget of the peer and computes the delay.
+     */
+    @Override
+    public synchronized long onFailure(String bluetoothMacAddress, int numberOfFailedAttempts) {
+        Peer peer = getOrCreatePeer(bluetoothMacAddress);
+
+        if (peer.mBudget < 1) {
+            peer.mNumberOfRetriesDenied++;
+            mTotalNumberOfRetriesDenied++;
+            return NO_RETRY;
+        }
+
+        peer.mBudget--;
+        peer.mNumberOfRetriesSpent++;
+        mTotalNumberOfRetriesSpent++;
+
+        long previousDelayInMilliseconds = (numberOfFailedAttempts <= 1 || peer.mPreviousDelayInMilliseconds == 0)
+                ? mBaseDelayInMilliseconds : peer.mPreviousDelayInMilliseconds;
+        long upperBoundInMilliseconds = Math.min(previousDelayInMilliseconds * 3, mMaxDelayInMilliseconds);
+        long delayInMilliseconds = mBaseDelayInMilliseconds
+                + (long) (mRandom.nextDouble() * (upperBoundInMilliseconds - mBaseDelayInMilliseconds));
+        peer.mPreviousDelayInMilliseconds = delayInMilliseconds;
+        return delayInMilliseconds;
+    }
+
+    /**
+     * From RetryPolicy.
+     *
+     * Resets the delay and restores the full budget of the peer.
+     */
+    @Override
+    public synchronized void onSuccess(String bluetoothMacAddress) {
+        Peer peer = mPeers.get(bluetoothMacAddress);
+
+        if (peer != null) {
+            peer.mBudget = mBudgetSize;
+            peer.mLastRefillTime = System.nanoTime();
+            peer.mPreviousDelayInMilliseconds = 0;
+        }
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The number of retries currently left in the budget of the given peer.
+     */
+    public synchronized int getRemainingBudget(String bluetoothMacAddress) {
+        Peer peer = mPeers.get(bluetoothMacAddress);
+
+        if (peer == null) {
+            return mBudgetSize;
+        }
+
+        refill(peer);
+        return (int) peer.mBudget;
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The number of retries spent on the given peer.
+     */
+    public synchronized long getNumberOfRetriesSpent(String bluetoothMacAddress) {
+        Peer peer = mPeers.get(bluetoothMacAddress);
+        return (peer != null) ? peer.mNumberOfRetriesSpent : 0;
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The number of retries to the given peer denied due to the budget being spent.
+     */
+    public synchronized long getNumberOfRetriesDenied(String bluetoothMacAddress) {
+        Peer peer = mPeers.get(bluetoothMacAddress);
+        return (peer != null) ? peer.mNumberOfRetriesDenied : 0;
+    }
+
+    /**
+     * @return The number of retries spent on all the peers.
+     */
+    public synchronized long getTotalNumberOfRetriesSpent() {
+        return mTotalNumberOfRetriesSpent;
+    }
+
+    /**
+     * @return The number of retries to all the peers denied due to the budgets being spent.
+     */
+    public synchronized long getTotalNumberOfRetriesDenied() {
+        return mTotalNumberOfRetriesDenied;
+    }
+
+    /**
+     * Forgets the state of all the peers.
+     */
+    public synchronized void clear() {
+        mPeers.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder stringBuilder = new StringBuilder("[spent: ").append(mTotalNumberOfRetriesSpent)
+                .append(", denied: ").append(mTotalNumberOfRetriesDenied).append(", peers: {");
+        boolean isFirst = true;
+
+        for (Map.Entry<String, Peer> entry : mPeers.entrySet()) {
+            if (!isFirst) {
+                stringBuilder.append(", ");
+            }
+
+            stringBuilder.append(entry.getKey()).append(": ").append(entry.getValue().mNumberOfRetriesSpent)
+                    .append(" spent/").append(entry.getValue().mNumberOfRetriesDenied).append(" denied");
+            isFirst = false;
+        }
+
+        return stringBuilder.append("}]").toString();
+    }
+
+    private Peer getOrCreatePeer(String bluetoothMacAddress) {
+        Peer peer = mPeers.get(bluetoothMacAddress);
+
+        if (peer == null) {
+            peer = new Peer(mBudgetSize);
+            mPeers.put(bluetoothMacAddress, peer);
+        } else {
+            refill(peer);
+        }
+
+        return peer;
+    }
+
+    private void refill(Peer peer) {
+        long now = System.nanoTime();
+        peer.mBudget = Math.min(
+                peer.mBudget + (double) (now - peer.mLastRefillTime) / mRefillIntervalInNanoseconds, mBudgetSize);
+        peer.mLastRefillTime = now;
+    }
+}
@@ -0,0 +1,269 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shapes the outgoing bandwidth of the connections sharing the radio.
+ *
+ * Every connection has a share (see register()), which limits the rate of the connection using two
+ * token buckets:
+ *
+ * 1. The limit of the connection itself (see Share.setLimit()), if any.
+ * 2. The fair share of the global limit (see setGlobalLimit()), if any. The global rate is divided
+ *    among the active connections in proportion to their weights. A connection is active, if it
+ *    has sent anything during the last ACTIVE_PERIOD_IN_MILLISECONDS; the idle connections do not
+ *    take away bandwidth from the busy ones. Likewise, the part of a fair share exceeding the limit
+ *    of the connection itself is divided among the other active connections.
+ *
+ * Leaving headroom in the global limit keeps bulk transfers from starving the other users of the
+ * radio, such as the BLE discovery. All the limits can be changed at any time.
+ */
+public class BandwidthShaper {
+    /**
+     * The bandwidth share of a single connection.
+     */
+    public static class Share {
+        private final BandwidthShaper mBandwidthShaper;
+        private final TokenBucket mLimitBucket = new TokenBucket(TokenBucket.UNLIMITED, 0);
+        private final TokenBucket mFairShareBucket = new TokenBucket(TokenBucket.UNLIMITED, 0);
+        private volatile int mWeight = DEFAULT_WEIGHT;
+        private volatile long mLastActiveTime = 0;
+        private boolean mIsActive = false; // Guarded by the shaper
+
+        private Share(BandwidthShaper bandwidthShaper) {
+            mBandwidthShaper = bandwidthShaper;
+        }
+
+        /**
+         * @return The limit of this connection in bytes per second or zero, if not limited.
+         */
+        public long getLimit() {
+            return mLimitBucket.getRate();
+        }
+
+        /**
+         * Sets the limit of this connection. Takes effect immediately.
+         *
+         * @param rateInBytesPerSecond The rate in bytes per second. Zero means no limit.
+         */
+        public void setLimit(long rateInBytesPerSecond) {
+            mLimitBucket.setRate(rateInBytesPerSecond, getBurstSize(rateInBytesPerSecond));
+            mBandwidthShaper.updateFairShares();
+        }
+
+        public int getWeight() {
+            return mWeight;
+        }
+
+        /**
+         * Sets the weight of this connection in the division of the global limit. Takes effect
+         * immediately.
+         *
+         * @param weight The weight. A connection with weight 2 gets twice the bandwidth of a
+         *               connection with weight 1, when both are active.
+         */
+        public void setWeight(int weight) {
+            mWeight = Math.max(weight, 1);
+            mBandwidthShaper.updateFairShares();
+        }
+
+        /**
+         * @return The current fair share of the global limit in bytes per second or zero, if the
+         * global limit is not set.
+         */
+        public long getFairShare() {
+            return mFairShareBucket.getRate();
+        }
+
+        /**
+         * @return The total time the writes of this connection have been delayed in milliseconds.
+         */
+        public long getTotalThrottledTime() {
+            return mLimitBucket.getTotalStallTime() + mFairShareBucket.getTotalStallTime();
+        }
+
+        /**
+         * Waits until the given number of bytes can be sent within the limits.
+         *
+         * @param numberOfBytes The number of bytes about to be sent.
+         * @return True, if the bytes can be sent. False, if this share was unregistered.
+         * @throws InterruptedException Thrown, if the calling thread is interrupted while waiting.
+         */
+        public boolean acquire(int numberOfBytes) throws InterruptedException {
+            long currentTime = System.nanoTime();
+            mLastActiveTime = currentTime;
+            mBandwidthShaper.onShareActive(this, currentTime);
+            return mLimitBucket.acquire(numberOfBytes) && mFairShareBucket.acquire(numberOfBytes);
+        }
+
+        /**
+         * Removes this share from the shaper and wakes up the waiting senders.
+         */
+        public void unregister() {
+            mLimitBucket.close();
+            mFairShareBucket.close();
+            mBandwidthShaper.unregister(this);
+        }
+    }
+
+    public static final int DEFAULT_WEIGHT = 1;
+    public static final long DEFAULT_BURST_DURATION_IN_MILLISECONDS = 100;
+    public static final long ACTIVE_PERIOD_IN_MILLISECONDS = 1000;
+    private static BandwidthShaper mDefaultInstance = null;
+    private final List<Share> mShares = new ArrayList<>();
+    private long mGlobalLimitInBytesPerSecond = TokenBucket.UNLIMITED;
+    private long mLastUpdateTime = 0;
+
+    /**
+     * @return The instance used by the library.
+     */
+    public static synchronized BandwidthShaper getDefault() {
+        if (mDefaultInstance == null) {
+            mDefaultInstance = new BandwidthShaper();
+        }
+
+        return mDefaultInstance;
+    }
+
+    /**
+     * @return The global limit in bytes per second or zero, if not limited.
+     */
+    public synchronized long getGlobalLimit() {
+        return mGlobalLimitInBytesPerSecond;
+    }
+
+    /**
+     * Sets the global limit shared by all the connections. Takes effect immediately.
+     *
+     * @param rateInBytesPerSecond The rate in bytes per second. Zero means no limit.
+     */
+    public synchronized void setGlobalLimit(long rateInBytesPerSecond) {
+        mGlobalLimitInBytesPerSecond = Math.max(rateInBytesPerSecond, TokenBucket.UNLIMITED);
+        updateFairShares();
+    }
+
+    /**
+     * Registers a new connection.
+     *
+     * @return The share of the new connection.
+     */
+    public synchronized Share register() {
+        Share share = new Share(this);
+        mShares.add(share);
+        return share;
+    }
+
+    public synchronized int getNumberOfShares() {
+        return mShares.size();
+    }
+
+    /**
+     * @return The number of connections currently sharing the global limit.
+     */
+    public synchronized int getNumberOfActiveShares() {
+        int numberOfActiveShares = 0;
+
+        for (Share share : mShares) {
+            if (share.mIsActive) {
+                numberOfActiveShares++;
+            }
+        }
+
+        return numberOfActiveShares;
+    }
+
+    /**
+     * Called whenever the given share is about to send. Divides the global limit again, if the
+     * share has just become active or the activity has not been checked for a while.
+     *
+     * @param share The share.
+     * @param currentTime The current time (System.nanoTime()).
+     */
+    private synchronized void onShareActive(Share share, long currentTime) {
+        if (!share.mIsActive || currentTime - mLastUpdateTime
+                > TimeUnit.MILLISECONDS.toNanos(ACTIVE_PERIOD_IN_MILLISECONDS)) {
+            updateFairShares();
+        }
+    }
+
+    private synchronized void unregister(Share share) {
+        if (mShares.remove(share)) {
+            updateFairShares();
+        }
+    }
+
+    /**
+     * Divides the global limit among the active shares in proportion to their weights. The shares
+     * limited below their fair share get their limit and the rest is divided among the others.
+     */
+    private synchronized void updateFairShares() {
+        final long currentTime = System.nanoTime();
+        final long activePeriodInNanoseconds = TimeUnit.MILLISECONDS.toNanos(ACTIVE_PERIOD_IN_MILLISECONDS);
+        List<Share> unlimitedShares = new ArrayList<>();
+        long totalWeight = 0;
+        mLastUpdateTime = currentTime;
+
+        for (Share share : mShares) {
+            share.mIsActive = (share.mLastActiveTime != 0
+                    && currentTime - share.mLastActiveTime <= activePeriodInNanoseconds);
+
+            if (share.mIsActive) {
+                unlimitedShares.add(share);
+                totalWeight += share.mWeight;
+            }
+        }
+
+        if (mGlobalLimitInBytesPerSecond == TokenBucket.UNLIMITED) {
+            for (Share share : mShares) {
+                share.mFairShareBucket.setRate(TokenBucket.UNLIMITED, 0);
+            }
+
+            return;
+        }
+
+        long remainingRate = mGlobalLimitInBytesPerSecond;
+        boolean wasLimitedShareFound = true;
+
+        while (wasLimitedShareFound && !unlimitedShares.isEmpty()) {
+            wasLimitedShareFound = false;
+
+            for (int i = unlimitedShares.size() - 1; i >= 0; --i) {
+                Share share = unlimitedShares.get(i);
+                long limit = share.getLimit();
+
+                if (limit != TokenBucket.UNLIMITED && limit < remainingRate * share.mWeight / totalWeight) {
+                    share.mFairShareBucket.setRate(limit, getBurstSize(limit));
+                    unlimitedShares.remove(i);
+                    remainingRate -= limit;
+                    totalWeight -= share.mWeight;
+                    wasLimitedShareFound = true;
+                }
+            }
+        }
+
+        for (Share share : mShares) {
+            if (share.mIsActive && !unlimitedShares.contains(share)) {
+                continue; // Got its limit above
+            }
+
+            // An inactive share gets what it would get, if it became active
+            long weight = share.mWeight;
+            long fairShare = Math.max(remainingRate * weight
+                    / (share.mIsActive ? totalWeight : totalWeight + weight), 1);
+            share.mFairShareBucket.setRate(fairShare, getBurstSize(fairShare));
+        }
+    }
+
+    /**
+     * @param rateInBytesPerSecond The rate.
+     * @return The burst size for the given rate.
+     */
+    private static long getBurstSize(long rateInBytesPerSecond) {
+        return rateInBytesPerSecond * DEFAULT_BURST_DURATION_IN_MILLISECONDS / 1000;
+    }
+}
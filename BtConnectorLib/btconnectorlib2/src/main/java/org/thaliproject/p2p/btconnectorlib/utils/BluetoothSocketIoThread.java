@@ -9,12 +9,17 @@ import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Thread for reading bytes from a Bluetooth socket and provides a method to write bytes to a socket.
  * This class is public, since the implementation is generic and can be utilized by client applications.
  */
-public class BluetoothSocketIoThread extends Thread {
+public class BluetoothSocketIoThread extends Thread
+        implements MessageFrameDecoder.Listener, SocketWriterThread.Listener, HeartbeatMonitor.Listener {
     /**
      * Thread listener.
      */
@@ -46,6 +51,62 @@ public class BluetoothSocketIoThread extends Thread {
         void onDisconnected(String reason, BluetoothSocketIoThread who);
     }
 
+    /**
+     * Listener for whole messages, when the thread is operating in the framed (message) mode.
+     */
+    public interface MessageListener {
+        /**
+         * Called when a whole message (frame) was read. Messages spanning multiple reads are
+         * reassembled before this is called.
+         *
+         * Note that the given array may be the read buffer of this thread. Thus, the contents are
+         * valid only during this call and must be copied, if needed later.
+         *
+         * This is called from the reader thread, which must not block on writes: the credit and
+         * pong frames of the peer are read by the same thread. Replies should be sent using
+         * writeMessageAsync(). With flow control enabled, writeMessage() fails right away, if
+         * there is not enough send credit, instead of waiting for it.
+         *
+         * @param type The message type.
+         * @param bytes The array containing the message payload.
+         * @param offset The offset of the payload in the array.
+         * @param length The length of the payload.
+         * @param who The related BluetoothSocketIoThread instance.
+         */
+        void onMessage(byte type, byte[] bytes, int offset, int length, BluetoothSocketIoThread who);
+    }
+
+    /**
+     * Listener for the end of the connection. Used by the components built on top of this thread
+     * (e.g. TransferManager), which must release their resources, when the connection ends.
+     */
+    public interface CloseListener {
+        /**
+         * Called once, when this thread is closed or the connection is lost, whichever happens
+         * first. When the connection is lost, called before Listener.onDisconnected.
+         *
+         * @param who The related BluetoothSocketIoThread instance.
+         */
+        void onClosed(BluetoothSocketIoThread who);
+    }
+
+    /**
+     * Listener for pooled read buffers, when the thread is reading into buffers acquired from
+     * a ByteBufferPool.
+     */
+    public interface BufferListener {
+        /**
+         * Called when bytes were successfully read into a pooled buffer. The ownership of the
+         * buffer is transferred to the listener, which must call PooledByteBuffer.release() once
+         * done with it. Since every read lands in a separate buffer, the buffer can be kept and
+         * passed on to other threads without copying.
+         *
+         * @param buffer The buffer whose position is zero and limit is the number of bytes read.
+         * @param who The related BluetoothSocketIoThread instance.
+         */
+        void onBufferRead(PooledByteBuffer buffer, BluetoothSocketIoThread who);
+    }
+
     private static final String TAG = BluetoothSocketIoThread.class.getName();
     protected static final int DEFAULT_BUFFER_SIZE_IN_BYTES = 256;
     private final BluetoothSocket mSocket;
@@ -53,9 +114,42 @@ public class BluetoothSocketIoThread extends Thread {
     private final InputStream mInputStream;
     private final OutputStream mOutputStream;
     private PeerProperties mPeerProperties;
+    private MessageListener mMessageListener = null;
+    private final CopyOnWriteArrayList<CloseListener> mCloseListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean mIsClosed = new AtomicBoolean(false); // True, once the close listeners are notified
+    private MessageFrameDecoder mMessageFrameDecoder = null;
+    private ByteBufferPool mBufferPool = null;
+    private BufferListener mBufferListener = null;
+    private SocketWriterThread mSocketWriterThread = null;
+    private int mWriteQueueCapacity = SocketWriterThread.DEFAULT_QUEUE_CAPACITY;
+    private SocketWriterThread.QueueFullPolicy mWriteQueueFullPolicy = SocketWriterThread.DEFAULT_QUEUE_FULL_POLICY;
+    private int mMaxWriteBatchSizeInBytes = 0; // Zero means coalescing disabled
+    private long mMaxWriteBatchDelayInMilliseconds = SocketWriterThread.DEFAULT_MAX_BATCH_DELAY_IN_MILLISECONDS;
+    private int mWriteChunkSizeInBytes = 0; // Zero means chunking disabled
+    private byte[] mFragmentBuffer = null; // Reassembly buffer of the fragmented messages
+    private int mFragmentBufferLength = 0;
+    private boolean mIsDiscardingFragments = false;
+    private int mDiscardedMessageLength = 0; // The credit to return for the message being discarded
+    private FlowController mFlowController = null;
+    private boolean mReleaseCreditManually = false;
+    private FrameCompressor mFrameCompressor = null;
+    private long mHeartbeatIntervalInMilliseconds = 0; // Zero means heartbeat disabled
+    private int mMaxNumberOfMissedHeartbeats = HeartbeatMonitor.DEFAULT_MAX_NUMBER_OF_MISSED_HEARTBEATS;
+    private volatile HeartbeatMonitor mHeartbeatMonitor = null;
+    private FileSender mFileSender = null;
+    private final ConnectionMetrics mConnectionMetrics;
+    private final BandwidthShaper.Share mBandwidthShare;
     private int mBufferSizeInBytes = DEFAULT_BUFFER_SIZE_IN_BYTES;
+    private int mMinAdaptiveBufferSizeInBytes = 0; // Zero means adaptive buffer size disabled
+    private int mMaxAdaptiveBufferSizeInBytes = 0;
+    private volatile int mCurrentReadBufferSizeInBytes = 0;
+    private int mMaxMessageSizeInBytes = MessageFrameCodec.DEFAULT_MAX_PAYLOAD_LENGTH_IN_BYTES;
+    private int mReceiveRingCapacityInBytes = 0; // Zero means decoupled delivery disabled
+    private SpscByteRing.OverflowPolicy mReceiveRingOverflowPolicy = SpscByteRing.OverflowPolicy.BLOCK;
+    private volatile SpscByteRing mReceiveRing = null;
+    private Thread mDeliveryThread = null;
     private boolean mExitThreadAfterRead = false;
-    private boolean mIsShuttingDown = false;
+    private volatile boolean mIsShuttingDown = false;
 
     /**
      * Constructor.
@@ -67,6 +161,25 @@ public class BluetoothSocketIoThread extends Thread {
      */
     public BluetoothSocketIoThread(BluetoothSocket socket, Listener listener)
             throws NullPointerException, IOException {
+        this(socket, listener, IoExecutor.Category.SOCKET_IO);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param socket A Bluetooth socket.
+     * @param listener The listener.
+     * @param category The thread category, which determines the thread settings (see IoExecutor).
+     * @throws NullPointerException Thrown, if either the listener or the Bluetooth socket instance is null.
+     * @throws IOException Thrown in case of failure to get the input and the output streams for the given socket.
+     */
+    public BluetoothSocketIoThread(BluetoothSocket socket, Listener listener, IoExecutor.Category category)
+            throws NullPointerException, IOException {
+        super(IoExecutor.getDefault().getThreadGroup(category), null,
+                IoExecutor.getDefault().createThreadName(category),
+                IoExecutor.getDefault().getStackSize(category));
+        IoExecutor.getDefault().applyPriority(this, category);
+
         if (socket == null || listener == null) {
             throw new NullPointerException("Either the Bluetooth socket or the listener instance is null");
         }
@@ -76,6 +189,11 @@ public class BluetoothSocketIoThread extends Thread {
         mInputStream = mSocket.getInputStream();
         mOutputStream = mSocket.getOutputStream();
         mPeerProperties = new PeerProperties();
+
+        // Registered last, since they are unregistered only by close(), which the caller cannot
+        // call, if the constructor throws
+        mConnectionMetrics = new ConnectionMetrics();
+        mBandwidthShare = BandwidthShaper.getDefault().register();
     }
 
     public BluetoothSocket getSocket() {
@@ -90,6 +208,29 @@ public class BluetoothSocketIoThread extends Thread {
         mPeerProperties = peerProperties;
     }
 
+    /**
+     * Adds a listener to be notified, when this thread is closed or the connection is lost. If
+     * that has already happened, the listener is notified right away.
+     *
+     * @param closeListener The listener to add.
+     */
+    public void addCloseListener(CloseListener closeListener) {
+        if (closeListener != null) {
+            mCloseListeners.add(closeListener);
+
+            if (mIsClosed.get() && mCloseListeners.remove(closeListener)) {
+                closeListener.onClosed(this);
+            }
+        }
+    }
+
+    /**
+     * @param closeListener The listener to remove.
+     */
+    public void removeCloseListener(CloseListener closeListener) {
+        mCloseListeners.remove(closeListener);
+    }
+
     /**
      * Sets whether the thread should exit after a read() call or not.
      *
@@ -119,6 +260,323 @@ public class BluetoothSocketIoThread extends Thread {
         }
     }
 
+    /**
+     * Enables or disables the adaptive read buffer size. When enabled, the read buffer grows while
+     * the reads keep filling it and shrinks while the reads use only a fraction of it (see
+     * AdaptiveBufferSizer). The size set with setBufferSize() is used as the initial size.
+     * Has no effect when reading into pooled buffers, since their size is fixed by the pool.
+     * Note that this needs to be set before calling start(). Otherwise, it will have no effect.
+     *
+     * @param minBufferSizeInBytes The minimum buffer size. Zero or less disables the adaptive size.
+     * @param maxBufferSizeInBytes The maximum buffer size.
+     */
+    public void setAdaptiveBufferSize(int minBufferSizeInBytes, int maxBufferSizeInBytes) {
+        if (minBufferSizeInBytes > 0 && maxBufferSizeInBytes >= minBufferSizeInBytes) {
+            mMinAdaptiveBufferSizeInBytes = minBufferSizeInBytes;
+            mMaxAdaptiveBufferSizeInBytes = maxBufferSizeInBytes;
+        } else {
+            mMinAdaptiveBufferSizeInBytes = 0;
+            mMaxAdaptiveBufferSizeInBytes = 0;
+        }
+    }
+
+    /**
+     * @return True, if the adaptive read buffer size is enabled.
+     */
+    public boolean isAdaptiveBufferSize() {
+        return (mMinAdaptiveBufferSizeInBytes > 0);
+    }
+
+    /**
+     * @return The size of the buffer currently used for reading or zero, if not reading. Differs
+     * from getBufferSize() when the adaptive buffer size is enabled.
+     */
+    public int getCurrentReadBufferSize() {
+        return mCurrentReadBufferSizeInBytes;
+    }
+
+    /**
+     * Enables or disables the decoupled delivery of the received data. When enabled, this thread
+     * only puts the bytes read to a lock-free ring buffer (see SpscByteRing) and a separate thread
+     * (category DELIVERY, see IoExecutor) calls Listener.onBytesRead with whatever has accumulated
+     * in the ring. Thus, a slow listener does not stall reading the socket until the ring is full.
+     *
+     * Applies to the raw mode without a buffer pool only. On disconnect, the data left in the ring
+     * is delivered before Listener.onDisconnected is called.
+     * Note that this needs to be set before calling start(). Otherwise, it will have no effect.
+     *
+     * @param ringCapacityInBytes The capacity of the ring, e.g. SpscByteRing.DEFAULT_CAPACITY_IN_BYTES.
+     *                            Zero or less disables the decoupled delivery.
+     * @param overflowPolicy Defines what happens when the ring is full: BLOCK stops reading the
+     *                       socket until there is space, DROP drops the bytes that do not fit and
+     *                       FAIL disconnects.
+     */
+    public void setDecoupledDelivery(int ringCapacityInBytes, SpscByteRing.OverflowPolicy overflowPolicy) {
+        mReceiveRingCapacityInBytes = Math.max(ringCapacityInBytes, 0);
+
+        if (overflowPolicy != null) {
+            mReceiveRingOverflowPolicy = overflowPolicy;
+        }
+    }
+
+    /**
+     * @return The ring buffer of the decoupled delivery (see setDecoupledDelivery()) for its
+     * metrics, such as the high water mark, or null, if not in use.
+     */
+    public SpscByteRing getReceiveRing() {
+        return mReceiveRing;
+    }
+
+    /**
+     * Sets the message listener. When set, the thread operates in the framed mode: the bytes read
+     * are decoded as frames (see MessageFrameCodec) and whole messages are delivered via
+     * MessageListener.onMessage instead of Listener.onBytesRead. The peer must write its data
+     * using writeMessage().
+     *
+     * Note that the message listener needs to be set before calling start(). Otherwise, it will
+     * have no effect.
+     *
+     * @param messageListener The message listener. If null, the raw (unframed) mode is used.
+     */
+    public void setMessageListener(MessageListener messageListener) {
+        mMessageListener = messageListener;
+    }
+
+    /**
+     * @return True, if the thread is operating in the framed mode.
+     */
+    public boolean isFramed() {
+        return (mMessageListener != null);
+    }
+
+    /**
+     * Sets the maximum accepted message size in the framed mode. Receiving a larger message is
+     * considered a protocol error and causes a disconnect.
+     * Note that this needs to be set before calling start(). Otherwise, it will have no effect.
+     *
+     * @param maxMessageSizeInBytes The maximum message size in bytes.
+     */
+    public void setMaxMessageSize(int maxMessageSizeInBytes) {
+        if (maxMessageSizeInBytes > 0) {
+            mMaxMessageSizeInBytes = maxMessageSizeInBytes;
+        }
+    }
+
+    /**
+     * Enables the credit-based flow control (see FlowController) in the framed mode. The peer
+     * must enable it too. Otherwise, no messages can be sent, since the peer never grants credit.
+     *
+     * By default, a received message is considered consumed once MessageListener.onMessage
+     * returns. If the application queues the messages for later processing, it should enable the
+     * manual mode and call releaseCredit() once done with each message to keep the memory use
+     * bounded by the window size.
+     *
+     * Note that this needs to be set before calling start(). Otherwise, it will have no effect.
+     *
+     * @param receiveWindowSizeInBytes The maximum number of message bytes the peer may send
+     *                                 without us consuming them. Zero or less disables the flow
+     *                                 control.
+     * @param releaseCreditManually If true, the application must call releaseCredit().
+     */
+    public void setFlowControl(int receiveWindowSizeInBytes, boolean releaseCreditManually) {
+        mFlowController = (receiveWindowSizeInBytes > 0) ? new FlowController(receiveWindowSizeInBytes) : null;
+        mReleaseCreditManually = releaseCreditManually;
+    }
+
+    /**
+     * @return The flow controller or null, if the flow control is not enabled.
+     */
+    public FlowController getFlowController() {
+        return mFlowController;
+    }
+
+    /**
+     * Marks the given number of received message bytes as consumed and grants the peer more
+     * credit, if due. Only needed, if the flow control is enabled in the manual mode.
+     *
+     * @param numberOfBytes The number of payload bytes consumed.
+     */
+    public void releaseCredit(int numberOfBytes) {
+        if (mFlowController != null) {
+            sendCredit(mFlowController.onBytesConsumed(numberOfBytes));
+        }
+    }
+
+    /**
+     * Enables the compression of message payloads in the framed mode (see FrameCompressor).
+     * Compression should only be enabled, if the peer supports it (see
+     * PeerProperties.getCompressionSupported()); the peer can decompress the messages only, if
+     * it has compression enabled too. The flow control, if enabled, is based on the uncompressed
+     * message lengths.
+     *
+     * Note that this needs to be set before calling start() and before the first asynchronous
+     * write. Otherwise, it will have no effect.
+     *
+     * @param thresholdInBytes Messages smaller than this are not compressed. Zero or less
+     *                         disables the compression.
+     */
+    public void setCompression(int thresholdInBytes) {
+        if (mFrameCompressor != null) {
+            mFrameCompressor.dispose();
+        }
+
+        mFrameCompressor = (thresholdInBytes > 0)
+                ? new FrameCompressor(thresholdInBytes, FrameCompressor.DEFAULT_COMPRESSION_LEVEL) : null;
+    }
+
+    /**
+     * @return The frame compressor providing the compression statistics or null, if the
+     * compression is not enabled.
+     */
+    public FrameCompressor getFrameCompressor() {
+        return mFrameCompressor;
+    }
+
+    /**
+     * Enables or disables the heartbeat (see HeartbeatMonitor). When enabled, ping frames are sent
+     * while nothing is received from the peer, and the connection is closed and reported
+     * disconnected via Listener.onDisconnected, if the peer stops responding. The heartbeat
+     * works in the framed mode only (see setMessageListener()), but the pings of the peer are
+     * always answered in the framed mode.
+     *
+     * Note that this needs to be set before calling start(). Otherwise, it will have no effect.
+     *
+     * @param intervalInMilliseconds The heartbeat interval. Zero or less disables the heartbeat.
+     * @param maxNumberOfMissedHeartbeats The number of intervals without a reply after which the
+     *                                    peer is declared unresponsive.
+     */
+    public void setHeartbeat(long intervalInMilliseconds, int maxNumberOfMissedHeartbeats) {
+        mHeartbeatIntervalInMilliseconds = Math.max(intervalInMilliseconds, 0);
+        mMaxNumberOfMissedHeartbeats = maxNumberOfMissedHeartbeats;
+    }
+
+    /**
+     * @return The heartbeat monitor providing the round trip time or null, if the heartbeat is not
+     * enabled or the thread is not running.
+     */
+    public HeartbeatMonitor getHeartbeatMonitor() {
+        return mHeartbeatMonitor;
+    }
+
+    /**
+     * Makes the thread read into buffers acquired from the given pool and hand them to the given
+     * listener instead of calling Listener.onBytesRead. The size of each read is then limited by
+     * the slab size of the pool instead of the buffer size set with setBufferSize().
+     * The pool can be shared between multiple threads.
+     *
+     * This applies to the raw (unframed) mode only; in the framed mode whole messages are
+     * delivered via MessageListener.onMessage.
+     *
+     * Note that this needs to be set before calling start(). Otherwise, it will have no effect.
+     *
+     * @param bufferPool The buffer pool. If null, the pooled mode is disabled.
+     * @param bufferListener The listener receiving the pooled buffers.
+     * @throws NullPointerException Thrown, if the pool is given but the listener is null.
+     */
+    public void setBufferPool(ByteBufferPool bufferPool, BufferListener bufferListener)
+            throws NullPointerException {
+        if (bufferPool != null && bufferListener == null) {
+            throw new NullPointerException("Buffer listener is null");
+        }
+
+        mBufferPool = bufferPool;
+        mBufferListener = (bufferPool != null) ? bufferListener : null;
+    }
+
+    /**
+     * Sets the capacity of the write queue used by writeAsync() and writeMessageAsync().
+     * Note that this needs to be set before the first asynchronous write. Otherwise, it will have
+     * no effect.
+     *
+     * @param capacity The maximum number of writes in the queue.
+     */
+    public void setWriteQueueCapacity(int capacity) {
+        if (capacity > 0) {
+            mWriteQueueCapacity = capacity;
+        }
+    }
+
+    /**
+     * Sets what happens when an asynchronous write is made while the write queue is full.
+     * Note that this needs to be set before the first asynchronous write. Otherwise, it will have
+     * no effect.
+     *
+     * @param queueFullPolicy The policy.
+     */
+    public void setWriteQueueFullPolicy(SocketWriterThread.QueueFullPolicy queueFullPolicy) {
+        if (queueFullPolicy != null) {
+            mWriteQueueFullPolicy = queueFullPolicy;
+        }
+    }
+
+    /**
+     * Enables or disables the coalescing of small asynchronous writes (see SocketWriterThread).
+     * Note that this needs to be set before the first asynchronous write. Otherwise, it will have
+     * no effect.
+     *
+     * @param maxBatchSizeInBytes The maximum number of bytes written with a single write call.
+     *                            Zero or less disables coalescing.
+     * @param maxBatchDelayInMilliseconds The maximum time a write is held back waiting for more
+     *                                    writes to coalesce.
+     */
+    public void setWriteCoalescing(int maxBatchSizeInBytes, long maxBatchDelayInMilliseconds) {
+        mMaxWriteBatchSizeInBytes = Math.max(maxBatchSizeInBytes, 0);
+        mMaxWriteBatchDelayInMilliseconds = Math.max(maxBatchDelayInMilliseconds, 0);
+    }
+
+    /**
+     * Enables or disables the chunking of large asynchronous messages of normal priority (see
+     * SocketWriterThread). When enabled, high priority messages are written between the chunks
+     * (fragments) instead of waiting for the whole message. The peer must be using this library
+     * in the framed mode to reassemble the fragments.
+     * Note that this needs to be set before the first asynchronous write. Otherwise, it will have
+     * no effect.
+     *
+     * @param chunkSizeInBytes The maximum number of payload bytes per chunk, e.g.
+     *                         SocketWriterThread.DEFAULT_CHUNK_SIZE_IN_BYTES. Zero or less
+     *                         disables chunking.
+     */
+    public void setWriteChunking(int chunkSizeInBytes) {
+        mWriteChunkSizeInBytes = Math.max(chunkSizeInBytes, 0);
+    }
+
+    /**
+     * @param priority The priority.
+     * @return A snapshot of the queueing delay of the asynchronous writes of the given priority in
+     * microseconds or null, if no asynchronous writes have been made.
+     */
+    public synchronized Histogram.Snapshot getWriteQueueDelay(PendingWrite.Priority priority) {
+        return (mSocketWriterThread != null) ? mSocketWriterThread.getQueueDelay(priority) : null;
+    }
+
+    /**
+     * @return A snapshot of the write coalescing statistics or null, if no asynchronous writes
+     * have been made.
+     */
+    public synchronized SocketWriterThread.CoalescingStatistics getWriteCoalescingStatistics() {
+        return (mSocketWriterThread != null) ? mSocketWriterThread.getCoalescingStatistics() : null;
+    }
+
+    /**
+     * @return The transfer metrics of this connection. Use ConnectionMetrics.getAggregate() for
+     * the metrics of all connections.
+     */
+    public ConnectionMetrics getConnectionMetrics() {
+        return mConnectionMetrics;
+    }
+
+    /**
+     * Returns the bandwidth share of this connection (see BandwidthShaper), which can be used to
+     * limit the rate of the writes and to set the weight of this connection in the division of
+     * the global limit. The limits apply to all writes except the frames consumed by the library
+     * (credit, ping and pong), which are small and must not be delayed.
+     *
+     * @return The bandwidth share.
+     */
+    public BandwidthShaper.Share getBandwidthShare() {
+        return mBandwidthShare;
+    }
+
     /**
      * From Thread.
      *
@@ -128,15 +586,60 @@ public class BluetoothSocketIoThread extends Thread {
     @Override
     public void run() {
         Log.d(TAG, "Entering thread (ID: " + getId() + ")");
-        byte[] buffer = new byte[mBufferSizeInBytes];
         int numberOfBytesRead = 0;
 
+        if (mMessageListener != null) {
+            mMessageFrameDecoder = new MessageFrameDecoder(this);
+            mMessageFrameDecoder.setMaxPayloadLength(mMaxMessageSizeInBytes);
+
+            if (mFlowController != null) {
+                sendCredit(mFlowController.getInitialGrant());
+            }
+
+            if (mHeartbeatIntervalInMilliseconds > 0 && !mIsShuttingDown) {
+                mHeartbeatMonitor = new HeartbeatMonitor(
+                        this, mHeartbeatIntervalInMilliseconds, mMaxNumberOfMissedHeartbeats);
+                mHeartbeatMonitor.start();
+            }
+        }
+
+        final ByteBufferPool bufferPool = (mMessageFrameDecoder == null) ? mBufferPool : null;
+        byte[] buffer = (bufferPool == null) ? new byte[mBufferSizeInBytes] : null;
+        AdaptiveBufferSizer adaptiveBufferSizer = null;
+
+        if (bufferPool == null && mMinAdaptiveBufferSizeInBytes > 0) {
+            adaptiveBufferSizer = new AdaptiveBufferSizer(
+                    mMinAdaptiveBufferSizeInBytes, mMaxAdaptiveBufferSizeInBytes, mBufferSizeInBytes);
+            buffer = new byte[adaptiveBufferSizer.getBufferSize()];
+        }
+
+        if (buffer != null) {
+            mCurrentReadBufferSizeInBytes = buffer.length;
+        }
+
+        if (mMessageFrameDecoder == null && bufferPool == null && mReceiveRingCapacityInBytes > 0) {
+            startDelivery();
+        }
+
         while (!mIsShuttingDown) {
+            PooledByteBuffer pooledBuffer = null;
+
+            if (bufferPool != null) {
+                pooledBuffer = bufferPool.acquire();
+                buffer = pooledBuffer.array();
+            }
+
             try {
-                numberOfBytesRead = mInputStream.read(buffer); // Blocking call
+                numberOfBytesRead = mInputStream.read(buffer, 0, buffer.length); // Blocking call
             } catch (IOException e) {
+                if (pooledBuffer != null) {
+                    pooledBuffer.release();
+                }
+
                 if (!mIsShuttingDown) {
                     Log.d(TAG, "Disconnected: " + e.getMessage());
+                    stopDelivery(true);
+                    notifyClosed();
                     mListener.onDisconnected(e.getMessage(), this);
                 }
 
@@ -144,7 +647,70 @@ public class BluetoothSocketIoThread extends Thread {
             }
 
             if (numberOfBytesRead > 0) {
-                mListener.onBytesRead(buffer, numberOfBytesRead, this);
+                mConnectionMetrics.onBytesRead(numberOfBytesRead);
+
+                if (mHeartbeatMonitor != null) {
+                    mHeartbeatMonitor.onDataReceived();
+                }
+
+                if (mMessageFrameDecoder != null) {
+                    try {
+                        mMessageFrameDecoder.decode(buffer, 0, numberOfBytesRead);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to decode the received data: " + e.getMessage() + " (thread ID: " + getId() + ")");
+                        close(true, false);
+                        mListener.onDisconnected("Invalid message: " + e.getMessage(), this);
+                        break;
+                    }
+                } else if (pooledBuffer != null) {
+                    pooledBuffer.getByteBuffer().limit(numberOfBytesRead);
+                    PooledByteBuffer bufferToHandOver = pooledBuffer;
+                    pooledBuffer = null; // The listener is now responsible for releasing the buffer
+                    mBufferListener.onBufferRead(bufferToHandOver, this);
+                } else if (mReceiveRing != null) {
+                    boolean wasPut;
+
+                    try {
+                        wasPut = mReceiveRing.put(buffer, 0, numberOfBytesRead);
+                    } catch (InterruptedException e) {
+                        wasPut = false;
+                    }
+
+                    if (!wasPut) {
+                        if (!mIsShuttingDown) {
+                            Log.e(TAG, "Receive buffer overflow (thread ID: " + getId() + ")");
+                            close(true, false);
+                            stopDelivery(true);
+                            mListener.onDisconnected("Receive buffer overflow", this);
+                        }
+
+                        break;
+                    }
+                } else {
+                    mListener.onBytesRead(buffer, numberOfBytesRead, this);
+                }
+
+                if (adaptiveBufferSizer != null
+                        && adaptiveBufferSizer.onRead(numberOfBytesRead) != buffer.length) {
+                    // The old buffer is not referenced after the listener calls above
+                    buffer = new byte[adaptiveBufferSizer.getBufferSize()];
+                    mCurrentReadBufferSizeInBytes = buffer.length;
+                }
+            }
+
+            if (pooledBuffer != null) {
+                pooledBuffer.release();
+            }
+
+            if (numberOfBytesRead < 0) {
+                if (!mIsShuttingDown) {
+                    Log.d(TAG, "Disconnected: End of stream");
+                    stopDelivery(true);
+                    notifyClosed();
+                    mListener.onDisconnected("End of stream", this);
+                }
+
+                break;
             }
 
             if (mExitThreadAfterRead) {
@@ -152,6 +718,11 @@ public class BluetoothSocketIoThread extends Thread {
             }
         }
 
+        if (mHeartbeatMonitor != null) {
+            mHeartbeatMonitor.stop();
+        }
+
+        stopDelivery(!mIsShuttingDown);
         Log.d(TAG, "Exiting thread (ID: " + getId() + ")");
     }
 
@@ -166,7 +737,14 @@ public class BluetoothSocketIoThread extends Thread {
 
         if (mOutputStream != null) {
             try {
-                mOutputStream.write(bytes);
+                acquireBandwidth(bytes.length);
+
+                synchronized (mOutputStream) {
+                    long startTime = System.nanoTime();
+                    mOutputStream.write(bytes);
+                    mConnectionMetrics.onBytesWritten(bytes.length, System.nanoTime() - startTime);
+                }
+
                 wasSuccessful = true;
             } catch (IOException e) {
                 if (!mIsShuttingDown) {
@@ -185,15 +763,465 @@ public class BluetoothSocketIoThread extends Thread {
     }
 
     /**
-     * Closes, if requested, the input and output streams and the socket.
+     * Writes the given range of the given file to the output stream of the socket in slices (see
+     * FileSender). The slices are read ahead on a separate thread while writing. This is meant for
+     * the raw (unframed) mode; the peer receives the file contents as is.
+     *
+     * Listener.onBytesWritten is called for every slice. Note that the slice arrays are reused,
+     * so their contents are valid only during the call.
+     *
+     * @param fileChannel The file channel. Its position is not changed.
+     * @param position The position of the first byte to write.
+     * @param count The number of bytes to write.
+     * @return True, if all the bytes were written successfully. False otherwise.
+     */
+    public boolean writeFile(FileChannel fileChannel, long position, long count) {
+        if (mOutputStream == null) {
+            Log.e(TAG, "writeFile: No output stream!");
+            return false;
+        }
+
+        OutputStream socketOutputStream = new OutputStream() {
+            @Override
+            public void write(int oneByte) throws IOException {
+                write(new byte[] { (byte) oneByte }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                acquireBandwidth(length);
+
+                synchronized (mOutputStream) {
+                    long startTime = System.nanoTime();
+                    mOutputStream.write(buffer, offset, length);
+                    mConnectionMetrics.onBytesWritten(length, System.nanoTime() - startTime);
+                }
+
+                byte[] slice = (offset == 0) ? buffer : Arrays.copyOfRange(buffer, offset, offset + length);
+                mListener.onBytesWritten(slice, length, BluetoothSocketIoThread.this);
+            }
+        };
+
+        synchronized (this) {
+            if (mFileSender == null) {
+                mFileSender = new FileSender();
+            }
+        }
+
+        try {
+            synchronized (mFileSender) {
+                mFileSender.send(fileChannel, position, count, socketOutputStream);
+            }
+
+            return true;
+        } catch (IOException e) {
+            if (!mIsShuttingDown) {
+                Log.e(TAG, "writeFile: Failed to write the file: " + e.getMessage(), e);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Writes the given payload as a single message (frame) to the output stream of the socket.
+     * The receiving end must be operating in the framed mode (see setMessageListener()).
+     *
+     * If the flow control is enabled, waits for the send credit. When called from the reader
+     * thread (i.e. from MessageListener.onMessage()), the credit cannot arrive while waiting,
+     * since this very thread reads it. Thus, the message fails instead, if there is not enough
+     * credit right away.
+     *
+     * @param type The message type. Application data should use MessageFrameCodec.TYPE_DATA.
+     * @param payload The message payload.
+     * @return True, if the message was written successfully. False otherwise.
+     */
+    public boolean writeMessage(byte type, byte[] payload) {
+        boolean wasSuccessful = false;
+        final byte[] originalPayload = payload;
+
+        if (mFlowController != null) {
+            try {
+                if (Thread.currentThread() == this) {
+                    if (!mFlowController.tryAcquireSendCredit(payload.length)) {
+                        Log.e(TAG, "writeMessage: Not enough send credit and cannot wait for it on the reader thread");
+                        return false;
+                    }
+                } else if (!mFlowController.acquireSendCredit(payload.length)) {
+                    Log.e(TAG, "writeMessage: Flow control closed");
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Log.e(TAG, "writeMessage: Interrupted while waiting for send credit");
+                return false;
+            }
+        }
+
+        if (mFrameCompressor != null) {
+            byte[] compressedPayload = mFrameCompressor.compress(payload);
+
+            if (compressedPayload != null) {
+                type |= MessageFrameCodec.FLAG_COMPRESSED;
+                payload = compressedPayload;
+            }
+        }
+
+        if (mOutputStream != null) {
+            try {
+                acquireBandwidth(MessageFrameCodec.getFrameLength(payload.length));
+
+                synchronized (mOutputStream) {
+                    long startTime = System.nanoTime();
+                    MessageFrameCodec.writeFrame(mOutputStream, type, payload, 0, payload.length);
+                    mConnectionMetrics.onBytesWritten(
+                            MessageFrameCodec.getFrameLength(payload.length), System.nanoTime() - startTime);
+                }
+
+                wasSuccessful = true;
+            } catch (IOException e) {
+                if (!mIsShuttingDown) {
+                    Log.e(TAG, "writeMessage: Failed to write to output stream: " + e.getMessage(), e);
+                }
+            }
+        } else {
+            Log.e(TAG, "writeMessage: No output stream!");
+        }
+
+        if (wasSuccessful) {
+            mListener.onBytesWritten(originalPayload, originalPayload.length, this);
+        }
+
+        return wasSuccessful;
+    }
+
+    /**
+     * Enqueues the given bytes to be written by the writer thread of this instance. Returns
+     * immediately, unless the write queue is full and the policy is to block.
+     * Listener.onBytesWritten is called from the writer thread once the bytes are written.
+     *
+     * Asynchronous writes are written in the order they were enqueued. Their order with respect
+     * to synchronous write() calls made at the same time is undefined.
+     *
+     * When called from the reader thread (e.g. from MessageListener.onMessage()), never blocks:
+     * if the queue is full and the policy is to block, the write fails instead.
+     *
+     * @param bytes The bytes to write.
+     * @param listener The completion listener. Can be null.
+     * @return The completion handle of the write.
+     */
+    public PendingWrite writeAsync(byte[] bytes, PendingWrite.Listener listener) {
+        return writeAsync(bytes, false, listener);
+    }
+
+    /**
+     * Enqueues the given bytes to be written by the writer thread of this instance.
+     * See writeAsync(byte[], PendingWrite.Listener).
+     *
+     * @param bytes The bytes to write.
+     * @param flushImmediately If true and write coalescing is enabled, the bytes (and whatever
+     *                         was coalesced before them) are written without further delay.
+     * @param listener The completion listener. Can be null.
+     * @return The completion handle of the write.
+     */
+    public PendingWrite writeAsync(byte[] bytes, boolean flushImmediately, PendingWrite.Listener listener) {
+        return enqueue(new PendingWrite(bytes, false, (byte) 0, flushImmediately, listener));
+    }
+
+    /**
+     * Enqueues the given bytes to be written by the writer thread of this instance with the given
+     * priority. The high priority writes are written before the normal ones queued earlier.
+     * See writeAsync(byte[], PendingWrite.Listener).
+     *
+     * @param bytes The bytes to write.
+     * @param priority The priority.
+     * @param listener The completion listener. Can be null.
+     * @return The completion handle of the write.
+     */
+    public PendingWrite writeAsync(byte[] bytes, PendingWrite.Priority priority, PendingWrite.Listener listener) {
+        return enqueue(new PendingWrite(bytes, false, (byte) 0, false, priority, listener));
+    }
+
+    /**
+     * Enqueues the given bytes to be written by the writer thread of this instance.
+     * See writeAsync(byte[], PendingWrite.Listener).
+     *
+     * @param bytes The bytes to write.
+     * @return The completion handle of the write.
+     */
+    public PendingWrite writeAsync(byte[] bytes) {
+        return writeAsync(bytes, null);
+    }
+
+    /**
+     * Enqueues the given payload to be written as a single message (frame) by the writer thread
+     * of this instance. See writeAsync(byte[], PendingWrite.Listener) and writeMessage().
+     *
+     * @param type The message type.
+     * @param payload The message payload.
+     * @param listener The completion listener. Can be null.
+     * @return The completion handle of the write.
+     */
+    public PendingWrite writeMessageAsync(byte type, byte[] payload, PendingWrite.Listener listener) {
+        return writeMessageAsync(type, payload, false, listener);
+    }
+
+    /**
+     * Enqueues the given payload to be written as a single message (frame) by the writer thread
+     * of this instance. See writeMessageAsync(byte, byte[], PendingWrite.Listener).
+     *
+     * @param type The message type.
+     * @param payload The message payload.
+     * @param flushImmediately If true and write coalescing is enabled, the message (and whatever
+     *                         was coalesced before it) is written without further delay.
+     * @param listener The completion listener. Can be null.
+     * @return The completion handle of the write.
+     */
+    public PendingWrite writeMessageAsync(
+            byte type, byte[] payload, boolean flushImmediately, PendingWrite.Listener listener) {
+        return enqueue(new PendingWrite(payload, true, type, flushImmediately, listener));
+    }
+
+    /**
+     * Enqueues the given payload to be written as a single message by the writer thread of this
+     * instance with the given priority. The high priority messages are written before the normal
+     * ones queued earlier and, if chunking is enabled (see setWriteChunking()), between the chunks
+     * of a large normal message being written. See writeMessageAsync(byte, byte[],
+     * PendingWrite.Listener).
+     *
+     * @param type The message type.
+     * @param payload The message payload.
+     * @param priority The priority.
+     * @param listener The completion listener. Can be null.
+     * @return The completion handle of the write.
+     */
+    public PendingWrite writeMessageAsync(
+            byte type, byte[] payload, PendingWrite.Priority priority, PendingWrite.Listener listener) {
+        return enqueue(new PendingWrite(payload, true, type, false, priority, listener));
+    }
+
+    /**
+     * Enqueues the given payload to be written as a single message (frame) by the writer thread
+     * of this instance. See writeMessageAsync(byte, byte[], PendingWrite.Listener).
+     *
+     * @param type The message type.
+     * @param payload The message payload.
+     * @return The completion handle of the write.
+     */
+    public PendingWrite writeMessageAsync(byte type, byte[] payload) {
+        return writeMessageAsync(type, payload, null);
+    }
+
+    /**
+     * From SocketWriterThread.Listener.
+     *
+     * Notifies the listener.
+     *
+     * @param pendingWrite The completed write.
+     * @param who The related SocketWriterThread instance.
+     */
+    @Override
+    public void onWriteSucceeded(PendingWrite pendingWrite, SocketWriterThread who) {
+        if (pendingWrite.isMessage() && MessageFrameCodec.isControlType(pendingWrite.getMessageType())) {
+            return; // Written by the library itself
+        }
+
+        byte[] bytes = pendingWrite.getBytes();
+        mListener.onBytesWritten(bytes, bytes.length, this);
+    }
+
+    /**
+     * From SocketWriterThread.Listener.
+     *
+     * Logs the event. The read loop will notice the broken socket and notify the listener.
+     *
+     * @param reason The reason for the failure.
+     * @param who The related SocketWriterThread instance.
+     */
+    @Override
+    public void onWriterFailed(String reason, SocketWriterThread who) {
+        Log.e(TAG, "onWriterFailed: " + reason + " (thread ID: " + getId() + ")");
+    }
+
+    /**
+     * From HeartbeatMonitor.Listener.
+     *
+     * Enqueues the ping as a high priority write to the writer thread without blocking, since the
+     * monitor runs on the shared scheduler thread. The monitor is told when the ping has actually
+     * been written.
+     *
+     * @param payload The ping payload.
+     */
+    @Override
+    public void onSendPingRequested(final byte[] payload) {
+        if (mIsShuttingDown) {
+            return;
+        }
+
+        getSocketWriterThread().enqueue(new PendingWrite(
+                payload, true, MessageFrameCodec.TYPE_PING, true, PendingWrite.Priority.HIGH,
+                new PendingWrite.Listener() {
+                    @Override
+                    public void onWriteCompleted(PendingWrite pendingWrite) {
+                        HeartbeatMonitor heartbeatMonitor = mHeartbeatMonitor;
+
+                        if (heartbeatMonitor != null) {
+                            if (pendingWrite.isSuccessful()) {
+                                heartbeatMonitor.onPingSent(payload);
+                            } else {
+                                heartbeatMonitor.onPingFailed(payload);
+                            }
+                        }
+                    }
+                }), false);
+    }
+
+    /**
+     * From HeartbeatMonitor.Listener.
+     *
+     * Closes the streams and notifies the listener.
+     *
+     * @param numberOfMissedHeartbeats The number of intervals without a reply.
+     */
+    @Override
+    public void onPeerUnresponsive(int numberOfMissedHeartbeats) {
+        if (!mIsShuttingDown) {
+            String reason = "Peer unresponsive (" + numberOfMissedHeartbeats + " heartbeats missed)";
+            Log.d(TAG, "Disconnected: " + reason + " (thread ID: " + getId() + ")");
+            close(true, false);
+            mListener.onDisconnected(reason, this);
+        }
+    }
+
+    /**
+     * From MessageFrameDecoder.Listener.
+     *
+     * Forwards the decoded message to the message listener. If the flow control is enabled,
+     * consumes the credit frames and grants the peer more credit as messages are consumed. The
+     * credit of the messages dropped before reaching the listener is returned right away.
+     * Decompresses the compressed messages and reassembles the fragmented ones.
+     *
+     * @param type The frame type.
+     * @param buffer The array containing the payload.
+     * @param offset The offset of the payload in the array.
+     * @param length The length of the payload.
+     */
+    @Override
+    public void onFrameDecoded(byte type, byte[] buffer, int offset, int length) {
+        if (type == MessageFrameCodec.TYPE_FRAGMENT) {
+            onFragmentReceived(buffer, offset, length);
+            return;
+        }
+
+        if (type == MessageFrameCodec.TYPE_PING) {
+            byte[] payload = new byte[length];
+            System.arraycopy(buffer, offset, payload, 0, length);
+            enqueueControlFrame(MessageFrameCodec.TYPE_PONG, payload);
+            return;
+        }
+
+        if (type == MessageFrameCodec.TYPE_PONG) {
+            if (mHeartbeatMonitor != null) {
+                mHeartbeatMonitor.onPongReceived(buffer, offset, length);
+            }
+
+            return;
+        }
+
+        if (mFlowController != null && type == MessageFrameCodec.TYPE_CREDIT) {
+            try {
+                mFlowController.onSendCreditGranted(MessageFrameCodec.readVarInt(buffer, offset, length));
+            } catch (IOException e) {
+                Log.e(TAG, "onFrameDecoded: Invalid credit frame: " + e.getMessage());
+            }
+
+            return;
+        }
+
+        if ((type & MessageFrameCodec.FLAG_COMPRESSED) != 0) {
+            if (mFrameCompressor == null) {
+                Log.e(TAG, "onFrameDecoded: Received a compressed message, but compression is not enabled");
+                releaseCreditOfDroppedMessage(getChargedLength(type, buffer, offset, length));
+                return;
+            }
+
+            try {
+                buffer = mFrameCompressor.decompress(buffer, offset, length, mMaxMessageSizeInBytes);
+                offset = 0;
+                length = mFrameCompressor.getLastDecompressedLength();
+                type &= ~MessageFrameCodec.FLAG_COMPRESSED;
+            } catch (IOException e) {
+                Log.e(TAG, "onFrameDecoded: Failed to decompress a message: " + e.getMessage());
+                releaseCreditOfDroppedMessage(getChargedLength(type, buffer, offset, length));
+                return;
+            }
+        }
+
+        if (mFlowController != null) {
+            mFlowController.onBytesReceived(length);
+        }
+
+        mMessageListener.onMessage(type, buffer, offset, length, this);
+
+        if (mFlowController != null && !mReleaseCreditManually) {
+            sendCredit(mFlowController.onBytesConsumed(length));
+        }
+    }
+
+    /**
+     * Closes, if requested, the input and output streams and the socket and notifies the close
+     * listeners (see addCloseListener()).
      * Note that after calling this method, this instance is no longer in valid state and must be
      * disposed of.
      *
      * @param closeStreams If true, will close the input and output streams.
      * @param closeSocket If true, will close the socket. Otherwise only the streams are closed.
      */
-    public synchronized void close(boolean closeStreams, boolean closeSocket) {
+    public void close(boolean closeStreams, boolean closeSocket) {
+        closeResources(closeStreams, closeSocket);
+        notifyClosed(); // Not holding the lock, since the listeners may write or close other resources
+    }
+
+    /**
+     * Notifies the close listeners, unless already notified.
+     */
+    private void notifyClosed() {
+        if (mIsClosed.compareAndSet(false, true)) {
+            for (CloseListener closeListener : mCloseListeners) {
+                if (mCloseListeners.remove(closeListener)) {
+                    closeListener.onClosed(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * See close().
+     */
+    private synchronized void closeResources(boolean closeStreams, boolean closeSocket) {
         mIsShuttingDown = true;
+        mConnectionMetrics.onClosed();
+        mBandwidthShare.unregister();
+
+        if (mHeartbeatMonitor != null) {
+            mHeartbeatMonitor.stop();
+        }
+
+        if (mFlowController != null) {
+            mFlowController.close();
+        }
+
+        if (mFrameCompressor != null) {
+            mFrameCompressor.dispose();
+        }
+
+        if (mSocketWriterThread != null) {
+            mSocketWriterThread.shutdown();
+            mSocketWriterThread = null;
+        }
+
+        if (mReceiveRing != null) {
+            mReceiveRing.close(); // The delivery thread exits without delivering the rest
+        }
 
         if (closeStreams) {
             if (mInputStream != null) {
@@ -222,4 +1250,268 @@ public class BluetoothSocketIoThread extends Thread {
             }
         }
     }
+
+    /**
+     * Appends the given fragment to the reassembly buffer. Passes the message on, once the last
+     * fragment is received. A message exceeding the maximum message size is discarded.
+     *
+     * @param buffer The array containing the fragment frame payload.
+     * @param offset The offset of the payload in the array.
+     * @param length The length of the payload.
+     */
+    private void onFragmentReceived(byte[] buffer, int offset, int length) {
+        if (length < MessageFrameCodec.FRAGMENT_HEADER_LENGTH_IN_BYTES
+                || buffer[offset] == MessageFrameCodec.TYPE_FRAGMENT) {
+            Log.e(TAG, "onFragmentReceived: Invalid fragment");
+            releaseCreditOfDroppedMessage(length);
+            return;
+        }
+
+        final byte messageType = buffer[offset];
+        final boolean isLast = ((buffer[offset + 1] & MessageFrameCodec.FRAGMENT_FLAG_LAST) != 0);
+        final int fragmentLength = length - MessageFrameCodec.FRAGMENT_HEADER_LENGTH_IN_BYTES;
+
+        if (mIsDiscardingFragments) {
+            if ((messageType & MessageFrameCodec.FLAG_COMPRESSED) == 0) {
+                mDiscardedMessageLength += fragmentLength;
+            }
+        } else {
+            int newLength = mFragmentBufferLength + fragmentLength;
+
+            if (newLength > mMaxMessageSizeInBytes) {
+                Log.e(TAG, "onFragmentReceived: Fragmented message exceeds the maximum size of "
+                        + mMaxMessageSizeInBytes + " bytes, discarding");
+                mIsDiscardingFragments = true;
+
+                if ((messageType & MessageFrameCodec.FLAG_COMPRESSED) == 0) {
+                    mDiscardedMessageLength = newLength;
+                } else if (mFragmentBufferLength > 0) {
+                    mDiscardedMessageLength = getChargedLength(
+                            messageType, mFragmentBuffer, 0, mFragmentBufferLength);
+                } else {
+                    mDiscardedMessageLength = getChargedLength(messageType, buffer,
+                            offset + MessageFrameCodec.FRAGMENT_HEADER_LENGTH_IN_BYTES, fragmentLength);
+                }
+
+                mFragmentBuffer = null;
+                mFragmentBufferLength = 0;
+            } else {
+                if (mFragmentBuffer == null || mFragmentBuffer.length < newLength) {
+                    byte[] newBuffer = new byte[Math.min(
+                            Math.max(newLength, (mFragmentBuffer != null) ? mFragmentBuffer.length * 2 : 0),
+                            mMaxMessageSizeInBytes)];
+
+                    if (mFragmentBuffer != null) {
+                        System.arraycopy(mFragmentBuffer, 0, newBuffer, 0, mFragmentBufferLength);
+                    }
+
+                    mFragmentBuffer = newBuffer;
+                }
+
+                System.arraycopy(buffer, offset + MessageFrameCodec.FRAGMENT_HEADER_LENGTH_IN_BYTES,
+                        mFragmentBuffer, mFragmentBufferLength, fragmentLength);
+                mFragmentBufferLength = newLength;
+            }
+        }
+
+        if (isLast) {
+            byte[] messageBuffer = mFragmentBuffer;
+            int messageLength = mFragmentBufferLength;
+            boolean wasDiscarded = mIsDiscardingFragments;
+            mFragmentBuffer = null; // Not kept, since a large message could pin a large buffer
+            mFragmentBufferLength = 0;
+            mIsDiscardingFragments = false;
+
+            if (wasDiscarded) {
+                releaseCreditOfDroppedMessage(mDiscardedMessageLength);
+                mDiscardedMessageLength = 0;
+            } else {
+                onFrameDecoded(messageType, (messageBuffer != null) ? messageBuffer : new byte[0], 0, messageLength);
+            }
+        }
+    }
+
+    /**
+     * Creates the receive ring and starts the thread delivering its contents to the listener.
+     */
+    private void startDelivery() {
+        final SpscByteRing receiveRing = new SpscByteRing(mReceiveRingCapacityInBytes, mReceiveRingOverflowPolicy);
+        final byte[] batchBuffer = new byte[receiveRing.getCapacity()];
+        mReceiveRing = receiveRing;
+
+        mDeliveryThread = IoExecutor.getDefault().newThread(IoExecutor.Category.DELIVERY, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int numberOfBytesTaken;
+
+                    while ((numberOfBytesTaken = receiveRing.take(batchBuffer, 0, batchBuffer.length)) >= 0
+                            && !mIsShuttingDown) {
+                        if (numberOfBytesTaken > 0) {
+                            mListener.onBytesRead(batchBuffer, numberOfBytesTaken, BluetoothSocketIoThread.this);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped without delivering the rest
+                }
+            }
+        });
+
+        mDeliveryThread.setUncaughtExceptionHandler(getUncaughtExceptionHandler());
+        mDeliveryThread.start();
+    }
+
+    /**
+     * Stops the delivery thread, if running.
+     *
+     * @param deliverRemaining If true, waits until the data left in the ring has been delivered.
+     *                         If false, the rest is discarded.
+     */
+    private void stopDelivery(boolean deliverRemaining) {
+        if (mDeliveryThread == null) {
+            return;
+        }
+
+        mReceiveRing.close();
+
+        if (!deliverRemaining) {
+            mDeliveryThread.interrupt();
+        }
+
+        try {
+            mDeliveryThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "stopDelivery: Interrupted while waiting for the delivery thread (thread ID: " + getId() + ")");
+        }
+
+        mDeliveryThread = null;
+    }
+
+    /**
+     * Waits until the given number of bytes fit the bandwidth limits of this connection.
+     *
+     * @param numberOfBytes The number of bytes about to be written.
+     * @throws IOException Thrown, if the connection was closed or the thread was interrupted
+     *                     while waiting.
+     */
+    private void acquireBandwidth(int numberOfBytes) throws IOException {
+        try {
+            if (!mBandwidthShare.acquire(numberOfBytes)) {
+                throw new IOException("Connection closed");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    /**
+     * Returns the credit of a message dropped before reaching the listener (e.g. one that failed
+     * to decompress). Otherwise the peer would eventually run out of credit for good.
+     *
+     * @param numberOfBytes The number of bytes the peer was charged for the message.
+     */
+    private void releaseCreditOfDroppedMessage(int numberOfBytes) {
+        if (mFlowController != null && numberOfBytes > 0) {
+            mFlowController.onBytesReceived(numberOfBytes);
+            sendCredit(mFlowController.onBytesConsumed(numberOfBytes));
+        }
+    }
+
+    /**
+     * Resolves the number of bytes the peer was charged for the given message. The credit is
+     * based on the uncompressed length, which a compressed payload starts with (see
+     * FrameCompressor).
+     *
+     * @param type The message type.
+     * @param buffer The array containing the (possibly compressed) payload or its beginning.
+     * @param offset The offset of the payload in the array.
+     * @param length The length of the payload.
+     * @return The charged length. The given length, if the uncompressed length cannot be read.
+     */
+    private int getChargedLength(byte type, byte[] buffer, int offset, int length) {
+        if ((type & MessageFrameCodec.FLAG_COMPRESSED) != 0) {
+            try {
+                int originalLength = MessageFrameCodec.readVarInt(buffer, offset, length);
+
+                if (originalLength >= 0 && originalLength <= mMaxMessageSizeInBytes) {
+                    return originalLength;
+                }
+            } catch (IOException e) {
+                // Fall back to the compressed length
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Enqueues a credit frame to the control lane of the writer thread (see SocketWriterThread).
+     * The frame is written ahead of the queued messages, even while they wait for credit.
+     *
+     * @param numberOfBytes The credit to grant. Nothing is written, if zero or less.
+     */
+    private void sendCredit(int numberOfBytes) {
+        if (numberOfBytes <= 0) {
+            return;
+        }
+
+        byte[] payload = new byte[MessageFrameCodec.getVarIntLength(numberOfBytes)];
+        MessageFrameCodec.writeVarInt(numberOfBytes, payload, 0);
+        enqueueControlFrame(MessageFrameCodec.TYPE_CREDIT, payload);
+    }
+
+    /**
+     * Enqueues a frame consumed by the library (credit or pong) to the control lane of the writer
+     * thread. Never blocks, since this is mostly called from the reader thread: if it blocked on
+     * a full socket, the peer could end up blocked the same way and neither would read again.
+     *
+     * @param type The frame type.
+     * @param payload The frame payload.
+     */
+    private void enqueueControlFrame(byte type, byte[] payload) {
+        if (mOutputStream != null) {
+            getSocketWriterThread().enqueue(
+                    new PendingWrite(payload, true, type, true, PendingWrite.Priority.HIGH, null), false);
+        }
+    }
+
+    /**
+     * Enqueues the given write to the writer thread. Does not block, if called from the reader
+     * thread, since the reader must keep reading the credit the writer may be waiting for.
+     *
+     * @param pendingWrite The write to enqueue.
+     * @return The given write.
+     */
+    private PendingWrite enqueue(PendingWrite pendingWrite) {
+        return getSocketWriterThread().enqueue(pendingWrite, Thread.currentThread() != this);
+    }
+
+    /**
+     * Returns the writer thread of this instance. Creates and starts the thread, if not yet
+     * created.
+     *
+     * @return The writer thread.
+     */
+    private synchronized SocketWriterThread getSocketWriterThread() {
+        if (mSocketWriterThread == null) {
+            mSocketWriterThread = new SocketWriterThread(
+                    mOutputStream, this, mWriteQueueCapacity, mWriteQueueFullPolicy);
+            mSocketWriterThread.setUncaughtExceptionHandler(getUncaughtExceptionHandler());
+            mSocketWriterThread.setCoalescing(mMaxWriteBatchSizeInBytes, mMaxWriteBatchDelayInMilliseconds);
+            mSocketWriterThread.setChunking(mWriteChunkSizeInBytes);
+            mSocketWriterThread.setFlowController(mFlowController);
+            mSocketWriterThread.setFrameCompressor(mFrameCompressor);
+            mSocketWriterThread.setConnectionMetrics(mConnectionMetrics);
+            mSocketWriterThread.setBandwidthShare(mBandwidthShare);
+
+            if (mIsShuttingDown) {
+                // Will fail all writes
+                mSocketWriterThread.shutdown();
+            } else {
+                mSocketWriterThread.start();
+            }
+        }
+
+        return mSocketWriterThread;
+    }
 }
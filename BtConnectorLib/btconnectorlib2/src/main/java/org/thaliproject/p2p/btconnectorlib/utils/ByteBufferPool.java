@@ -0,0 +1,205 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe pool of fixed-size byte buffers (slabs).
+ *
+ * All slabs are allocated when the pool is constructed. Acquiring a buffer never blocks: if the
+ * pool is exhausted, a temporary buffer is allocated instead and the event is recorded in the
+ * exhaustion count. Temporary buffers are discarded when released.
+ *
+ * The leak detection mode, meant for testing, records where each outstanding buffer was acquired
+ * so that buffers never released can be traced back.
+ */
+public class ByteBufferPool {
+    private static final String TAG = ByteBufferPool.class.getName();
+    public static final int DEFAULT_SLAB_SIZE_IN_BYTES = 16 * 1024;
+    public static final int DEFAULT_SLAB_COUNT = 32;
+    private final ConcurrentLinkedQueue<PooledByteBuffer> mFreeBuffers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<PooledByteBuffer, Throwable> mOutstandingBuffers = new ConcurrentHashMap<>();
+    private final int mSlabSizeInBytes;
+    private final int mSlabCount;
+    private final AtomicLong mAcquireCount = new AtomicLong(0);
+    private final AtomicLong mExhaustedCount = new AtomicLong(0);
+    private final AtomicInteger mInUseCount = new AtomicInteger(0);
+    private final AtomicInteger mPeakInUseCount = new AtomicInteger(0);
+    private volatile boolean mLeakDetectionEnabled = false;
+
+    /**
+     * Constructor.
+     *
+     * @param slabSizeInBytes The size of each buffer in bytes.
+     * @param slabCount The number of buffers in the pool.
+     * @throws IllegalArgumentException Thrown, if either of the given values is not positive.
+     */
+    public ByteBufferPool(int slabSizeInBytes, int slabCount) throws IllegalArgumentException {
+        if (slabSizeInBytes <= 0 || slabCount <= 0) {
+            throw new IllegalArgumentException("Invalid slab size (" + slabSizeInBytes
+                    + ") or slab count (" + slabCount + ")");
+        }
+
+        mSlabSizeInBytes = slabSizeInBytes;
+        mSlabCount = slabCount;
+
+        for (int i = 0; i < mSlabCount; ++i) {
+            mFreeBuffers.add(new PooledByteBuffer(this, mSlabSizeInBytes, true));
+        }
+    }
+
+    /**
+     * Constructor. Uses the default slab size and count.
+     */
+    public ByteBufferPool() {
+        this(DEFAULT_SLAB_SIZE_IN_BYTES, DEFAULT_SLAB_COUNT);
+    }
+
+    public int getSlabSize() {
+        return mSlabSizeInBytes;
+    }
+
+    public int getSlabCount() {
+        return mSlabCount;
+    }
+
+    /**
+     * Acquires a buffer from the pool. The returned buffer has a reference count of one.
+     * This method never blocks.
+     *
+     * @return A buffer with the position set to zero and the limit set to the capacity.
+     */
+    public PooledByteBuffer acquire() {
+        PooledByteBuffer buffer = mFreeBuffers.poll();
+
+        if (buffer == null) {
+            long exhaustedCount = mExhaustedCount.incrementAndGet();
+
+            if (exhaustedCount == 1 || exhaustedCount % 1000 == 0) {
+                Log.w(TAG, "acquire: Pool exhausted, allocating a temporary buffer (exhausted "
+                        + exhaustedCount + " time(s) so far)");
+            }
+
+            buffer = new PooledByteBuffer(this, mSlabSizeInBytes, false);
+        }
+
+        buffer.onAcquired();
+        mAcquireCount.incrementAndGet();
+        int inUseCount = mInUseCount.incrementAndGet();
+        int peakInUseCount;
+
+        do {
+            peakInUseCount = mPeakInUseCount.get();
+        } while (inUseCount > peakInUseCount && !mPeakInUseCount.compareAndSet(peakInUseCount, inUseCount));
+
+        if (mLeakDetectionEnabled) {
+            mOutstandingBuffers.put(buffer, new Throwable("Buffer acquired here"));
+        }
+
+        return buffer;
+    }
+
+    /**
+     * @return The total number of acquire() calls.
+     */
+    public long getAcquireCount() {
+        return mAcquireCount.get();
+    }
+
+    /**
+     * @return The number of times the pool was exhausted and a temporary buffer was allocated.
+     */
+    public long getExhaustedCount() {
+        return mExhaustedCount.get();
+    }
+
+    /**
+     * @return The number of buffers currently acquired and not yet released.
+     */
+    public int getInUseCount() {
+        return mInUseCount.get();
+    }
+
+    /**
+     * @return The highest number of buffers in use at the same time.
+     */
+    public int getPeakInUseCount() {
+        return mPeakInUseCount.get();
+    }
+
+    /**
+     * @return The number of pooled buffers currently available.
+     */
+    public int getAvailableCount() {
+        return mFreeBuffers.size();
+    }
+
+    public boolean getLeakDetectionEnabled() {
+        return mLeakDetectionEnabled;
+    }
+
+    /**
+     * Enables or disables the leak detection mode. When enabled, a stack trace is captured on
+     * every acquire() call, which is costly. Thus, the mode is intended for tests only.
+     *
+     * @param enabled If true, will enable the leak detection.
+     */
+    public void setLeakDetectionEnabled(boolean enabled) {
+        mLeakDetectionEnabled = enabled;
+
+        if (!enabled) {
+            mOutstandingBuffers.clear();
+        }
+    }
+
+    /**
+     * Returns the stack traces of where the currently outstanding buffers were acquired.
+     * Only buffers acquired while the leak detection mode was enabled are tracked.
+     *
+     * @return A list of throwables, one per outstanding buffer.
+     */
+    public List<Throwable> getOutstandingBufferTraces() {
+        return new ArrayList<>(mOutstandingBuffers.values());
+    }
+
+    /**
+     * Logs the acquisition traces of all outstanding buffers.
+     *
+     * @return The number of outstanding buffers found.
+     */
+    public int reportLeaks() {
+        int numberOfLeaks = 0;
+
+        for (Throwable trace : mOutstandingBuffers.values()) {
+            Log.e(TAG, "reportLeaks: Buffer not released", trace);
+            numberOfLeaks++;
+        }
+
+        return numberOfLeaks;
+    }
+
+    /**
+     * Called by PooledByteBuffer when its reference count drops to zero.
+     *
+     * @param buffer The released buffer.
+     */
+    /* Package */ void recycle(PooledByteBuffer buffer) {
+        mInUseCount.decrementAndGet();
+
+        if (mLeakDetectionEnabled) {
+            mOutstandingBuffers.remove(buffer);
+        }
+
+        if (buffer.isPooled()) {
+            mFreeBuffers.offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free transfer metrics of a single connection (BluetoothSocketIoThread).
+ *
+ * Every connection also updates the process-wide aggregate (see getAggregate()), which sums up
+ * the metrics of all connections created so far.
+ */
+public class ConnectionMetrics {
+    /**
+     * An immutable snapshot of the metrics.
+     */
+    public static class Snapshot {
+        private final long mCreatedTime;
+        private final long mSnapshotTime;
+        private final long mNumberOfBytesRead;
+        private final long mNumberOfBytesWritten;
+        private final long mNumberOfReads;
+        private final long mNumberOfWrites;
+        private final long mLastReadTime;
+        private final long mLastWriteTime;
+        private final long mNumberOfConnections;
+        private final long mNumberOfOpenConnections;
+        private final Histogram.Snapshot mReadSizeHistogram;
+        private final Histogram.Snapshot mWriteDurationHistogram;
+
+        private Snapshot(ConnectionMetrics connectionMetrics) {
+            mCreatedTime = connectionMetrics.mCreatedTime;
+            mSnapshotTime = System.currentTimeMillis();
+            mNumberOfBytesRead = connectionMetrics.mNumberOfBytesRead.get();
+            mNumberOfBytesWritten = connectionMetrics.mNumberOfBytesWritten.get();
+            mNumberOfReads = connectionMetrics.mNumberOfReads.get();
+            mNumberOfWrites = connectionMetrics.mNumberOfWrites.get();
+            mLastReadTime = connectionMetrics.mLastReadTime.get();
+            mLastWriteTime = connectionMetrics.mLastWriteTime.get();
+            mNumberOfConnections = connectionMetrics.mNumberOfConnections.get();
+            mNumberOfOpenConnections = connectionMetrics.mNumberOfOpenConnections.get();
+            mReadSizeHistogram = connectionMetrics.mReadSizeHistogram.getSnapshot();
+            mWriteDurationHistogram = connectionMetrics.mWriteDurationHistogram.getSnapshot();
+        }
+
+        /**
+         * @return The time the metrics were created (System.currentTimeMillis()).
+         */
+        public long getCreatedTime() {
+            return mCreatedTime;
+        }
+
+        /**
+         * @return The time this snapshot was taken (System.currentTimeMillis()).
+         */
+        public long getSnapshotTime() {
+            return mSnapshotTime;
+        }
+
+        public long getNumberOfBytesRead() {
+            return mNumberOfBytesRead;
+        }
+
+        public long getNumberOfBytesWritten() {
+            return mNumberOfBytesWritten;
+        }
+
+        public long getNumberOfReads() {
+            return mNumberOfReads;
+        }
+
+        public long getNumberOfWrites() {
+            return mNumberOfWrites;
+        }
+
+        /**
+         * @return The time of the latest read (System.currentTimeMillis()) or zero, if none.
+         */
+        public long getLastReadTime() {
+            return mLastReadTime;
+        }
+
+        /**
+         * @return The time of the latest write (System.currentTimeMillis()) or zero, if none.
+         */
+        public long getLastWriteTime() {
+            return mLastWriteTime;
+        }
+
+        /**
+         * @return The time of the latest read or write or zero, if none.
+         */
+        public long getLastActivityTime() {
+            return Math.max(mLastReadTime, mLastWriteTime);
+        }
+
+        /**
+         * @return The number of connections included in these metrics (one for a single
+         * connection).
+         */
+        public long getNumberOfConnections() {
+            return mNumberOfConnections;
+        }
+
+        /**
+         * @return The number of connections included in these metrics that are still open.
+         */
+        public long getNumberOfOpenConnections() {
+            return mNumberOfOpenConnections;
+        }
+
+        /**
+         * @return The histogram of the number of bytes returned by the read calls.
+         */
+        public Histogram.Snapshot getReadSizeHistogram() {
+            return mReadSizeHistogram;
+        }
+
+        /**
+         * @return The histogram of the write call durations in microseconds.
+         */
+        public Histogram.Snapshot getWriteDurationHistogram() {
+            return mWriteDurationHistogram;
+        }
+
+        /**
+         * @return The average read throughput since the creation in bytes per second.
+         */
+        public double getReadThroughput() {
+            return calculateThroughput(mNumberOfBytesRead);
+        }
+
+        /**
+         * @return The average write throughput since the creation in bytes per second.
+         */
+        public double getWriteThroughput() {
+            return calculateThroughput(mNumberOfBytesWritten);
+        }
+
+        /**
+         * Calculates the throughput between this and an earlier snapshot of the same metrics.
+         *
+         * @param earlierSnapshot The earlier snapshot.
+         * @return The read and the write throughput combined in bytes per second.
+         */
+        public double getThroughputSince(Snapshot earlierSnapshot) {
+            long elapsedTimeInMilliseconds = mSnapshotTime - earlierSnapshot.mSnapshotTime;
+
+            if (elapsedTimeInMilliseconds <= 0) {
+                return 0d;
+            }
+
+            long numberOfBytes = (mNumberOfBytesRead - earlierSnapshot.mNumberOfBytesRead)
+                    + (mNumberOfBytesWritten - earlierSnapshot.mNumberOfBytesWritten);
+            return numberOfBytes * 1000d / elapsedTimeInMilliseconds;
+        }
+
+        private double calculateThroughput(long numberOfBytes) {
+            long elapsedTimeInMilliseconds = mSnapshotTime - mCreatedTime;
+            return (elapsedTimeInMilliseconds > 0) ? numberOfBytes * 1000d / elapsedTimeInMilliseconds : 0d;
+        }
+
+        @Override
+        public String toString() {
+            return "[read: " + mNumberOfBytesRead + " bytes in " + mNumberOfReads + " reads"
+                    + ", written: " + mNumberOfBytesWritten + " bytes in " + mNumberOfWrites + " writes"
+                    + ", connections: " + mNumberOfOpenConnections + "/" + mNumberOfConnections
+                    + ", read sizes: " + mReadSizeHistogram
+                    + ", write durations (us): " + mWriteDurationHistogram + "]";
+        }
+    }
+
+    private static final ConnectionMetrics AGGREGATE = new ConnectionMetrics(null);
+    private final ConnectionMetrics mAggregate;
+    private final long mCreatedTime = System.currentTimeMillis();
+    private final AtomicLong mNumberOfBytesRead = new AtomicLong(0);
+    private final AtomicLong mNumberOfBytesWritten = new AtomicLong(0);
+    private final AtomicLong mNumberOfReads = new AtomicLong(0);
+    private final AtomicLong mNumberOfWrites = new AtomicLong(0);
+    private final AtomicLong mLastReadTime = new AtomicLong(0);
+    private final AtomicLong mLastWriteTime = new AtomicLong(0);
+    private final AtomicLong mNumberOfConnections = new AtomicLong(0);
+    private final AtomicLong mNumberOfOpenConnections = new AtomicLong(0);
+    private final AtomicBoolean mIsClosed = new AtomicBoolean(false);
+    private final Histogram mReadSizeHistogram = new Histogram();
+    private final Histogram mWriteDurationHistogram = new Histogram();
+
+    /**
+     * Constructor for the metrics of a single connection.
+     */
+    public ConnectionMetrics() {
+        this(AGGREGATE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param aggregate The aggregate to update in addition to this. Null for the aggregate itself.
+     */
+    private ConnectionMetrics(ConnectionMetrics aggregate) {
+        mAggregate = aggregate;
+
+        if (mAggregate != null) {
+            mNumberOfConnections.set(1);
+            mNumberOfOpenConnections.set(1);
+            mAggregate.mNumberOfConnections.incrementAndGet();
+            mAggregate.mNumberOfOpenConnections.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The aggregated metrics of all connections.
+     */
+    public static ConnectionMetrics getAggregate() {
+        return AGGREGATE;
+    }
+
+    /**
+     * Records a read.
+     *
+     * @param numberOfBytesRead The number of bytes read.
+     */
+    public void onBytesRead(int numberOfBytesRead) {
+        final long currentTime = System.currentTimeMillis();
+        recordRead(numberOfBytesRead, currentTime);
+
+        if (mAggregate != null) {
+            mAggregate.recordRead(numberOfBytesRead, currentTime);
+        }
+    }
+
+    /**
+     * Records a write.
+     *
+     * @param numberOfBytesWritten The number of bytes written.
+     * @param durationInNanoseconds The duration of the write call.
+     */
+    public void onBytesWritten(int numberOfBytesWritten, long durationInNanoseconds) {
+        final long currentTime = System.currentTimeMillis();
+        final long durationInMicroseconds = durationInNanoseconds / 1000;
+        recordWrite(numberOfBytesWritten, durationInMicroseconds, currentTime);
+
+        if (mAggregate != null) {
+            mAggregate.recordWrite(numberOfBytesWritten, durationInMicroseconds, currentTime);
+        }
+    }
+
+    /**
+     * Marks the connection closed. Only the first call has an effect.
+     */
+    public void onClosed() {
+        if (mAggregate != null && mIsClosed.compareAndSet(false, true)) {
+            mNumberOfOpenConnections.decrementAndGet();
+            mAggregate.mNumberOfOpenConnections.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return A snapshot of the current metrics.
+     */
+    public Snapshot getSnapshot() {
+        return new Snapshot(this);
+    }
+
+    private void recordRead(int numberOfBytesRead, long currentTime) {
+        mNumberOfBytesRead.addAndGet(numberOfBytesRead);
+        mNumberOfReads.incrementAndGet();
+        mReadSizeHistogram.record(numberOfBytesRead);
+        mLastReadTime.set(currentTime);
+    }
+
+    private void recordWrite(int numberOfBytesWritten, long durationInMicroseconds, long currentTime) {
+        mNumberOfBytesWritten.addAndGet(numberOfBytesWritten);
+        mNumberOfWrites.incrementAndGet();
+        mWriteDurationHistogram.record(durationInMicroseconds);
+        mLastWriteTime.set(currentTime);
+    }
+}
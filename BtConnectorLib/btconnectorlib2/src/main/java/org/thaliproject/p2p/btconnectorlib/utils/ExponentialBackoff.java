@@ -0,0 +1,72 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+/**
+ * Decides how long to wait before retrying an operation that keeps failing.
+ *
+ * The delay starts from the initial delay and is doubled after each consecutive failure up to the
+ * maximum delay. A success resets the delay back to the initial one. This class is not
+ * thread-safe; it is meant to be used by the retrying thread only.
+ */
+public class ExponentialBackoff {
+    private final long mInitialDelayInMilliseconds;
+    private final long mMaxDelayInMilliseconds;
+    private long mNextDelayInMilliseconds;
+    private int mNumberOfConsecutiveFailures = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param initialDelayInMilliseconds The delay after the first failure.
+     * @param maxDelayInMilliseconds The maximum delay.
+     * @throws IllegalArgumentException Thrown, if the delays are invalid.
+     */
+    public ExponentialBackoff(long initialDelayInMilliseconds, long maxDelayInMilliseconds)
+            throws IllegalArgumentException {
+        if (initialDelayInMilliseconds <= 0 || maxDelayInMilliseconds < initialDelayInMilliseconds) {
+            throw new IllegalArgumentException("Invalid delays: "
+                    + initialDelayInMilliseconds + " - " + maxDelayInMilliseconds);
+        }
+
+        mInitialDelayInMilliseconds = initialDelayInMilliseconds;
+        mMaxDelayInMilliseconds = maxDelayInMilliseconds;
+        mNextDelayInMilliseconds = initialDelayInMilliseconds;
+    }
+
+    public long getInitialDelay() {
+        return mInitialDelayInMilliseconds;
+    }
+
+    public long getMaxDelay() {
+        return mMaxDelayInMilliseconds;
+    }
+
+    /**
+     * @return The number of failures since the last success.
+     */
+    public int getNumberOfConsecutiveFailures() {
+        return mNumberOfConsecutiveFailures;
+    }
+
+    /**
+     * Records a failure.
+     *
+     * @return The time to wait before the next attempt in milliseconds.
+     */
+    public long onFailure() {
+        long delayInMilliseconds = mNextDelayInMilliseconds;
+        mNextDelayInMilliseconds = Math.min(mNextDelayInMilliseconds * 2, mMaxDelayInMilliseconds);
+        mNumberOfConsecutiveFailures++;
+        return delayInMilliseconds;
+    }
+
+    /**
+     * Records a success, which resets the delay.
+     */
+    public void onSuccess() {
+        mNextDelayInMilliseconds = mInitialDelayInMilliseconds;
+        mNumberOfConsecutiveFailures = 0;
+    }
+}
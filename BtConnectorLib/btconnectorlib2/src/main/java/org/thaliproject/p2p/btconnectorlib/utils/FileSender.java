@@ -0,0 +1,279 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams the contents of a file channel or a memory-mapped region to an output stream in fixed
+ * size slices.
+ *
+ * The slices are reused between the sends, so no garbage is created per chunk and every byte is
+ * copied only once on the Java heap: from the file (or the mapped region) into a slice, whose
+ * backing array is then handed to the output stream as is. Direct buffers are not used on purpose,
+ * since the socket output stream accepts byte arrays only and a direct buffer would have to be
+ * copied into one.
+ *
+ * Optionally, the slices are read ahead on a separate thread (category TRANSFER, see IoExecutor)
+ * so that reading the file and writing to the socket overlap.
+ *
+ * An instance can be used for one send at a time.
+ */
+public class FileSender {
+    /**
+     * A source of data read slice by slice.
+     */
+    private interface Source {
+        /**
+         * Reads the next bytes to the given buffer.
+         *
+         * @param buffer The buffer to fill.
+         * @return The number of bytes read.
+         * @throws IOException Thrown, if reading fails.
+         */
+        int read(ByteBuffer buffer) throws IOException;
+    }
+
+    public static final int DEFAULT_SLICE_SIZE_IN_BYTES = 64 * 1024;
+    public static final int DEFAULT_NUMBER_OF_READ_AHEAD_SLICES = 2;
+    private static final ByteBuffer END_OF_DATA = ByteBuffer.allocate(0);
+    private final int mSliceSizeInBytes;
+    private final int mNumberOfReadAheadSlices;
+    private final ByteBuffer[] mSlices;
+    private long mReadTimeInNanoseconds = 0;
+    private long mWriteTimeInNanoseconds = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param sliceSizeInBytes The slice size, i.e. the number of bytes written with one write call.
+     * @param numberOfReadAheadSlices The number of slices read ahead on a separate thread. Zero
+     *                                means no read-ahead: the slices are read and written in turns
+     *                                by the calling thread.
+     */
+    public FileSender(int sliceSizeInBytes, int numberOfReadAheadSlices) {
+        mSliceSizeInBytes = (sliceSizeInBytes > 0) ? sliceSizeInBytes : DEFAULT_SLICE_SIZE_IN_BYTES;
+        mNumberOfReadAheadSlices = Math.max(numberOfReadAheadSlices, 0);
+        mSlices = new ByteBuffer[mNumberOfReadAheadSlices + 1];
+
+        for (int i = 0; i < mSlices.length; ++i) {
+            mSlices[i] = ByteBuffer.allocate(mSliceSizeInBytes);
+        }
+    }
+
+    /**
+     * Constructor using the default slice size and read-ahead.
+     */
+    public FileSender() {
+        this(DEFAULT_SLICE_SIZE_IN_BYTES, DEFAULT_NUMBER_OF_READ_AHEAD_SLICES);
+    }
+
+    public int getSliceSize() {
+        return mSliceSizeInBytes;
+    }
+
+    public int getNumberOfReadAheadSlices() {
+        return mNumberOfReadAheadSlices;
+    }
+
+    /**
+     * @return The time spent reading during the latest send in nanoseconds. With read-ahead, this
+     * overlaps with the write time.
+     */
+    public long getReadTime() {
+        return mReadTimeInNanoseconds;
+    }
+
+    /**
+     * @return The time spent in the write calls during the latest send in nanoseconds.
+     */
+    public long getWriteTime() {
+        return mWriteTimeInNanoseconds;
+    }
+
+    /**
+     * Sends the given range of the given file channel. The position of the channel is not changed.
+     *
+     * @param fileChannel The file channel.
+     * @param position The position of the first byte to send.
+     * @param count The number of bytes to send.
+     * @param outputStream The stream to write to.
+     * @return The number of bytes sent.
+     * @throws IOException Thrown, if reading or writing fails or the file ends before the given
+     * number of bytes was sent.
+     */
+    public long send(final FileChannel fileChannel, final long position, long count, OutputStream outputStream)
+            throws IOException {
+        if (fileChannel == null || outputStream == null) {
+            throw new NullPointerException("Either the file channel or the output stream is null");
+        }
+
+        return send(new Source() {
+            private long mPosition = position;
+
+            @Override
+            public int read(ByteBuffer buffer) throws IOException {
+                int numberOfBytesRead = fileChannel.read(buffer, mPosition);
+
+                if (numberOfBytesRead < 0) {
+                    throw new IOException("Unexpected end of file at position " + mPosition);
+                }
+
+                mPosition += numberOfBytesRead;
+                return numberOfBytesRead;
+            }
+        }, count, outputStream);
+    }
+
+    /**
+     * Sends the remaining bytes of the given buffer, e.g. a memory-mapped region of a file
+     * (see FileChannel.map()). The position of the given buffer is not changed.
+     *
+     * @param region The buffer.
+     * @param outputStream The stream to write to.
+     * @return The number of bytes sent.
+     * @throws IOException Thrown, if writing fails.
+     */
+    public long send(ByteBuffer region, OutputStream outputStream) throws IOException {
+        if (region == null || outputStream == null) {
+            throw new NullPointerException("Either the region or the output stream is null");
+        }
+
+        final ByteBuffer source = region.duplicate();
+
+        return send(new Source() {
+            @Override
+            public int read(ByteBuffer buffer) {
+                int numberOfBytesToCopy = Math.min(buffer.remaining(), source.remaining());
+                ByteBuffer slice = source.slice();
+                slice.limit(numberOfBytesToCopy);
+                buffer.put(slice);
+                source.position(source.position() + numberOfBytesToCopy);
+                return numberOfBytesToCopy;
+            }
+        }, region.remaining(), outputStream);
+    }
+
+    private long send(Source source, long count, OutputStream outputStream) throws IOException {
+        mReadTimeInNanoseconds = 0;
+        mWriteTimeInNanoseconds = 0;
+
+        if (count <= 0) {
+            return 0;
+        }
+
+        if (mNumberOfReadAheadSlices == 0) {
+            ByteBuffer slice = mSlices[0];
+            long numberOfBytesLeft = count;
+
+            while (numberOfBytesLeft > 0) {
+                readSlice(source, slice, numberOfBytesLeft);
+                writeSlice(slice, outputStream);
+                numberOfBytesLeft -= slice.limit();
+            }
+
+            return count;
+        }
+
+        return sendWithReadAhead(source, count, outputStream);
+    }
+
+    private long sendWithReadAhead(final Source source, final long count, OutputStream outputStream)
+            throws IOException {
+        final BlockingQueue<ByteBuffer> freeSlices = new ArrayBlockingQueue<>(mSlices.length);
+        final BlockingQueue<ByteBuffer> filledSlices = new ArrayBlockingQueue<>(mSlices.length + 1);
+        final IOException[] readFailure = new IOException[1];
+
+        for (ByteBuffer slice : mSlices) {
+            freeSlices.add(slice);
+        }
+
+        Thread readerThread = IoExecutor.getDefault().newThread(IoExecutor.Category.TRANSFER, new Runnable() {
+            @Override
+            public void run() {
+                long numberOfBytesLeft = count;
+
+                try {
+                    while (numberOfBytesLeft > 0) {
+                        ByteBuffer slice = freeSlices.take();
+                        readSlice(source, slice, numberOfBytesLeft);
+                        numberOfBytesLeft -= slice.limit();
+                        filledSlices.put(slice);
+                    }
+                } catch (IOException e) {
+                    readFailure[0] = e;
+                } catch (InterruptedException e) {
+                    // Cancelled by the writer
+                }
+
+                filledSlices.offer(END_OF_DATA);
+            }
+        });
+
+        readerThread.start();
+        long numberOfBytesSent = 0;
+
+        try {
+            while (true) {
+                ByteBuffer slice = filledSlices.take();
+
+                if (slice == END_OF_DATA) {
+                    break;
+                }
+
+                writeSlice(slice, outputStream);
+                numberOfBytesSent += slice.limit();
+                freeSlices.put(slice);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while sending");
+        } finally {
+            readerThread.interrupt();
+
+            try {
+                readerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (readFailure[0] != null) {
+            throw readFailure[0];
+        }
+
+        return numberOfBytesSent;
+    }
+
+    /**
+     * Fills the given slice from the given source.
+     *
+     * @param source The source.
+     * @param slice The slice. The limit is set to the number of bytes read.
+     * @param numberOfBytesLeft The number of bytes left to send.
+     */
+    private void readSlice(Source source, ByteBuffer slice, long numberOfBytesLeft) throws IOException {
+        long startTime = System.nanoTime();
+        slice.clear();
+        slice.limit((int) Math.min(slice.capacity(), numberOfBytesLeft));
+
+        while (slice.hasRemaining()) {
+            source.read(slice);
+        }
+
+        slice.flip();
+        mReadTimeInNanoseconds += System.nanoTime() - startTime;
+    }
+
+    private void writeSlice(ByteBuffer slice, OutputStream outputStream) throws IOException {
+        long startTime = System.nanoTime();
+        outputStream.write(slice.array(), slice.arrayOffset(), slice.limit());
+        mWriteTimeInNanoseconds += System.nanoTime() - startTime;
+    }
+}
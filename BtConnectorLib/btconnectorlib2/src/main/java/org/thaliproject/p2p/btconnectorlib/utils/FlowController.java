@@ -0,0 +1,270 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+
+/**
+ * Credit-based flow control for a single framed connection.
+ *
+ * Both directions are handled by one instance:
+ *
+ * Sending: The peer grants us credit in bytes (see MessageFrameCodec.TYPE_CREDIT). Each message
+ * sent consumes credit equal to its payload length. When out of credit, the sender waits until
+ * the peer grants more. A message larger than the whole window is let through once the credit
+ * equals the window of the peer so that it cannot stall forever; the credit then goes negative until the peer
+ * has consumed the message.
+ *
+ * Receiving: We grant the peer an initial window of credit. As the received messages are
+ * consumed, the credit is handed back to the peer in grants of at least a quarter of the window
+ * so that the peer never has more than the window of data in flight towards us.
+ *
+ * Both peers must enable flow control; a sender waits for the initial grant before sending its
+ * first message.
+ */
+public class FlowController {
+    private static final String TAG = FlowController.class.getName();
+    public static final int DEFAULT_RECEIVE_WINDOW_SIZE_IN_BYTES = 256 * 1024;
+    private final int mReceiveWindowSizeInBytes;
+    private final int mGrantThresholdInBytes;
+    private long mSendCredit = 0; // Guarded by this
+    private int mPeerWindowSizeInBytes = 0; // The initial grant of the peer, guarded by this
+    private boolean mIsClosed = false; // Guarded by this
+    private long mNumberOfStalls = 0; // Guarded by this
+    private long mTotalStallTimeInNanoseconds = 0; // Guarded by this
+    private long mUnconsumedBytes = 0; // Guarded by this
+    private long mPeakUnconsumedBytes = 0; // Guarded by this
+    private long mConsumedBytesNotGranted = 0; // Guarded by this
+    private long mWakeUpCount = 0; // Guarded by this
+
+    /**
+     * Constructor.
+     *
+     * @param receiveWindowSizeInBytes The maximum number of bytes the peer may send without us
+     *                                 consuming them.
+     * @throws IllegalArgumentException Thrown, if the window size is not positive.
+     */
+    public FlowController(int receiveWindowSizeInBytes) throws IllegalArgumentException {
+        if (receiveWindowSizeInBytes <= 0) {
+            throw new IllegalArgumentException("Invalid receive window size: " + receiveWindowSizeInBytes);
+        }
+
+        mReceiveWindowSizeInBytes = receiveWindowSizeInBytes;
+        mGrantThresholdInBytes = Math.max(receiveWindowSizeInBytes / 4, 1);
+    }
+
+    public int getReceiveWindowSize() {
+        return mReceiveWindowSizeInBytes;
+    }
+
+    /**
+     * @return The credit currently available for sending. Can be negative after a message larger
+     * than the window was sent.
+     */
+    public synchronized long getSendCredit() {
+        return mSendCredit;
+    }
+
+    /**
+     * @return The number of times a sender had to wait for credit.
+     */
+    public synchronized long getNumberOfStalls() {
+        return mNumberOfStalls;
+    }
+
+    /**
+     * @return The total time senders have waited for credit in milliseconds.
+     */
+    public synchronized long getTotalStallTime() {
+        return mTotalStallTimeInNanoseconds / 1000000;
+    }
+
+    /**
+     * @return The number of received bytes not yet consumed.
+     */
+    public synchronized long getUnconsumedBytes() {
+        return mUnconsumedBytes;
+    }
+
+    /**
+     * @return The highest number of received bytes not consumed at the same time.
+     */
+    public synchronized long getPeakUnconsumedBytes() {
+        return mPeakUnconsumedBytes;
+    }
+
+    /**
+     * Waits until there is enough credit to send the given number of bytes and consumes it.
+     *
+     * @param numberOfBytes The number of bytes to send.
+     * @return True, if the credit was acquired. False, if this instance was closed.
+     * @throws InterruptedException Thrown, if the calling thread is interrupted while waiting.
+     */
+    public synchronized boolean acquireSendCredit(int numberOfBytes) throws InterruptedException {
+        return acquireSendCredit(numberOfBytes, -1);
+    }
+
+    /**
+     * Waits until there is enough credit to send the given number of bytes and consumes it, but
+     * gives up as soon as wakeUpSenders() has been called since the given wake up count was read.
+     * This lets a sender, which has other work to do (e.g. the writer thread having credit frames
+     * to write), wait for the credit without missing the work.
+     *
+     * @param numberOfBytes The number of bytes to send.
+     * @param wakeUpCount The value of getWakeUpCount() read before the sender last checked for
+     *                    other work. A negative value waits regardless of wake ups.
+     * @return True, if the credit was acquired. False, if this instance was closed (see
+     * isClosed()) or the sender was woken up.
+     * @throws InterruptedException Thrown, if the calling thread is interrupted while waiting.
+     */
+    public synchronized boolean acquireSendCredit(int numberOfBytes, long wakeUpCount) throws InterruptedException {
+        if (!mIsClosed && !hasSendCredit(numberOfBytes) && !isWokenUp(wakeUpCount)) {
+            long stallStartTime = System.nanoTime();
+            mNumberOfStalls++;
+
+            try {
+                while (!mIsClosed && !hasSendCredit(numberOfBytes) && !isWokenUp(wakeUpCount)) {
+                    wait();
+                }
+            } finally {
+                mTotalStallTimeInNanoseconds += System.nanoTime() - stallStartTime;
+            }
+        }
+
+        if (mIsClosed || !hasSendCredit(numberOfBytes)) {
+            return false;
+        }
+
+        mSendCredit -= numberOfBytes;
+        return true;
+    }
+
+    /**
+     * Consumes the credit to send the given number of bytes, if there is enough credit available
+     * right now. Never waits.
+     *
+     * @param numberOfBytes The number of bytes to send.
+     * @return True, if the credit was acquired. False, if there is not enough credit or this
+     * instance was closed.
+     */
+    public synchronized boolean tryAcquireSendCredit(int numberOfBytes) {
+        if (mIsClosed || !hasSendCredit(numberOfBytes)) {
+            return false;
+        }
+
+        mSendCredit -= numberOfBytes;
+        return true;
+    }
+
+    /**
+     * Adds the credit granted by the peer and wakes up the waiting senders.
+     *
+     * @param numberOfBytes The number of bytes granted.
+     */
+    public synchronized void onSendCreditGranted(int numberOfBytes) {
+        if (numberOfBytes <= 0) {
+            Log.w(TAG, "onSendCreditGranted: Ignoring invalid grant: " + numberOfBytes);
+            return;
+        }
+
+        if (mPeerWindowSizeInBytes == 0) {
+            mPeerWindowSizeInBytes = numberOfBytes;
+        }
+
+        mSendCredit += numberOfBytes;
+        notifyAll();
+    }
+
+    /**
+     * @return The credit to grant to the peer when the connection is established.
+     */
+    public int getInitialGrant() {
+        return mReceiveWindowSizeInBytes;
+    }
+
+    /**
+     * Records received bytes, which now wait to be consumed.
+     *
+     * @param numberOfBytes The number of bytes received.
+     */
+    public synchronized void onBytesReceived(int numberOfBytes) {
+        mUnconsumedBytes += numberOfBytes;
+
+        if (mUnconsumedBytes > mPeakUnconsumedBytes) {
+            mPeakUnconsumedBytes = mUnconsumedBytes;
+        }
+    }
+
+    /**
+     * Records consumed bytes and returns the credit to grant back to the peer, if any.
+     *
+     * @param numberOfBytes The number of bytes consumed.
+     * @return The credit to grant to the peer now or zero, if the credit should be held back
+     * until more bytes are consumed.
+     */
+    public synchronized int onBytesConsumed(int numberOfBytes) {
+        numberOfBytes = (int) Math.min(numberOfBytes, mUnconsumedBytes);
+
+        if (numberOfBytes <= 0) {
+            return 0;
+        }
+
+        mUnconsumedBytes -= numberOfBytes;
+        mConsumedBytesNotGranted += numberOfBytes;
+
+        if (mConsumedBytesNotGranted < mGrantThresholdInBytes) {
+            return 0;
+        }
+
+        int grant = (int) mConsumedBytesNotGranted;
+        mConsumedBytesNotGranted = 0;
+        return grant;
+    }
+
+    /**
+     * @param numberOfBytes The number of bytes to send.
+     * @return True, if there is enough credit to send the given number of bytes. A message larger
+     * than the window of the peer needs a full window of credit.
+     */
+    private boolean hasSendCredit(int numberOfBytes) {
+        return (mPeerWindowSizeInBytes > 0
+                && mSendCredit >= Math.min(numberOfBytes, mPeerWindowSizeInBytes));
+    }
+
+    /**
+     * @return The number of times wakeUpSenders() has been called.
+     */
+    public synchronized long getWakeUpCount() {
+        return mWakeUpCount;
+    }
+
+    /**
+     * Makes the senders waiting with a wake up count (see acquireSendCredit(int, long)) give up
+     * waiting. Does not affect the credit.
+     */
+    public synchronized void wakeUpSenders() {
+        mWakeUpCount++;
+        notifyAll();
+    }
+
+    public synchronized boolean isClosed() {
+        return mIsClosed;
+    }
+
+    /**
+     * @param wakeUpCount The wake up count read by the sender or a negative value, if none.
+     * @return True, if wakeUpSenders() has been called since the given count was read.
+     */
+    private boolean isWokenUp(long wakeUpCount) {
+        return (wakeUpCount >= 0 && wakeUpCount != mWakeUpCount);
+    }
+
+    /**
+     * Wakes up all waiting senders. Any further attempts to acquire credit fail.
+     */
+    public synchronized void close() {
+        mIsClosed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,341 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses message payloads of a single connection.
+ *
+ * The Deflater and Inflater instances are created once and reused for every frame. Each frame is
+ * compressed independently; the layout of a compressed payload is:
+ *
+ * [original payload length as a varint][deflate data]
+ *
+ * Payloads smaller than the threshold are not compressed, nor are the ones that would not get
+ * smaller. The caller marks the compressed frames with MessageFrameCodec.FLAG_COMPRESSED.
+ *
+ * The work buffers are reused between the frames up to MAX_RETAINED_BUFFER_SIZE_IN_BYTES. A larger
+ * frame gets a buffer of its own so that a single large message does not pin the memory for the
+ * lifetime of the connection.
+ *
+ * Compression may be done from multiple threads; decompression is meant to be done by the reader
+ * thread only.
+ */
+public class FrameCompressor {
+    /**
+     * An immutable snapshot of the compression statistics.
+     */
+    public static class Statistics {
+        private final long mNumberOfFramesCompressed;
+        private final long mNumberOfFramesNotCompressed;
+        private final long mNumberOfBytesBeforeCompression;
+        private final long mNumberOfBytesAfterCompression;
+        private final long mCompressionTimeInNanoseconds;
+        private final long mNumberOfFramesDecompressed;
+        private final long mNumberOfBytesBeforeDecompression;
+        private final long mNumberOfBytesAfterDecompression;
+        private final long mDecompressionTimeInNanoseconds;
+
+        private Statistics(FrameCompressor frameCompressor) {
+            mNumberOfFramesCompressed = frameCompressor.mNumberOfFramesCompressed;
+            mNumberOfFramesNotCompressed = frameCompressor.mNumberOfFramesNotCompressed;
+            mNumberOfBytesBeforeCompression = frameCompressor.mNumberOfBytesBeforeCompression;
+            mNumberOfBytesAfterCompression = frameCompressor.mNumberOfBytesAfterCompression;
+            mCompressionTimeInNanoseconds = frameCompressor.mCompressionTimeInNanoseconds;
+            mNumberOfFramesDecompressed = frameCompressor.mNumberOfFramesDecompressed;
+            mNumberOfBytesBeforeDecompression = frameCompressor.mNumberOfBytesBeforeDecompression;
+            mNumberOfBytesAfterDecompression = frameCompressor.mNumberOfBytesAfterDecompression;
+            mDecompressionTimeInNanoseconds = frameCompressor.mDecompressionTimeInNanoseconds;
+        }
+
+        public long getNumberOfFramesCompressed() {
+            return mNumberOfFramesCompressed;
+        }
+
+        /**
+         * @return The number of frames sent uncompressed, because they were either below the
+         * threshold or did not compress.
+         */
+        public long getNumberOfFramesNotCompressed() {
+            return mNumberOfFramesNotCompressed;
+        }
+
+        public long getNumberOfBytesBeforeCompression() {
+            return mNumberOfBytesBeforeCompression;
+        }
+
+        public long getNumberOfBytesAfterCompression() {
+            return mNumberOfBytesAfterCompression;
+        }
+
+        /**
+         * @return The total time spent compressing (including the attempts that did not pay off)
+         * in milliseconds.
+         */
+        public double getCompressionTime() {
+            return mCompressionTimeInNanoseconds / 1000000d;
+        }
+
+        /**
+         * @return The compressed size divided by the original size of the compressed frames.
+         * E.g. 0.25 means that the compressed frames took a quarter of their original size.
+         */
+        public double getCompressionRatio() {
+            return (mNumberOfBytesBeforeCompression > 0)
+                    ? (double) mNumberOfBytesAfterCompression / mNumberOfBytesBeforeCompression : 1d;
+        }
+
+        public long getNumberOfFramesDecompressed() {
+            return mNumberOfFramesDecompressed;
+        }
+
+        public long getNumberOfBytesBeforeDecompression() {
+            return mNumberOfBytesBeforeDecompression;
+        }
+
+        public long getNumberOfBytesAfterDecompression() {
+            return mNumberOfBytesAfterDecompression;
+        }
+
+        /**
+         * @return The total time spent decompressing in milliseconds.
+         */
+        public double getDecompressionTime() {
+            return mDecompressionTimeInNanoseconds / 1000000d;
+        }
+
+        @Override
+        public String toString() {
+            return "[compressed: " + mNumberOfFramesCompressed
+                    + " (" + mNumberOfBytesBeforeCompression + " -> " + mNumberOfBytesAfterCompression
+                    + " bytes, ratio " + String.format("%.3f", getCompressionRatio())
+                    + ", " + String.format("%.1f", getCompressionTime()) + " ms)"
+                    + ", not compressed: " + mNumberOfFramesNotCompressed
+                    + ", decompressed: " + mNumberOfFramesDecompressed
+                    + " (" + mNumberOfBytesBeforeDecompression + " -> " + mNumberOfBytesAfterDecompression
+                    + " bytes, " + String.format("%.1f", getDecompressionTime()) + " ms)]";
+        }
+    }
+
+    public static final int DEFAULT_THRESHOLD_IN_BYTES = 256;
+    public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+    public static final int MAX_RETAINED_BUFFER_SIZE_IN_BYTES = 64 * 1024;
+    private final int mThresholdInBytes;
+    private final Object mDeflaterLock = new Object();
+    private final Object mInflaterLock = new Object();
+    private Deflater mDeflater; // Guarded by mDeflaterLock
+    private Inflater mInflater; // Guarded by mInflaterLock
+    private byte[] mDeflateBuffer = new byte[0]; // Guarded by mDeflaterLock
+    private byte[] mInflateBuffer = new byte[0]; // Guarded by mInflaterLock
+    private int mLastDecompressedLength = 0; // Guarded by mInflaterLock
+
+    // The statistics, guarded by the lock of the respective direction
+    private long mNumberOfFramesCompressed = 0;
+    private long mNumberOfFramesNotCompressed = 0;
+    private long mNumberOfBytesBeforeCompression = 0;
+    private long mNumberOfBytesAfterCompression = 0;
+    private long mCompressionTimeInNanoseconds = 0;
+    private long mNumberOfFramesDecompressed = 0;
+    private long mNumberOfBytesBeforeDecompression = 0;
+    private long mNumberOfBytesAfterDecompression = 0;
+    private long mDecompressionTimeInNanoseconds = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param thresholdInBytes Payloads smaller than this are not compressed.
+     * @param compressionLevel The compression level (see Deflater).
+     */
+    public FrameCompressor(int thresholdInBytes, int compressionLevel) {
+        mThresholdInBytes = Math.max(thresholdInBytes, 1);
+        mDeflater = new Deflater(compressionLevel);
+        mInflater = new Inflater();
+    }
+
+    /**
+     * Constructor. Uses the default threshold and compression level.
+     */
+    public FrameCompressor() {
+        this(DEFAULT_THRESHOLD_IN_BYTES, DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    public int getThreshold() {
+        return mThresholdInBytes;
+    }
+
+    /**
+     * Compresses the given payload, if worth it.
+     *
+     * @param payload The payload to compress.
+     * @return The compressed payload or null, if the payload should be sent uncompressed.
+     */
+    public byte[] compress(byte[] payload) {
+        synchronized (mDeflaterLock) {
+            if (mDeflater == null || payload.length < mThresholdInBytes) {
+                mNumberOfFramesNotCompressed++;
+                return null;
+            }
+
+            final long startTime = System.nanoTime();
+            final int headerLength = MessageFrameCodec.getVarIntLength(payload.length);
+
+            // Not worth it, if the result does not fit in a buffer smaller than the payload
+            final int maxLength = payload.length - 1;
+
+            if (maxLength <= headerLength) {
+                // Not even the header would fit
+                mNumberOfFramesNotCompressed++;
+                return null;
+            }
+
+            byte[] deflateBuffer = mDeflateBuffer;
+
+            if (deflateBuffer.length < maxLength) {
+                deflateBuffer = new byte[maxLength];
+
+                if (maxLength <= MAX_RETAINED_BUFFER_SIZE_IN_BYTES) {
+                    mDeflateBuffer = deflateBuffer;
+                }
+            }
+
+            MessageFrameCodec.writeVarInt(payload.length, deflateBuffer, 0);
+            mDeflater.reset();
+            mDeflater.setInput(payload);
+            mDeflater.finish();
+            int length = headerLength;
+
+            while (!mDeflater.finished() && length < maxLength) {
+                length += mDeflater.deflate(deflateBuffer, length, maxLength - length);
+            }
+
+            byte[] compressedPayload = null;
+
+            if (mDeflater.finished()) {
+                compressedPayload = new byte[length];
+                System.arraycopy(deflateBuffer, 0, compressedPayload, 0, length);
+                mNumberOfFramesCompressed++;
+                mNumberOfBytesBeforeCompression += payload.length;
+                mNumberOfBytesAfterCompression += length;
+            } else {
+                mNumberOfFramesNotCompressed++;
+            }
+
+            mCompressionTimeInNanoseconds += System.nanoTime() - startTime;
+            return compressedPayload;
+        }
+    }
+
+    /**
+     * Decompresses the given payload. The returned array may be reused by the next call. Thus, the
+     * contents are valid only until then.
+     *
+     * @param bytes The array containing the compressed payload.
+     * @param offset The offset of the payload in the array.
+     * @param length The length of the payload.
+     * @param maxLength The maximum accepted length of the decompressed payload.
+     * @return The array containing the decompressed payload starting from index zero. The length
+     * of the payload is given by getLastDecompressedLength().
+     * @throws IOException Thrown, if the payload is invalid or this instance has been disposed of.
+     */
+    public byte[] decompress(byte[] bytes, int offset, int length, int maxLength) throws IOException {
+        synchronized (mInflaterLock) {
+            if (mInflater == null) {
+                throw new IOException("Disposed of");
+            }
+
+            final long startTime = System.nanoTime();
+            final int originalLength = MessageFrameCodec.readVarInt(bytes, offset, length);
+            final int headerLength = MessageFrameCodec.getVarIntLength(originalLength);
+
+            if (originalLength < 0 || originalLength > maxLength) {
+                throw new IOException("Invalid decompressed length: " + originalLength);
+            }
+
+            byte[] inflateBuffer = mInflateBuffer;
+
+            if (inflateBuffer.length < originalLength) {
+                inflateBuffer = new byte[originalLength];
+
+                if (originalLength <= MAX_RETAINED_BUFFER_SIZE_IN_BYTES) {
+                    mInflateBuffer = inflateBuffer;
+                }
+            }
+
+            mInflater.reset();
+            mInflater.setInput(bytes, offset + headerLength, length - headerLength);
+            int decompressedLength = 0;
+
+            try {
+                while (!mInflater.finished() && decompressedLength < originalLength) {
+                    int numberOfBytesInflated = mInflater.inflate(
+                            inflateBuffer, decompressedLength, originalLength - decompressedLength);
+
+                    if (numberOfBytesInflated == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                        break;
+                    }
+
+                    decompressedLength += numberOfBytesInflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed data: " + e.getMessage());
+            }
+
+            if (decompressedLength != originalLength || !mInflater.finished()) {
+                throw new IOException("Invalid compressed data: Got " + decompressedLength
+                        + " bytes, but was expecting " + originalLength);
+            }
+
+            mLastDecompressedLength = decompressedLength;
+            mNumberOfFramesDecompressed++;
+            mNumberOfBytesBeforeDecompression += length;
+            mNumberOfBytesAfterDecompression += decompressedLength;
+            mDecompressionTimeInNanoseconds += System.nanoTime() - startTime;
+            return inflateBuffer;
+        }
+    }
+
+    /**
+     * @return The length of the payload returned by the latest decompress() call.
+     */
+    public int getLastDecompressedLength() {
+        synchronized (mInflaterLock) {
+            return mLastDecompressedLength;
+        }
+    }
+
+    /**
+     * @return A snapshot of the statistics.
+     */
+    public Statistics getStatistics() {
+        synchronized (mDeflaterLock) {
+            synchronized (mInflaterLock) {
+                return new Statistics(this);
+            }
+        }
+    }
+
+    /**
+     * Releases the native resources. Payloads are no longer compressed after this, and trying to
+     * decompress fails.
+     */
+    public void dispose() {
+        synchronized (mDeflaterLock) {
+            if (mDeflater != null) {
+                mDeflater.end();
+                mDeflater = null;
+            }
+        }
+
+        synchronized (mInflaterLock) {
+            if (mInflater != null) {
+                mInflater.end();
+                mInflater = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects unresponsive peers by sending heartbeats (ping frames) on an idle connection and
+ * measures the round trip time from the replies (pong frames).
+ *
+ * A heartbeat is due only when nothing has been received during the last interval; any received
+ * data proves that the peer is alive, so busy connections send no heartbeats at all. When the
+ * peer has not sent anything during the given number of consecutive intervals after a ping, the
+ * peer is declared unresponsive.
+ *
+ * The ping payload identifies the ping by the time it was requested (System.nanoTime()) as 8
+ * bytes, which the peer echoes back in the pong. The round trip time is measured from the moment
+ * the ping has actually been written (see onPingSent()) so that a backed up write queue does not
+ * inflate it. The missed heartbeats, however, are counted from the request time as long as the
+ * ping has not been written: a writer blocked for several intervals means that the peer has
+ * stopped reading, which is no different from not replying. The smoothed round trip time and its
+ * variation are calculated as in RFC 6298.
+ */
+public class HeartbeatMonitor {
+    public interface Listener {
+        /**
+         * Called when a ping frame should be sent. Called from the shared scheduler thread, so
+         * the frame must not be written synchronously. Once written, onPingSent() must be called
+         * or, if writing failed, onPingFailed().
+         *
+         * @param payload The ping payload.
+         */
+        void onSendPingRequested(byte[] payload);
+
+        /**
+         * Called when the peer has not responded in time. The monitor is stopped before this is
+         * called. Called from a pooled thread (see IoExecutor.Category.CLEANUP) instead of the
+         * shared scheduler thread, so the connection may be closed synchronously.
+         *
+         * @param numberOfMissedHeartbeats The number of intervals without a reply.
+         */
+        void onPeerUnresponsive(int numberOfMissedHeartbeats);
+    }
+
+    public static final long DEFAULT_INTERVAL_IN_MILLISECONDS = 5000;
+    public static final int DEFAULT_MAX_NUMBER_OF_MISSED_HEARTBEATS = 3;
+    private static final int PING_PAYLOAD_LENGTH = 8;
+    private static final double RTT_SMOOTHING_FACTOR = 1d / 8;
+    private static final double RTT_VARIATION_SMOOTHING_FACTOR = 1d / 4;
+    private final Listener mListener;
+    private final long mIntervalInNanoseconds;
+    private final int mMaxNumberOfMissedHeartbeats;
+    private ScheduledFuture<?> mScheduledFuture = null;
+    private volatile long mLastReceiveTime;
+    private long mOutstandingPingTime = 0; // Zero means no ping outstanding
+    private long mPingSentTime = 0; // Zero means the outstanding ping has not been written yet
+    private int mNumberOfMissedHeartbeats = 0;
+    private long mNumberOfPingsSent = 0;
+    private long mNumberOfPongsReceived = 0;
+    private double mLatestRoundTripTimeInMilliseconds = 0;
+    private double mSmoothedRoundTripTimeInMilliseconds = 0;
+    private double mRoundTripTimeVariationInMilliseconds = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param listener The listener.
+     * @param intervalInMilliseconds The heartbeat interval.
+     * @param maxNumberOfMissedHeartbeats The number of intervals without a reply after which the
+     *                                    peer is declared unresponsive.
+     */
+    public HeartbeatMonitor(Listener listener, long intervalInMilliseconds, int maxNumberOfMissedHeartbeats) {
+        if (listener == null) {
+            throw new NullPointerException("Listener is null");
+        }
+
+        mListener = listener;
+        mIntervalInNanoseconds = TimeUnit.MILLISECONDS.toNanos(
+                intervalInMilliseconds > 0 ? intervalInMilliseconds : DEFAULT_INTERVAL_IN_MILLISECONDS);
+        mMaxNumberOfMissedHeartbeats = (maxNumberOfMissedHeartbeats > 0)
+                ? maxNumberOfMissedHeartbeats : DEFAULT_MAX_NUMBER_OF_MISSED_HEARTBEATS;
+        mLastReceiveTime = System.nanoTime();
+    }
+
+    /**
+     * Starts the monitor using the shared scheduler (see IoExecutor.getScheduler()).
+     */
+    public synchronized void start() {
+        if (mScheduledFuture == null) {
+            mLastReceiveTime = System.nanoTime();
+
+            mScheduledFuture = IoExecutor.getDefault().getScheduler().scheduleWithFixedDelay(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            onTick();
+                        }
+                    }, mIntervalInNanoseconds, mIntervalInNanoseconds, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Stops the monitor.
+     */
+    public synchronized void stop() {
+        if (mScheduledFuture != null) {
+            mScheduledFuture.cancel(false);
+            mScheduledFuture = null;
+        }
+    }
+
+    /**
+     * Should be called whenever anything is received from the peer.
+     */
+    public void onDataReceived() {
+        mLastReceiveTime = System.nanoTime();
+    }
+
+    /**
+     * Should be called when a ping frame requested by this monitor has been written to the
+     * output stream.
+     *
+     * @param payload The ping payload.
+     */
+    public synchronized void onPingSent(byte[] payload) {
+        if (mOutstandingPingTime != 0 && readPingTime(payload, 0, payload.length) == mOutstandingPingTime) {
+            long currentTime = System.nanoTime();
+            mPingSentTime = (currentTime != 0) ? currentTime : 1;
+        }
+    }
+
+    /**
+     * Should be called when writing a ping frame requested by this monitor failed. A new ping is
+     * requested on the next tick, if still needed.
+     *
+     * @param payload The ping payload.
+     */
+    public synchronized void onPingFailed(byte[] payload) {
+        if (mOutstandingPingTime != 0 && readPingTime(payload, 0, payload.length) == mOutstandingPingTime) {
+            mOutstandingPingTime = 0;
+            mPingSentTime = 0;
+        }
+    }
+
+    /**
+     * Should be called when a pong frame is received.
+     *
+     * @param buffer The buffer containing the pong payload.
+     * @param offset The offset of the payload.
+     * @param length The length of the payload.
+     */
+    public synchronized void onPongReceived(byte[] buffer, int offset, int length) {
+        long pingTime = readPingTime(buffer, offset, length);
+
+        if (pingTime == 0 || pingTime != mOutstandingPingTime) {
+            return; // Not a reply to our latest ping
+        }
+
+        // The reply can beat the write confirmation, in which case the request time is used
+        long sentTime = (mPingSentTime != 0) ? mPingSentTime : pingTime;
+        mOutstandingPingTime = 0;
+        mPingSentTime = 0;
+        mNumberOfMissedHeartbeats = 0;
+        mNumberOfPongsReceived++;
+        double roundTripTime = (System.nanoTime() - sentTime) / 1000000d;
+        mLatestRoundTripTimeInMilliseconds = roundTripTime;
+
+        if (mNumberOfPongsReceived == 1) {
+            mSmoothedRoundTripTimeInMilliseconds = roundTripTime;
+            mRoundTripTimeVariationInMilliseconds = roundTripTime / 2;
+        } else {
+            mRoundTripTimeVariationInMilliseconds =
+                    (1 - RTT_VARIATION_SMOOTHING_FACTOR) * mRoundTripTimeVariationInMilliseconds
+                    + RTT_VARIATION_SMOOTHING_FACTOR * Math.abs(mSmoothedRoundTripTimeInMilliseconds - roundTripTime);
+            mSmoothedRoundTripTimeInMilliseconds =
+                    (1 - RTT_SMOOTHING_FACTOR) * mSmoothedRoundTripTimeInMilliseconds
+                    + RTT_SMOOTHING_FACTOR * roundTripTime;
+        }
+    }
+
+    /**
+     * @return The smoothed round trip time in milliseconds or zero, if not measured yet.
+     */
+    public synchronized double getSmoothedRoundTripTime() {
+        return mSmoothedRoundTripTimeInMilliseconds;
+    }
+
+    /**
+     * @return The round trip time variation in milliseconds.
+     */
+    public synchronized double getRoundTripTimeVariation() {
+        return mRoundTripTimeVariationInMilliseconds;
+    }
+
+    /**
+     * @return The latest measured round trip time in milliseconds or zero, if not measured yet.
+     */
+    public synchronized double getLatestRoundTripTime() {
+        return mLatestRoundTripTimeInMilliseconds;
+    }
+
+    public synchronized long getNumberOfPingsSent() {
+        return mNumberOfPingsSent;
+    }
+
+    public synchronized long getNumberOfPongsReceived() {
+        return mNumberOfPongsReceived;
+    }
+
+    /**
+     * @return The current number of consecutive intervals without a reply.
+     */
+    public synchronized int getNumberOfMissedHeartbeats() {
+        return mNumberOfMissedHeartbeats;
+    }
+
+    /**
+     * Checks the state of the connection. Called once per interval.
+     */
+    private void onTick() {
+        byte[] pingPayload = null;
+        int numberOfMissedHeartbeats = 0;
+
+        synchronized (this) {
+            if (mScheduledFuture == null) {
+                return; // Stopped
+            }
+
+            long currentTime = System.nanoTime();
+
+            if (currentTime - mLastReceiveTime < mIntervalInNanoseconds) {
+                // The peer is alive; no heartbeat needed
+                mNumberOfMissedHeartbeats = 0;
+                return;
+            }
+
+            if (mOutstandingPingTime != 0) {
+                // If not yet written, the writer is blocked or backed up: count from the request
+                long waitStartTime = (mPingSentTime != 0) ? mPingSentTime : mOutstandingPingTime;
+
+                if (currentTime - waitStartTime < mIntervalInNanoseconds) {
+                    return; // Not a whole interval since
+                }
+
+                if (++mNumberOfMissedHeartbeats >= mMaxNumberOfMissedHeartbeats) {
+                    numberOfMissedHeartbeats = mNumberOfMissedHeartbeats;
+                    stop();
+                }
+            } else {
+                mOutstandingPingTime = (currentTime != 0) ? currentTime : 1;
+                mPingSentTime = 0;
+                mNumberOfPingsSent++;
+                pingPayload = new byte[PING_PAYLOAD_LENGTH];
+
+                for (int i = PING_PAYLOAD_LENGTH - 1; i >= 0; --i) {
+                    pingPayload[i] = (byte) (mOutstandingPingTime >>> (8 * (PING_PAYLOAD_LENGTH - 1 - i)));
+                }
+            }
+        }
+
+        if (pingPayload != null) {
+            mListener.onSendPingRequested(pingPayload);
+        } else if (numberOfMissedHeartbeats > 0) {
+            final int finalNumberOfMissedHeartbeats = numberOfMissedHeartbeats;
+
+            // Closing the connection may block, which would stall every other scheduled task
+            IoExecutor.getDefault().execute(IoExecutor.Category.CLEANUP, new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onPeerUnresponsive(finalNumberOfMissedHeartbeats);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param buffer The buffer containing a ping or a pong payload.
+     * @param offset The offset of the payload.
+     * @param length The length of the payload.
+     * @return The time identifying the ping or zero, if the payload is invalid.
+     */
+    private static long readPingTime(byte[] buffer, int offset, int length) {
+        if (length != PING_PAYLOAD_LENGTH) {
+            return 0;
+        }
+
+        long pingTime = 0;
+
+        for (int i = 0; i < PING_PAYLOAD_LENGTH; ++i) {
+            pingTime = (pingTime << 8) | (buffer[offset + i] & 0xff);
+        }
+
+        return pingTime;
+    }
+}
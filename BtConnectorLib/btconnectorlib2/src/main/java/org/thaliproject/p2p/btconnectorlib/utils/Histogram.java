@@ -0,0 +1,170 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values with power-of-two buckets.
+ *
+ * Bucket 0 counts the zero values and bucket N (N > 0) counts the values in range
+ * [2^(N - 1), 2^N - 1]. Recording a value takes a few atomic operations, so it is cheap enough to
+ * be done on every read and write.
+ */
+public class Histogram {
+    /**
+     * An immutable snapshot of a histogram.
+     */
+    public static class Snapshot {
+        private final long[] mBucketCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMin;
+        private final long mMax;
+
+        private Snapshot(long[] bucketCounts, long count, long sum, long min, long max) {
+            mBucketCounts = bucketCounts;
+            mCount = count;
+            mSum = sum;
+            mMin = min;
+            mMax = max;
+        }
+
+        /**
+         * @return The number of recorded values.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getSum() {
+            return mSum;
+        }
+
+        /**
+         * @return The smallest recorded value or zero, if none.
+         */
+        public long getMin() {
+            return mMin;
+        }
+
+        /**
+         * @return The largest recorded value or zero, if none.
+         */
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return (mCount > 0) ? (double) mSum / mCount : 0d;
+        }
+
+        /**
+         * @param bucketIndex The index of the bucket.
+         * @return The number of values in the given bucket.
+         */
+        public long getBucketCount(int bucketIndex) {
+            return mBucketCounts[bucketIndex];
+        }
+
+        /**
+         * @return The number of buckets.
+         */
+        public int getNumberOfBuckets() {
+            return mBucketCounts.length;
+        }
+
+        /**
+         * Estimates the given percentile. The result is the upper bound of the bucket containing
+         * the percentile, limited by the largest recorded value.
+         *
+         * @param percentile The percentile in range [0, 100].
+         * @return The estimated value.
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(mCount * Math.min(Math.max(percentile, 0d), 100d) / 100d);
+            long cumulativeCount = 0;
+
+            for (int i = 0; i < mBucketCounts.length; ++i) {
+                cumulativeCount += mBucketCounts[i];
+
+                if (cumulativeCount >= rank && cumulativeCount > 0) {
+                    return Math.min(getBucketUpperBound(i), mMax);
+                }
+            }
+
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return "[count: " + mCount + ", min: " + mMin + ", mean: " + String.format("%.1f", getMean())
+                    + ", p50: " + getPercentile(50) + ", p90: " + getPercentile(90)
+                    + ", p99: " + getPercentile(99) + ", max: " + mMax + "]";
+        }
+    }
+
+    private static final int NUMBER_OF_BUCKETS = 64;
+    private final AtomicLongArray mBucketCounts = new AtomicLongArray(NUMBER_OF_BUCKETS);
+    private final AtomicLong mCount = new AtomicLong(0);
+    private final AtomicLong mSum = new AtomicLong(0);
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong(0);
+
+    /**
+     * @param bucketIndex The index of the bucket.
+     * @return The largest value counted in the given bucket.
+     */
+    public static long getBucketUpperBound(int bucketIndex) {
+        return (bucketIndex >= NUMBER_OF_BUCKETS - 1) ? Long.MAX_VALUE : (1L << bucketIndex) - 1;
+    }
+
+    /**
+     * Records the given value. Negative values are recorded as zero.
+     *
+     * @param value The value to record.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        int bucketIndex = Math.min(Long.SIZE - Long.numberOfLeadingZeros(value), NUMBER_OF_BUCKETS - 1);
+        mBucketCounts.incrementAndGet(bucketIndex);
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long current;
+
+        while (value < (current = mMin.get()) && !mMin.compareAndSet(current, value)) {
+            // Retry
+        }
+
+        while (value > (current = mMax.get()) && !mMax.compareAndSet(current, value)) {
+            // Retry
+        }
+    }
+
+    /**
+     * Takes a snapshot. Since the values may be recorded while taking the snapshot, the count and
+     * the sum may be slightly off with respect to the buckets.
+     *
+     * @return A snapshot of the current state.
+     */
+    public Snapshot getSnapshot() {
+        long[] bucketCounts = new long[NUMBER_OF_BUCKETS];
+
+        for (int i = 0; i < NUMBER_OF_BUCKETS; ++i) {
+            bucketCounts[i] = mBucketCounts.get(i);
+        }
+
+        long count = mCount.get();
+        long min = mMin.get();
+        return new Snapshot(bucketCounts, count, mSum.get(), (count > 0 && min != Long.MAX_VALUE) ? min : 0, mMax.get());
+    }
+}
@@ -0,0 +1,350 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides the threads for the blocking I/O of the library.
+ *
+ * Every thread belongs to a category, which determines the name, the stack size and the priority
+ * of the thread. The threads of each category are placed in a thread group of their own, which
+ * is used to count the live threads per category. The number of threads can be capped per
+ * category; the library checks the cap before starting a connection attempt or a handshake.
+ *
+ * Short blocking tasks (such as closing sockets) are run using execute(), which uses a bounded
+ * pool per category instead of creating a new thread for every task.
+ *
+ * The settings must be set before the threads are created, since a thread cannot change its
+ * group or stack size after construction. A custom instance can be injected with setDefault().
+ */
+public class IoExecutor {
+    public enum Category {
+        SOCKET_IO("BtSocketIo"), // Reading sockets of established connections
+        SOCKET_WRITER("BtSocketWriter"), // Writer threads of the asynchronous writes
+        CONNECT("BtConnect"), // Outgoing connection attempts
+        ACCEPT("BtAccept"), // Listening for incoming connections
+        HANDSHAKE("BtHandshake"), // Handshakes of both incoming and outgoing connections
+        CLEANUP("BtCleanup"), // Short blocking tasks, e.g. closing sockets
+        TRANSFER("BtTransfer"), // Senders of the bulk transfers (see TransferManager)
+        DELIVERY("BtDelivery"), // Delivering the received data to the listener (decoupled mode)
+        TIMER("BtTimer"); // The shared scheduler for periodic, non-blocking tasks
+
+        private final String mThreadNamePrefix;
+
+        Category(String threadNamePrefix) {
+            mThreadNamePrefix = threadNamePrefix;
+        }
+
+        public String getThreadNamePrefix() {
+            return mThreadNamePrefix;
+        }
+    }
+
+    private static final String TAG = IoExecutor.class.getName();
+    public static final long DEFAULT_STACK_SIZE_IN_BYTES = 0; // Zero means the platform default
+    public static final int DEFAULT_PRIORITY = Thread.NORM_PRIORITY;
+    public static final int DEFAULT_MAX_NUMBER_OF_THREADS = 0; // Zero means no limit
+    public static final int DEFAULT_MAX_NUMBER_OF_CLEANUP_THREADS = 2;
+    private static final long POOL_THREAD_KEEP_ALIVE_TIME_IN_MILLISECONDS = 30000;
+    private static IoExecutor mDefaultInstance = null;
+    private final ThreadGroup mParentThreadGroup;
+    private final Map<Category, ThreadGroup> mThreadGroups = new EnumMap<>(Category.class);
+    private final Map<Category, AtomicLong> mNumberOfThreadsCreated = new EnumMap<>(Category.class);
+    private final Map<Category, ThreadPoolExecutor> mThreadPools = new EnumMap<>(Category.class);
+    private final Map<Category, Long> mStackSizes = new EnumMap<>(Category.class);
+    private final Map<Category, Integer> mPriorities = new EnumMap<>(Category.class);
+    private final Map<Category, Integer> mMaxNumbersOfThreads = new EnumMap<>(Category.class);
+    private ScheduledThreadPoolExecutor mScheduler = null;
+
+    /**
+     * @return The instance used by the library.
+     */
+    public static synchronized IoExecutor getDefault() {
+        if (mDefaultInstance == null) {
+            mDefaultInstance = new IoExecutor();
+        }
+
+        return mDefaultInstance;
+    }
+
+    /**
+     * Replaces the instance used by the library. The threads already created are not affected.
+     *
+     * @param ioExecutor The new instance.
+     */
+    public static synchronized void setDefault(IoExecutor ioExecutor) {
+        if (ioExecutor == null) {
+            throw new NullPointerException("The given I/O executor is null");
+        }
+
+        mDefaultInstance = ioExecutor;
+    }
+
+    /**
+     * Constructor.
+     */
+    public IoExecutor() {
+        mParentThreadGroup = new ThreadGroup("BtConnectorLib");
+
+        for (Category category : Category.values()) {
+            mThreadGroups.put(category, new ThreadGroup(mParentThreadGroup, category.getThreadNamePrefix()));
+            mNumberOfThreadsCreated.put(category, new AtomicLong(0));
+            mStackSizes.put(category, DEFAULT_STACK_SIZE_IN_BYTES);
+            mPriorities.put(category, DEFAULT_PRIORITY);
+            mMaxNumbersOfThreads.put(category, DEFAULT_MAX_NUMBER_OF_THREADS);
+        }
+
+        mMaxNumbersOfThreads.put(Category.CLEANUP, DEFAULT_MAX_NUMBER_OF_CLEANUP_THREADS);
+    }
+
+    public synchronized long getStackSize(Category category) {
+        return mStackSizes.get(category);
+    }
+
+    /**
+     * Sets the stack size of the threads created in the given category from now on.
+     * Note that the platform may ignore the stack size.
+     *
+     * @param category The category.
+     * @param stackSizeInBytes The stack size. Zero means the platform default.
+     */
+    public synchronized void setStackSize(Category category, long stackSizeInBytes) {
+        mStackSizes.put(category, Math.max(stackSizeInBytes, 0));
+    }
+
+    public synchronized int getPriority(Category category) {
+        return mPriorities.get(category);
+    }
+
+    /**
+     * Sets the priority of the threads created in the given category from now on.
+     *
+     * @param category The category.
+     * @param priority The priority in range [Thread.MIN_PRIORITY, Thread.MAX_PRIORITY].
+     */
+    public synchronized void setPriority(Category category, int priority) {
+        mPriorities.put(category, Math.min(Math.max(priority, Thread.MIN_PRIORITY), Thread.MAX_PRIORITY));
+    }
+
+    public synchronized int getMaxNumberOfThreads(Category category) {
+        return mMaxNumbersOfThreads.get(category);
+    }
+
+    /**
+     * Sets the maximum number of concurrent threads in the given category. For the categories of
+     * dedicated threads (e.g. CONNECT and HANDSHAKE), the library refuses to start new operations
+     * when the limit is reached (see hasCapacity()). For the tasks run using execute(), this is the
+     * size of the pool.
+     *
+     * @param category The category.
+     * @param maxNumberOfThreads The maximum number of threads. Zero means no limit (the pool size
+     *                           of execute() is then one).
+     */
+    public synchronized void setMaxNumberOfThreads(Category category, int maxNumberOfThreads) {
+        mMaxNumbersOfThreads.put(category, Math.max(maxNumberOfThreads, 0));
+        ThreadPoolExecutor threadPool = mThreadPools.get(category);
+
+        if (threadPool != null) {
+            int poolSize = getPoolSize(category);
+
+            if (poolSize > threadPool.getMaximumPoolSize()) {
+                threadPool.setMaximumPoolSize(poolSize);
+                threadPool.setCorePoolSize(poolSize);
+            } else {
+                threadPool.setCorePoolSize(poolSize);
+                threadPool.setMaximumPoolSize(poolSize);
+            }
+        }
+    }
+
+    /**
+     * @param category The category.
+     * @return The thread group for the threads of the given category.
+     */
+    public ThreadGroup getThreadGroup(Category category) {
+        return mThreadGroups.get(category);
+    }
+
+    /**
+     * Generates a name for a new thread in the given category and counts the thread as created.
+     *
+     * @param category The category.
+     * @return The thread name.
+     */
+    public String createThreadName(Category category) {
+        return category.getThreadNamePrefix() + "-" + mNumberOfThreadsCreated.get(category).incrementAndGet();
+    }
+
+    /**
+     * Applies the priority of the given category to the given thread, which was created using the
+     * group, the name and the stack size of the same category.
+     *
+     * @param thread The thread.
+     * @param category The category.
+     */
+    public void applyPriority(Thread thread, Category category) {
+        int priority = getPriority(category);
+
+        if (thread.getPriority() != priority) {
+            thread.setPriority(priority);
+        }
+    }
+
+    /**
+     * Creates a new thread in the given category.
+     *
+     * @param category The category.
+     * @param runnable The runnable to run in the thread.
+     * @return A new thread, which is not yet started.
+     */
+    public Thread newThread(Category category, Runnable runnable) {
+        Thread thread = new Thread(
+                getThreadGroup(category), runnable, createThreadName(category), getStackSize(category));
+        applyPriority(thread, category);
+        return thread;
+    }
+
+    /**
+     * @param category The category.
+     * @return The estimated number of live threads in the given category.
+     */
+    public int getNumberOfLiveThreads(Category category) {
+        return getThreadGroup(category).activeCount();
+    }
+
+    /**
+     * @return The estimated number of live threads in all the categories.
+     */
+    public int getNumberOfLiveThreads() {
+        return mParentThreadGroup.activeCount();
+    }
+
+    /**
+     * @param category The category.
+     * @return The number of threads created in the given category so far.
+     */
+    public long getNumberOfThreadsCreated(Category category) {
+        return mNumberOfThreadsCreated.get(category).get();
+    }
+
+    /**
+     * Checks whether a new thread can be started in the given category without exceeding the
+     * maximum number of threads.
+     *
+     * @param category The category.
+     * @return True, if there is no limit or the limit has not been reached. False otherwise.
+     */
+    public boolean hasCapacity(Category category) {
+        int maxNumberOfThreads = getMaxNumberOfThreads(category);
+        return (maxNumberOfThreads == 0 || getNumberOfLiveThreads(category) < maxNumberOfThreads);
+    }
+
+    /**
+     * Runs the given task using the pool of the given category. If all the threads of the pool are
+     * busy, the task is queued.
+     *
+     * @param category The category.
+     * @param runnable The task.
+     * @return True, if the task was accepted. False, if the pool has been shut down.
+     */
+    public boolean execute(Category category, Runnable runnable) {
+        try {
+            getThreadPool(category).execute(runnable);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "execute: Task rejected (category " + category + "): " + e.getMessage());
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the shared scheduler for periodic tasks (e.g. heartbeats and deadlines). The tasks
+     * must not block, since they share a single thread (of category TIMER). Blocking work should
+     * be handed over to execute().
+     *
+     * @return The shared scheduler.
+     */
+    public synchronized ScheduledExecutorService getScheduler() {
+        if (mScheduler == null) {
+            mScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return IoExecutor.this.newThread(Category.TIMER, runnable);
+                }
+            });
+        }
+
+        return mScheduler;
+    }
+
+    /**
+     * Shuts down the pools and the scheduler. The queued tasks are still run, but no new tasks are
+     * accepted. The dedicated threads are not affected.
+     */
+    public synchronized void shutdown() {
+        for (ThreadPoolExecutor threadPool : mThreadPools.values()) {
+            threadPool.shutdown();
+        }
+
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder("[");
+
+        for (Category category : Category.values()) {
+            if (category.ordinal() > 0) {
+                stringBuilder.append(", ");
+            }
+
+            stringBuilder.append(category).append(": ").append(getNumberOfLiveThreads(category))
+                    .append(" live/").append(getNumberOfThreadsCreated(category)).append(" created");
+        }
+
+        return stringBuilder.append("]").toString();
+    }
+
+    private synchronized ThreadPoolExecutor getThreadPool(final Category category) {
+        ThreadPoolExecutor threadPool = mThreadPools.get(category);
+
+        if (threadPool == null) {
+            int poolSize = getPoolSize(category);
+
+            threadPool = new ThreadPoolExecutor(
+                    poolSize, poolSize,
+                    POOL_THREAD_KEEP_ALIVE_TIME_IN_MILLISECONDS, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            return IoExecutor.this.newThread(category, runnable);
+                        }
+                    });
+
+            threadPool.allowCoreThreadTimeOut(true);
+            mThreadPools.put(category, threadPool);
+        }
+
+        return threadPool;
+    }
+
+    private int getPoolSize(Category category) {
+        return Math.max(getMaxNumberOfThreads(category), 1);
+    }
+}
@@ -0,0 +1,307 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes and decodes length-prefixed message frames.
+ *
+ * The layout of a frame is:
+ *
+ * [payload length as an unsigned varint (1-5 bytes)][type (1 byte)][payload]
+ *
+ * The varint uses 7 bits per byte with the most significant bit set in all but the last byte
+ * (least significant group first).
+ *
+ * The most significant bit of the type byte (FLAG_COMPRESSED) marks a compressed payload (see
+ * FrameCompressor). Thus, the application message types should be in range 0x00-0x7f.
+ *
+ * A large message can be split into fragment frames (TYPE_FRAGMENT) so that other frames can be
+ * sent between the fragments. The payload of a fragment frame is:
+ *
+ * [message type (1 byte)][flags (1 byte)][fragment data]
+ *
+ * The flag FRAGMENT_FLAG_LAST marks the last fragment of the message. The fragments of one message
+ * are sent in order and do not interleave with the fragments of other messages.
+ */
+public class MessageFrameCodec {
+    /**
+     * A single, fully read frame.
+     */
+    public static class Frame {
+        private final byte mType;
+        private final byte[] mPayload;
+
+        public Frame(byte type, byte[] payload) {
+            mType = type;
+            mPayload = payload;
+        }
+
+        public byte getType() {
+            return mType;
+        }
+
+        public byte[] getPayload() {
+            return mPayload;
+        }
+    }
+
+    public static final byte TYPE_DATA = 0x0;
+    public static final byte TYPE_HANDSHAKE = 0x1;
+    public static final byte TYPE_CREDIT = 0x2; // Flow control credit grant, consumed by the library
+    public static final byte TYPE_STREAM_OPEN = 0x3; // See StreamMultiplexer
+    public static final byte TYPE_STREAM_DATA = 0x4; // See StreamMultiplexer
+    public static final byte TYPE_STREAM_CLOSE = 0x5; // See StreamMultiplexer
+    public static final byte TYPE_PING = 0x6; // Heartbeat, answered by the library (see HeartbeatMonitor)
+    public static final byte TYPE_PONG = 0x7; // Heartbeat reply, consumed by the library
+    public static final byte TYPE_TRANSFER_OFFER = 0x8; // See TransferManager
+    public static final byte TYPE_TRANSFER_ACCEPT = 0x9; // See TransferManager
+    public static final byte TYPE_TRANSFER_DATA = 0xa; // See TransferManager
+    public static final byte TYPE_TRANSFER_ACK = 0xb; // See TransferManager
+    public static final byte TYPE_FRAGMENT = 0xc; // A part of a larger message, reassembled by the library
+    public static final byte TYPE_TRANSFER_ABORT = 0xd; // See TransferManager
+    public static final byte FLAG_COMPRESSED = (byte) 0x80;
+    public static final byte FRAGMENT_FLAG_LAST = 0x1;
+    public static final int FRAGMENT_HEADER_LENGTH_IN_BYTES = 2;
+    public static final int MAX_VARINT_LENGTH_IN_BYTES = 5;
+    public static final int MAX_HEADER_LENGTH_IN_BYTES = MAX_VARINT_LENGTH_IN_BYTES + 1;
+    public static final int DEFAULT_MAX_PAYLOAD_LENGTH_IN_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_PAYLOAD_LENGTH_TO_WRITE_IN_ONE_CALL = 4096;
+
+    /**
+     * @param value The value to encode.
+     * @return The number of bytes needed to encode the given value as a varint.
+     */
+    public static int getVarIntLength(int value) {
+        int length = 1;
+
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            length++;
+        }
+
+        return length;
+    }
+
+    /**
+     * Writes the given value as a varint into the given array.
+     *
+     * @param value The value to write.
+     * @param destination The destination array.
+     * @param offset The offset in the destination array.
+     * @return The offset after the written varint.
+     */
+    public static int writeVarInt(int value, byte[] destination, int offset) {
+        while ((value & ~0x7f) != 0) {
+            destination[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        destination[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Reads a varint from the given array.
+     *
+     * @param source The source array.
+     * @param offset The offset of the varint in the array.
+     * @param length The number of bytes available.
+     * @return The value.
+     * @throws IOException Thrown, if the bytes do not contain a valid varint.
+     */
+    public static int readVarInt(byte[] source, int offset, int length) throws IOException {
+        int value = 0;
+        int shift = 0;
+
+        for (int i = 0; i < length && i < MAX_VARINT_LENGTH_IN_BYTES; ++i) {
+            int currentByte = source[offset + i] & 0xff;
+            value |= (currentByte & 0x7f) << shift;
+            shift += 7;
+
+            if ((currentByte & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Invalid varint");
+    }
+
+    /**
+     * @param type The frame type.
+     * @return True, if frames of the given type are consumed by the library itself (credit, ping
+     * and pong). Such frames are neither subject to the flow control nor compressed.
+     */
+    public static boolean isControlType(byte type) {
+        return (type == TYPE_CREDIT || type == TYPE_PING || type == TYPE_PONG);
+    }
+
+    /**
+     * @param payloadLength The length of the payload.
+     * @return The total length of a frame with the given payload length.
+     */
+    public static int getFrameLength(int payloadLength) {
+        return getVarIntLength(payloadLength) + 1 + payloadLength;
+    }
+
+    /**
+     * Writes a frame header into the given array.
+     *
+     * @param type The frame type.
+     * @param payloadLength The length of the payload following the header.
+     * @param destination The destination array.
+     * @param offset The offset in the destination array.
+     * @return The offset after the written header.
+     */
+    public static int writeFrameHeader(byte type, int payloadLength, byte[] destination, int offset) {
+        if (payloadLength < 0) {
+            throw new IllegalArgumentException("Negative payload length: " + payloadLength);
+        }
+
+        offset = writeVarInt(payloadLength, destination, offset);
+        destination[offset++] = type;
+        return offset;
+    }
+
+    /**
+     * Writes the frame header and the fragment header of a fragment frame into the given array.
+     *
+     * @param messageType The type of the fragmented message.
+     * @param isLast True, if this is the last fragment of the message.
+     * @param fragmentLength The length of the fragment data following the headers.
+     * @param destination The destination array.
+     * @param offset The offset in the destination array.
+     * @return The offset after the written headers.
+     */
+    public static int writeFragmentHeader(
+            byte messageType, boolean isLast, int fragmentLength, byte[] destination, int offset) {
+        offset = writeFrameHeader(TYPE_FRAGMENT, FRAGMENT_HEADER_LENGTH_IN_BYTES + fragmentLength, destination, offset);
+        destination[offset++] = messageType;
+        destination[offset++] = isLast ? FRAGMENT_FLAG_LAST : 0;
+        return offset;
+    }
+
+    /**
+     * Encodes the given payload into a new frame.
+     *
+     * @param type The frame type.
+     * @param payload The payload.
+     * @param offset The offset of the payload in the given array.
+     * @param length The length of the payload.
+     * @return The encoded frame.
+     */
+    public static byte[] encodeFrame(byte type, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[getFrameLength(length)];
+        int headerLength = writeFrameHeader(type, length, frame, 0);
+
+        if (length > 0) {
+            System.arraycopy(payload, offset, frame, headerLength, length);
+        }
+
+        return frame;
+    }
+
+    /**
+     * Encodes the given payload into a new frame.
+     *
+     * @param type The frame type.
+     * @param payload The payload.
+     * @return The encoded frame.
+     */
+    public static byte[] encodeFrame(byte type, byte[] payload) {
+        return encodeFrame(type, payload, 0, payload.length);
+    }
+
+    /**
+     * Writes a frame with the given payload to the given output stream. Small frames are written
+     * with a single write() call, whereas large payloads are written as is after the header to
+     * avoid copying them.
+     *
+     * @param outputStream The output stream to write to.
+     * @param type The frame type.
+     * @param payload The payload.
+     * @param offset The offset of the payload in the given array.
+     * @param length The length of the payload.
+     * @throws IOException Thrown, if writing to the output stream fails.
+     */
+    public static void writeFrame(
+            OutputStream outputStream, byte type, byte[] payload, int offset, int length)
+            throws IOException {
+        if (length <= MAX_PAYLOAD_LENGTH_TO_WRITE_IN_ONE_CALL) {
+            outputStream.write(encodeFrame(type, payload, offset, length));
+        } else {
+            byte[] header = new byte[MAX_HEADER_LENGTH_IN_BYTES];
+            int headerLength = writeFrameHeader(type, length, header, 0);
+            outputStream.write(header, 0, headerLength);
+            outputStream.write(payload, offset, length);
+        }
+    }
+
+    /**
+     * Reads exactly one frame from the given input stream. This is a blocking call meant for
+     * request-response style exchanges such as handshakes. For continuous reading, use
+     * MessageFrameDecoder instead.
+     *
+     * @param inputStream The input stream to read from.
+     * @param maxPayloadLength The maximum accepted payload length.
+     * @return The frame read.
+     * @throws IOException Thrown, if reading fails, the stream ends or the frame is invalid.
+     */
+    public static Frame readFrame(InputStream inputStream, int maxPayloadLength) throws IOException {
+        int payloadLength = 0;
+        int shift = 0;
+        int currentByte;
+
+        do {
+            if (shift >= MAX_VARINT_LENGTH_IN_BYTES * 7) {
+                throw new IOException("Invalid frame length");
+            }
+
+            currentByte = readByte(inputStream);
+            payloadLength |= (currentByte & 0x7f) << shift;
+            shift += 7;
+        } while ((currentByte & 0x80) != 0);
+
+        if (payloadLength < 0 || payloadLength > maxPayloadLength) {
+            throw new IOException("Invalid frame length: " + payloadLength);
+        }
+
+        byte type = (byte) readByte(inputStream);
+        byte[] payload = new byte[payloadLength];
+        int position = 0;
+
+        while (position < payloadLength) {
+            int numberOfBytesRead = inputStream.read(payload, position, payloadLength - position);
+
+            if (numberOfBytesRead < 0) {
+                throw new EOFException("Stream ended in the middle of a frame");
+            }
+
+            position += numberOfBytesRead;
+        }
+
+        return new Frame(type, payload);
+    }
+
+    /**
+     * Reads a single byte from the given input stream.
+     *
+     * @param inputStream The input stream to read from.
+     * @return The byte read (0-255).
+     * @throws IOException Thrown, if reading fails or the stream ends.
+     */
+    private static int readByte(InputStream inputStream) throws IOException {
+        int value = inputStream.read();
+
+        if (value < 0) {
+            throw new EOFException("Stream ended in the middle of a frame");
+        }
+
+        return value;
+    }
+}
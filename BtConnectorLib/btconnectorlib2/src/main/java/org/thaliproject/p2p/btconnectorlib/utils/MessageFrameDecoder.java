@@ -0,0 +1,214 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.io.IOException;
+
+/**
+ * Streaming decoder for frames encoded with MessageFrameCodec.
+ *
+ * Bytes can be fed to the decoder in chunks of any size (e.g. whatever a single read() returns)
+ * and the decoder will emit whole frames. Frames that are fully contained in the given chunk are
+ * passed to the listener as slices of the given array without copying. Only frames spanning
+ * multiple chunks are reassembled into a separate array.
+ *
+ * This class is not thread-safe; it is meant to be fed by a single reader thread.
+ */
+public class MessageFrameDecoder {
+    /**
+     * Decoder listener.
+     */
+    public interface Listener {
+        /**
+         * Called when a whole frame has been decoded.
+         *
+         * Note that the given array may be the one that was fed to the decoder. Thus, the contents
+         * are valid only during this call and must be copied, if needed later.
+         *
+         * @param type The frame type.
+         * @param buffer The array containing the payload.
+         * @param offset The offset of the payload in the array.
+         * @param length The length of the payload.
+         */
+        void onFrameDecoded(byte type, byte[] buffer, int offset, int length);
+    }
+
+    private final Listener mListener;
+    private final byte[] mHeaderBuffer = new byte[MessageFrameCodec.MAX_HEADER_LENGTH_IN_BYTES];
+    private int mMaxPayloadLength = MessageFrameCodec.DEFAULT_MAX_PAYLOAD_LENGTH_IN_BYTES;
+    private int mHeaderBufferLength = 0;
+    private byte[] mPendingPayload = null;
+    private int mPendingPayloadPosition = 0;
+    private byte mPendingType = 0;
+
+    // The results of the latest successful parseHeader() call
+    private int mParsedHeaderLength = 0;
+    private int mParsedPayloadLength = 0;
+    private byte mParsedType = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param listener The listener.
+     * @throws NullPointerException Thrown, if the given listener is null.
+     */
+    public MessageFrameDecoder(Listener listener) throws NullPointerException {
+        if (listener == null) {
+            throw new NullPointerException("Listener is null");
+        }
+
+        mListener = listener;
+    }
+
+    public int getMaxPayloadLength() {
+        return mMaxPayloadLength;
+    }
+
+    /**
+     * Sets the maximum accepted payload length. Frames claiming a longer payload are considered
+     * invalid. This protects against allocating huge buffers due to corrupted data.
+     *
+     * @param maxPayloadLength The maximum payload length in bytes.
+     */
+    public void setMaxPayloadLength(int maxPayloadLength) {
+        if (maxPayloadLength > 0) {
+            mMaxPayloadLength = maxPayloadLength;
+        }
+    }
+
+    /**
+     * @return True, if the decoder holds a partially received frame.
+     */
+    public boolean hasPartialFrame() {
+        return (mHeaderBufferLength > 0 || mPendingPayload != null);
+    }
+
+    /**
+     * Discards any partially received frame.
+     */
+    public void reset() {
+        mHeaderBufferLength = 0;
+        mPendingPayload = null;
+        mPendingPayloadPosition = 0;
+    }
+
+    /**
+     * Feeds the given bytes to the decoder. The listener is notified synchronously for each
+     * completed frame.
+     *
+     * @param bytes The array containing the bytes.
+     * @param offset The offset of the bytes in the array.
+     * @param length The number of bytes.
+     * @throws IOException Thrown, if the data contains an invalid frame. The decoder state is
+     *                     undefined after this and the stream should be closed.
+     */
+    public void decode(byte[] bytes, int offset, int length) throws IOException {
+        int position = offset;
+        final int end = offset + length;
+
+        while (position < end) {
+            if (mPendingPayload != null) {
+                // Continue filling a frame that started in a previous chunk
+                int numberOfBytesToCopy = Math.min(
+                        end - position, mPendingPayload.length - mPendingPayloadPosition);
+                System.arraycopy(bytes, position, mPendingPayload, mPendingPayloadPosition, numberOfBytesToCopy);
+                position += numberOfBytesToCopy;
+                mPendingPayloadPosition += numberOfBytesToCopy;
+
+                if (mPendingPayloadPosition == mPendingPayload.length) {
+                    byte[] payload = mPendingPayload;
+                    mPendingPayload = null;
+                    mPendingPayloadPosition = 0;
+                    mListener.onFrameDecoded(mPendingType, payload, 0, payload.length);
+                }
+            } else if (mHeaderBufferLength > 0) {
+                // Continue a header that started in a previous chunk
+                mHeaderBuffer[mHeaderBufferLength++] = bytes[position++];
+
+                if (parseHeader(mHeaderBuffer, 0, mHeaderBufferLength)) {
+                    mHeaderBufferLength = 0;
+                    startPendingPayload();
+                } else if (mHeaderBufferLength == mHeaderBuffer.length) {
+                    throw new IOException("Invalid frame header");
+                }
+            } else if (parseHeader(bytes, position, end - position)) {
+                int payloadOffset = position + mParsedHeaderLength;
+
+                if (end - payloadOffset >= mParsedPayloadLength) {
+                    // The whole frame is in this chunk, no need to copy
+                    position = payloadOffset + mParsedPayloadLength;
+                    mListener.onFrameDecoded(mParsedType, bytes, payloadOffset, mParsedPayloadLength);
+                } else {
+                    position = payloadOffset;
+                    startPendingPayload();
+                }
+            } else {
+                // Incomplete header, store what we have
+                mHeaderBufferLength = end - position;
+                System.arraycopy(bytes, position, mHeaderBuffer, 0, mHeaderBufferLength);
+                position = end;
+            }
+        }
+    }
+
+    /**
+     * Prepares the buffer for a payload whose header was just parsed. Emits the frame right away,
+     * if the payload is empty.
+     */
+    private void startPendingPayload() {
+        if (mParsedPayloadLength == 0) {
+            mListener.onFrameDecoded(mParsedType, mHeaderBuffer, 0, 0);
+        } else {
+            mPendingPayload = new byte[mParsedPayloadLength];
+            mPendingPayloadPosition = 0;
+            mPendingType = mParsedType;
+        }
+    }
+
+    /**
+     * Tries to parse a frame header from the given bytes. On success, the results are stored in
+     * mParsedHeaderLength, mParsedPayloadLength and mParsedType.
+     *
+     * @param bytes The array containing the bytes.
+     * @param offset The offset of the header in the array.
+     * @param length The number of bytes available.
+     * @return True, if a complete header was parsed. False, if more bytes are needed.
+     * @throws IOException Thrown, if the header is invalid.
+     */
+    private boolean parseHeader(byte[] bytes, int offset, int length) throws IOException {
+        int payloadLength = 0;
+        int shift = 0;
+        int index = 0;
+
+        while (index < length) {
+            int currentByte = bytes[offset + index] & 0xff;
+            index++;
+
+            if (index > MessageFrameCodec.MAX_VARINT_LENGTH_IN_BYTES) {
+                throw new IOException("Invalid frame length");
+            }
+
+            payloadLength |= (currentByte & 0x7f) << shift;
+            shift += 7;
+
+            if ((currentByte & 0x80) == 0) {
+                if (payloadLength < 0 || payloadLength > mMaxPayloadLength) {
+                    throw new IOException("Invalid frame length: " + payloadLength);
+                }
+
+                if (index == length) {
+                    // The type byte is still missing
+                    return false;
+                }
+
+                mParsedType = bytes[offset + index];
+                mParsedHeaderLength = index + 1;
+                mParsedPayloadLength = payloadLength;
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
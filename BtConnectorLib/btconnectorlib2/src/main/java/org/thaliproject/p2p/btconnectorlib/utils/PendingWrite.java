@@ -0,0 +1,213 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A completion handle for a write enqueued to a SocketWriterThread.
+ */
+public class PendingWrite {
+    /**
+     * Completion listener.
+     */
+    public interface Listener {
+        /**
+         * Called when the write has either succeeded or failed. Called from the writer thread,
+         * unless the write failed already when enqueued.
+         *
+         * @param pendingWrite The completed write.
+         */
+        void onWriteCompleted(PendingWrite pendingWrite);
+    }
+
+    public enum State {
+        QUEUED,
+        SUCCEEDED,
+        FAILED
+    }
+
+    /**
+     * The priority lane of the write (see SocketWriterThread).
+     */
+    public enum Priority {
+        HIGH, // Small, urgent messages (e.g. acknowledgements and cancellations)
+        NORMAL // Everything else including bulk data
+    }
+
+    private final byte[] mBytes;
+    private final byte mMessageType;
+    private final boolean mIsMessage;
+    private final boolean mFlushImmediately;
+    private final Priority mPriority;
+    private final Listener mListener;
+    private final CountDownLatch mCompletedLatch = new CountDownLatch(1);
+    private final long mTimeEnqueuedInNanoseconds;
+    private volatile State mState = State.QUEUED;
+    private volatile int mNumberOfBytesWritten = 0;
+    private volatile String mFailureReason = null;
+
+    /**
+     * Constructor.
+     *
+     * @param bytes The bytes to write. If this is a message, the bytes are the message payload.
+     * @param isMessage If true, the bytes are written as a single frame (see MessageFrameCodec).
+     * @param messageType The message type. Ignored, if this is not a message.
+     * @param flushImmediately If true, the write is not held back for coalescing.
+     * @param listener The completion listener. Can be null.
+     */
+    /* Package */ PendingWrite(
+            byte[] bytes, boolean isMessage, byte messageType,
+            boolean flushImmediately, Listener listener) {
+        this(bytes, isMessage, messageType, flushImmediately, Priority.NORMAL, listener);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bytes The bytes to write. If this is a message, the bytes are the message payload.
+     * @param isMessage If true, the bytes are written as a single frame (see MessageFrameCodec).
+     * @param messageType The message type. Ignored, if this is not a message.
+     * @param flushImmediately If true, the write is not held back for coalescing.
+     * @param priority The priority lane of the write.
+     * @param listener The completion listener. Can be null.
+     */
+    /* Package */ PendingWrite(
+            byte[] bytes, boolean isMessage, byte messageType,
+            boolean flushImmediately, Priority priority, Listener listener) {
+        if (bytes == null || priority == null) {
+            throw new NullPointerException("Either the bytes to write or the priority is null");
+        }
+
+        mBytes = bytes;
+        mIsMessage = isMessage;
+        mMessageType = messageType;
+        mFlushImmediately = flushImmediately;
+        mPriority = priority;
+        mListener = listener;
+        mTimeEnqueuedInNanoseconds = System.nanoTime();
+    }
+
+    /**
+     * @return The bytes to write (the payload, if this is a message).
+     */
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    public boolean isMessage() {
+        return mIsMessage;
+    }
+
+    public byte getMessageType() {
+        return mMessageType;
+    }
+
+    /**
+     * @return True, if this write (and the ones coalesced before it) should be written without
+     * waiting for more writes to coalesce.
+     */
+    public boolean getFlushImmediately() {
+        return mFlushImmediately;
+    }
+
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @return The number of bytes this write takes in the output stream including possible
+     * framing overhead, when not compressed.
+     */
+    public int getLengthInStream() {
+        return mIsMessage ? MessageFrameCodec.getFrameLength(mBytes.length) : mBytes.length;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @return True, if the write has completed (successfully or not).
+     */
+    public boolean isDone() {
+        return (mState != State.QUEUED);
+    }
+
+    /**
+     * @return True, if the write completed successfully.
+     */
+    public boolean isSuccessful() {
+        return (mState == State.SUCCEEDED);
+    }
+
+    /**
+     * @return The number of bytes written to the socket including possible framing overhead.
+     */
+    public int getNumberOfBytesWritten() {
+        return mNumberOfBytesWritten;
+    }
+
+    /**
+     * @return The reason for the failure or null, if not failed.
+     */
+    public String getFailureReason() {
+        return mFailureReason;
+    }
+
+    /**
+     * @return The time this write was created in nanoseconds (System.nanoTime()).
+     */
+    public long getTimeEnqueued() {
+        return mTimeEnqueuedInNanoseconds;
+    }
+
+    /**
+     * Waits until the write is completed.
+     *
+     * @param timeoutInMilliseconds The maximum time to wait.
+     * @return True, if the write completed within the given time. False otherwise.
+     * @throws InterruptedException Thrown, if the calling thread is interrupted.
+     */
+    public boolean await(long timeoutInMilliseconds) throws InterruptedException {
+        return mCompletedLatch.await(timeoutInMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Marks the write as succeeded and notifies the listener.
+     *
+     * @param numberOfBytesWritten The number of bytes written.
+     */
+    /* Package */ void setSucceeded(int numberOfBytesWritten) {
+        mNumberOfBytesWritten = numberOfBytesWritten;
+        complete(State.SUCCEEDED);
+    }
+
+    /**
+     * Marks the write as failed and notifies the listener.
+     *
+     * @param reason The reason for the failure.
+     */
+    /* Package */ void setFailed(String reason) {
+        mFailureReason = reason;
+        complete(State.FAILED);
+    }
+
+    private void complete(State state) {
+        synchronized (this) {
+            if (mState != State.QUEUED) {
+                return;
+            }
+
+            mState = state;
+        }
+
+        mCompletedLatch.countDown();
+
+        if (mListener != null) {
+            mListener.onWriteCompleted(this);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted byte buffer acquired from a ByteBufferPool.
+ *
+ * A newly acquired buffer has a reference count of one. Whoever holds a reference must call
+ * release() once done with the buffer. When the count drops to zero, the buffer is returned to
+ * the pool and must no longer be accessed.
+ */
+public class PooledByteBuffer {
+    private final ByteBufferPool mPool;
+    private final ByteBuffer mByteBuffer;
+    private final boolean mIsPooled;
+    private final AtomicInteger mReferenceCount = new AtomicInteger(0);
+
+    /**
+     * Constructor.
+     *
+     * @param pool The pool owning this buffer.
+     * @param capacityInBytes The capacity of the buffer.
+     * @param isPooled If false, the buffer was allocated because the pool was exhausted and it
+     *                 will not be returned to the pool when released.
+     */
+    /* Package */ PooledByteBuffer(ByteBufferPool pool, int capacityInBytes, boolean isPooled) {
+        mPool = pool;
+        mByteBuffer = ByteBuffer.allocate(capacityInBytes);
+        mIsPooled = isPooled;
+    }
+
+    /**
+     * Returns the underlying byte buffer. When handed out by BluetoothSocketIoThread, the position
+     * is zero and the limit is the number of bytes read.
+     *
+     * @return The byte buffer.
+     */
+    public ByteBuffer getByteBuffer() {
+        return mByteBuffer;
+    }
+
+    /**
+     * @return The backing array of the buffer.
+     */
+    public byte[] array() {
+        return mByteBuffer.array();
+    }
+
+    /**
+     * @return The number of valid bytes in the buffer i.e. the limit of the byte buffer.
+     */
+    public int size() {
+        return mByteBuffer.limit();
+    }
+
+    /**
+     * @return The capacity of the buffer in bytes.
+     */
+    public int capacity() {
+        return mByteBuffer.capacity();
+    }
+
+    /**
+     * @return False, if this buffer was allocated because the pool was exhausted.
+     */
+    public boolean isPooled() {
+        return mIsPooled;
+    }
+
+    /**
+     * @return The current reference count.
+     */
+    public int getReferenceCount() {
+        return mReferenceCount.get();
+    }
+
+    /**
+     * Increments the reference count. Use this when handing the buffer over to another owner
+     * while still keeping a reference.
+     *
+     * @return This instance.
+     * @throws IllegalStateException Thrown, if the buffer has already been released.
+     */
+    public PooledByteBuffer retain() throws IllegalStateException {
+        int referenceCount;
+
+        do {
+            referenceCount = mReferenceCount.get();
+
+            if (referenceCount <= 0) {
+                throw new IllegalStateException("The buffer has already been released");
+            }
+        } while (!mReferenceCount.compareAndSet(referenceCount, referenceCount + 1));
+
+        return this;
+    }
+
+    /**
+     * Decrements the reference count and returns the buffer to the pool, if the count drops to zero.
+     *
+     * @throws IllegalStateException Thrown, if the buffer has already been released.
+     */
+    public void release() throws IllegalStateException {
+        int referenceCount = mReferenceCount.decrementAndGet();
+
+        if (referenceCount == 0) {
+            mPool.recycle(this);
+        } else if (referenceCount < 0) {
+            mReferenceCount.incrementAndGet();
+            throw new IllegalStateException("The buffer has already been released");
+        }
+    }
+
+    /**
+     * Prepares the buffer to be handed out by the pool.
+     */
+    /* Package */ void onAcquired() {
+        mByteBuffer.clear();
+        mReferenceCount.set(1);
+    }
+}
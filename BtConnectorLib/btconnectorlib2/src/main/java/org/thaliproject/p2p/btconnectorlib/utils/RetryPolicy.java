@@ -0,0 +1,35 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+/**
+ * Decides whether and when a failed outgoing connection attempt is retried. A single instance is
+ * shared by all the connection attempts (see BluetoothConnector.setRetryPolicy()), thus the
+ * implementations must be thread-safe and can keep state per peer.
+ */
+public interface RetryPolicy {
+    /**
+     * Returned by onFailure() to give up.
+     */
+    long NO_RETRY = -1;
+
+    /**
+     * Called when an attempt to connect to the given peer has failed and the maximum number of
+     * retries has not been reached.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @param numberOfFailedAttempts The number of failed attempts of the current connection
+     *                               attempt so far, including this one.
+     * @return The time to wait before retrying in milliseconds or NO_RETRY, if the connection
+     * attempt should be given up.
+     */
+    long onFailure(String bluetoothMacAddress, int numberOfFailedAttempts);
+
+    /**
+     * Called when connecting to the given peer has succeeded.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    void onSuccess(String bluetoothMacAddress);
+}
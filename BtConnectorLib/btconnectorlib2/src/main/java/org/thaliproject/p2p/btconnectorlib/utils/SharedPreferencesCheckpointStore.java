@@ -0,0 +1,49 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+/**
+ * Persists the transfer checkpoints (see TransferManager) in the default shared preferences so
+ * that the transfers can be resumed after the application is restarted.
+ */
+public class SharedPreferencesCheckpointStore implements TransferManager.CheckpointStore {
+    private static final String KEY_PREFIX = "transfer_checkpoint_";
+    private final SharedPreferences mSharedPreferences;
+    private final SharedPreferences.Editor mSharedPreferencesEditor;
+
+    /**
+     * Constructor.
+     *
+     * @param context The application context.
+     */
+    public SharedPreferencesCheckpointStore(Context context) {
+        if (context == null) {
+            throw new NullPointerException("Context is null");
+        }
+
+        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mSharedPreferencesEditor = mSharedPreferences.edit();
+    }
+
+    @Override
+    public long getCheckpoint(String key) {
+        return mSharedPreferences.getLong(KEY_PREFIX + key, 0);
+    }
+
+    @Override
+    public synchronized void setCheckpoint(String key, long offset) {
+        mSharedPreferencesEditor.putLong(KEY_PREFIX + key, offset);
+        mSharedPreferencesEditor.apply();
+    }
+
+    @Override
+    public synchronized void removeCheckpoint(String key) {
+        mSharedPreferencesEditor.remove(KEY_PREFIX + key);
+        mSharedPreferencesEditor.apply();
+    }
+}
@@ -0,0 +1,1133 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread owning the writes of a single socket output stream.
+ *
+ * Any number of threads can enqueue writes. The writes are placed in a bounded queue and written
+ * by this thread in order. Each enqueued write returns a PendingWrite handle, which tells the
+ * outcome once the write is done.
+ *
+ * There is a queue (lane) per priority (see PendingWrite.Priority). The writes of the high priority
+ * lane are always written before the normal ones. When chunking is enabled (see setChunking()),
+ * large normal priority messages are written as fragments (see MessageFrameCodec) and the queued
+ * high priority writes are written between the fragments. Thus, a high priority message waits for
+ * at most one fragment instead of the whole message. With flow control, a high priority message
+ * is interleaved only if its send credit is available without waiting. Raw writes are never
+ * fragmented, since the peer could not tell the interleaved bytes apart.
+ *
+ * The control frames (see MessageFrameCodec.isControlType()) have a lane of their own, which is
+ * unbounded so that enqueuing them never blocks; the reader thread of a connection enqueues the
+ * credit and pong frames and must never wait for the writes. They are written before any other
+ * write, between the fragments of a large message and while waiting for send credit. Otherwise
+ * two peers, whose writers both wait for credit, would each hold back the credit the other one
+ * is waiting for.
+ *
+ * The writes are made while holding the lock of the output stream so that they do not interleave
+ * with synchronous writes made by other parties synchronizing on the same stream.
+ *
+ * When coalescing is enabled (see setCoalescing()), small writes are gathered into a single
+ * contiguous buffer and written with one call to the output stream. The batch is flushed when it
+ * would exceed the maximum batch size, when the oldest write in the batch has waited for the
+ * maximum delay or when a write asking for an immediate flush is added to the batch.
+ *
+ * When a flow controller is set, the thread waits for enough send credit before writing messages
+ * other than the control frames (see MessageFrameCodec.isControlType()).
+ * When a bandwidth share is set, the thread waits until the writes fit the bandwidth limits.
+ * When a frame compressor is set, the message payloads are compressed before writing, if worth it.
+ */
+public class SocketWriterThread extends Thread {
+    /**
+     * Thread listener.
+     */
+    public interface Listener {
+        /**
+         * Called when a write has been successfully written to the output stream.
+         *
+         * @param pendingWrite The completed write.
+         * @param who The related SocketWriterThread instance.
+         */
+        void onWriteSucceeded(PendingWrite pendingWrite, SocketWriterThread who);
+
+        /**
+         * Called when writing to the output stream fails. No further writes are made after this.
+         *
+         * @param reason The reason for the failure.
+         * @param who The related SocketWriterThread instance.
+         */
+        void onWriterFailed(String reason, SocketWriterThread who);
+    }
+
+    /**
+     * Defines what happens when a write is enqueued while the queue is full.
+     */
+    public enum QueueFullPolicy {
+        BLOCK, // The enqueuing thread waits until there is space in the queue
+        FAIL_FAST, // The new write fails immediately
+        DROP_OLDEST // The oldest queued write fails and is removed to make room for the new one
+    }
+
+    /**
+     * The reason a batch of coalesced writes was flushed.
+     */
+    public enum FlushReason {
+        BATCH_FULL, // The next write would not have fit in the batch
+        MAX_DELAY, // The oldest write in the batch waited for the maximum delay
+        IMMEDIATE, // A write asking for an immediate flush was added to the batch
+        LARGE_WRITE // The write was too large to be coalesced and was written as is
+    }
+
+    /**
+     * An immutable snapshot of the coalescing statistics.
+     */
+    public static class CoalescingStatistics {
+        private final long mNumberOfBatches;
+        private final long mNumberOfWrites;
+        private final long mNumberOfBytes;
+        private final long mLargestBatchInBytes;
+        private final long[] mFlushReasonCounts;
+
+        private CoalescingStatistics(
+                long numberOfBatches, long numberOfWrites, long numberOfBytes,
+                long largestBatchInBytes, long[] flushReasonCounts) {
+            mNumberOfBatches = numberOfBatches;
+            mNumberOfWrites = numberOfWrites;
+            mNumberOfBytes = numberOfBytes;
+            mLargestBatchInBytes = largestBatchInBytes;
+            mFlushReasonCounts = flushReasonCounts;
+        }
+
+        /**
+         * @return The number of writes made to the output stream.
+         */
+        public long getNumberOfBatches() {
+            return mNumberOfBatches;
+        }
+
+        /**
+         * @return The number of enqueued writes written.
+         */
+        public long getNumberOfWrites() {
+            return mNumberOfWrites;
+        }
+
+        /**
+         * @return The number of bytes written including the framing overhead.
+         */
+        public long getNumberOfBytes() {
+            return mNumberOfBytes;
+        }
+
+        public long getLargestBatchInBytes() {
+            return mLargestBatchInBytes;
+        }
+
+        /**
+         * @return The average number of enqueued writes per write to the output stream.
+         */
+        public double getAverageWritesPerBatch() {
+            return mNumberOfBatches > 0 ? (double) mNumberOfWrites / mNumberOfBatches : 0d;
+        }
+
+        /**
+         * @return The average number of bytes per write to the output stream.
+         */
+        public double getAverageBytesPerBatch() {
+            return mNumberOfBatches > 0 ? (double) mNumberOfBytes / mNumberOfBatches : 0d;
+        }
+
+        /**
+         * @param flushReason The flush reason.
+         * @return The number of batches flushed due to the given reason.
+         */
+        public long getFlushCount(FlushReason flushReason) {
+            return mFlushReasonCounts[flushReason.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder stringBuilder = new StringBuilder();
+            stringBuilder.append("[batches: ").append(mNumberOfBatches)
+                    .append(", writes: ").append(mNumberOfWrites)
+                    .append(", bytes: ").append(mNumberOfBytes)
+                    .append(", largest batch: ").append(mLargestBatchInBytes);
+
+            for (FlushReason flushReason : FlushReason.values()) {
+                stringBuilder.append(", ").append(flushReason).append(": ")
+                        .append(mFlushReasonCounts[flushReason.ordinal()]);
+            }
+
+            return stringBuilder.append("]").toString();
+        }
+    }
+
+    private static final String TAG = SocketWriterThread.class.getName();
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final QueueFullPolicy DEFAULT_QUEUE_FULL_POLICY = QueueFullPolicy.BLOCK;
+    public static final int DEFAULT_MAX_BATCH_SIZE_IN_BYTES = 4 * 1024;
+    public static final long DEFAULT_MAX_BATCH_DELAY_IN_MILLISECONDS = 5;
+    public static final int DEFAULT_CHUNK_SIZE_IN_BYTES = 4 * 1024;
+    private final OutputStream mOutputStream;
+    private final Listener mListener;
+    private final ArrayBlockingQueue<PendingWrite> mQueue; // The normal priority lane
+    private final ArrayBlockingQueue<PendingWrite> mHighPriorityQueue;
+    private final ConcurrentLinkedQueue<PendingWrite> mControlQueue = new ConcurrentLinkedQueue<>();
+    private final Semaphore mQueuedWritesSignal = new Semaphore(0); // Released once per enqueued write
+    private final QueueFullPolicy mQueueFullPolicy;
+    private volatile boolean mIsShuttingDown = false;
+    private volatile String mFailureReason = null;
+    private final List<PendingWrite> mBatch = new ArrayList<>();
+    private byte[] mBatchBuffer = null; // Not null, if coalescing is enabled
+    private long mMaxBatchDelayInNanoseconds = 0;
+    private PendingWrite mCarriedOverWrite = null; // Taken from the queue, but did not fit the previous batch
+    private FlowController mFlowController = null;
+    private FrameCompressor mFrameCompressor = null;
+    private ConnectionMetrics mConnectionMetrics = null;
+    private BandwidthShaper.Share mBandwidthShare = null;
+    private byte[] mChunkBuffer = null; // Not null, if chunking is enabled
+    private final Histogram[] mQueueDelayHistograms = new Histogram[PendingWrite.Priority.values().length];
+    private final AtomicLong mNumberOfInterleavedWrites = new AtomicLong(0);
+    private int[] mBatchLengthsInStream = new int[16]; // The actual lengths of the writes in the batch
+    private final AtomicLong mNumberOfBatches = new AtomicLong(0);
+    private final AtomicLong mNumberOfBatchedWrites = new AtomicLong(0);
+    private final AtomicLong mNumberOfBatchedBytes = new AtomicLong(0);
+    private final AtomicLong mLargestBatchInBytes = new AtomicLong(0);
+    private final AtomicLongArray mFlushReasonCounts = new AtomicLongArray(FlushReason.values().length);
+
+    /**
+     * Constructor.
+     *
+     * @param outputStream The output stream to write to.
+     * @param listener The listener.
+     * @param queueCapacity The maximum number of writes in the queue.
+     * @param queueFullPolicy Defines what happens when enqueuing to a full queue.
+     * @throws NullPointerException Thrown, if the output stream, the listener or the policy is null.
+     */
+    public SocketWriterThread(
+            OutputStream outputStream, Listener listener,
+            int queueCapacity, QueueFullPolicy queueFullPolicy)
+            throws NullPointerException {
+        super(IoExecutor.getDefault().getThreadGroup(IoExecutor.Category.SOCKET_WRITER), null,
+                IoExecutor.getDefault().createThreadName(IoExecutor.Category.SOCKET_WRITER),
+                IoExecutor.getDefault().getStackSize(IoExecutor.Category.SOCKET_WRITER));
+        IoExecutor.getDefault().applyPriority(this, IoExecutor.Category.SOCKET_WRITER);
+
+        if (outputStream == null || listener == null || queueFullPolicy == null) {
+            throw new NullPointerException("Either the output stream, the listener or the queue full policy is null");
+        }
+
+        mOutputStream = outputStream;
+        mListener = listener;
+        mQueue = new ArrayBlockingQueue<>(queueCapacity > 0 ? queueCapacity : DEFAULT_QUEUE_CAPACITY);
+        mHighPriorityQueue = new ArrayBlockingQueue<>(queueCapacity > 0 ? queueCapacity : DEFAULT_QUEUE_CAPACITY);
+        mQueueFullPolicy = queueFullPolicy;
+
+        for (int i = 0; i < mQueueDelayHistograms.length; ++i) {
+            mQueueDelayHistograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Enables or disables write coalescing. Must be called before the thread is started.
+     *
+     * @param maxBatchSizeInBytes The maximum number of bytes written with a single write call.
+     *                            Writes larger than this are never coalesced. Zero or less
+     *                            disables coalescing.
+     * @param maxBatchDelayInMilliseconds The maximum time a write is held back waiting for more
+     *                                    writes to coalesce. Zero means that only the writes
+     *                                    already in the queue are coalesced.
+     * @throws IllegalStateException Thrown, if the thread has already been started.
+     */
+    public void setCoalescing(int maxBatchSizeInBytes, long maxBatchDelayInMilliseconds)
+            throws IllegalStateException {
+        if (getState() != State.NEW) {
+            throw new IllegalStateException("Coalescing must be configured before the thread is started");
+        }
+
+        if (maxBatchSizeInBytes > 0) {
+            mBatchBuffer = new byte[maxBatchSizeInBytes];
+            mMaxBatchDelayInNanoseconds =
+                    TimeUnit.MILLISECONDS.toNanos(Math.max(maxBatchDelayInMilliseconds, 0));
+        } else {
+            mBatchBuffer = null;
+            mMaxBatchDelayInNanoseconds = 0;
+        }
+    }
+
+    /**
+     * Enables or disables the chunking of large normal priority messages. Must be called before
+     * the thread is started. Note that the peer must support fragment frames (this library
+     * reassembles them in the framed mode).
+     *
+     * @param chunkSizeInBytes The maximum number of payload bytes per fragment. Messages no
+     *                         larger than this are written as is. Zero or less disables chunking.
+     * @throws IllegalStateException Thrown, if the thread has already been started.
+     */
+    public void setChunking(int chunkSizeInBytes) throws IllegalStateException {
+        if (getState() != State.NEW) {
+            throw new IllegalStateException("Chunking must be configured before the thread is started");
+        }
+
+        mChunkBuffer = (chunkSizeInBytes > 0)
+                ? new byte[MessageFrameCodec.MAX_HEADER_LENGTH_IN_BYTES
+                        + MessageFrameCodec.FRAGMENT_HEADER_LENGTH_IN_BYTES + chunkSizeInBytes]
+                : null;
+    }
+
+    /**
+     * @return The maximum number of payload bytes per fragment or zero, if chunking is disabled.
+     */
+    public int getChunkSize() {
+        return (mChunkBuffer != null)
+                ? mChunkBuffer.length - MessageFrameCodec.MAX_HEADER_LENGTH_IN_BYTES
+                        - MessageFrameCodec.FRAGMENT_HEADER_LENGTH_IN_BYTES
+                : 0;
+    }
+
+    /**
+     * Sets the flow controller providing the send credit for messages. Raw writes are not
+     * subject to flow control. Must be called before the thread is started.
+     *
+     * @param flowController The flow controller. If null, flow control is not used.
+     * @throws IllegalStateException Thrown, if the thread has already been started.
+     */
+    public void setFlowController(FlowController flowController) throws IllegalStateException {
+        if (getState() != State.NEW) {
+            throw new IllegalStateException("Flow controller must be set before the thread is started");
+        }
+
+        mFlowController = flowController;
+    }
+
+    /**
+     * Sets the compressor for the message payloads. Raw writes are not compressed. Must be called
+     * before the thread is started.
+     *
+     * @param frameCompressor The frame compressor. If null, the payloads are not compressed.
+     * @throws IllegalStateException Thrown, if the thread has already been started.
+     */
+    public void setFrameCompressor(FrameCompressor frameCompressor) throws IllegalStateException {
+        if (getState() != State.NEW) {
+            throw new IllegalStateException("Frame compressor must be set before the thread is started");
+        }
+
+        mFrameCompressor = frameCompressor;
+    }
+
+    /**
+     * Sets the metrics to record the writes to. Must be called before the thread is started.
+     *
+     * @param connectionMetrics The connection metrics. If null, the writes are not recorded.
+     * @throws IllegalStateException Thrown, if the thread has already been started.
+     */
+    public void setConnectionMetrics(ConnectionMetrics connectionMetrics) throws IllegalStateException {
+        if (getState() != State.NEW) {
+            throw new IllegalStateException("Connection metrics must be set before the thread is started");
+        }
+
+        mConnectionMetrics = connectionMetrics;
+    }
+
+    /**
+     * Sets the bandwidth share limiting the rate of the writes. Must be called before the thread
+     * is started.
+     *
+     * @param bandwidthShare The bandwidth share. If null, the rate is not limited.
+     * @throws IllegalStateException Thrown, if the thread has already been started.
+     */
+    public void setBandwidthShare(BandwidthShaper.Share bandwidthShare) throws IllegalStateException {
+        if (getState() != State.NEW) {
+            throw new IllegalStateException("Bandwidth share must be set before the thread is started");
+        }
+
+        mBandwidthShare = bandwidthShare;
+    }
+
+    /**
+     * @return True, if write coalescing is enabled.
+     */
+    public boolean isCoalescing() {
+        return (mBatchBuffer != null);
+    }
+
+    /**
+     * @return A snapshot of the coalescing statistics. Writes made while coalescing is disabled
+     * are not counted.
+     */
+    public CoalescingStatistics getCoalescingStatistics() {
+        long[] flushReasonCounts = new long[mFlushReasonCounts.length()];
+
+        for (int i = 0; i < flushReasonCounts.length; ++i) {
+            flushReasonCounts[i] = mFlushReasonCounts.get(i);
+        }
+
+        return new CoalescingStatistics(
+                mNumberOfBatches.get(), mNumberOfBatchedWrites.get(), mNumberOfBatchedBytes.get(),
+                mLargestBatchInBytes.get(), flushReasonCounts);
+    }
+
+    public QueueFullPolicy getQueueFullPolicy() {
+        return mQueueFullPolicy;
+    }
+
+    /**
+     * @return The number of writes currently in the queues.
+     */
+    public int getQueueSize() {
+        return mQueue.size() + mHighPriorityQueue.size() + mControlQueue.size();
+    }
+
+    /**
+     * @param priority The priority.
+     * @return The number of writes currently in the queue of the given priority.
+     */
+    public int getQueueSize(PendingWrite.Priority priority) {
+        return getQueue(priority).size();
+    }
+
+    /**
+     * @param priority The priority.
+     * @return A snapshot of the time the writes of the given priority waited in the queue before
+     * being written, in microseconds. With coalescing, the time a write was held back in a batch
+     * is included.
+     */
+    public Histogram.Snapshot getQueueDelay(PendingWrite.Priority priority) {
+        return mQueueDelayHistograms[priority.ordinal()].getSnapshot();
+    }
+
+    /**
+     * @return The number of high priority writes and control frames written between the fragments
+     * of a message.
+     */
+    public long getNumberOfInterleavedWrites() {
+        return mNumberOfInterleavedWrites.get();
+    }
+
+    /**
+     * Enqueues the given write. If the write cannot be enqueued, it is marked failed before this
+     * method returns.
+     *
+     * Note that if the queue is full and the policy is BLOCK, calling this from a completion
+     * callback (i.e. from this thread) fails the write instead of blocking, since blocking would
+     * deadlock the writer. The control frames are never subject to the queue capacity.
+     *
+     * @param pendingWrite The write to enqueue.
+     * @return The given write.
+     */
+    public PendingWrite enqueue(PendingWrite pendingWrite) {
+        return enqueue(pendingWrite, true);
+    }
+
+    /**
+     * Enqueues the given write. See enqueue(PendingWrite).
+     *
+     * @param pendingWrite The write to enqueue.
+     * @param mayBlock If false, the write fails instead of blocking when the queue is full and
+     *                 the policy is BLOCK.
+     * @return The given write.
+     */
+    /* Package */ PendingWrite enqueue(PendingWrite pendingWrite, boolean mayBlock) {
+        if (mIsShuttingDown || mFailureReason != null) {
+            pendingWrite.setFailed(mFailureReason != null ? mFailureReason : "Writer shut down");
+            return pendingWrite;
+        }
+
+        if (isControl(pendingWrite)) {
+            return enqueueControl(pendingWrite);
+        }
+
+        final ArrayBlockingQueue<PendingWrite> queue = getQueue(pendingWrite.getPriority());
+        boolean wasEnqueued = false;
+
+        switch (mQueueFullPolicy) {
+            case BLOCK:
+                if (!mayBlock || Thread.currentThread() == this) {
+                    wasEnqueued = queue.offer(pendingWrite);
+
+                    if (!wasEnqueued) {
+                        pendingWrite.setFailed("Write queue full");
+                    }
+                } else {
+                    try {
+                        queue.put(pendingWrite);
+                        wasEnqueued = true;
+                    } catch (InterruptedException e) {
+                        pendingWrite.setFailed("Interrupted while waiting for space in the write queue");
+                    }
+                }
+
+                break;
+
+            case FAIL_FAST:
+                wasEnqueued = queue.offer(pendingWrite);
+
+                if (!wasEnqueued) {
+                    pendingWrite.setFailed("Write queue full");
+                }
+
+                break;
+
+            case DROP_OLDEST:
+                while (!queue.offer(pendingWrite)) {
+                    PendingWrite droppedWrite = queue.poll();
+
+                    if (droppedWrite != null) {
+                        droppedWrite.setFailed("Dropped due to full write queue");
+                    }
+                }
+
+                wasEnqueued = true;
+                break;
+        }
+
+        if (wasEnqueued) {
+            mQueuedWritesSignal.release();
+        }
+
+        if ((mIsShuttingDown || mFailureReason != null) && queue.remove(pendingWrite)) {
+            // Shut down or failed while we were enqueuing
+            pendingWrite.setFailed(mFailureReason != null ? mFailureReason : "Writer shut down");
+        }
+
+        return pendingWrite;
+    }
+
+    /**
+     * Enqueues the given control frame to the control lane. Never blocks.
+     *
+     * @param pendingWrite The control frame to enqueue.
+     * @return The given write.
+     */
+    private PendingWrite enqueueControl(PendingWrite pendingWrite) {
+        mControlQueue.offer(pendingWrite);
+        mQueuedWritesSignal.release();
+
+        if (mFlowController != null) {
+            mFlowController.wakeUpSenders(); // In case we are waiting for send credit
+        }
+
+        if ((mIsShuttingDown || mFailureReason != null) && mControlQueue.remove(pendingWrite)) {
+            // Shut down or failed while we were enqueuing
+            pendingWrite.setFailed(mFailureReason != null ? mFailureReason : "Writer shut down");
+        }
+
+        return pendingWrite;
+    }
+
+    /**
+     * From Thread.
+     *
+     * Writes the enqueued writes until shut down or a write fails.
+     */
+    @Override
+    public void run() {
+        Log.d(TAG, "Entering thread (ID: " + getId() + ")");
+
+        while (!mIsShuttingDown) {
+            PendingWrite pendingWrite = mCarriedOverWrite;
+            mCarriedOverWrite = null;
+
+            if (pendingWrite == null) {
+                try {
+                    pendingWrite = takeNextWrite(); // Blocking call
+                } catch (InterruptedException e) {
+                    continue; // Check whether we are shutting down
+                }
+            }
+
+            mBatch.clear();
+            mBatch.add(pendingWrite);
+
+            try {
+                if (mBatchBuffer == null) {
+                    pendingWrite.setSucceeded(write(pendingWrite));
+                } else if (pendingWrite.getLengthInStream() >= mBatchBuffer.length) {
+                    int numberOfBytesWritten = write(pendingWrite);
+                    recordBatch(1, numberOfBytesWritten, FlushReason.LARGE_WRITE);
+                    pendingWrite.setSucceeded(numberOfBytesWritten);
+                } else {
+                    FlushReason flushReason = gatherBatch();
+
+                    if (flushReason == null) {
+                        // Interrupted due to shutdown
+                        failBatch("Writer shut down");
+                        break;
+                    }
+
+                    recordBatch(mBatch.size(), writeBatch(), flushReason);
+
+                    for (int i = 0; i < mBatch.size(); ++i) {
+                        mBatch.get(i).setSucceeded(mBatchLengthsInStream[i]);
+                    }
+                }
+
+                for (PendingWrite batchedWrite : mBatch) {
+                    mListener.onWriteSucceeded(batchedWrite, this);
+                }
+            } catch (IOException e) {
+                String reason = "Failed to write to output stream: " + e.getMessage();
+
+                if (!mIsShuttingDown) {
+                    Log.e(TAG, reason + " (thread ID: " + getId() + ")");
+                }
+
+                mFailureReason = reason;
+                failBatch(reason);
+                failQueuedWrites(reason);
+
+                if (!mIsShuttingDown) {
+                    mListener.onWriterFailed(reason, this);
+                }
+
+                break;
+            }
+        }
+
+        mBatch.clear();
+        failQueuedWrites("Writer shut down");
+        Log.d(TAG, "Exiting thread (ID: " + getId() + ")");
+    }
+
+    /**
+     * Shuts down the thread. Writes still in the queue are marked failed. Does not close the
+     * output stream.
+     */
+    public void shutdown() {
+        mIsShuttingDown = true;
+        interrupt();
+        failQueuedWrites("Writer shut down");
+    }
+
+    /**
+     * Writes the given write to the output stream.
+     *
+     * @param pendingWrite The write.
+     * @return The number of bytes written.
+     * @throws IOException Thrown, if writing fails.
+     */
+    private int write(PendingWrite pendingWrite) throws IOException {
+        return write(pendingWrite, false);
+    }
+
+    /**
+     * Writes the given write to the output stream.
+     *
+     * @param pendingWrite The write.
+     * @param isCreditAcquired If true, the send credit for the message was already acquired.
+     * @return The number of bytes written.
+     * @throws IOException Thrown, if writing fails.
+     */
+    private int write(PendingWrite pendingWrite, boolean isCreditAcquired) throws IOException {
+        recordQueueDelay(pendingWrite);
+
+        if (pendingWrite.isMessage()) {
+            byte type = pendingWrite.getMessageType();
+            byte[] payload = pendingWrite.getBytes();
+
+            if (!MessageFrameCodec.isControlType(type)) {
+                if (!isCreditAcquired) {
+                    acquireSendCredit(payload.length); // Credit is based on the uncompressed length
+                }
+
+                byte[] compressedPayload = compress(payload);
+
+                if (compressedPayload != null) {
+                    type |= MessageFrameCodec.FLAG_COMPRESSED;
+                    payload = compressedPayload;
+                }
+            }
+
+            if (mChunkBuffer != null && pendingWrite.getPriority() == PendingWrite.Priority.NORMAL
+                    && payload.length > getChunkSize()) {
+                return writeFragmented(type, payload);
+            }
+
+            final int frameLength = MessageFrameCodec.getFrameLength(payload.length);
+            acquireBandwidth(frameLength);
+
+            synchronized (mOutputStream) {
+                long startTime = System.nanoTime();
+                MessageFrameCodec.writeFrame(mOutputStream, type, payload, 0, payload.length);
+                recordWrite(frameLength, startTime);
+            }
+
+            return frameLength;
+        }
+
+        final byte[] bytes = pendingWrite.getBytes();
+        acquireBandwidth(bytes.length);
+
+        synchronized (mOutputStream) {
+            long startTime = System.nanoTime();
+            mOutputStream.write(bytes);
+            recordWrite(bytes.length, startTime);
+        }
+
+        return bytes.length;
+    }
+
+    /**
+     * Writes the given message payload as fragments. The queued high priority writes are written
+     * between the fragments.
+     *
+     * @param type The message type.
+     * @param payload The (possibly compressed) message payload.
+     * @return The number of bytes written excluding the interleaved writes.
+     * @throws IOException Thrown, if writing fails.
+     */
+    private int writeFragmented(byte type, byte[] payload) throws IOException {
+        final int chunkSize = getChunkSize();
+        int offset = 0;
+        int numberOfBytesWritten = 0;
+
+        while (offset < payload.length) {
+            int fragmentLength = Math.min(chunkSize, payload.length - offset);
+            boolean isLast = (offset + fragmentLength == payload.length);
+            int length = MessageFrameCodec.writeFragmentHeader(type, isLast, fragmentLength, mChunkBuffer, 0);
+            System.arraycopy(payload, offset, mChunkBuffer, length, fragmentLength);
+            length += fragmentLength;
+            acquireBandwidth(length);
+
+            synchronized (mOutputStream) {
+                long startTime = System.nanoTime();
+                mOutputStream.write(mChunkBuffer, 0, length);
+                recordWrite(length, startTime);
+            }
+
+            offset += fragmentLength;
+            numberOfBytesWritten += length;
+
+            if (!isLast) {
+                writeHighPriorityWrites();
+            }
+        }
+
+        return numberOfBytesWritten;
+    }
+
+    /**
+     * Writes the control frames currently in the control lane and notifies the listener.
+     *
+     * @return The number of control frames written.
+     * @throws IOException Thrown, if writing fails. The failed write is marked failed.
+     */
+    private int writeControlWrites() throws IOException {
+        PendingWrite pendingWrite;
+        int numberOfWrites = 0;
+
+        while ((pendingWrite = mControlQueue.poll()) != null) {
+            mQueuedWritesSignal.tryAcquire(); // Consume the signal of the write, if already released
+            writeControlWrite(pendingWrite);
+            numberOfWrites++;
+        }
+
+        return numberOfWrites;
+    }
+
+    /**
+     * Writes the given control frame, which has been taken from the control lane, and notifies
+     * the listener.
+     *
+     * @param pendingWrite The control frame.
+     * @throws IOException Thrown, if writing fails. The write is marked failed.
+     */
+    private void writeControlWrite(PendingWrite pendingWrite) throws IOException {
+        try {
+            pendingWrite.setSucceeded(write(pendingWrite, true));
+        } catch (IOException e) {
+            pendingWrite.setFailed("Failed to write to output stream: " + e.getMessage());
+            throw e;
+        }
+
+        mListener.onWriteSucceeded(pendingWrite, this);
+    }
+
+    /**
+     * Writes the writes currently in the control lane and in the high priority queue and notifies
+     * the listener.
+     *
+     * Since the credit of the message being fragmented is returned by the peer only after the
+     * whole message has been received, a high priority message is written only if its send credit
+     * is available right away. Otherwise it, and the writes queued after it, stay in the queue and
+     * are written after the fragmented message. The control messages are not subject to flow control and are always written.
+     *
+     * @throws IOException Thrown, if writing fails. The failed write is marked failed.
+     */
+    private void writeHighPriorityWrites() throws IOException {
+        mNumberOfInterleavedWrites.addAndGet(writeControlWrites());
+        PendingWrite pendingWrite;
+
+        while ((pendingWrite = mHighPriorityQueue.peek()) != null) {
+            boolean isCreditAcquired = false;
+
+            if (mFlowController != null && pendingWrite.isMessage()
+                    && !MessageFrameCodec.isControlType(pendingWrite.getMessageType())) {
+                if (!mFlowController.tryAcquireSendCredit(pendingWrite.getBytes().length)) {
+                    break; // Must not block while the peer waits for the rest of the fragments
+                }
+
+                isCreditAcquired = true;
+            }
+
+            if (mHighPriorityQueue.poll() != pendingWrite) {
+                break; // Taken by shutdown
+            }
+
+            mQueuedWritesSignal.tryAcquire(); // Consume the signal of the write, if already released
+
+            try {
+                pendingWrite.setSucceeded(write(pendingWrite, isCreditAcquired));
+            } catch (IOException e) {
+                pendingWrite.setFailed("Failed to write to output stream: " + e.getMessage());
+                throw e;
+            }
+
+            mNumberOfInterleavedWrites.incrementAndGet();
+            mListener.onWriteSucceeded(pendingWrite, this);
+        }
+    }
+
+    /**
+     * Waits for the next write. The high priority writes are taken first.
+     *
+     * @return The next write.
+     * @throws InterruptedException Thrown, if interrupted while waiting.
+     */
+    private PendingWrite takeNextWrite() throws InterruptedException {
+        while (true) {
+            mQueuedWritesSignal.acquire();
+            PendingWrite pendingWrite = pollQueues();
+
+            if (pendingWrite != null) {
+                return pendingWrite;
+            }
+
+            // The write was dropped or taken between fragments, wait for the next one
+        }
+    }
+
+    /**
+     * Waits for the next write for at most the given time. The high priority writes are taken
+     * first.
+     *
+     * @param timeoutInNanoseconds The maximum time to wait. Zero or less means no waiting.
+     * @return The next write or null, if none was enqueued in time.
+     * @throws InterruptedException Thrown, if interrupted while waiting.
+     */
+    private PendingWrite pollNextWrite(long timeoutInNanoseconds) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutInNanoseconds;
+
+        while (mQueuedWritesSignal.tryAcquire(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS)) {
+            PendingWrite pendingWrite = pollQueues();
+
+            if (pendingWrite != null) {
+                return pendingWrite;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The first control frame, the first high priority write, the first normal write or
+     * null, if all the queues are empty.
+     */
+    private PendingWrite pollQueues() {
+        PendingWrite pendingWrite = mControlQueue.poll();
+
+        if (pendingWrite == null) {
+            pendingWrite = mHighPriorityQueue.poll();
+        }
+
+        return (pendingWrite != null) ? pendingWrite : mQueue.poll();
+    }
+
+    private ArrayBlockingQueue<PendingWrite> getQueue(PendingWrite.Priority priority) {
+        return (priority == PendingWrite.Priority.HIGH) ? mHighPriorityQueue : mQueue;
+    }
+
+    /**
+     * Adds writes to the batch, which already contains one write, until the batch should be
+     * flushed. The write, which did not fit the batch, is stored in mCarriedOverWrite. The
+     * control frames enqueued meanwhile are written right away instead of being batched, since
+     * the batch may have to wait for send credit.
+     *
+     * @return The reason to flush or null, if interrupted due to shutdown.
+     * @throws IOException Thrown, if writing a control frame fails.
+     */
+    private FlushReason gatherBatch() throws IOException {
+        PendingWrite firstWrite = mBatch.get(0);
+
+        if (isUrgent(firstWrite)) {
+            return FlushReason.IMMEDIATE;
+        }
+
+        final long deadline = firstWrite.getTimeEnqueued() + mMaxBatchDelayInNanoseconds;
+        int batchSizeInBytes = firstWrite.getLengthInStream();
+
+        while (true) {
+            long timeLeftInNanoseconds = deadline - System.nanoTime();
+            PendingWrite pendingWrite;
+
+            try {
+                pendingWrite = pollNextWrite(timeLeftInNanoseconds);
+            } catch (InterruptedException e) {
+                if (mIsShuttingDown) {
+                    return null;
+                }
+
+                pendingWrite = null;
+            }
+
+            if (pendingWrite == null) {
+                return FlushReason.MAX_DELAY;
+            }
+
+            if (isControl(pendingWrite)) {
+                writeControlWrite(pendingWrite);
+                continue;
+            }
+
+            int lengthInStream = pendingWrite.getLengthInStream();
+
+            if (batchSizeInBytes + lengthInStream > mBatchBuffer.length) {
+                mCarriedOverWrite = pendingWrite;
+                return FlushReason.BATCH_FULL;
+            }
+
+            mBatch.add(pendingWrite);
+            batchSizeInBytes += lengthInStream;
+
+            if (isUrgent(pendingWrite)) {
+                return FlushReason.IMMEDIATE;
+            }
+
+            if (batchSizeInBytes == mBatchBuffer.length) {
+                return FlushReason.BATCH_FULL;
+            }
+        }
+    }
+
+    /**
+     * Copies the writes in the batch into the batch buffer and writes it to the output stream
+     * with a single call.
+     *
+     * @return The number of bytes written.
+     * @throws IOException Thrown, if writing fails.
+     */
+    private int writeBatch() throws IOException {
+        int offset = 0;
+        int numberOfMessageBytes = 0;
+
+        if (mBatchLengthsInStream.length < mBatch.size()) {
+            mBatchLengthsInStream = new int[Math.max(mBatch.size(), mBatchLengthsInStream.length * 2)];
+        }
+
+        for (int i = 0; i < mBatch.size(); ++i) {
+            PendingWrite pendingWrite = mBatch.get(i);
+            byte[] bytes = pendingWrite.getBytes();
+            final int startOffset = offset;
+            recordQueueDelay(pendingWrite);
+
+            if (pendingWrite.isMessage()) {
+                byte type = pendingWrite.getMessageType();
+
+                if (!MessageFrameCodec.isControlType(type)) {
+                    numberOfMessageBytes += bytes.length; // Credit is based on the uncompressed length
+                    byte[] compressedPayload = compress(bytes);
+
+                    if (compressedPayload != null) {
+                        // Always shorter than the original, thus fits the batch
+                        type |= MessageFrameCodec.FLAG_COMPRESSED;
+                        bytes = compressedPayload;
+                    }
+                }
+
+                offset = MessageFrameCodec.writeFrameHeader(type, bytes.length, mBatchBuffer, offset);
+            }
+
+            System.arraycopy(bytes, 0, mBatchBuffer, offset, bytes.length);
+            offset += bytes.length;
+            mBatchLengthsInStream[i] = offset - startOffset;
+        }
+
+        if (numberOfMessageBytes > 0) {
+            acquireSendCredit(numberOfMessageBytes);
+        }
+
+        acquireBandwidth(offset);
+
+        synchronized (mOutputStream) {
+            long startTime = System.nanoTime();
+            mOutputStream.write(mBatchBuffer, 0, offset);
+            recordWrite(offset, startTime);
+        }
+
+        return offset;
+    }
+
+    /**
+     * Records a completed write call to the connection metrics, if set.
+     *
+     * @param numberOfBytesWritten The number of bytes written.
+     * @param startTime The time the write call started (System.nanoTime()).
+     */
+    private void recordWrite(int numberOfBytesWritten, long startTime) {
+        if (mConnectionMetrics != null) {
+            mConnectionMetrics.onBytesWritten(numberOfBytesWritten, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Records the time the given write waited before being written.
+     *
+     * @param pendingWrite The write about to be written.
+     */
+    private void recordQueueDelay(PendingWrite pendingWrite) {
+        mQueueDelayHistograms[pendingWrite.getPriority().ordinal()].record(
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - pendingWrite.getTimeEnqueued()));
+    }
+
+    /**
+     * @param pendingWrite The write.
+     * @return True, if the given write should not be held back for coalescing.
+     */
+    private static boolean isUrgent(PendingWrite pendingWrite) {
+        return (pendingWrite.getFlushImmediately() || pendingWrite.getPriority() == PendingWrite.Priority.HIGH
+                || isControl(pendingWrite));
+    }
+
+    /**
+     * @param pendingWrite The write.
+     * @return True, if the given write is a control frame (see MessageFrameCodec.isControlType()).
+     */
+    private static boolean isControl(PendingWrite pendingWrite) {
+        return (pendingWrite.isMessage() && MessageFrameCodec.isControlType(pendingWrite.getMessageType()));
+    }
+
+    /**
+     * Compresses the given message payload, if a frame compressor is set.
+     *
+     * @param payload The payload.
+     * @return The compressed payload or null, if not compressed.
+     */
+    private byte[] compress(byte[] payload) {
+        return (mFrameCompressor != null) ? mFrameCompressor.compress(payload) : null;
+    }
+
+    /**
+     * Waits for the send credit, if a flow controller is set. The control frames enqueued while
+     * waiting are written meanwhile.
+     *
+     * @param numberOfBytes The number of payload bytes about to be sent.
+     * @throws IOException Thrown, if the flow controller was closed, the thread was shut down
+     *                     while waiting or writing a control frame failed.
+     */
+    private void acquireSendCredit(int numberOfBytes) throws IOException {
+        if (mFlowController == null) {
+            return;
+        }
+
+        try {
+            while (true) {
+                // Read before checking the control lane so that no wake up is missed
+                long wakeUpCount = mFlowController.getWakeUpCount();
+                writeControlWrites();
+
+                if (mFlowController.acquireSendCredit(numberOfBytes, wakeUpCount)) {
+                    return;
+                }
+
+                if (mFlowController.isClosed()) {
+                    throw new IOException("Flow control closed");
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for send credit");
+        }
+    }
+
+    /**
+     * Waits until the given number of bytes fit the bandwidth limits, if a bandwidth share is set.
+     *
+     * @param numberOfBytes The number of bytes about to be written.
+     * @throws IOException Thrown, if the share was unregistered or the thread was shut down while
+     *                     waiting.
+     */
+    private void acquireBandwidth(int numberOfBytes) throws IOException {
+        if (mBandwidthShare == null) {
+            return;
+        }
+
+        try {
+            if (!mBandwidthShare.acquire(numberOfBytes)) {
+                throw new IOException("Bandwidth share unregistered");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    /**
+     * Updates the coalescing statistics.
+     *
+     * @param numberOfWrites The number of writes in the batch.
+     * @param numberOfBytes The number of bytes written.
+     * @param flushReason The reason for the flush.
+     */
+    private void recordBatch(int numberOfWrites, int numberOfBytes, FlushReason flushReason) {
+        mNumberOfBatches.incrementAndGet();
+        mNumberOfBatchedWrites.addAndGet(numberOfWrites);
+        mNumberOfBatchedBytes.addAndGet(numberOfBytes);
+        mFlushReasonCounts.incrementAndGet(flushReason.ordinal());
+
+        if (numberOfBytes > mLargestBatchInBytes.get()) {
+            mLargestBatchInBytes.set(numberOfBytes); // Only updated from this thread
+        }
+    }
+
+    /**
+     * Fails all writes in the current batch as well as the carried over write, if any.
+     *
+     * @param reason The reason for the failure.
+     */
+    private void failBatch(String reason) {
+        for (PendingWrite pendingWrite : mBatch) {
+            pendingWrite.setFailed(reason);
+        }
+
+        mBatch.clear();
+
+        if (mCarriedOverWrite != null) {
+            mCarriedOverWrite.setFailed(reason);
+            mCarriedOverWrite = null;
+        }
+    }
+
+    /**
+     * Fails and removes all writes in the queue.
+     *
+     * @param reason The reason for the failure.
+     */
+    private void failQueuedWrites(String reason) {
+        PendingWrite pendingWrite;
+
+        while ((pendingWrite = pollQueues()) != null) {
+            pendingWrite.setFailed(reason);
+        }
+    }
+}
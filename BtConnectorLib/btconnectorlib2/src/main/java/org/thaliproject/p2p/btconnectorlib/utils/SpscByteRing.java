@@ -0,0 +1,271 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free ring buffer of bytes for exactly one producer thread and one consumer thread.
+ *
+ * The producer and the consumer only advance their own position (the tail and the head
+ * respectively), so no locks are needed. A side waiting for the other (for space or for data)
+ * parks and is unparked by the other side after it has advanced its position.
+ *
+ * The overflow policy defines what the producer does when there is not enough space for the
+ * bytes it puts: wait, drop the bytes that do not fit or fail.
+ */
+public class SpscByteRing {
+    public enum OverflowPolicy {
+        BLOCK, // The producer waits until there is space
+        DROP, // The bytes that do not fit are dropped and counted
+        FAIL // put() fails; the producer should treat this as an error (e.g. disconnect)
+    }
+
+    public static final int DEFAULT_CAPACITY_IN_BYTES = 64 * 1024;
+    private static final long MAX_PARK_TIME_IN_NANOSECONDS = TimeUnit.MILLISECONDS.toNanos(50);
+    private final byte[] mBuffer;
+    private final int mMask;
+    private final OverflowPolicy mOverflowPolicy;
+    private final AtomicLong mHead = new AtomicLong(0); // The next position to read, advanced by the consumer
+    private final AtomicLong mTail = new AtomicLong(0); // The next position to write, advanced by the producer
+    private volatile Thread mWaitingProducer = null;
+    private volatile Thread mWaitingConsumer = null;
+    private volatile boolean mIsClosed = false;
+    private volatile long mHighWaterMark = 0; // Written by the producer only
+    private volatile long mNumberOfProducerStalls = 0; // Written by the producer only
+    private volatile long mNumberOfDroppedBytes = 0; // Written by the producer only
+
+    /**
+     * Constructor.
+     *
+     * @param capacityInBytes The capacity. Rounded up to the next power of two.
+     * @param overflowPolicy The overflow policy.
+     */
+    public SpscByteRing(int capacityInBytes, OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new NullPointerException("Overflow policy is null");
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(capacityInBytes, 2) - 1) << 1;
+        mBuffer = new byte[capacity];
+        mMask = capacity - 1;
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * @return The number of bytes in the ring.
+     */
+    public int getSize() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    /**
+     * @return The largest number of bytes that have been in the ring at the same time.
+     */
+    public long getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /**
+     * @return The number of times the producer had to wait for space.
+     */
+    public long getNumberOfProducerStalls() {
+        return mNumberOfProducerStalls;
+    }
+
+    /**
+     * @return The number of bytes dropped due to the ring being full (policy DROP).
+     */
+    public long getNumberOfDroppedBytes() {
+        return mNumberOfDroppedBytes;
+    }
+
+    public boolean isClosed() {
+        return mIsClosed;
+    }
+
+    /**
+     * Puts the given bytes to the ring. May be called by the producer thread only.
+     *
+     * @param bytes The array containing the bytes.
+     * @param offset The offset of the bytes in the array.
+     * @param length The number of bytes.
+     * @return True, if the bytes were put (or dropped as per policy). False, if the ring was closed
+     * or, with policy FAIL, there was not enough space.
+     * @throws InterruptedException Thrown, if interrupted while waiting for space.
+     */
+    public boolean put(byte[] bytes, int offset, int length) throws InterruptedException {
+        final long tail = mTail.get();
+        int numberOfFreeBytes = mBuffer.length - (int) (tail - mHead.get());
+
+        if (length > numberOfFreeBytes) {
+            switch (mOverflowPolicy) {
+                case BLOCK:
+                    // Put what fits piece by piece, waiting for the consumer in between
+                    while (length > 0 && !mIsClosed) {
+                        int numberOfBytesPut = putAvailable(bytes, offset, length);
+                        offset += numberOfBytesPut;
+                        length -= numberOfBytesPut;
+
+                        if (length > 0) {
+                            awaitSpace();
+                        }
+                    }
+
+                    return !mIsClosed;
+
+                case DROP:
+                    mNumberOfDroppedBytes += length - numberOfFreeBytes;
+                    length = numberOfFreeBytes;
+                    break;
+
+                case FAIL:
+                    return false;
+            }
+        }
+
+        putAvailable(bytes, offset, length);
+        return !mIsClosed;
+    }
+
+    /**
+     * Takes bytes from the ring. Waits, if the ring is empty. May be called by the consumer
+     * thread only.
+     *
+     * @param destination The destination array.
+     * @param offset The offset in the destination array.
+     * @param length The maximum number of bytes to take.
+     * @return The number of bytes taken or -1, if the ring was closed and is empty.
+     * @throws InterruptedException Thrown, if interrupted while waiting.
+     */
+    public int take(byte[] destination, int offset, int length) throws InterruptedException {
+        while (true) {
+            int numberOfBytesTaken = poll(destination, offset, length);
+
+            if (numberOfBytesTaken > 0 || length == 0) {
+                return numberOfBytesTaken;
+            }
+
+            if (mIsClosed && getSize() == 0) {
+                return -1;
+            }
+
+            mWaitingConsumer = Thread.currentThread();
+
+            if (getSize() == 0 && !mIsClosed) {
+                LockSupport.parkNanos(this, MAX_PARK_TIME_IN_NANOSECONDS);
+            }
+
+            mWaitingConsumer = null;
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Takes the bytes currently in the ring without waiting. May be called by the consumer thread
+     * only.
+     *
+     * @param destination The destination array.
+     * @param offset The offset in the destination array.
+     * @param length The maximum number of bytes to take.
+     * @return The number of bytes taken.
+     */
+    public int poll(byte[] destination, int offset, int length) {
+        final long head = mHead.get();
+        final int numberOfBytesToTake = (int) Math.min(length, mTail.get() - head);
+
+        if (numberOfBytesToTake <= 0) {
+            return 0;
+        }
+
+        final int position = (int) (head & mMask);
+        final int firstPartLength = Math.min(numberOfBytesToTake, mBuffer.length - position);
+        System.arraycopy(mBuffer, position, destination, offset, firstPartLength);
+        System.arraycopy(mBuffer, 0, destination, offset + firstPartLength, numberOfBytesToTake - firstPartLength);
+        mHead.set(head + numberOfBytesToTake);
+        unpark(mWaitingProducer);
+        return numberOfBytesToTake;
+    }
+
+    /**
+     * Closes the ring. The consumer can still take the bytes in the ring. Wakes up both sides.
+     * Can be called from any thread.
+     */
+    public void close() {
+        mIsClosed = true;
+        unpark(mWaitingProducer);
+        unpark(mWaitingConsumer);
+    }
+
+    /**
+     * Copies as many of the given bytes as fit to the ring and publishes them to the consumer.
+     *
+     * @return The number of bytes copied.
+     */
+    private int putAvailable(byte[] bytes, int offset, int length) {
+        final long tail = mTail.get();
+        final int numberOfBytesToPut = Math.min(length, mBuffer.length - (int) (tail - mHead.get()));
+
+        if (numberOfBytesToPut <= 0) {
+            return 0;
+        }
+
+        final int position = (int) (tail & mMask);
+        final int firstPartLength = Math.min(numberOfBytesToPut, mBuffer.length - position);
+        System.arraycopy(bytes, offset, mBuffer, position, firstPartLength);
+        System.arraycopy(bytes, offset + firstPartLength, mBuffer, 0, numberOfBytesToPut - firstPartLength);
+        mTail.set(tail + numberOfBytesToPut);
+
+        long size = tail + numberOfBytesToPut - mHead.get();
+
+        if (size > mHighWaterMark) {
+            mHighWaterMark = size;
+        }
+
+        unpark(mWaitingConsumer);
+        return numberOfBytesToPut;
+    }
+
+    /**
+     * Waits until the consumer has taken some bytes or the ring is closed.
+     *
+     * @throws InterruptedException Thrown, if interrupted while waiting.
+     */
+    private void awaitSpace() throws InterruptedException {
+        mNumberOfProducerStalls++;
+
+        while (!mIsClosed && getSize() == mBuffer.length) {
+            mWaitingProducer = Thread.currentThread();
+
+            if (getSize() == mBuffer.length && !mIsClosed) {
+                LockSupport.parkNanos(this, MAX_PARK_TIME_IN_NANOSECONDS);
+            }
+
+            mWaitingProducer = null;
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    private static void unpark(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,503 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs multiple independent logical streams over a single framed connection i.e. over a single
+ * BluetoothSocketIoThread.
+ *
+ * Each stream has an ID. To avoid collisions, the streams opened by the side that initiated the
+ * connection have odd IDs and the ones opened by the other side have even IDs. The following
+ * frame types are used (the payload starts with the stream ID as a varint):
+ *
+ * - MessageFrameCodec.TYPE_STREAM_OPEN: [stream ID]
+ * - MessageFrameCodec.TYPE_STREAM_DATA: [stream ID][data]
+ * - MessageFrameCodec.TYPE_STREAM_CLOSE: [stream ID]
+ *
+ * Outbound data is split into chunks of at most the maximum chunk size. A scheduler thread sends
+ * one chunk per stream in turn (round-robin) so that a stream with a lot of data cannot starve the
+ * others. The amount of data buffered per stream is limited; writing to a stream with a full
+ * buffer blocks until the scheduler has sent enough of it.
+ *
+ * Received data is delivered to the listener from the reader thread of the BluetoothSocketIoThread
+ * as it arrives.
+ */
+public class StreamMultiplexer implements BluetoothSocketIoThread.MessageListener {
+    /**
+     * Multiplexer listener.
+     */
+    public interface Listener {
+        /**
+         * Called when the peer has opened a new stream.
+         *
+         * @param stream The new stream.
+         */
+        void onStreamOpened(Stream stream);
+
+        /**
+         * Called when data is received on a stream. The contents of the buffer are valid only
+         * during this call.
+         *
+         * Note that writing to a stream from this callback blocks the reader thread, if the
+         * outbound buffer of the stream is full.
+         *
+         * @param stream The stream.
+         * @param buffer The array containing the data.
+         * @param offset The offset of the data in the array.
+         * @param length The length of the data.
+         */
+        void onStreamData(Stream stream, byte[] buffer, int offset, int length);
+
+        /**
+         * Called when the peer has closed a stream or the multiplexer was shut down.
+         *
+         * @param stream The closed stream.
+         */
+        void onStreamClosed(Stream stream);
+    }
+
+    /**
+     * A single logical stream.
+     */
+    public class Stream {
+        private final int mId;
+        private final ArrayDeque<byte[]> mOutboundQueue = new ArrayDeque<>(); // Guarded by the multiplexer lock
+        private int mOutboundQueueHeadPosition = 0; // Guarded by the multiplexer lock
+        private int mNumberOfBufferedBytes = 0; // Guarded by the multiplexer lock
+        private boolean mIsCloseRequested = false; // Guarded by the multiplexer lock
+        private boolean mIsClosed = false; // Guarded by the multiplexer lock
+
+        private Stream(int id) {
+            mId = id;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * @return True, if the stream was closed (locally or by the peer).
+         */
+        public boolean isClosed() {
+            synchronized (mLock) {
+                return (mIsClosed || mIsCloseRequested);
+            }
+        }
+
+        /**
+         * @return The number of outbound bytes not yet sent.
+         */
+        public int getNumberOfBufferedBytes() {
+            synchronized (mLock) {
+                return mNumberOfBufferedBytes;
+            }
+        }
+
+        /**
+         * Enqueues the given bytes to be sent on this stream. Blocks, if the outbound buffer of
+         * the stream does not have room for the bytes. Data larger than the whole buffer is
+         * accepted once the buffer is empty.
+         *
+         * Note that the given array must not be modified after calling this method.
+         *
+         * @param bytes The bytes to send.
+         * @return True, if the bytes were enqueued. False, if the stream is closed or the calling
+         * thread was interrupted.
+         */
+        public boolean write(byte[] bytes) {
+            if (bytes == null) {
+                throw new NullPointerException("The bytes to write is null");
+            }
+
+            synchronized (mLock) {
+                while (!mIsClosed && !mIsCloseRequested && mNumberOfBufferedBytes > 0
+                        && mNumberOfBufferedBytes + bytes.length > mMaxBufferedBytesPerStream) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+
+                if (mIsClosed || mIsCloseRequested) {
+                    return false;
+                }
+
+                if (bytes.length > 0) {
+                    mOutboundQueue.add(bytes);
+                    mNumberOfBufferedBytes += bytes.length;
+
+                    if (mNumberOfBufferedBytes == bytes.length) {
+                        // The stream had nothing to send
+                        mReadyStreams.add(this);
+                        mLock.notifyAll();
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Closes the stream. The data already written is sent before the stream is closed.
+         */
+        public void close() {
+            synchronized (mLock) {
+                if (mIsClosed || mIsCloseRequested) {
+                    return;
+                }
+
+                mIsCloseRequested = true;
+
+                if (mNumberOfBufferedBytes == 0) {
+                    enqueueCloseFrame(this);
+                }
+
+                mLock.notifyAll();
+            }
+        }
+
+        /**
+         * Takes the next chunk to send. The stream must have data buffered.
+         * Must be called while holding the multiplexer lock.
+         *
+         * @return The payload of the data frame.
+         */
+        private byte[] takeChunk() {
+            byte[] head = mOutboundQueue.peek();
+            int length = Math.min(head.length - mOutboundQueueHeadPosition, mMaxChunkSizeInBytes);
+            byte[] payload = createPayload(mId, length);
+            System.arraycopy(head, mOutboundQueueHeadPosition, payload, payload.length - length, length);
+            mOutboundQueueHeadPosition += length;
+
+            if (mOutboundQueueHeadPosition == head.length) {
+                mOutboundQueue.poll();
+                mOutboundQueueHeadPosition = 0;
+            }
+
+            mNumberOfBufferedBytes -= length;
+            return payload;
+        }
+    }
+
+    /**
+     * Sends the queued frames.
+     */
+    private class SchedulerThread extends Thread {
+        public SchedulerThread() {
+            super(IoExecutor.getDefault().getThreadGroup(IoExecutor.Category.SOCKET_WRITER), null,
+                    IoExecutor.getDefault().createThreadName(IoExecutor.Category.SOCKET_WRITER),
+                    IoExecutor.getDefault().getStackSize(IoExecutor.Category.SOCKET_WRITER));
+            IoExecutor.getDefault().applyPriority(this, IoExecutor.Category.SOCKET_WRITER);
+        }
+
+        @Override
+        public void run() {
+            Log.d(TAG, "Entering thread (ID: " + getId() + ")");
+
+            while (true) {
+                byte type;
+                byte[] payload;
+
+                synchronized (mLock) {
+                    while (!mIsShutDown && mControlFrames.isEmpty() && mReadyStreams.isEmpty()) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            // Check whether we are shutting down
+                        }
+                    }
+
+                    if (mIsShutDown) {
+                        break;
+                    }
+
+                    if (!mControlFrames.isEmpty()) {
+                        // Control frames first so that a stream is always opened before its data
+                        byte[] controlFrame = mControlFrames.poll();
+                        type = controlFrame[0];
+                        payload = new byte[controlFrame.length - 1];
+                        System.arraycopy(controlFrame, 1, payload, 0, payload.length);
+                    } else {
+                        Stream stream = mReadyStreams.poll();
+                        type = MessageFrameCodec.TYPE_STREAM_DATA;
+                        payload = stream.takeChunk();
+
+                        if (stream.mNumberOfBufferedBytes > 0) {
+                            mReadyStreams.add(stream); // Round-robin
+                        } else if (stream.mIsCloseRequested) {
+                            enqueueCloseFrame(stream);
+                        }
+
+                        mLock.notifyAll(); // Wake up the writers waiting for room in the buffer
+                    }
+                }
+
+                if (!mBluetoothSocketIoThread.writeMessage(type, payload)) {
+                    Log.e(TAG, "Failed to write a frame, shutting down");
+                    shutdown();
+                    break;
+                }
+            }
+
+            Log.d(TAG, "Exiting thread (ID: " + getId() + ")");
+        }
+    }
+
+    private static final String TAG = StreamMultiplexer.class.getName();
+    public static final int DEFAULT_MAX_CHUNK_SIZE_IN_BYTES = 4 * 1024;
+    public static final int DEFAULT_MAX_BUFFERED_BYTES_PER_STREAM = 64 * 1024;
+    private final Object mLock = new Object();
+    private final BluetoothSocketIoThread mBluetoothSocketIoThread;
+    private final Listener mListener;
+    private final Map<Integer, Stream> mStreams = new HashMap<>(); // Guarded by mLock
+    private final ArrayDeque<Stream> mReadyStreams = new ArrayDeque<>(); // Streams with data to send, guarded by mLock
+    private final ArrayDeque<byte[]> mControlFrames = new ArrayDeque<>(); // [type][payload], guarded by mLock
+    private final SchedulerThread mSchedulerThread = new SchedulerThread();
+    private int mNextStreamId; // Guarded by mLock
+    private int mMaxChunkSizeInBytes = DEFAULT_MAX_CHUNK_SIZE_IN_BYTES;
+    private int mMaxBufferedBytesPerStream = DEFAULT_MAX_BUFFERED_BYTES_PER_STREAM;
+    private boolean mIsShutDown = false; // Guarded by mLock
+
+    /**
+     * Constructor. Sets this instance as the message listener of the given thread, which must
+     * not have been started yet.
+     *
+     * @param bluetoothSocketIoThread The thread owning the socket.
+     * @param isInitiator True, if this side initiated the connection (i.e. the connection is not
+     *                    incoming). The peer must use the opposite value.
+     * @param listener The listener.
+     * @throws NullPointerException Thrown, if the thread or the listener is null.
+     */
+    public StreamMultiplexer(
+            BluetoothSocketIoThread bluetoothSocketIoThread, boolean isInitiator, Listener listener)
+            throws NullPointerException {
+        if (bluetoothSocketIoThread == null || listener == null) {
+            throw new NullPointerException("Either the BluetoothSocketIoThread or the listener is null");
+        }
+
+        mBluetoothSocketIoThread = bluetoothSocketIoThread;
+        mListener = listener;
+        mNextStreamId = isInitiator ? 1 : 2;
+        mBluetoothSocketIoThread.setMessageListener(this);
+    }
+
+    /**
+     * Sets the maximum size of the data in a single frame. Must be set before calling start().
+     *
+     * @param maxChunkSizeInBytes The maximum chunk size in bytes.
+     */
+    public void setMaxChunkSize(int maxChunkSizeInBytes) {
+        if (maxChunkSizeInBytes > 0) {
+            mMaxChunkSizeInBytes = maxChunkSizeInBytes;
+        }
+    }
+
+    /**
+     * Sets the maximum number of outbound bytes buffered per stream. Must be set before calling
+     * start().
+     *
+     * @param maxBufferedBytesPerStream The maximum number of bytes.
+     */
+    public void setMaxBufferedBytesPerStream(int maxBufferedBytesPerStream) {
+        if (maxBufferedBytesPerStream > 0) {
+            mMaxBufferedBytesPerStream = maxBufferedBytesPerStream;
+        }
+    }
+
+    /**
+     * Starts the scheduler thread. The BluetoothSocketIoThread is started separately.
+     */
+    public void start() {
+        mSchedulerThread.setUncaughtExceptionHandler(mBluetoothSocketIoThread.getUncaughtExceptionHandler());
+        mSchedulerThread.start();
+    }
+
+    /**
+     * Opens a new stream.
+     *
+     * @return The new stream or null, if shut down.
+     */
+    public Stream openStream() {
+        synchronized (mLock) {
+            if (mIsShutDown) {
+                return null;
+            }
+
+            Stream stream = new Stream(mNextStreamId);
+            mNextStreamId += 2;
+            mStreams.put(stream.getId(), stream);
+            enqueueControlFrame(MessageFrameCodec.TYPE_STREAM_OPEN, stream.getId());
+            return stream;
+        }
+    }
+
+    /**
+     * @return The number of open streams.
+     */
+    public int getNumberOfStreams() {
+        synchronized (mLock) {
+            return mStreams.size();
+        }
+    }
+
+    /**
+     * Stops the scheduler thread and closes all streams. Does not close the
+     * BluetoothSocketIoThread. Call this when the connection is lost.
+     */
+    public void shutdown() {
+        Stream[] streams;
+
+        synchronized (mLock) {
+            if (mIsShutDown) {
+                return;
+            }
+
+            mIsShutDown = true;
+            streams = mStreams.values().toArray(new Stream[mStreams.size()]);
+
+            for (Stream stream : streams) {
+                stream.mIsClosed = true;
+                stream.mOutboundQueue.clear();
+                stream.mNumberOfBufferedBytes = 0;
+            }
+
+            mStreams.clear();
+            mReadyStreams.clear();
+            mControlFrames.clear();
+            mLock.notifyAll();
+        }
+
+        for (Stream stream : streams) {
+            mListener.onStreamClosed(stream);
+        }
+    }
+
+    /**
+     * From BluetoothSocketIoThread.MessageListener.
+     *
+     * Dispatches the multiplexer frames.
+     */
+    @Override
+    public void onMessage(byte type, byte[] bytes, int offset, int length, BluetoothSocketIoThread who) {
+        int streamId;
+        int streamIdLength;
+
+        try {
+            streamId = MessageFrameCodec.readVarInt(bytes, offset, length);
+            streamIdLength = MessageFrameCodec.getVarIntLength(streamId);
+        } catch (IOException e) {
+            Log.e(TAG, "onMessage: Invalid stream ID in frame of type " + type + ": " + e.getMessage());
+            return;
+        }
+
+        Stream stream;
+
+        switch (type) {
+            case MessageFrameCodec.TYPE_STREAM_OPEN:
+                synchronized (mLock) {
+                    if (mIsShutDown || mStreams.containsKey(streamId)) {
+                        Log.e(TAG, "onMessage: Cannot open stream " + streamId);
+                        return;
+                    }
+
+                    stream = new Stream(streamId);
+                    mStreams.put(streamId, stream);
+                }
+
+                mListener.onStreamOpened(stream);
+                break;
+
+            case MessageFrameCodec.TYPE_STREAM_DATA:
+                synchronized (mLock) {
+                    stream = mStreams.get(streamId);
+                }
+
+                if (stream != null) {
+                    mListener.onStreamData(
+                            stream, bytes, offset + streamIdLength, length - streamIdLength);
+                } else {
+                    // Can happen, if we closed the stream while the peer was still sending
+                    Log.d(TAG, "onMessage: Data for unknown stream " + streamId + " discarded");
+                }
+
+                break;
+
+            case MessageFrameCodec.TYPE_STREAM_CLOSE:
+                boolean notify;
+
+                synchronized (mLock) {
+                    stream = mStreams.remove(streamId);
+                    notify = (stream != null && !stream.mIsCloseRequested);
+
+                    if (stream != null) {
+                        stream.mIsClosed = true;
+                        stream.mOutboundQueue.clear();
+                        stream.mNumberOfBufferedBytes = 0;
+                        mReadyStreams.remove(stream);
+
+                        if (notify) {
+                            // Acknowledge so that the peer can forget the stream too
+                            enqueueControlFrame(MessageFrameCodec.TYPE_STREAM_CLOSE, streamId);
+                        }
+
+                        mLock.notifyAll();
+                    }
+                }
+
+                if (notify) {
+                    mListener.onStreamClosed(stream);
+                }
+
+                break;
+
+            default:
+                Log.w(TAG, "onMessage: Unexpected frame type " + type + " discarded");
+                break;
+        }
+    }
+
+    /**
+     * Enqueues the close frame of the given stream. The stream is forgotten once the peer
+     * acknowledges the close. Must be called while holding mLock.
+     *
+     * @param stream The stream to close.
+     */
+    private void enqueueCloseFrame(Stream stream) {
+        enqueueControlFrame(MessageFrameCodec.TYPE_STREAM_CLOSE, stream.getId());
+    }
+
+    /**
+     * Enqueues a control frame. Must be called while holding mLock.
+     *
+     * @param type The frame type.
+     * @param streamId The stream ID.
+     */
+    private void enqueueControlFrame(byte type, int streamId) {
+        byte[] controlFrame = new byte[1 + MessageFrameCodec.getVarIntLength(streamId)];
+        controlFrame[0] = type;
+        MessageFrameCodec.writeVarInt(streamId, controlFrame, 1);
+        mControlFrames.add(controlFrame);
+        mLock.notifyAll();
+    }
+
+    /**
+     * Creates a data frame payload with the stream ID written in the beginning.
+     *
+     * @param streamId The stream ID.
+     * @param dataLength The length of the data to follow the ID.
+     * @return The payload array.
+     */
+    private static byte[] createPayload(int streamId, int dataLength) {
+        byte[] payload = new byte[MessageFrameCodec.getVarIntLength(streamId) + dataLength];
+        MessageFrameCodec.writeVarInt(streamId, payload, 0);
+        return payload;
+    }
+}
@@ -0,0 +1,149 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter measured in bytes.
+ *
+ * The bucket is refilled continuously at the given rate up to the burst size. A sender waits until
+ * the bucket holds the tokens for its write and then consumes them. A write larger than the burst
+ * size is let through once the bucket is full; the tokens then go negative, which delays the
+ * following writes so that the average rate is kept.
+ *
+ * The rate and the burst size can be changed at any time; waiting senders are woken up to
+ * reconsider.
+ */
+public class TokenBucket {
+    public static final long UNLIMITED = 0;
+    public static final int MIN_BURST_SIZE_IN_BYTES = 1024;
+    private long mRateInBytesPerSecond = UNLIMITED; // Guarded by this
+    private long mBurstSizeInBytes = MIN_BURST_SIZE_IN_BYTES; // Guarded by this
+    private double mNumberOfTokens = 0; // Guarded by this
+    private long mLastRefillTime = System.nanoTime(); // Guarded by this
+    private boolean mIsClosed = false; // Guarded by this
+    private long mNumberOfStalls = 0; // Guarded by this
+    private long mTotalStallTimeInNanoseconds = 0; // Guarded by this
+
+    /**
+     * Constructor.
+     *
+     * @param rateInBytesPerSecond The rate. UNLIMITED (zero) means no limit.
+     * @param burstSizeInBytes The maximum number of tokens in the bucket.
+     */
+    public TokenBucket(long rateInBytesPerSecond, long burstSizeInBytes) {
+        setRate(rateInBytesPerSecond, burstSizeInBytes);
+        mNumberOfTokens = mBurstSizeInBytes;
+    }
+
+    public synchronized long getRate() {
+        return mRateInBytesPerSecond;
+    }
+
+    public synchronized long getBurstSize() {
+        return mBurstSizeInBytes;
+    }
+
+    /**
+     * Changes the rate and the burst size. The tokens already in the bucket are kept up to the
+     * new burst size.
+     *
+     * @param rateInBytesPerSecond The rate. UNLIMITED (zero) means no limit.
+     * @param burstSizeInBytes The maximum number of tokens in the bucket. At least
+     *                         MIN_BURST_SIZE_IN_BYTES is used.
+     */
+    public synchronized void setRate(long rateInBytesPerSecond, long burstSizeInBytes) {
+        refill();
+        mRateInBytesPerSecond = Math.max(rateInBytesPerSecond, UNLIMITED);
+        mBurstSizeInBytes = Math.max(burstSizeInBytes, MIN_BURST_SIZE_IN_BYTES);
+        mNumberOfTokens = Math.min(mNumberOfTokens, mBurstSizeInBytes);
+        notifyAll();
+    }
+
+    /**
+     * @return The number of tokens currently in the bucket. Can be negative after a write larger
+     * than the burst size.
+     */
+    public synchronized long getNumberOfTokens() {
+        refill();
+        return (long) mNumberOfTokens;
+    }
+
+    /**
+     * @return The number of times a sender had to wait for tokens.
+     */
+    public synchronized long getNumberOfStalls() {
+        return mNumberOfStalls;
+    }
+
+    /**
+     * @return The total time senders have waited for tokens in milliseconds.
+     */
+    public synchronized long getTotalStallTime() {
+        return TimeUnit.NANOSECONDS.toMillis(mTotalStallTimeInNanoseconds);
+    }
+
+    /**
+     * Waits until the bucket holds the tokens for the given number of bytes and consumes them.
+     *
+     * @param numberOfBytes The number of bytes to send.
+     * @return True, if the tokens were acquired. False, if this instance was closed.
+     * @throws InterruptedException Thrown, if the calling thread is interrupted while waiting.
+     */
+    public synchronized boolean acquire(int numberOfBytes) throws InterruptedException {
+        long stallStartTime = 0;
+
+        try {
+            while (!mIsClosed && mRateInBytesPerSecond != UNLIMITED) {
+                refill();
+                double numberOfTokensNeeded = Math.min(numberOfBytes, mBurstSizeInBytes);
+
+                if (mNumberOfTokens >= numberOfTokensNeeded) {
+                    mNumberOfTokens -= numberOfBytes;
+                    break;
+                }
+
+                if (stallStartTime == 0) {
+                    stallStartTime = System.nanoTime();
+                    mNumberOfStalls++;
+                }
+
+                long waitTimeInNanoseconds = (long) Math.ceil(
+                        (numberOfTokensNeeded - mNumberOfTokens) * 1000000000d / mRateInBytesPerSecond);
+                TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitTimeInNanoseconds, 1));
+            }
+        } finally {
+            if (stallStartTime != 0) {
+                mTotalStallTimeInNanoseconds += System.nanoTime() - stallStartTime;
+            }
+        }
+
+        return !mIsClosed;
+    }
+
+    /**
+     * Closes the bucket and wakes up the waiting senders.
+     */
+    public synchronized void close() {
+        mIsClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * Adds the tokens accumulated since the previous refill.
+     */
+    private void refill() {
+        long currentTime = System.nanoTime();
+
+        if (mRateInBytesPerSecond != UNLIMITED) {
+            mNumberOfTokens = Math.min(mBurstSizeInBytes,
+                    mNumberOfTokens + (currentTime - mLastRefillTime) * mRateInBytesPerSecond / 1000000000d);
+        } else {
+            mNumberOfTokens = mBurstSizeInBytes;
+        }
+
+        mLastRefillTime = currentTime;
+    }
+}
@@ -0,0 +1,931 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transfers large amounts of data (e.g. files) over a framed connection so that an interrupted
+ * transfer can be resumed from where it left off.
+ *
+ * Each transfer is identified by an application-defined transfer ID. The data is sent in chunks,
+ * which the receiver acknowledges once written to the sink. The receiver stores checkpoints (the
+ * number of bytes safely written) periodically and when the connection is closed. When the same
+ * transfer (same peer, transfer ID and length) is started again, the receiver tells the sender to
+ * resume from the latest checkpoint.
+ *
+ * The protocol (all numbers big-endian):
+ *
+ * TYPE_TRANSFER_OFFER  [session ID (4)][total length (8)][transfer ID length (2)][transfer ID (UTF-8)]
+ * TYPE_TRANSFER_ACCEPT [session ID (4)][offset to resume from (8), -1 if rejected]
+ * TYPE_TRANSFER_DATA   [session ID (4)][offset (8)][data]
+ * TYPE_TRANSFER_ACK    [session ID (4)][number of bytes received (8)]
+ * TYPE_TRANSFER_ABORT  [session ID (4)][ABORTED_BY_SENDER or ABORTED_BY_RECEIVER (8)][reason (UTF-8)]
+ *
+ * The session IDs are assigned by the sender and are valid for the lifetime of the connection.
+ * Either side sends the abort message, when the transfer fails on its side, so that the other side
+ * does not have to wait for the response timeout.
+ *
+ * The transfer manager takes the message listener slot of the given BluetoothSocketIoThread and
+ * is closed (see close()), when the connection ends. Messages of other types are forwarded to the
+ * message listener set with setMessageListener().
+ */
+public class TransferManager
+        implements BluetoothSocketIoThread.MessageListener, BluetoothSocketIoThread.CloseListener {
+    public interface Listener {
+        /**
+         * Called when the peer offers a transfer. Called from the reading thread.
+         *
+         * The returned stream must continue from the given offset, i.e. if resuming, the data
+         * after the offset (possibly written before the interruption) must be discarded.
+         *
+         * @param transfer The incoming transfer.
+         * @param resumeOffset The offset from which the transfer continues. Zero for a new transfer.
+         * @return The stream to write the received data to or null to reject the transfer.
+         */
+        OutputStream onIncomingTransfer(Transfer transfer, long resumeOffset);
+
+        /**
+         * Called periodically (once per checkpoint interval) while a transfer is in progress.
+         *
+         * @param transfer The transfer.
+         */
+        void onTransferProgress(Transfer transfer);
+
+        /**
+         * Called when a transfer is completed.
+         *
+         * @param transfer The transfer.
+         */
+        void onTransferCompleted(Transfer transfer);
+
+        /**
+         * Called when a transfer fails. An incoming transfer can be resumed later from its latest
+         * checkpoint.
+         *
+         * @param transfer The transfer.
+         * @param reason The reason for the failure.
+         */
+        void onTransferFailed(Transfer transfer, String reason);
+    }
+
+    /**
+     * Storage for the checkpoints of the incoming transfers.
+     */
+    public interface CheckpointStore {
+        /**
+         * @param key The checkpoint key.
+         * @return The stored offset or zero, if none.
+         */
+        long getCheckpoint(String key);
+
+        void setCheckpoint(String key, long offset);
+
+        void removeCheckpoint(String key);
+    }
+
+    /**
+     * A checkpoint store, which keeps the checkpoints in memory only.
+     */
+    public static class InMemoryCheckpointStore implements CheckpointStore {
+        private final Map<String, Long> mCheckpoints = new ConcurrentHashMap<>();
+
+        @Override
+        public long getCheckpoint(String key) {
+            Long offset = mCheckpoints.get(key);
+            return (offset != null) ? offset : 0;
+        }
+
+        @Override
+        public void setCheckpoint(String key, long offset) {
+            mCheckpoints.put(key, offset);
+        }
+
+        @Override
+        public void removeCheckpoint(String key) {
+            mCheckpoints.remove(key);
+        }
+    }
+
+    /**
+     * The state and the progress of a single transfer.
+     */
+    public static class Transfer {
+        public enum State {
+            PENDING,
+            IN_PROGRESS,
+            COMPLETED,
+            FAILED
+        }
+
+        private final String mTransferId;
+        private final long mTotalLength;
+        private final boolean mIsIncoming;
+        private volatile State mState = State.PENDING;
+        private volatile long mStartOffset = 0;
+        private volatile long mNumberOfBytesTransferred = 0;
+        private volatile long mStartTime = 0;
+        private volatile long mEndTime = 0;
+
+        private Transfer(String transferId, long totalLength, boolean isIncoming) {
+            mTransferId = transferId;
+            mTotalLength = totalLength;
+            mIsIncoming = isIncoming;
+        }
+
+        public String getTransferId() {
+            return mTransferId;
+        }
+
+        public long getTotalLength() {
+            return mTotalLength;
+        }
+
+        public boolean getIsIncoming() {
+            return mIsIncoming;
+        }
+
+        public State getState() {
+            return mState;
+        }
+
+        /**
+         * @return The offset the transfer was resumed from. Zero, if not resumed.
+         */
+        public long getStartOffset() {
+            return mStartOffset;
+        }
+
+        /**
+         * @return The number of bytes acknowledged by the receiver (outgoing transfers) or
+         * received (incoming transfers) including the bytes before the start offset.
+         */
+        public long getNumberOfBytesTransferred() {
+            return mNumberOfBytesTransferred;
+        }
+
+        /**
+         * @return The progress in range [0, 1].
+         */
+        public float getProgress() {
+            return (mTotalLength > 0) ? (float) ((double) mNumberOfBytesTransferred / mTotalLength) : 1f;
+        }
+
+        /**
+         * @return The effective throughput of this session (excluding the resumed bytes) in bytes
+         * per second.
+         */
+        public double getThroughput() {
+            if (mStartTime == 0) {
+                return 0d;
+            }
+
+            long endTime = (mEndTime != 0) ? mEndTime : System.nanoTime();
+            long elapsedTimeInNanoseconds = endTime - mStartTime;
+
+            return (elapsedTimeInNanoseconds > 0)
+                    ? (mNumberOfBytesTransferred - mStartOffset) * 1000000000d / elapsedTimeInNanoseconds : 0d;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + mTransferId + " " + (mIsIncoming ? "incoming" : "outgoing") + " " + mState
+                    + " " + mNumberOfBytesTransferred + "/" + mTotalLength + " bytes"
+                    + (mStartOffset > 0 ? " (resumed from " + mStartOffset + ")" : "")
+                    + ", " + String.format("%.1f", getThroughput() / 1024) + " KB/s]";
+        }
+
+        private void start(long startOffset) {
+            mStartOffset = startOffset;
+            mNumberOfBytesTransferred = startOffset;
+            mStartTime = System.nanoTime();
+            mState = State.IN_PROGRESS;
+        }
+
+        private void end(State state) {
+            mEndTime = System.nanoTime();
+            mState = state;
+        }
+    }
+
+    /**
+     * An outgoing transfer sent by a thread of its own.
+     */
+    private class OutgoingTransfer implements Runnable {
+        private final Transfer mTransfer;
+        private final int mSessionId;
+        private final InputStream mInputStream;
+        private long mResumeOffset = Long.MIN_VALUE; // Not accepted yet
+        private long mNumberOfBytesAcknowledged = 0;
+        private long mLastReportedProgress = 0;
+        private String mFailureReason = null;
+        private boolean mIsAbortedByPeer = false;
+
+        private OutgoingTransfer(Transfer transfer, int sessionId, InputStream inputStream) {
+            mTransfer = transfer;
+            mSessionId = sessionId;
+            mInputStream = inputStream;
+        }
+
+        @Override
+        public void run() {
+            String failureReason = null;
+
+            try {
+                failureReason = send();
+            } catch (IOException e) {
+                failureReason = "Failed to read the data: " + e.getMessage();
+            } catch (InterruptedException e) {
+                failureReason = "Interrupted";
+            } finally {
+                mOutgoingTransfers.remove(mSessionId);
+
+                try {
+                    mInputStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close the input stream: " + e.getMessage());
+                }
+            }
+
+            if (failureReason == null) {
+                mTransfer.end(Transfer.State.COMPLETED);
+                Log.i(TAG, "Outgoing transfer completed: " + mTransfer);
+                mListener.onTransferCompleted(mTransfer);
+            } else {
+                if (shouldNotifyPeer()) {
+                    sendAbort(mSessionId, ABORTED_BY_SENDER, failureReason);
+                }
+
+                mTransfer.end(Transfer.State.FAILED);
+                Log.e(TAG, "Outgoing transfer failed: " + mTransfer + ": " + failureReason);
+                mListener.onTransferFailed(mTransfer, failureReason);
+            }
+        }
+
+        /**
+         * Sends the offer and the data and waits for the acknowledgements.
+         *
+         * @return Null, if successful. The reason for the failure otherwise.
+         */
+        private String send() throws IOException, InterruptedException {
+            byte[] transferIdBytes = mTransfer.getTransferId().getBytes(UTF_8);
+            ByteBuffer offer = ByteBuffer.allocate(4 + 8 + 2 + transferIdBytes.length);
+            offer.putInt(mSessionId).putLong(mTransfer.getTotalLength())
+                    .putShort((short) transferIdBytes.length).put(transferIdBytes);
+
+            if (!mBluetoothSocketIoThread.writeMessage(MessageFrameCodec.TYPE_TRANSFER_OFFER, offer.array())) {
+                return "Failed to send the offer";
+            }
+
+            long resumeOffset;
+
+            synchronized (this) {
+                waitFor(new Condition() {
+                    @Override
+                    public boolean isMet() {
+                        return (mResumeOffset != Long.MIN_VALUE);
+                    }
+                });
+
+                if (mFailureReason != null) {
+                    return mFailureReason;
+                }
+
+                if (mResumeOffset < 0 || mResumeOffset > mTransfer.getTotalLength()) {
+                    return "Rejected by the peer";
+                }
+
+                resumeOffset = mResumeOffset;
+                mNumberOfBytesAcknowledged = resumeOffset;
+                mLastReportedProgress = resumeOffset;
+                mTransfer.start(resumeOffset);
+            }
+
+            skipFully(mInputStream, resumeOffset);
+
+            final long totalLength = mTransfer.getTotalLength();
+            final long maxNumberOfUnacknowledgedBytes = (long) mChunkSizeInBytes * mMaxNumberOfUnacknowledgedChunks;
+            long offset = resumeOffset;
+
+            while (offset < totalLength) {
+                final long currentOffset = offset;
+
+                synchronized (this) {
+                    waitFor(new Condition() {
+                        @Override
+                        public boolean isMet() {
+                            return (currentOffset - mNumberOfBytesAcknowledged < maxNumberOfUnacknowledgedBytes);
+                        }
+                    });
+
+                    if (mFailureReason != null) {
+                        return mFailureReason;
+                    }
+                }
+
+                int chunkSize = (int) Math.min(mChunkSizeInBytes, totalLength - offset);
+                byte[] message = new byte[DATA_HEADER_LENGTH + chunkSize];
+                ByteBuffer.wrap(message).putInt(mSessionId).putLong(offset);
+                readFully(mInputStream, message, DATA_HEADER_LENGTH, chunkSize);
+
+                if (!mBluetoothSocketIoThread.writeMessage(MessageFrameCodec.TYPE_TRANSFER_DATA, message)) {
+                    return "Failed to send data";
+                }
+
+                offset += chunkSize;
+            }
+
+            synchronized (this) {
+                waitFor(new Condition() {
+                    @Override
+                    public boolean isMet() {
+                        return (mNumberOfBytesAcknowledged >= totalLength);
+                    }
+                });
+
+                return mFailureReason;
+            }
+        }
+
+        /**
+         * Waits until the given condition is met or the transfer fails. The peer must respond
+         * within the response timeout. Must be called while holding the lock of this instance.
+         *
+         * @param condition The condition.
+         */
+        private void waitFor(Condition condition) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + mResponseTimeoutInMilliseconds;
+            long numberOfBytesAcknowledged = mNumberOfBytesAcknowledged;
+
+            while (mFailureReason == null && !condition.isMet()) {
+                long currentTime = System.currentTimeMillis();
+
+                if (mNumberOfBytesAcknowledged != numberOfBytesAcknowledged) {
+                    // Progress made, extend the deadline
+                    numberOfBytesAcknowledged = mNumberOfBytesAcknowledged;
+                    deadline = currentTime + mResponseTimeoutInMilliseconds;
+                }
+
+                if (currentTime >= deadline) {
+                    mFailureReason = "Timeout waiting for the peer to respond";
+                    break;
+                }
+
+                wait(deadline - currentTime);
+            }
+        }
+
+        private synchronized void onAccepted(long resumeOffset) {
+            mResumeOffset = resumeOffset;
+            notifyAll();
+        }
+
+        private void onAcknowledged(long numberOfBytesReceived) {
+            boolean reportProgress = false;
+
+            synchronized (this) {
+                if (numberOfBytesReceived > mNumberOfBytesAcknowledged) {
+                    mNumberOfBytesAcknowledged = numberOfBytesReceived;
+                    mTransfer.mNumberOfBytesTransferred = numberOfBytesReceived;
+                    notifyAll();
+
+                    if (numberOfBytesReceived - mLastReportedProgress >= mCheckpointIntervalInBytes
+                            && numberOfBytesReceived < mTransfer.getTotalLength()) {
+                        mLastReportedProgress = numberOfBytesReceived;
+                        reportProgress = true;
+                    }
+                }
+            }
+
+            if (reportProgress) {
+                mListener.onTransferProgress(mTransfer);
+            }
+        }
+
+        private synchronized void fail(String reason) {
+            if (mFailureReason == null) {
+                mFailureReason = reason;
+            }
+
+            notifyAll();
+        }
+
+        private synchronized void onAborted(String reason) {
+            if (mFailureReason == null) {
+                mIsAbortedByPeer = true;
+                mFailureReason = "Aborted by the peer: " + reason;
+            }
+
+            notifyAll();
+        }
+
+        /**
+         * @return True, if the peer may still expect data i.e. the transfer was neither rejected
+         * nor aborted by the peer and the connection is not closed.
+         */
+        private synchronized boolean shouldNotifyPeer() {
+            return (!mIsAbortedByPeer && !mIsConnectionClosed && mResumeOffset != REJECTED);
+        }
+    }
+
+    /**
+     * An incoming transfer written to the sink given by the listener.
+     */
+    private static class IncomingTransfer {
+        private final Transfer mTransfer;
+        private final String mCheckpointKey; // Null, if not checkpointed
+        private final OutputStream mOutputStream;
+        private long mLastCheckpoint;
+        private boolean mIsAbortedByPeer = false;
+
+        private IncomingTransfer(Transfer transfer, String checkpointKey, OutputStream outputStream) {
+            mTransfer = transfer;
+            mCheckpointKey = checkpointKey;
+            mOutputStream = outputStream;
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static final String TAG = TransferManager.class.getName();
+    public static final int DEFAULT_CHUNK_SIZE_IN_BYTES = 16 * 1024;
+    public static final int DEFAULT_MAX_NUMBER_OF_UNACKNOWLEDGED_CHUNKS = 8;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL_IN_BYTES = 256 * 1024;
+    public static final long DEFAULT_RESPONSE_TIMEOUT_IN_MILLISECONDS = 30000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int DATA_HEADER_LENGTH = 4 + 8;
+    private static final long REJECTED = -1;
+    private static final long ABORTED_BY_SENDER = 0;
+    private static final long ABORTED_BY_RECEIVER = 1;
+    private final BluetoothSocketIoThread mBluetoothSocketIoThread;
+    private final CheckpointStore mCheckpointStore;
+    private final Listener mListener;
+    private final Map<Integer, OutgoingTransfer> mOutgoingTransfers = new ConcurrentHashMap<>();
+    private final Map<Integer, IncomingTransfer> mIncomingTransfers = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextSessionId = new AtomicInteger(1);
+    private BluetoothSocketIoThread.MessageListener mMessageListener = null;
+    private int mChunkSizeInBytes = DEFAULT_CHUNK_SIZE_IN_BYTES;
+    private int mMaxNumberOfUnacknowledgedChunks = DEFAULT_MAX_NUMBER_OF_UNACKNOWLEDGED_CHUNKS;
+    private int mCheckpointIntervalInBytes = DEFAULT_CHECKPOINT_INTERVAL_IN_BYTES;
+    private long mResponseTimeoutInMilliseconds = DEFAULT_RESPONSE_TIMEOUT_IN_MILLISECONDS;
+    private volatile boolean mIsClosed = false;
+    private volatile boolean mIsConnectionClosed = false;
+
+    /**
+     * Constructor. Sets this instance as the message listener of the given thread, which must not
+     * be started yet, and registers it to be closed, when the thread is closed. The checkpoints
+     * are keyed by the peer ID of the thread (see BluetoothSocketIoThread.setPeerProperties()), so
+     * that transfers can be resumed on a new connection to the same peer. If the peer ID is not
+     * known, the incoming transfers are neither checkpointed nor resumed.
+     *
+     * @param bluetoothSocketIoThread The socket I/O thread.
+     * @param checkpointStore The checkpoint store. If null, the checkpoints are kept in memory.
+     * @param listener The listener.
+     */
+    public TransferManager(
+            BluetoothSocketIoThread bluetoothSocketIoThread, CheckpointStore checkpointStore, Listener listener) {
+        if (bluetoothSocketIoThread == null || listener == null) {
+            throw new NullPointerException("Either the socket I/O thread or the listener is null");
+        }
+
+        mBluetoothSocketIoThread = bluetoothSocketIoThread;
+        mCheckpointStore = (checkpointStore != null) ? checkpointStore : new InMemoryCheckpointStore();
+        mListener = listener;
+        mBluetoothSocketIoThread.setMessageListener(this);
+        mBluetoothSocketIoThread.addCloseListener(this);
+    }
+
+    /**
+     * Sets the listener for the messages not related to transfers.
+     *
+     * @param messageListener The message listener. Can be null.
+     */
+    public void setMessageListener(BluetoothSocketIoThread.MessageListener messageListener) {
+        mMessageListener = messageListener;
+    }
+
+    /**
+     * Sets the size of the data chunks. Each chunk is acknowledged by the receiver.
+     *
+     * @param chunkSizeInBytes The chunk size.
+     */
+    public void setChunkSize(int chunkSizeInBytes) {
+        if (chunkSizeInBytes > 0) {
+            mChunkSizeInBytes = chunkSizeInBytes;
+        }
+    }
+
+    /**
+     * Sets the number of chunks the sender can send ahead of the acknowledgements.
+     *
+     * @param maxNumberOfUnacknowledgedChunks The maximum number of unacknowledged chunks.
+     */
+    public void setMaxNumberOfUnacknowledgedChunks(int maxNumberOfUnacknowledgedChunks) {
+        if (maxNumberOfUnacknowledgedChunks > 0) {
+            mMaxNumberOfUnacknowledgedChunks = maxNumberOfUnacknowledgedChunks;
+        }
+    }
+
+    /**
+     * Sets how often the receiver stores a checkpoint and the progress is reported.
+     *
+     * @param checkpointIntervalInBytes The checkpoint interval.
+     */
+    public void setCheckpointInterval(int checkpointIntervalInBytes) {
+        if (checkpointIntervalInBytes > 0) {
+            mCheckpointIntervalInBytes = checkpointIntervalInBytes;
+        }
+    }
+
+    /**
+     * Sets the maximum time the sender waits for the peer to accept the transfer or to
+     * acknowledge more data.
+     *
+     * @param responseTimeoutInMilliseconds The response timeout.
+     */
+    public void setResponseTimeout(long responseTimeoutInMilliseconds) {
+        if (responseTimeoutInMilliseconds > 0) {
+            mResponseTimeoutInMilliseconds = responseTimeoutInMilliseconds;
+        }
+    }
+
+    /**
+     * Starts sending the given file. If the peer has received a part of the same transfer before,
+     * only the rest is sent.
+     *
+     * @param transferId The transfer ID, which must be the same when resuming the transfer.
+     * @param file The file to send.
+     * @return The transfer.
+     * @throws IOException Thrown, if the file cannot be opened.
+     */
+    public Transfer send(String transferId, File file) throws IOException {
+        return send(transferId, new FileInputStream(file), file.length());
+    }
+
+    /**
+     * Starts sending the data from the given stream. If the peer has received a part of the same
+     * transfer before, the stream is skipped to the resume offset. The stream is closed once
+     * the transfer is completed or failed.
+     *
+     * @param transferId The transfer ID, which must be the same when resuming the transfer.
+     * @param inputStream The stream to read the data from.
+     * @param length The number of bytes to send.
+     * @return The transfer.
+     */
+    public Transfer send(String transferId, InputStream inputStream, long length) {
+        if (transferId == null || inputStream == null) {
+            throw new NullPointerException("Either the transfer ID or the input stream is null");
+        }
+
+        Transfer transfer = new Transfer(transferId, length, false);
+        int sessionId = mNextSessionId.getAndIncrement();
+        OutgoingTransfer outgoingTransfer = new OutgoingTransfer(transfer, sessionId, inputStream);
+        mOutgoingTransfers.put(sessionId, outgoingTransfer);
+
+        if (mIsClosed) {
+            outgoingTransfer.fail("Closed");
+        }
+
+        IoExecutor.getDefault().newThread(IoExecutor.Category.TRANSFER, outgoingTransfer).start();
+        return transfer;
+    }
+
+    /**
+     * Fails the ongoing transfers and tells the peer to abort them. The checkpoints of the
+     * incoming transfers are stored so that they can be resumed later. Called automatically, when
+     * the socket I/O thread is closed or the connection is lost.
+     */
+    public void close() {
+        mIsClosed = true;
+        mBluetoothSocketIoThread.removeCloseListener(this);
+
+        for (OutgoingTransfer outgoingTransfer : mOutgoingTransfers.values()) {
+            outgoingTransfer.fail("Closed");
+        }
+
+        for (Integer sessionId : mIncomingTransfers.keySet()) {
+            failIncomingTransfer(sessionId, "Closed");
+        }
+    }
+
+    /**
+     * From BluetoothSocketIoThread.CloseListener.
+     *
+     * Fails the ongoing transfers without notifying the peer, since the connection has ended.
+     */
+    @Override
+    public void onClosed(BluetoothSocketIoThread who) {
+        mIsConnectionClosed = true;
+        close();
+    }
+
+    /**
+     * From BluetoothSocketIoThread.MessageListener.
+     *
+     * Handles the transfer messages and forwards the rest to the message listener, if set.
+     */
+    @Override
+    public void onMessage(byte type, byte[] bytes, int offset, int length, BluetoothSocketIoThread who) {
+        if ((type < MessageFrameCodec.TYPE_TRANSFER_OFFER || type > MessageFrameCodec.TYPE_TRANSFER_ACK)
+                && type != MessageFrameCodec.TYPE_TRANSFER_ABORT) {
+            if (mMessageListener != null) {
+                mMessageListener.onMessage(type, bytes, offset, length, who);
+            }
+
+            return;
+        }
+
+        if (length < DATA_HEADER_LENGTH) {
+            Log.e(TAG, "onMessage: Invalid transfer message (type " + type + ", length " + length + ")");
+            return;
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, offset, length);
+        int sessionId = byteBuffer.getInt();
+        long value = byteBuffer.getLong();
+
+        switch (type) {
+            case MessageFrameCodec.TYPE_TRANSFER_OFFER:
+                onOffer(sessionId, value, byteBuffer);
+                break;
+            case MessageFrameCodec.TYPE_TRANSFER_DATA:
+                onData(sessionId, value, bytes, offset + DATA_HEADER_LENGTH, length - DATA_HEADER_LENGTH);
+                break;
+            case MessageFrameCodec.TYPE_TRANSFER_ACCEPT:
+            case MessageFrameCodec.TYPE_TRANSFER_ACK:
+                OutgoingTransfer outgoingTransfer = mOutgoingTransfers.get(sessionId);
+
+                if (outgoingTransfer == null) {
+                    Log.w(TAG, "onMessage: No outgoing transfer with session ID " + sessionId);
+                } else if (type == MessageFrameCodec.TYPE_TRANSFER_ACCEPT) {
+                    outgoingTransfer.onAccepted(value);
+                } else {
+                    outgoingTransfer.onAcknowledged(value);
+                }
+
+                break;
+            case MessageFrameCodec.TYPE_TRANSFER_ABORT:
+                onAbort(sessionId, value,
+                        new String(bytes, offset + DATA_HEADER_LENGTH, length - DATA_HEADER_LENGTH, UTF_8));
+                break;
+        }
+    }
+
+    private void onAbort(int sessionId, long abortedBy, String reason) {
+        if (abortedBy == ABORTED_BY_RECEIVER) {
+            OutgoingTransfer outgoingTransfer = mOutgoingTransfers.get(sessionId);
+
+            if (outgoingTransfer != null) {
+                outgoingTransfer.onAborted(reason);
+            }
+        } else {
+            IncomingTransfer incomingTransfer = mIncomingTransfers.get(sessionId);
+
+            if (incomingTransfer != null) {
+                incomingTransfer.mIsAbortedByPeer = true;
+                failIncomingTransfer(sessionId, "Aborted by the peer: " + reason);
+            }
+        }
+    }
+
+    private void onOffer(int sessionId, long totalLength, ByteBuffer byteBuffer) {
+        String transferId;
+
+        try {
+            byte[] transferIdBytes = new byte[byteBuffer.getShort() & 0xffff];
+            byteBuffer.get(transferIdBytes);
+            transferId = new String(transferIdBytes, UTF_8);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "onOffer: Invalid offer: " + e.getMessage());
+            return;
+        }
+
+        String checkpointKey = createCheckpointKey(transferId, totalLength);
+        long resumeOffset = 0;
+
+        if (checkpointKey != null) {
+            resumeOffset = Math.min(Math.max(mCheckpointStore.getCheckpoint(checkpointKey), 0), totalLength);
+        } else {
+            Log.w(TAG, "onOffer: Peer ID not known, transfer " + transferId + " cannot be checkpointed");
+        }
+
+        Transfer transfer = new Transfer(transferId, totalLength, true);
+        OutputStream outputStream = mIsClosed ? null : mListener.onIncomingTransfer(transfer, resumeOffset);
+
+        if (outputStream == null) {
+            Log.i(TAG, "onOffer: Transfer " + transferId + " rejected");
+            sendResponse(MessageFrameCodec.TYPE_TRANSFER_ACCEPT, sessionId, REJECTED);
+            return;
+        }
+
+        IncomingTransfer incomingTransfer = new IncomingTransfer(transfer, checkpointKey, outputStream);
+        incomingTransfer.mLastCheckpoint = resumeOffset;
+        transfer.start(resumeOffset);
+        mIncomingTransfers.put(sessionId, incomingTransfer);
+        Log.i(TAG, "onOffer: Receiving " + transfer);
+        sendResponse(MessageFrameCodec.TYPE_TRANSFER_ACCEPT, sessionId, resumeOffset);
+
+        if (resumeOffset == totalLength) {
+            completeIncomingTransfer(sessionId, incomingTransfer);
+        }
+    }
+
+    private void onData(int sessionId, long dataOffset, byte[] bytes, int offset, int length) {
+        IncomingTransfer incomingTransfer = mIncomingTransfers.get(sessionId);
+
+        if (incomingTransfer == null) {
+            return; // Rejected or failed
+        }
+
+        Transfer transfer = incomingTransfer.mTransfer;
+        long numberOfBytesReceived = transfer.mNumberOfBytesTransferred;
+
+        if (dataOffset != numberOfBytesReceived || numberOfBytesReceived + length > transfer.getTotalLength()) {
+            failIncomingTransfer(sessionId, "Unexpected data offset " + dataOffset
+                    + " (expected " + numberOfBytesReceived + ")");
+            return;
+        }
+
+        try {
+            incomingTransfer.mOutputStream.write(bytes, offset, length);
+        } catch (IOException e) {
+            failIncomingTransfer(sessionId, "Failed to write the data: " + e.getMessage());
+            return;
+        }
+
+        numberOfBytesReceived += length;
+        transfer.mNumberOfBytesTransferred = numberOfBytesReceived;
+
+        if (numberOfBytesReceived == transfer.getTotalLength()) {
+            completeIncomingTransfer(sessionId, incomingTransfer);
+        } else {
+            if (numberOfBytesReceived - incomingTransfer.mLastCheckpoint >= mCheckpointIntervalInBytes) {
+                if (!storeCheckpoint(incomingTransfer)) {
+                    failIncomingTransfer(sessionId, "Failed to flush the data");
+                    return;
+                }
+
+                mListener.onTransferProgress(transfer);
+            }
+
+            sendResponse(MessageFrameCodec.TYPE_TRANSFER_ACK, sessionId, numberOfBytesReceived);
+        }
+    }
+
+    private void completeIncomingTransfer(int sessionId, IncomingTransfer incomingTransfer) {
+        mIncomingTransfers.remove(sessionId);
+
+        try {
+            incomingTransfer.mOutputStream.close();
+        } catch (IOException e) {
+            failIncomingTransfer(incomingTransfer, "Failed to close the output stream: " + e.getMessage());
+            return;
+        }
+
+        if (incomingTransfer.mCheckpointKey != null) {
+            mCheckpointStore.removeCheckpoint(incomingTransfer.mCheckpointKey);
+        }
+
+        sendResponse(MessageFrameCodec.TYPE_TRANSFER_ACK, sessionId, incomingTransfer.mTransfer.getTotalLength());
+        incomingTransfer.mTransfer.end(Transfer.State.COMPLETED);
+        Log.i(TAG, "Incoming transfer completed: " + incomingTransfer.mTransfer);
+        mListener.onTransferCompleted(incomingTransfer.mTransfer);
+    }
+
+    /**
+     * Fails the given incoming transfer and tells the sender to abort it, unless the sender
+     * aborted the transfer or the connection is closed.
+     *
+     * @param sessionId The session ID.
+     * @param reason The reason for the failure.
+     */
+    private void failIncomingTransfer(int sessionId, String reason) {
+        IncomingTransfer incomingTransfer = mIncomingTransfers.remove(sessionId);
+
+        if (incomingTransfer != null) {
+            if (!incomingTransfer.mIsAbortedByPeer && !mIsConnectionClosed) {
+                sendAbort(sessionId, ABORTED_BY_RECEIVER, reason);
+            }
+
+            storeCheckpoint(incomingTransfer);
+
+            try {
+                incomingTransfer.mOutputStream.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close the output stream: " + e.getMessage());
+            }
+
+            failIncomingTransfer(incomingTransfer, reason);
+        }
+    }
+
+    private void failIncomingTransfer(IncomingTransfer incomingTransfer, String reason) {
+        incomingTransfer.mTransfer.end(Transfer.State.FAILED);
+        Log.e(TAG, "Incoming transfer failed: " + incomingTransfer.mTransfer + ": " + reason);
+        mListener.onTransferFailed(incomingTransfer.mTransfer, reason);
+    }
+
+    /**
+     * Flushes the sink and stores the number of bytes received as the checkpoint, if the transfer
+     * is checkpointed.
+     *
+     * @param incomingTransfer The incoming transfer.
+     * @return True, if the sink was flushed and the checkpoint, if any, stored. False otherwise.
+     */
+    private boolean storeCheckpoint(IncomingTransfer incomingTransfer) {
+        long numberOfBytesReceived = incomingTransfer.mTransfer.mNumberOfBytesTransferred;
+
+        try {
+            incomingTransfer.mOutputStream.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "storeCheckpoint: Failed to flush the output stream: " + e.getMessage());
+            return false;
+        }
+
+        if (incomingTransfer.mCheckpointKey != null) {
+            mCheckpointStore.setCheckpoint(incomingTransfer.mCheckpointKey, numberOfBytesReceived);
+        }
+
+        incomingTransfer.mLastCheckpoint = numberOfBytesReceived;
+        return true;
+    }
+
+    /**
+     * Sends an accept or an acknowledgement message. Written asynchronously so that the reading
+     * thread never blocks on the output stream.
+     */
+    private void sendResponse(byte type, int sessionId, long value) {
+        byte[] payload = ByteBuffer.allocate(DATA_HEADER_LENGTH).putInt(sessionId).putLong(value).array();
+        mBluetoothSocketIoThread.writeMessageAsync(type, payload, true, null);
+    }
+
+    /**
+     * Sends an abort message. Written asynchronously so that the reading thread never blocks on
+     * the output stream.
+     */
+    private void sendAbort(int sessionId, long abortedBy, String reason) {
+        byte[] reasonBytes = (reason != null) ? reason.getBytes(UTF_8) : new byte[0];
+        byte[] payload = ByteBuffer.allocate(DATA_HEADER_LENGTH + reasonBytes.length)
+                .putInt(sessionId).putLong(abortedBy).put(reasonBytes).array();
+        mBluetoothSocketIoThread.writeMessageAsync(MessageFrameCodec.TYPE_TRANSFER_ABORT, payload, true, null);
+    }
+
+    /**
+     * @param transferId The transfer ID.
+     * @param totalLength The total length of the transfer.
+     * @return The checkpoint key or null, if the peer ID is not known. Keying by the transfer ID
+     * alone would let the transfers of different peers resume each other.
+     */
+    private String createCheckpointKey(String transferId, long totalLength) {
+        String peerId = (mBluetoothSocketIoThread.getPeerProperties() != null)
+                ? mBluetoothSocketIoThread.getPeerProperties().getId() : null;
+
+        if (peerId == null || peerId.isEmpty()) {
+            return null;
+        }
+
+        return peerId + "/" + transferId + "/" + totalLength;
+    }
+
+    private static void skipFully(InputStream inputStream, long numberOfBytes) throws IOException {
+        while (numberOfBytes > 0) {
+            long numberOfBytesSkipped = inputStream.skip(numberOfBytes);
+
+            if (numberOfBytesSkipped <= 0) {
+                if (inputStream.read() < 0) {
+                    throw new IOException("Unexpected end of stream");
+                }
+
+                numberOfBytesSkipped = 1;
+            }
+
+            numberOfBytes -= numberOfBytesSkipped;
+        }
+    }
+
+    private static void readFully(InputStream inputStream, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int numberOfBytesRead = inputStream.read(buffer, offset, length);
+
+            if (numberOfBytesRead < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+
+            offset += numberOfBytesRead;
+            length -= numberOfBytesRead;
+        }
+    }
+}
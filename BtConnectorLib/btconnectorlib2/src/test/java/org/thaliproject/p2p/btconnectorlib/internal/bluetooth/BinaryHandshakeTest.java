@@ -0,0 +1,71 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BinaryHandshakeTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String IDENTITY = "{\"pn\":\"Name with } and \\\" {\",\"bta\":\"00:11:22:33:44:55\"}";
+
+    @Test
+    public void testLegacyMessageIsReadUpToTheEndOfTheObject() throws IOException {
+        byte[] trailingBytes = { 1, 2, 3 };
+        InputStream inputStream = createSlowInputStream(concat(IDENTITY.getBytes(UTF_8), trailingBytes));
+
+        byte[] message = BinaryHandshake.readHandshakeMessage(inputStream);
+
+        assertEquals(IDENTITY, new String(message, UTF_8));
+        byte[] remaining = new byte[trailingBytes.length];
+        assertEquals(trailingBytes.length, inputStream.read(remaining));
+        assertArrayEquals(trailingBytes, remaining);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTooLongLegacyMessageIsRejected() throws IOException {
+        byte[] bytes = new byte[1000];
+        Arrays.fill(bytes, (byte) ' ');
+        bytes[0] = '{';
+        BinaryHandshake.readHandshakeMessage(createSlowInputStream(bytes));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidLegacyMessageIsRejected() throws IOException {
+        BinaryHandshake.readHandshakeMessage(createSlowInputStream("Not a handshake message".getBytes(UTF_8)));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncatedLegacyMessageIsRejected() throws IOException {
+        byte[] bytes = IDENTITY.getBytes(UTF_8);
+        BinaryHandshake.readHandshakeMessage(createSlowInputStream(Arrays.copyOf(bytes, bytes.length - 1)));
+    }
+
+    /**
+     * @param bytes The bytes to read.
+     * @return An input stream returning at most three bytes per read.
+     */
+    private static InputStream createSlowInputStream(byte[] bytes) {
+        return new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] buffer, int offset, int length) {
+                return super.read(buffer, offset, Math.min(length, 3));
+            }
+        };
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,101 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BluetoothClientThreadTest {
+    private static final UUID SERVICE_RECORD_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    private static final String PEER_BLUETOOTH_MAC_ADDRESS = "00:11:22:33:44:55";
+    private static final long HANDSHAKE_DEADLINE_IN_MILLISECONDS = 100;
+
+    @Test(timeout = 30000)
+    public void testSilentPeerFailsHandshakeAfterDeadline() throws Exception {
+        final CountDownLatch socketClosedLatch = new CountDownLatch(1);
+        final BlockingQueue<String> errorMessages = new LinkedBlockingQueue<>();
+
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        when(bluetoothSocket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        when(bluetoothSocket.getInputStream()).thenReturn(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                // The peer accepted the connection, but never responds
+                try {
+                    socketClosedLatch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+
+                throw new IOException("Socket closed");
+            }
+        });
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                socketClosedLatch.countDown();
+                return null;
+            }
+        }).when(bluetoothSocket).close();
+
+        BluetoothDevice bluetoothDevice = mock(BluetoothDevice.class);
+        when(bluetoothDevice.getAddress()).thenReturn(PEER_BLUETOOTH_MAC_ADDRESS);
+        when(bluetoothDevice.createInsecureRfcommSocketToServiceRecord(any(UUID.class))).thenReturn(bluetoothSocket);
+
+        BluetoothClientThread bluetoothClientThread = new BluetoothClientThread(
+                new BluetoothClientThread.Listener() {
+                    @Override
+                    public void onSocketConnected(
+                            BluetoothSocket bluetoothSocket, PeerProperties peerProperties, BluetoothClientThread who) {
+                    }
+
+                    @Override
+                    public void onHandshakeSucceeded(
+                            BluetoothSocket bluetoothSocket, PeerProperties peerProperties,
+                            byte[] earlyData, BluetoothClientThread who) {
+                        errorMessages.add("Unexpected success");
+                    }
+
+                    @Override
+                    public void onConnectionFailed(
+                            PeerProperties peerProperties, String errorMessage, BluetoothClientThread who) {
+                        errorMessages.add(errorMessage);
+                    }
+                }, bluetoothDevice, SERVICE_RECORD_UUID, null);
+
+        bluetoothClientThread.setHandshakeRequired(true);
+        bluetoothClientThread.setHandshakeDeadline(HANDSHAKE_DEADLINE_IN_MILLISECONDS);
+        long startTime = System.currentTimeMillis();
+        bluetoothClientThread.start();
+
+        assertEquals("Handshake failed: Handshake timed out", errorMessages.poll(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - startTime >= HANDSHAKE_DEADLINE_IN_MILLISECONDS);
+        assertTrue(socketClosedLatch.await(0, TimeUnit.MILLISECONDS));
+        assertFalse(bluetoothClientThread.getBinaryHandshakeRejected());
+
+        bluetoothClientThread.join(5000);
+        assertFalse(bluetoothClientThread.isAlive());
+    }
+}
@@ -0,0 +1,187 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothSocket;
+import org.junit.Test;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures the accept loop on a stand-in server socket, which takes as long to create as it
+ * takes to register the service record (REGISTRATION_DELAY_IN_MILLISECONDS). A connection
+ * attempt is refused, while no server socket is listening, and retried after 1 ms.
+ */
+public class BluetoothServerThreadTest {
+    private static final UUID SERVICE_RECORD_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    private static final long REGISTRATION_DELAY_IN_MILLISECONDS = 20;
+    private static final int NUMBER_OF_CONNECTIONS = 50;
+
+    /**
+     * The outcome of accepting NUMBER_OF_CONNECTIONS connections.
+     */
+    private static class AcceptLoopResult {
+        private long mElapsedTimeInNanoseconds;
+        private long mNumberOfAcceptedConnections;
+        private long mNumberOfServerSocketsCreated;
+        private long mNumberOfRefusedAttempts;
+
+        private double getAcceptRate() {
+            return mNumberOfAcceptedConnections * 1000000000d / mElapsedTimeInNanoseconds;
+        }
+    }
+
+    private static class StandInListeningSocket implements BluetoothServerThread.ListeningSocket {
+        private final SynchronousQueue<BluetoothSocket> mConnections = new SynchronousQueue<>();
+        private volatile boolean mIsClosed = false;
+
+        @Override
+        public BluetoothSocket accept() throws IOException {
+            try {
+                while (!mIsClosed) {
+                    BluetoothSocket bluetoothSocket = mConnections.poll(10, TimeUnit.MILLISECONDS);
+
+                    if (bluetoothSocket != null) {
+                        return bluetoothSocket;
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+
+            throw new IOException("Server socket closed");
+        }
+
+        @Override
+        public void close() {
+            mIsClosed = true;
+        }
+
+        /**
+         * @param bluetoothSocket The socket to hand over to accept().
+         * @return True, if accepted. False, if refused.
+         */
+        private boolean connect(BluetoothSocket bluetoothSocket) throws InterruptedException {
+            return (!mIsClosed && mConnections.offer(bluetoothSocket, 10, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private static class StandInListeningSocketFactory implements BluetoothServerThread.ListeningSocketFactory {
+        private volatile StandInListeningSocket mListeningSocket = null;
+
+        @Override
+        public BluetoothServerThread.ListeningSocket listen() throws IOException {
+            try {
+                Thread.sleep(REGISTRATION_DELAY_IN_MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+
+            mListeningSocket = new StandInListeningSocket();
+            return mListeningSocket;
+        }
+
+        /**
+         * @param bluetoothSocket The socket to hand over to the listening socket.
+         * @return True, if accepted. False, if refused.
+         */
+        private boolean connect(BluetoothSocket bluetoothSocket) throws InterruptedException {
+            StandInListeningSocket listeningSocket = mListeningSocket;
+            return (listeningSocket != null && listeningSocket.connect(bluetoothSocket));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testPersistentListeningCreatesServerSocketOnce() throws Exception {
+        AcceptLoopResult result = runAcceptLoop(true);
+        assertEquals(NUMBER_OF_CONNECTIONS, result.mNumberOfAcceptedConnections);
+        assertEquals(1, result.mNumberOfServerSocketsCreated);
+    }
+
+    @Test(timeout = 60000)
+    public void testRecreatingListeningCreatesServerSocketPerConnection() throws Exception {
+        AcceptLoopResult result = runAcceptLoop(false);
+        assertEquals(NUMBER_OF_CONNECTIONS, result.mNumberOfAcceptedConnections);
+        assertTrue(result.mNumberOfServerSocketsCreated >= NUMBER_OF_CONNECTIONS);
+
+        // Every connection but the first one waits for the service record to be registered again
+        assertTrue(result.mElapsedTimeInNanoseconds
+                >= TimeUnit.MILLISECONDS.toNanos(REGISTRATION_DELAY_IN_MILLISECONDS * (NUMBER_OF_CONNECTIONS - 1)));
+    }
+
+    @Test(timeout = 60000)
+    public void testPersistentListeningAcceptsFaster() throws Exception {
+        AcceptLoopResult persistentResult = runAcceptLoop(true);
+        AcceptLoopResult recreatingResult = runAcceptLoop(false);
+
+        System.out.println(String.format(
+                "Accept rate with %d ms registration: persistent %.0f/s (%d refused), recreating %.0f/s (%d refused)",
+                REGISTRATION_DELAY_IN_MILLISECONDS,
+                persistentResult.getAcceptRate(), persistentResult.mNumberOfRefusedAttempts,
+                recreatingResult.getAcceptRate(), recreatingResult.mNumberOfRefusedAttempts));
+
+        assertTrue(persistentResult.getAcceptRate() > 2 * recreatingResult.getAcceptRate());
+    }
+
+    /**
+     * Connects NUMBER_OF_CONNECTIONS times one after another, retrying the refused attempts, and
+     * measures the time from the server socket being first created.
+     *
+     * @param persistentListening The listening mode of the server thread.
+     * @return The result.
+     */
+    private static AcceptLoopResult runAcceptLoop(boolean persistentListening) throws Exception {
+        StandInListeningSocketFactory listeningSocketFactory = new StandInListeningSocketFactory();
+        BluetoothServerThread bluetoothServerThread = new BluetoothServerThread(
+                mock(BluetoothServerThread.Listener.class), listeningSocketFactory,
+                SERVICE_RECORD_UUID, null,
+                HandshakeWorkerPool.DEFAULT_MAX_NUMBER_OF_WORKERS,
+                HandshakeWorkerPool.DEFAULT_QUEUE_CAPACITY,
+                HandshakeWorkerPool.DEFAULT_DEADLINE_IN_MILLISECONDS);
+        bluetoothServerThread.setPersistentListening(persistentListening);
+
+        BluetoothSocket[] bluetoothSockets = new BluetoothSocket[NUMBER_OF_CONNECTIONS];
+
+        for (int i = 0; i < bluetoothSockets.length; ++i) {
+            bluetoothSockets[i] = mock(BluetoothSocket.class);
+        }
+
+        AcceptLoopResult result = new AcceptLoopResult();
+        bluetoothServerThread.start();
+
+        try {
+            while (listeningSocketFactory.mListeningSocket == null) {
+                Thread.sleep(1);
+            }
+
+            long startTime = System.nanoTime();
+
+            for (BluetoothSocket bluetoothSocket : bluetoothSockets) {
+                while (!listeningSocketFactory.connect(bluetoothSocket)) {
+                    result.mNumberOfRefusedAttempts++;
+                    Thread.sleep(1); // Retry after a pause as a client would
+                }
+            }
+
+            while (bluetoothServerThread.getNumberOfAcceptedConnections() < NUMBER_OF_CONNECTIONS) {
+                Thread.sleep(1);
+            }
+
+            result.mElapsedTimeInNanoseconds = System.nanoTime() - startTime;
+            result.mNumberOfAcceptedConnections = bluetoothServerThread.getNumberOfAcceptedConnections();
+            result.mNumberOfServerSocketsCreated = bluetoothServerThread.getNumberOfServerSocketsCreated();
+        } finally {
+            bluetoothServerThread.shutdown();
+            bluetoothServerThread.join(5000);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,212 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothSocket;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class ConnectionRaceTest {
+    private static final int PRIMARY_PORT = -1;
+    private static final int ALTERNATIVE_PORT = 0;
+    private static final long LONG_STAGGER_IN_MILLISECONDS = 10000;
+    private static final long SHORT_STAGGER_IN_MILLISECONDS = 50;
+    private final Map<Integer, BluetoothSocket> mSockets = new HashMap<>();
+    private final ConnectionRaceStatistics mStatistics = new ConnectionRaceStatistics();
+
+    private final ConnectionRace.SocketFactory mSocketFactory = new ConnectionRace.SocketFactory() {
+        @Override
+        public BluetoothSocket createSocket(int port) throws IOException {
+            return mSockets.get(port);
+        }
+    };
+
+    @Test(expected = NullPointerException.class)
+    public void testSocketFactoryCannotBeNull() {
+        new ConnectionRace(null, PRIMARY_PORT, ALTERNATIVE_PORT, LONG_STAGGER_IN_MILLISECONDS, null);
+    }
+
+    @Test(timeout = 10000)
+    public void testPrimaryWinsBeforeStagger() throws Exception {
+        BluetoothSocket primarySocket = mock(BluetoothSocket.class);
+        mSockets.put(PRIMARY_PORT, primarySocket);
+        mSockets.put(ALTERNATIVE_PORT, mock(BluetoothSocket.class));
+        ConnectionRace connectionRace = new ConnectionRace(
+                mSocketFactory, PRIMARY_PORT, ALTERNATIVE_PORT, LONG_STAGGER_IN_MILLISECONDS, mStatistics);
+
+        assertSame(primarySocket, connectionRace.run());
+        assertEquals(PRIMARY_PORT, connectionRace.getWinningPort());
+        verify(primarySocket, never()).close();
+
+        // The alternative strategy was never started
+        assertNull(mStatistics.getStrategy(ALTERNATIVE_PORT));
+        assertEquals(1, mStatistics.getStrategy(PRIMARY_PORT).getNumberOfWins());
+        assertEquals(1d, mStatistics.getWinRate(PRIMARY_PORT), 0d);
+        assertEquals(1, mStatistics.getTimeToConnect().getCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testAlternativeStartsRightAwayWhenPrimaryFails() throws Exception {
+        BluetoothSocket primarySocket = createFailingSocket();
+        BluetoothSocket alternativeSocket = mock(BluetoothSocket.class);
+        mSockets.put(PRIMARY_PORT, primarySocket);
+        mSockets.put(ALTERNATIVE_PORT, alternativeSocket);
+        ConnectionRace connectionRace = new ConnectionRace(
+                mSocketFactory, PRIMARY_PORT, ALTERNATIVE_PORT, LONG_STAGGER_IN_MILLISECONDS, mStatistics);
+
+        // Does not wait for the long stagger
+        assertSame(alternativeSocket, connectionRace.run());
+        assertEquals(ALTERNATIVE_PORT, connectionRace.getWinningPort());
+        verify(primarySocket, atLeastOnce()).close();
+
+        assertEquals(1, mStatistics.getStrategy(PRIMARY_PORT).getNumberOfFailures());
+        assertEquals(0d, mStatistics.getWinRate(PRIMARY_PORT), 0d);
+        assertEquals(1, mStatistics.getStrategy(ALTERNATIVE_PORT).getNumberOfWins());
+    }
+
+    @Test(timeout = 10000)
+    public void testAlternativeWinsAfterStaggerAndClosesPrimary() throws Exception {
+        BluetoothSocket primarySocket = createBlockingSocket();
+        BluetoothSocket alternativeSocket = mock(BluetoothSocket.class);
+        mSockets.put(PRIMARY_PORT, primarySocket);
+        mSockets.put(ALTERNATIVE_PORT, alternativeSocket);
+        ConnectionRace connectionRace = new ConnectionRace(
+                mSocketFactory, PRIMARY_PORT, ALTERNATIVE_PORT, SHORT_STAGGER_IN_MILLISECONDS, mStatistics);
+
+        assertSame(alternativeSocket, connectionRace.run());
+        verify(primarySocket, atLeastOnce()).close();
+        verify(alternativeSocket, never()).close();
+
+        // The loser closed by the winner is not counted as a failure
+        assertEquals(1, mStatistics.getStrategy(PRIMARY_PORT).getNumberOfAttempts());
+        assertEquals(0, mStatistics.getStrategy(PRIMARY_PORT).getNumberOfFailures());
+        assertEquals(1, mStatistics.getStrategy(ALTERNATIVE_PORT).getNumberOfWins());
+    }
+
+    @Test(timeout = 10000)
+    public void testRaceIsLostWhenBothStrategiesFail() throws Exception {
+        mSockets.put(PRIMARY_PORT, createFailingSocket());
+        mSockets.put(ALTERNATIVE_PORT, createFailingSocket());
+        ConnectionRace connectionRace = new ConnectionRace(
+                mSocketFactory, PRIMARY_PORT, ALTERNATIVE_PORT, LONG_STAGGER_IN_MILLISECONDS, mStatistics);
+
+        try {
+            connectionRace.run();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Connection refused", e.getMessage());
+        }
+
+        assertEquals(ConnectionRace.NO_WINNER, connectionRace.getWinningPort());
+        assertEquals(1, mStatistics.getNumberOfRaces());
+        assertEquals(1, mStatistics.getNumberOfLostRaces());
+        assertEquals(0, mStatistics.getTimeToConnect().getCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testCancelClosesSocketsAndUnblocksRun() throws Exception {
+        BluetoothSocket primarySocket = createBlockingSocket();
+        BluetoothSocket alternativeSocket = createBlockingSocket();
+        mSockets.put(PRIMARY_PORT, primarySocket);
+        mSockets.put(ALTERNATIVE_PORT, alternativeSocket);
+        final ConnectionRace connectionRace = new ConnectionRace(
+                mSocketFactory, PRIMARY_PORT, ALTERNATIVE_PORT, SHORT_STAGGER_IN_MILLISECONDS, mStatistics);
+        final BlockingQueue<Exception> exceptions = new LinkedBlockingQueue<>();
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    connectionRace.run();
+                } catch (IOException e) {
+                    exceptions.add(e);
+                }
+            }
+        }.start();
+
+        // Wait for both attempts to be connecting
+        verify(alternativeSocket, timeout(5000)).connect();
+        connectionRace.cancel();
+
+        Exception exception = exceptions.poll(5, TimeUnit.SECONDS);
+        assertNotNull(exception);
+        assertEquals("Connection race cancelled", exception.getMessage());
+        verify(primarySocket, timeout(5000).atLeastOnce()).close();
+        verify(alternativeSocket, timeout(5000).atLeastOnce()).close();
+        assertEquals(0, mStatistics.getNumberOfRaces());
+    }
+
+    @Test
+    public void testStatisticsWinRate() {
+        mStatistics.recordAttempt(PRIMARY_PORT);
+        mStatistics.recordAttempt(PRIMARY_PORT);
+        mStatistics.recordRace(PRIMARY_PORT, true, 100);
+        mStatistics.recordFailure(PRIMARY_PORT);
+        mStatistics.recordRace(ConnectionRace.NO_WINNER, false, 200);
+
+        ConnectionRaceStatistics.Strategy strategy = mStatistics.getStrategy(PRIMARY_PORT);
+        assertEquals(2, strategy.getNumberOfAttempts());
+        assertEquals(1, strategy.getNumberOfWins());
+        assertEquals(1, strategy.getNumberOfFailures());
+        assertEquals(0.5d, strategy.getWinRate(), 0d);
+        assertEquals(2, mStatistics.getNumberOfRaces());
+        assertEquals(1, mStatistics.getNumberOfLostRaces());
+        assertEquals(100, mStatistics.getTimeToConnect().getMax());
+        assertEquals(0d, mStatistics.getWinRate(ALTERNATIVE_PORT), 0d);
+    }
+
+    private static BluetoothSocket createFailingSocket() throws IOException {
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        doThrow(new IOException("Connection refused")).when(bluetoothSocket).connect();
+        return bluetoothSocket;
+    }
+
+    /**
+     * @return A mock socket, which does not connect until closed, like a socket to a peer that
+     * never answers.
+     */
+    private static BluetoothSocket createBlockingSocket() throws IOException {
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        final CountDownLatch closedLatch = new CountDownLatch(1);
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException, InterruptedException {
+                closedLatch.await();
+                throw new IOException("Socket closed");
+            }
+        }).when(bluetoothSocket).connect();
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                closedLatch.countDown();
+                return null;
+            }
+        }).when(bluetoothSocket).close();
+
+        return bluetoothSocket;
+    }
+}
@@ -0,0 +1,179 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothSocket;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class HandshakeWorkerPoolTest {
+    private static final long DEADLINE_IN_MILLISECONDS = 100;
+    private final BlockingQueue<BluetoothSocket> mSucceededSockets = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> mFailureReasons = new LinkedBlockingQueue<>();
+    private final CountDownLatch mReleaseHandshakesLatch = new CountDownLatch(1);
+    private HandshakeWorkerPool mHandshakeWorkerPool;
+
+    private final HandshakeWorkerPool.Listener mListener = new HandshakeWorkerPool.Listener() {
+        @Override
+        public void onHandshakeSucceeded(BluetoothSocket bluetoothSocket, PeerProperties peerProperties, byte[] earlyData) {
+            mSucceededSockets.add(bluetoothSocket);
+        }
+
+        @Override
+        public void onHandshakeFailed(String reason) {
+            mFailureReasons.add(reason);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        mReleaseHandshakesLatch.countDown();
+
+        if (mHandshakeWorkerPool != null) {
+            mHandshakeWorkerPool.shutdown();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testSocketIsRefusedWhenQueueIsFull() throws Exception {
+        mHandshakeWorkerPool = new HandshakeWorkerPool(new HandshakeWorkerPool.Handshake() {
+            @Override
+            public HandshakeWorkerPool.Result performHandshake(
+                    BluetoothSocket bluetoothSocket, HandshakeWorkerPool.Deadline deadline) throws IOException {
+                awaitRelease();
+                return null;
+            }
+        }, mListener, 1, 1, HandshakeWorkerPool.DEFAULT_DEADLINE_IN_MILLISECONDS);
+
+        BluetoothSocket refusedSocket = mock(BluetoothSocket.class);
+        assertTrue(mHandshakeWorkerPool.submit(mock(BluetoothSocket.class))); // Taken by the worker
+        assertTrue(mHandshakeWorkerPool.submit(mock(BluetoothSocket.class))); // Queued
+        assertFalse(mHandshakeWorkerPool.submit(refusedSocket));
+
+        verify(refusedSocket).close();
+        assertEquals(1, mHandshakeWorkerPool.getNumberOfRejectedSockets());
+        assertEquals(2, mHandshakeWorkerPool.getNumberOfPendingHandshakes());
+    }
+
+    @Test(timeout = 30000)
+    public void testSocketIsClosedWhenDeadlinePasses() throws Exception {
+        mHandshakeWorkerPool = new HandshakeWorkerPool(new HandshakeWorkerPool.Handshake() {
+            @Override
+            public HandshakeWorkerPool.Result performHandshake(
+                    BluetoothSocket bluetoothSocket, HandshakeWorkerPool.Deadline deadline) throws IOException {
+                awaitRelease(); // The peer never sends its handshake
+                throw new IOException("Socket closed");
+            }
+        }, mListener, 1, 1, DEADLINE_IN_MILLISECONDS);
+
+        BluetoothSocket bluetoothSocket = createSocketReleasingHandshakesOnClose();
+        assertTrue(mHandshakeWorkerPool.submit(bluetoothSocket));
+
+        assertEquals("Handshake timed out", mFailureReasons.poll(5, TimeUnit.SECONDS));
+        verify(bluetoothSocket).close();
+        assertEquals(1, mHandshakeWorkerPool.getNumberOfTimedOutHandshakes());
+
+        // The worker notices the closed socket, but must not report the handshake again
+        Thread.sleep(DEADLINE_IN_MILLISECONDS);
+        assertTrue(mFailureReasons.isEmpty());
+        assertEquals(0, mHandshakeWorkerPool.getNumberOfFailedHandshakes());
+        assertEquals(0, mHandshakeWorkerPool.getNumberOfPendingHandshakes());
+    }
+
+    @Test(timeout = 30000)
+    public void testDeadlineCancelledBeforeReplyDoesNotCloseSocket() throws Exception {
+        final PeerProperties peerProperties = new PeerProperties("00:11:22:33:44:55");
+
+        mHandshakeWorkerPool = new HandshakeWorkerPool(new HandshakeWorkerPool.Handshake() {
+            @Override
+            public HandshakeWorkerPool.Result performHandshake(
+                    BluetoothSocket bluetoothSocket, HandshakeWorkerPool.Deadline deadline) throws IOException {
+                assertTrue(deadline.cancel());
+
+                try {
+                    // Writing the reply takes longer than the deadline
+                    Thread.sleep(DEADLINE_IN_MILLISECONDS * 3);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+
+                return new HandshakeWorkerPool.Result(peerProperties, null);
+            }
+        }, mListener, 1, 1, DEADLINE_IN_MILLISECONDS);
+
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        assertTrue(mHandshakeWorkerPool.submit(bluetoothSocket));
+
+        assertEquals(bluetoothSocket, mSucceededSockets.poll(5, TimeUnit.SECONDS));
+        verify(bluetoothSocket, never()).close();
+        assertTrue(mFailureReasons.isEmpty());
+        assertEquals(0, mHandshakeWorkerPool.getNumberOfTimedOutHandshakes());
+        assertEquals(1, mHandshakeWorkerPool.getNumberOfSucceededHandshakes());
+    }
+
+    @Test(timeout = 30000)
+    public void testDeadlineCannotBeCancelledOnceItHasPassed() throws Exception {
+        final BlockingQueue<Boolean> cancelResults = new LinkedBlockingQueue<>();
+
+        mHandshakeWorkerPool = new HandshakeWorkerPool(new HandshakeWorkerPool.Handshake() {
+            @Override
+            public HandshakeWorkerPool.Result performHandshake(
+                    BluetoothSocket bluetoothSocket, HandshakeWorkerPool.Deadline deadline) throws IOException {
+                awaitRelease();
+                cancelResults.add(deadline.cancel());
+                return null;
+            }
+        }, mListener, 1, 1, DEADLINE_IN_MILLISECONDS);
+
+        assertTrue(mHandshakeWorkerPool.submit(createSocketReleasingHandshakesOnClose()));
+
+        Boolean cancelResult = cancelResults.poll(5, TimeUnit.SECONDS);
+        assertNotNull(cancelResult);
+        assertFalse(cancelResult);
+        assertEquals("Handshake timed out", mFailureReasons.poll(5, TimeUnit.SECONDS));
+    }
+
+    private void awaitRelease() throws IOException {
+        try {
+            mReleaseHandshakesLatch.await();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        }
+    }
+
+    /**
+     * @return A mock socket, which releases the blocked handshakes when closed as closing a real
+     * socket unblocks its reader.
+     */
+    private BluetoothSocket createSocketReleasingHandshakesOnClose() throws IOException {
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                mReleaseHandshakesLatch.countDown();
+                return null;
+            }
+        }).when(bluetoothSocket).close();
+
+        return bluetoothSocket;
+    }
+}
@@ -0,0 +1,106 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.junit.Test;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class ResumptionTokenCacheTest {
+    private static final String BLUETOOTH_MAC_ADDRESS_1 = "00:11:22:33:44:55";
+    private static final String BLUETOOTH_MAC_ADDRESS_2 = "00:11:22:33:44:66";
+    private static final String BLUETOOTH_MAC_ADDRESS_3 = "00:11:22:33:44:77";
+
+    @Test
+    public void testTokenIsRedeemedOnlyOnce() {
+        ResumptionTokenCache resumptionTokenCache = new ResumptionTokenCache();
+        PeerProperties peerProperties = new PeerProperties("Peer", BLUETOOTH_MAC_ADDRESS_1);
+        byte[] token = ResumptionTokenCache.generateToken();
+        resumptionTokenCache.put(peerProperties, token);
+
+        ResumptionTokenCache.Entry entry = resumptionTokenCache.get(BLUETOOTH_MAC_ADDRESS_1);
+        assertNotNull(entry);
+        assertArrayEquals(token, entry.getToken());
+
+        PeerProperties resumedPeerProperties = resumptionTokenCache.redeem(BLUETOOTH_MAC_ADDRESS_1, token);
+        assertNotNull(resumedPeerProperties);
+        assertNotSame(peerProperties, resumedPeerProperties);
+        assertEquals("Peer", resumedPeerProperties.getName());
+        assertEquals(BLUETOOTH_MAC_ADDRESS_1, resumedPeerProperties.getBluetoothMacAddress());
+
+        assertNull(resumptionTokenCache.redeem(BLUETOOTH_MAC_ADDRESS_1, token));
+        assertEquals(1, resumptionTokenCache.getNumberOfResumedSessions());
+        assertEquals(1, resumptionTokenCache.getNumberOfRejectedTokens());
+    }
+
+    @Test
+    public void testMismatchingTokenIsRejectedAndRemoved() {
+        ResumptionTokenCache resumptionTokenCache = new ResumptionTokenCache();
+        byte[] token = ResumptionTokenCache.generateToken();
+        resumptionTokenCache.put(new PeerProperties(BLUETOOTH_MAC_ADDRESS_1), token);
+
+        assertNull(resumptionTokenCache.redeem(BLUETOOTH_MAC_ADDRESS_1, ResumptionTokenCache.generateToken()));
+
+        // The valid token can no longer be used either
+        assertNull(resumptionTokenCache.redeem(BLUETOOTH_MAC_ADDRESS_1, token));
+        assertEquals(0, resumptionTokenCache.getSize());
+        assertEquals(2, resumptionTokenCache.getNumberOfRejectedTokens());
+    }
+
+    @Test
+    public void testTokenExpires() throws Exception {
+        ResumptionTokenCache resumptionTokenCache = new ResumptionTokenCache(1, 1);
+        byte[] token = ResumptionTokenCache.generateToken();
+        resumptionTokenCache.put(new PeerProperties(BLUETOOTH_MAC_ADDRESS_1), token);
+        Thread.sleep(10);
+
+        assertNull(resumptionTokenCache.get(BLUETOOTH_MAC_ADDRESS_1));
+        assertEquals(0, resumptionTokenCache.getSize());
+        assertNull(resumptionTokenCache.redeem(BLUETOOTH_MAC_ADDRESS_1, token));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedTokenIsEvicted() {
+        ResumptionTokenCache resumptionTokenCache = new ResumptionTokenCache(2, 0);
+        resumptionTokenCache.put(new PeerProperties(BLUETOOTH_MAC_ADDRESS_1), ResumptionTokenCache.generateToken());
+        resumptionTokenCache.put(new PeerProperties(BLUETOOTH_MAC_ADDRESS_2), ResumptionTokenCache.generateToken());
+        resumptionTokenCache.get(BLUETOOTH_MAC_ADDRESS_1);
+        resumptionTokenCache.put(new PeerProperties(BLUETOOTH_MAC_ADDRESS_3), ResumptionTokenCache.generateToken());
+
+        assertEquals(2, resumptionTokenCache.getSize());
+        assertNotNull(resumptionTokenCache.get(BLUETOOTH_MAC_ADDRESS_1));
+        assertNull(resumptionTokenCache.get(BLUETOOTH_MAC_ADDRESS_2));
+        assertNotNull(resumptionTokenCache.get(BLUETOOTH_MAC_ADDRESS_3));
+        assertEquals(1, resumptionTokenCache.getNumberOfEvictedTokens());
+    }
+
+    @Test
+    public void testRemovedTokenIsGone() {
+        ResumptionTokenCache resumptionTokenCache = new ResumptionTokenCache();
+        resumptionTokenCache.put(new PeerProperties(BLUETOOTH_MAC_ADDRESS_1), ResumptionTokenCache.generateToken());
+        resumptionTokenCache.remove(BLUETOOTH_MAC_ADDRESS_1);
+
+        assertNull(resumptionTokenCache.get(BLUETOOTH_MAC_ADDRESS_1));
+        assertEquals(0, resumptionTokenCache.getNumberOfRejectedTokens());
+    }
+
+    @Test
+    public void testGeneratedTokensDiffer() {
+        byte[] token = ResumptionTokenCache.generateToken();
+        assertEquals(SessionResumption.TOKEN_LENGTH_IN_BYTES, token.length);
+        assertFalse(Arrays.equals(token, ResumptionTokenCache.generateToken()));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testPeerWithoutBluetoothMacAddressIsRejected() {
+        new ResumptionTokenCache().put(new PeerProperties(), ResumptionTokenCache.generateToken());
+    }
+}
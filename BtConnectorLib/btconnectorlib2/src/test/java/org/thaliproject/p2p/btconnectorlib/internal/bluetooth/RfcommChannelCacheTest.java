@@ -0,0 +1,77 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RfcommChannelCacheTest {
+    private static final String BLUETOOTH_MAC_ADDRESS_1 = "00:11:22:33:44:55";
+    private static final String BLUETOOTH_MAC_ADDRESS_2 = "00:11:22:33:44:66";
+
+    @Test
+    public void testLearnedChannelIsHandedOut() {
+        RfcommChannelCache rfcommChannelCache = new RfcommChannelCache(null);
+        assertEquals(RfcommChannelCache.NO_CHANNEL, rfcommChannelCache.get(BLUETOOTH_MAC_ADDRESS_1));
+
+        rfcommChannelCache.put(BLUETOOTH_MAC_ADDRESS_1, 5);
+
+        assertEquals(5, rfcommChannelCache.get(BLUETOOTH_MAC_ADDRESS_1));
+        assertEquals(RfcommChannelCache.NO_CHANNEL, rfcommChannelCache.get(BLUETOOTH_MAC_ADDRESS_2));
+        assertEquals(1, rfcommChannelCache.getNumberOfHits()); // Misses are not counted
+        assertEquals(1, rfcommChannelCache.getNumberOfLearnedChannels());
+    }
+
+    @Test
+    public void testOnlyNewOrChangedChannelsAreLearned() {
+        RfcommChannelCache rfcommChannelCache = new RfcommChannelCache(null);
+        rfcommChannelCache.put(BLUETOOTH_MAC_ADDRESS_1, 5);
+        rfcommChannelCache.put(BLUETOOTH_MAC_ADDRESS_1, 5);
+        rfcommChannelCache.put(BLUETOOTH_MAC_ADDRESS_1, 7);
+
+        assertEquals(7, rfcommChannelCache.get(BLUETOOTH_MAC_ADDRESS_1));
+        assertEquals(2, rfcommChannelCache.getNumberOfLearnedChannels());
+    }
+
+    @Test
+    public void testInvalidChannelsAreIgnored() {
+        RfcommChannelCache rfcommChannelCache = new RfcommChannelCache(null);
+        rfcommChannelCache.put(BLUETOOTH_MAC_ADDRESS_1, 0);
+        rfcommChannelCache.put(BLUETOOTH_MAC_ADDRESS_1, RfcommChannelCache.NO_CHANNEL);
+        rfcommChannelCache.put(null, 5);
+
+        assertEquals(RfcommChannelCache.NO_CHANNEL, rfcommChannelCache.get(BLUETOOTH_MAC_ADDRESS_1));
+        assertEquals(0, rfcommChannelCache.getNumberOfLearnedChannels());
+    }
+
+    @Test
+    public void testInvalidatedChannelIsRemoved() {
+        RfcommChannelCache rfcommChannelCache = new RfcommChannelCache(null);
+        rfcommChannelCache.put(BLUETOOTH_MAC_ADDRESS_1, 5);
+        rfcommChannelCache.invalidate(BLUETOOTH_MAC_ADDRESS_1);
+        rfcommChannelCache.invalidate(BLUETOOTH_MAC_ADDRESS_1);
+        rfcommChannelCache.invalidate(BLUETOOTH_MAC_ADDRESS_2);
+
+        assertEquals(RfcommChannelCache.NO_CHANNEL, rfcommChannelCache.get(BLUETOOTH_MAC_ADDRESS_1));
+        assertEquals(1, rfcommChannelCache.getNumberOfInvalidations());
+
+        // The channel can be learned again
+        rfcommChannelCache.put(BLUETOOTH_MAC_ADDRESS_1, 5);
+        assertEquals(5, rfcommChannelCache.get(BLUETOOTH_MAC_ADDRESS_1));
+        assertEquals(2, rfcommChannelCache.getNumberOfLearnedChannels());
+    }
+
+    @Test
+    public void testClearRemovesAllChannels() {
+        RfcommChannelCache rfcommChannelCache = new RfcommChannelCache(null);
+        rfcommChannelCache.put(BLUETOOTH_MAC_ADDRESS_1, 5);
+        rfcommChannelCache.put(BLUETOOTH_MAC_ADDRESS_2, 6);
+        rfcommChannelCache.clear();
+
+        assertEquals(RfcommChannelCache.NO_CHANNEL, rfcommChannelCache.get(BLUETOOTH_MAC_ADDRESS_1));
+        assertEquals(RfcommChannelCache.NO_CHANNEL, rfcommChannelCache.get(BLUETOOTH_MAC_ADDRESS_2));
+        assertEquals(0, rfcommChannelCache.getNumberOfHits());
+    }
+}
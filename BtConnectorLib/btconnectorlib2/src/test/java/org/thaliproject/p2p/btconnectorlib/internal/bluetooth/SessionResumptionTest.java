@@ -0,0 +1,98 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.junit.Test;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SessionResumptionTest {
+    private static final String BLUETOOTH_MAC_ADDRESS = "00:11:22:33:44:55";
+
+    @Test
+    public void testRequestIsDecodedToItsFields() throws IOException {
+        byte[] token = ResumptionTokenCache.generateToken();
+        byte[] earlyData = new byte[200]; // The length takes two varint bytes
+        Arrays.fill(earlyData, (byte) 7);
+
+        byte[] message = SessionResumption.encode(
+                SessionResumption.TYPE_REQUEST, BLUETOOTH_MAC_ADDRESS, token, earlyData);
+
+        assertNotNull(message);
+        assertTrue(SessionResumption.isResumptionMessage(message, 0, message.length));
+        assertEquals(message.length, SessionResumption.getRequiredLength(message, 0, message.length));
+        assertEquals(SessionResumption.TYPE_REQUEST, SessionResumption.getType(message));
+        assertEquals(BLUETOOTH_MAC_ADDRESS, SessionResumption.getBluetoothMacAddress(message));
+        assertArrayEquals(token, SessionResumption.getToken(message));
+        assertArrayEquals(earlyData, SessionResumption.getEarlyData(message));
+    }
+
+    @Test
+    public void testAcceptanceWithoutEarlyData() throws IOException {
+        byte[] message = SessionResumption.encode(
+                SessionResumption.TYPE_ACCEPTED, BLUETOOTH_MAC_ADDRESS, ResumptionTokenCache.generateToken(), null);
+
+        assertNotNull(message);
+        assertEquals(SessionResumption.TYPE_ACCEPTED, SessionResumption.getType(message));
+        assertEquals(0, SessionResumption.getEarlyData(message).length);
+    }
+
+    @Test
+    public void testRejectionConsistsOfHeaderOnly() throws IOException {
+        byte[] message = SessionResumption.encodeRejection();
+
+        assertTrue(SessionResumption.isResumptionMessage(message, 0, message.length));
+        assertEquals(SessionResumption.TYPE_REJECTED, SessionResumption.getType(message));
+        assertEquals(message.length, SessionResumption.getRequiredLength(message, 0, message.length));
+    }
+
+    @Test
+    public void testRequiredLengthIsResolvedIncrementally() throws IOException {
+        byte[] message = SessionResumption.encode(SessionResumption.TYPE_REQUEST, BLUETOOTH_MAC_ADDRESS,
+                ResumptionTokenCache.generateToken(), new byte[200]);
+
+        for (int size = 0; size < message.length; ++size) {
+            int requiredLength = SessionResumption.getRequiredLength(message, 0, size);
+            assertTrue(requiredLength > size);
+            assertTrue(requiredLength <= message.length);
+        }
+    }
+
+    @Test
+    public void testInvalidArgumentsAreNotEncoded() {
+        assertNull(SessionResumption.encode(SessionResumption.TYPE_REQUEST, BLUETOOTH_MAC_ADDRESS,
+                new byte[SessionResumption.TOKEN_LENGTH_IN_BYTES - 1], null));
+        assertNull(SessionResumption.encode(SessionResumption.TYPE_REQUEST, BLUETOOTH_MAC_ADDRESS,
+                ResumptionTokenCache.generateToken(), new byte[BinaryHandshake.MAX_EARLY_DATA_LENGTH_IN_BYTES + 1]));
+    }
+
+    @Test
+    public void testBinaryHandshakeIsNotResumptionMessage() {
+        byte[] bytes = { BinaryHandshake.MAGIC_BYTE_1, BinaryHandshake.MAGIC_BYTE_2, 0, 0 };
+
+        assertFalse(SessionResumption.isResumptionMessage(bytes, 0, bytes.length));
+
+        try {
+            SessionResumption.getRequiredLength(bytes, 0, bytes.length);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownTypeIsRejected() throws IOException {
+        byte[] message = SessionResumption.encodeRejection();
+        message[3] = 9;
+        SessionResumption.getRequiredLength(message, 0, message.length);
+    }
+}
@@ -0,0 +1,118 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.bluetooth.BluetoothSocket;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AdaptiveBufferSizerTest {
+    private static final int MIN_BUFFER_SIZE_IN_BYTES = 256;
+    private static final int MAX_BUFFER_SIZE_IN_BYTES = 4096;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBoundsAreRejected() {
+        new AdaptiveBufferSizer(MAX_BUFFER_SIZE_IN_BYTES, MIN_BUFFER_SIZE_IN_BYTES, MIN_BUFFER_SIZE_IN_BYTES);
+    }
+
+    @Test
+    public void testInitialSizeIsLimitedToBounds() {
+        assertEquals(MIN_BUFFER_SIZE_IN_BYTES,
+                new AdaptiveBufferSizer(MIN_BUFFER_SIZE_IN_BYTES, MAX_BUFFER_SIZE_IN_BYTES, 1).getBufferSize());
+        assertEquals(MAX_BUFFER_SIZE_IN_BYTES,
+                new AdaptiveBufferSizer(MIN_BUFFER_SIZE_IN_BYTES, MAX_BUFFER_SIZE_IN_BYTES, 1 << 20).getBufferSize());
+    }
+
+    @Test
+    public void testBufferGrowsOnConsecutiveFullReadsUpToMax() {
+        AdaptiveBufferSizer adaptiveBufferSizer =
+                new AdaptiveBufferSizer(MIN_BUFFER_SIZE_IN_BYTES, MAX_BUFFER_SIZE_IN_BYTES, MIN_BUFFER_SIZE_IN_BYTES);
+
+        // A single full read is not enough
+        assertEquals(MIN_BUFFER_SIZE_IN_BYTES, adaptiveBufferSizer.onRead(MIN_BUFFER_SIZE_IN_BYTES));
+        assertEquals(MIN_BUFFER_SIZE_IN_BYTES * 2, adaptiveBufferSizer.onRead(MIN_BUFFER_SIZE_IN_BYTES));
+
+        for (int i = 0; i < 20; ++i) {
+            adaptiveBufferSizer.onRead(adaptiveBufferSizer.getBufferSize());
+        }
+
+        assertEquals(MAX_BUFFER_SIZE_IN_BYTES, adaptiveBufferSizer.getBufferSize());
+        assertEquals(4, adaptiveBufferSizer.getNumberOfResizes()); // 256 -> 512 -> 1024 -> 2048 -> 4096
+    }
+
+    @Test
+    public void testBufferShrinksOnConsecutiveSparseReadsDownToMin() {
+        AdaptiveBufferSizer adaptiveBufferSizer =
+                new AdaptiveBufferSizer(MIN_BUFFER_SIZE_IN_BYTES, MAX_BUFFER_SIZE_IN_BYTES, MAX_BUFFER_SIZE_IN_BYTES);
+
+        for (int i = 0; i < 7; ++i) {
+            assertEquals(MAX_BUFFER_SIZE_IN_BYTES, adaptiveBufferSizer.onRead(1));
+        }
+
+        assertEquals(MAX_BUFFER_SIZE_IN_BYTES / 2, adaptiveBufferSizer.onRead(1));
+
+        for (int i = 0; i < 100; ++i) {
+            adaptiveBufferSizer.onRead(1);
+        }
+
+        assertEquals(MIN_BUFFER_SIZE_IN_BYTES, adaptiveBufferSizer.getBufferSize());
+    }
+
+    @Test
+    public void testModerateReadResetsTheStreaks() {
+        AdaptiveBufferSizer adaptiveBufferSizer =
+                new AdaptiveBufferSizer(MIN_BUFFER_SIZE_IN_BYTES, MAX_BUFFER_SIZE_IN_BYTES, MAX_BUFFER_SIZE_IN_BYTES / 2);
+        int bufferSize = adaptiveBufferSizer.getBufferSize();
+
+        for (int i = 0; i < 20; ++i) {
+            // Full and half full reads alternate, neither streak is ever reached
+            adaptiveBufferSizer.onRead((i % 2 == 0) ? bufferSize : bufferSize / 2);
+        }
+
+        assertEquals(bufferSize, adaptiveBufferSizer.getBufferSize());
+        assertEquals(0, adaptiveBufferSizer.getNumberOfResizes());
+    }
+
+    @Test(timeout = 10000)
+    public void testSocketIoThreadGrowsReadBuffer() throws Exception {
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        when(bluetoothSocket.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[64 * 1024]));
+        when(bluetoothSocket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        BluetoothSocketIoThread.Listener listener = mock(BluetoothSocketIoThread.Listener.class);
+        final List<Integer> readSizes = new ArrayList<>();
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                readSizes.add((Integer) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(listener).onBytesRead(any(byte[].class), anyInt(), any(BluetoothSocketIoThread.class));
+
+        BluetoothSocketIoThread bluetoothSocketIoThread = new BluetoothSocketIoThread(bluetoothSocket, listener);
+        bluetoothSocketIoThread.setBufferSize(MIN_BUFFER_SIZE_IN_BYTES);
+        bluetoothSocketIoThread.setAdaptiveBufferSize(MIN_BUFFER_SIZE_IN_BYTES, MAX_BUFFER_SIZE_IN_BYTES);
+        bluetoothSocketIoThread.start();
+        bluetoothSocketIoThread.join();
+
+        // Every read but the last one fills the buffer
+        assertEquals(MIN_BUFFER_SIZE_IN_BYTES, (int) readSizes.get(0));
+        assertEquals(MIN_BUFFER_SIZE_IN_BYTES * 2, (int) readSizes.get(2));
+        assertEquals(MAX_BUFFER_SIZE_IN_BYTES, (int) Collections.max(readSizes));
+        bluetoothSocketIoThread.close(true, false);
+    }
+}
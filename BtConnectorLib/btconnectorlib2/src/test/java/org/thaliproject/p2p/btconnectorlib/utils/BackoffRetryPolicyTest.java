@@ -0,0 +1,81 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BackoffRetryPolicyTest {
+    private static final String PEER = "00:11:22:33:44:55";
+    private static final String OTHER_PEER = "66:77:88:99:AA:BB";
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxDelayBelowBaseDelay() {
+        new BackoffRetryPolicy(100, 99, 1, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRefillInterval() {
+        new BackoffRetryPolicy(100, 1000, 1, 0);
+    }
+
+    @Test
+    public void testDelaysStayWithinBounds() {
+        BackoffRetryPolicy retryPolicy = new BackoffRetryPolicy(100, 1000, 1000, 60000);
+        long previousDelay = 100;
+
+        for (int i = 1; i <= 500; ++i) {
+            long delay = retryPolicy.onFailure(PEER, (i % 10) + 1);
+            long upperBound = ((i % 10) == 0) ? 300 : Math.min(previousDelay * 3, 1000);
+            assertTrue("Delay " + delay, delay >= 100 && delay <= upperBound);
+            previousDelay = delay;
+        }
+    }
+
+    @Test
+    public void testBudgetIsPerPeer() {
+        BackoffRetryPolicy retryPolicy = new BackoffRetryPolicy(100, 1000, 2, 3600000);
+
+        assertTrue(retryPolicy.onFailure(PEER, 1) > 0);
+        assertTrue(retryPolicy.onFailure(PEER, 2) > 0);
+        assertEquals(RetryPolicy.NO_RETRY, retryPolicy.onFailure(PEER, 3));
+        assertEquals(0, retryPolicy.getRemainingBudget(PEER));
+        assertEquals(2, retryPolicy.getNumberOfRetriesSpent(PEER));
+        assertEquals(1, retryPolicy.getNumberOfRetriesDenied(PEER));
+
+        assertEquals(2, retryPolicy.getRemainingBudget(OTHER_PEER));
+        assertTrue(retryPolicy.onFailure(OTHER_PEER, 1) > 0);
+        assertEquals(3, retryPolicy.getTotalNumberOfRetriesSpent());
+        assertEquals(1, retryPolicy.getTotalNumberOfRetriesDenied());
+    }
+
+    @Test
+    public void testSuccessRestoresBudget() {
+        BackoffRetryPolicy retryPolicy = new BackoffRetryPolicy(100, 1000, 1, 3600000);
+        assertTrue(retryPolicy.onFailure(PEER, 1) > 0);
+        assertEquals(RetryPolicy.NO_RETRY, retryPolicy.onFailure(PEER, 2));
+
+        retryPolicy.onSuccess(PEER);
+        assertEquals(1, retryPolicy.getRemainingBudget(PEER));
+        assertTrue(retryPolicy.onFailure(PEER, 1) > 0);
+    }
+
+    @Test
+    public void testBudgetIsRefilled() throws InterruptedException {
+        BackoffRetryPolicy retryPolicy = new BackoffRetryPolicy(100, 1000, 1, 50);
+        assertTrue(retryPolicy.onFailure(PEER, 1) > 0);
+        assertEquals(0, retryPolicy.getRemainingBudget(PEER));
+
+        Thread.sleep(100);
+        assertEquals(1, retryPolicy.getRemainingBudget(PEER));
+    }
+
+    @Test
+    public void testZeroBudgetNeverRetries() {
+        BackoffRetryPolicy retryPolicy = new BackoffRetryPolicy(100, 1000, 0, 1000);
+        assertEquals(RetryPolicy.NO_RETRY, retryPolicy.onFailure(PEER, 1));
+    }
+}
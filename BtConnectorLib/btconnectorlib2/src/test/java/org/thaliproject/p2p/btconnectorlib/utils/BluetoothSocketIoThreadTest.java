@@ -0,0 +1,250 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.bluetooth.BluetoothSocket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BluetoothSocketIoThreadTest {
+    private final ByteArrayOutputStream mOutputStream = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream mBytesReportedWritten = new ByteArrayOutputStream();
+    private BluetoothSocketIoThread mBluetoothSocketIoThread;
+
+    @Before
+    public void setUp() throws IOException {
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        when(bluetoothSocket.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(bluetoothSocket.getOutputStream()).thenReturn(mOutputStream);
+        BluetoothSocketIoThread.Listener listener = mock(BluetoothSocketIoThread.Listener.class);
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                byte[] bytes = (byte[]) invocation.getArguments()[0];
+                mBytesReportedWritten.write(bytes, 0, (Integer) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(listener).onBytesWritten(any(byte[].class), anyInt(), any(BluetoothSocketIoThread.class));
+
+        mBluetoothSocketIoThread = new BluetoothSocketIoThread(bluetoothSocket, listener);
+        mBluetoothSocketIoThread.setMessageListener(mock(BluetoothSocketIoThread.MessageListener.class));
+    }
+
+    @After
+    public void tearDown() {
+        mBluetoothSocketIoThread.close(true, false);
+    }
+
+    @Test
+    public void testCreditIsReturnedForCompressedMessageWithoutCompression() throws Exception {
+        mBluetoothSocketIoThread.setFlowControl(400, false);
+        byte[] compressedPayload = compress(1000);
+
+        mBluetoothSocketIoThread.onFrameDecoded((byte) (MessageFrameCodec.TYPE_DATA | MessageFrameCodec.FLAG_COMPRESSED),
+                compressedPayload, 0, compressedPayload.length);
+
+        // The peer was charged the uncompressed length
+        assertEquals(1000, waitForGrantedCredit(1000));
+    }
+
+    @Test
+    public void testCreditIsReturnedForCorruptCompressedMessage() throws Exception {
+        mBluetoothSocketIoThread.setFlowControl(400, false);
+        mBluetoothSocketIoThread.setCompression(1);
+        byte[] compressedPayload = compress(1000);
+        compressedPayload[compressedPayload.length - 1] ^= 0xff;
+        compressedPayload[compressedPayload.length - 2] ^= 0xff;
+
+        mBluetoothSocketIoThread.onFrameDecoded((byte) (MessageFrameCodec.TYPE_DATA | MessageFrameCodec.FLAG_COMPRESSED),
+                compressedPayload, 0, compressedPayload.length);
+
+        assertEquals(1000, waitForGrantedCredit(1000));
+    }
+
+    @Test
+    public void testCreditIsReturnedForDiscardedFragmentedMessage() throws Exception {
+        mBluetoothSocketIoThread.setFlowControl(40, false);
+        mBluetoothSocketIoThread.setMaxMessageSize(10);
+
+        for (int i = 0; i < 3; ++i) {
+            byte[] fragment = new byte[MessageFrameCodec.FRAGMENT_HEADER_LENGTH_IN_BYTES + 8];
+            fragment[0] = MessageFrameCodec.TYPE_DATA;
+            fragment[1] = (i == 2) ? MessageFrameCodec.FRAGMENT_FLAG_LAST : 0;
+            mBluetoothSocketIoThread.onFrameDecoded(MessageFrameCodec.TYPE_FRAGMENT, fragment, 0, fragment.length);
+        }
+
+        assertEquals(24, waitForGrantedCredit(24));
+    }
+
+    @Test
+    public void testCreditIsReturnedForInvalidFragment() throws Exception {
+        mBluetoothSocketIoThread.setFlowControl(4, false);
+        mBluetoothSocketIoThread.onFrameDecoded(MessageFrameCodec.TYPE_FRAGMENT, new byte[1], 0, 1);
+        assertEquals(1, waitForGrantedCredit(1));
+    }
+
+    @Test
+    public void testPingBypassesFlowControl() throws Exception {
+        // No credit has been granted by the peer
+        mBluetoothSocketIoThread.setFlowControl(400, false);
+        byte[] payload = { 1, 2, 3, 4, 5, 6, 7, 8 };
+        mBluetoothSocketIoThread.onSendPingRequested(payload);
+        byte[] expectedFrame = MessageFrameCodec.encodeFrame(MessageFrameCodec.TYPE_PING, payload);
+
+        for (int i = 0; i < 500 && mOutputStream.size() < expectedFrame.length; ++i) {
+            Thread.sleep(10);
+        }
+
+        assertArrayEquals(expectedFrame, mOutputStream.toByteArray());
+    }
+
+    @Test(timeout = 30000)
+    public void testWriteMessageFromReaderThreadDoesNotWaitForCredit() throws Exception {
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        byte[] frame = MessageFrameCodec.encodeFrame(MessageFrameCodec.TYPE_DATA, new byte[10]);
+        when(bluetoothSocket.getInputStream()).thenReturn(new ByteArrayInputStream(frame));
+        when(bluetoothSocket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        final boolean[] wasWritten = { true };
+
+        // No credit has been granted by the peer
+        BluetoothSocketIoThread bluetoothSocketIoThread = new BluetoothSocketIoThread(
+                bluetoothSocket, mock(BluetoothSocketIoThread.Listener.class));
+        bluetoothSocketIoThread.setFlowControl(400, false);
+        bluetoothSocketIoThread.setMessageListener(new BluetoothSocketIoThread.MessageListener() {
+            @Override
+            public void onMessage(byte type, byte[] bytes, int offset, int length, BluetoothSocketIoThread who) {
+                wasWritten[0] = who.writeMessage(MessageFrameCodec.TYPE_DATA, new byte[10]);
+            }
+        });
+
+        bluetoothSocketIoThread.start();
+        bluetoothSocketIoThread.join(5000);
+        bluetoothSocketIoThread.close(true, false);
+        assertFalse(wasWritten[0]);
+    }
+
+    @Test
+    public void testWriteFileReportsAllBytesWritten() throws IOException {
+        byte[] contents = new byte[100000];
+        new Random(contents.length).nextBytes(contents);
+        File file = File.createTempFile("BluetoothSocketIoThreadTest", null);
+
+        try {
+            FileOutputStream fileOutputStream = new FileOutputStream(file);
+            fileOutputStream.write(contents);
+            fileOutputStream.close();
+            FileInputStream fileInputStream = new FileInputStream(file);
+            assertTrue(mBluetoothSocketIoThread.writeFile(fileInputStream.getChannel(), 100, contents.length - 100));
+            fileInputStream.close();
+        } finally {
+            file.delete();
+        }
+
+        byte[] expected = Arrays.copyOfRange(contents, 100, contents.length);
+        assertArrayEquals(expected, mOutputStream.toByteArray());
+        assertArrayEquals(expected, mBytesReportedWritten.toByteArray());
+    }
+
+    @Test
+    public void testFailedConstructionDoesNotRegister() throws IOException {
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        when(bluetoothSocket.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(bluetoothSocket.getOutputStream()).thenThrow(new IOException("No output stream"));
+        int numberOfShares = BandwidthShaper.getDefault().getNumberOfShares();
+        long numberOfOpenConnections = ConnectionMetrics.getAggregate().getSnapshot().getNumberOfOpenConnections();
+
+        try {
+            new BluetoothSocketIoThread(bluetoothSocket, mock(BluetoothSocketIoThread.Listener.class));
+            fail("Constructing should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        assertEquals(numberOfShares, BandwidthShaper.getDefault().getNumberOfShares());
+        assertEquals(numberOfOpenConnections,
+                ConnectionMetrics.getAggregate().getSnapshot().getNumberOfOpenConnections());
+    }
+
+    /**
+     * Waits until the writer thread has written the expected credit, since the credit frames
+     * are written asynchronously.
+     *
+     * @param expectedCredit The credit expected.
+     * @return The total credit written to the output stream.
+     */
+    private int waitForGrantedCredit(int expectedCredit) throws Exception {
+        int grantedCredit = getGrantedCredit();
+
+        for (int i = 0; i < 500 && grantedCredit < expectedCredit; ++i) {
+            Thread.sleep(10);
+            grantedCredit = getGrantedCredit();
+        }
+
+        return grantedCredit;
+    }
+
+    /**
+     * @return The total credit currently written to the output stream.
+     */
+    private int getGrantedCredit() throws IOException {
+        final int[] grantedCredit = new int[1];
+
+        MessageFrameDecoder decoder = new MessageFrameDecoder(new MessageFrameDecoder.Listener() {
+            @Override
+            public void onFrameDecoded(byte type, byte[] buffer, int offset, int length) {
+                assertEquals(MessageFrameCodec.TYPE_CREDIT, type);
+
+                try {
+                    grantedCredit[0] += MessageFrameCodec.readVarInt(buffer, offset, length);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+
+        byte[] bytes = mOutputStream.toByteArray();
+        decoder.decode(bytes, 0, bytes.length);
+        return grantedCredit[0];
+    }
+
+    private static byte[] compress(int length) {
+        FrameCompressor frameCompressor = new FrameCompressor(1, FrameCompressor.DEFAULT_COMPRESSION_LEVEL);
+        byte[] compressedPayload = frameCompressor.compress(createCompressiblePayload(length));
+        frameCompressor.dispose();
+        return compressedPayload;
+    }
+
+    private static byte[] createCompressiblePayload(int length) {
+        byte[] payload = new byte[length];
+
+        for (int i = 0; i < length; ++i) {
+            payload[i] = (byte) ('a' + (i / 7) % 10);
+        }
+
+        return payload;
+    }
+}
@@ -0,0 +1,165 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.bluetooth.BluetoothSocket;
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ByteBufferPoolTest {
+    private static final int SLAB_SIZE_IN_BYTES = 16;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSlabSizeIsRejected() {
+        new ByteBufferPool(0, 1);
+    }
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        ByteBufferPool byteBufferPool = new ByteBufferPool(SLAB_SIZE_IN_BYTES, 1);
+        PooledByteBuffer buffer = byteBufferPool.acquire();
+        buffer.getByteBuffer().put((byte) 1).flip();
+
+        assertTrue(buffer.isPooled());
+        assertEquals(1, buffer.getReferenceCount());
+        assertEquals(1, byteBufferPool.getInUseCount());
+        assertEquals(0, byteBufferPool.getAvailableCount());
+
+        buffer.release();
+        assertEquals(0, byteBufferPool.getInUseCount());
+        assertEquals(1, byteBufferPool.getAvailableCount());
+
+        PooledByteBuffer reusedBuffer = byteBufferPool.acquire();
+        assertSame(buffer, reusedBuffer);
+        assertEquals(0, reusedBuffer.getByteBuffer().position());
+        assertEquals(SLAB_SIZE_IN_BYTES, reusedBuffer.size());
+        assertEquals(0, byteBufferPool.getExhaustedCount());
+    }
+
+    @Test
+    public void testExhaustedPoolAllocatesTemporaryBuffer() {
+        ByteBufferPool byteBufferPool = new ByteBufferPool(SLAB_SIZE_IN_BYTES, 1);
+        PooledByteBuffer pooledBuffer = byteBufferPool.acquire();
+        PooledByteBuffer temporaryBuffer = byteBufferPool.acquire();
+
+        assertFalse(temporaryBuffer.isPooled());
+        assertEquals(SLAB_SIZE_IN_BYTES, temporaryBuffer.capacity());
+        assertEquals(1, byteBufferPool.getExhaustedCount());
+        assertEquals(2, byteBufferPool.getPeakInUseCount());
+
+        temporaryBuffer.release();
+        pooledBuffer.release();
+
+        // The temporary buffer is discarded
+        assertEquals(1, byteBufferPool.getAvailableCount());
+        assertEquals(0, byteBufferPool.getInUseCount());
+        assertEquals(2, byteBufferPool.getAcquireCount());
+    }
+
+    @Test
+    public void testBufferIsReturnedWhenLastReferenceIsReleased() {
+        ByteBufferPool byteBufferPool = new ByteBufferPool(SLAB_SIZE_IN_BYTES, 1);
+        PooledByteBuffer buffer = byteBufferPool.acquire();
+        assertSame(buffer, buffer.retain());
+        assertEquals(2, buffer.getReferenceCount());
+
+        buffer.release();
+        assertEquals(0, byteBufferPool.getAvailableCount());
+
+        buffer.release();
+        assertEquals(1, byteBufferPool.getAvailableCount());
+    }
+
+    @Test
+    public void testReleasedBufferCannotBeRetainedOrReleasedAgain() {
+        ByteBufferPool byteBufferPool = new ByteBufferPool(SLAB_SIZE_IN_BYTES, 1);
+        PooledByteBuffer buffer = byteBufferPool.acquire();
+        buffer.release();
+
+        try {
+            buffer.release();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        try {
+            buffer.retain();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // The failed release did not return the buffer twice
+        assertEquals(0, buffer.getReferenceCount());
+        assertEquals(1, byteBufferPool.getAvailableCount());
+        assertEquals(0, byteBufferPool.getInUseCount());
+    }
+
+    @Test
+    public void testLeakDetectionTracksOutstandingBuffers() {
+        ByteBufferPool byteBufferPool = new ByteBufferPool(SLAB_SIZE_IN_BYTES, 2);
+        byteBufferPool.setLeakDetectionEnabled(true);
+        PooledByteBuffer releasedBuffer = byteBufferPool.acquire();
+        byteBufferPool.acquire(); // Never released
+        releasedBuffer.release();
+
+        assertEquals(1, byteBufferPool.getOutstandingBufferTraces().size());
+        assertEquals(1, byteBufferPool.reportLeaks());
+
+        byteBufferPool.setLeakDetectionEnabled(false);
+        assertTrue(byteBufferPool.getOutstandingBufferTraces().isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void testSocketIoThreadReadsIntoPooledBuffers() throws Exception {
+        final byte[] data = new byte[SLAB_SIZE_IN_BYTES + SLAB_SIZE_IN_BYTES / 2];
+
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        when(bluetoothSocket.getInputStream()).thenReturn(new ByteArrayInputStream(data));
+        when(bluetoothSocket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+
+        final ByteBufferPool byteBufferPool = new ByteBufferPool(SLAB_SIZE_IN_BYTES, 1);
+        final ByteArrayOutputStream bytesRead = new ByteArrayOutputStream();
+        final List<Boolean> isPooled = new ArrayList<>();
+
+        BluetoothSocketIoThread bluetoothSocketIoThread = new BluetoothSocketIoThread(
+                bluetoothSocket, mock(BluetoothSocketIoThread.Listener.class));
+        bluetoothSocketIoThread.setBufferPool(byteBufferPool, new BluetoothSocketIoThread.BufferListener() {
+            @Override
+            public void onBufferRead(PooledByteBuffer buffer, BluetoothSocketIoThread who) {
+                bytesRead.write(buffer.array(), 0, buffer.size());
+                isPooled.add(buffer.isPooled());
+                buffer.release();
+            }
+        });
+
+        bluetoothSocketIoThread.start();
+        bluetoothSocketIoThread.join();
+
+        // Each read lands in a slab, which is returned to the pool once released by the listener
+        assertArrayEquals(data, bytesRead.toByteArray());
+        assertEquals(2, isPooled.size());
+        assertTrue(isPooled.get(0) && isPooled.get(1));
+        assertEquals(0, byteBufferPool.getInUseCount());
+        assertEquals(0, byteBufferPool.getExhaustedCount());
+        assertEquals(1, byteBufferPool.getAvailableCount());
+    }
+}
@@ -0,0 +1,121 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.bluetooth.BluetoothSocket;
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ConnectionMetricsTest {
+    @Test
+    public void testReadsAndWritesAreRecorded() {
+        ConnectionMetrics connectionMetrics = new ConnectionMetrics();
+        connectionMetrics.onBytesRead(100);
+        connectionMetrics.onBytesRead(300);
+        connectionMetrics.onBytesWritten(50, 2000000);
+
+        ConnectionMetrics.Snapshot snapshot = connectionMetrics.getSnapshot();
+        assertEquals(400, snapshot.getNumberOfBytesRead());
+        assertEquals(2, snapshot.getNumberOfReads());
+        assertEquals(50, snapshot.getNumberOfBytesWritten());
+        assertEquals(1, snapshot.getNumberOfWrites());
+        assertTrue(snapshot.getLastReadTime() >= snapshot.getCreatedTime());
+        assertEquals(Math.max(snapshot.getLastReadTime(), snapshot.getLastWriteTime()), snapshot.getLastActivityTime());
+
+        assertEquals(2, snapshot.getReadSizeHistogram().getCount());
+        assertEquals(100, snapshot.getReadSizeHistogram().getMin());
+        assertEquals(300, snapshot.getReadSizeHistogram().getMax());
+
+        // The write durations are recorded in microseconds
+        assertEquals(2000, snapshot.getWriteDurationHistogram().getMax());
+    }
+
+    @Test
+    public void testConnectionsAreAggregated() {
+        ConnectionMetrics.Snapshot aggregateBefore = ConnectionMetrics.getAggregate().getSnapshot();
+        ConnectionMetrics connectionMetrics = new ConnectionMetrics();
+        connectionMetrics.onBytesRead(10);
+        connectionMetrics.onBytesWritten(20, 0);
+        ConnectionMetrics.Snapshot aggregateAfter = ConnectionMetrics.getAggregate().getSnapshot();
+
+        assertEquals(1, connectionMetrics.getSnapshot().getNumberOfConnections());
+        assertTrue(aggregateAfter.getNumberOfConnections() >= aggregateBefore.getNumberOfConnections() + 1);
+        assertTrue(aggregateAfter.getNumberOfBytesRead() >= aggregateBefore.getNumberOfBytesRead() + 10);
+        assertTrue(aggregateAfter.getNumberOfBytesWritten() >= aggregateBefore.getNumberOfBytesWritten() + 20);
+    }
+
+    @Test
+    public void testConnectionIsClosedOnlyOnce() {
+        ConnectionMetrics connectionMetrics = new ConnectionMetrics();
+        assertEquals(1, connectionMetrics.getSnapshot().getNumberOfOpenConnections());
+
+        connectionMetrics.onClosed();
+        connectionMetrics.onClosed();
+
+        assertEquals(0, connectionMetrics.getSnapshot().getNumberOfOpenConnections());
+        assertEquals(1, connectionMetrics.getSnapshot().getNumberOfConnections());
+    }
+
+    @Test
+    public void testThroughputSinceEarlierSnapshot() throws Exception {
+        ConnectionMetrics connectionMetrics = new ConnectionMetrics();
+        ConnectionMetrics.Snapshot earlierSnapshot = connectionMetrics.getSnapshot();
+        Thread.sleep(50);
+        connectionMetrics.onBytesRead(1000);
+        connectionMetrics.onBytesWritten(1000, 0);
+        ConnectionMetrics.Snapshot laterSnapshot = connectionMetrics.getSnapshot();
+
+        long elapsedTimeInMilliseconds = laterSnapshot.getSnapshotTime() - earlierSnapshot.getSnapshotTime();
+        assertEquals(2000 * 1000d / elapsedTimeInMilliseconds, laterSnapshot.getThroughputSince(earlierSnapshot), 0.001);
+        assertEquals(0d, earlierSnapshot.getThroughputSince(earlierSnapshot), 0d);
+    }
+
+    @Test
+    public void testHistogramBucketsAndPercentiles() {
+        Histogram histogram = new Histogram();
+        histogram.record(-1); // Recorded as zero
+        histogram.record(1);
+
+        for (int i = 0; i < 98; ++i) {
+            histogram.record(100); // Bucket [64, 127]
+        }
+
+        Histogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(100, snapshot.getMax());
+        assertEquals(1, snapshot.getBucketCount(0));
+        assertEquals(1, snapshot.getBucketCount(1));
+        assertEquals(98, snapshot.getBucketCount(7));
+        assertEquals(127, Histogram.getBucketUpperBound(7));
+
+        assertEquals(0, snapshot.getPercentile(1));
+        assertEquals(1, snapshot.getPercentile(2));
+        assertEquals(100, snapshot.getPercentile(50)); // Limited by the largest value
+        assertEquals(0, new Histogram().getSnapshot().getPercentile(50));
+    }
+
+    @Test(timeout = 10000)
+    public void testSocketIoThreadRecordsReadsAndClose() throws Exception {
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        when(bluetoothSocket.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[100]));
+        when(bluetoothSocket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        BluetoothSocketIoThread bluetoothSocketIoThread =
+                new BluetoothSocketIoThread(bluetoothSocket, mock(BluetoothSocketIoThread.Listener.class));
+
+        bluetoothSocketIoThread.start();
+        bluetoothSocketIoThread.join();
+        bluetoothSocketIoThread.close(true, true);
+
+        ConnectionMetrics.Snapshot snapshot = bluetoothSocketIoThread.getConnectionMetrics().getSnapshot();
+        assertEquals(100, snapshot.getNumberOfBytesRead());
+        assertEquals(0, snapshot.getNumberOfOpenConnections());
+    }
+}
@@ -0,0 +1,128 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Test;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlowControllerTest {
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWindowSize() {
+        new FlowController(0);
+    }
+
+    @Test
+    public void testSenderWaitsForInitialGrant() throws InterruptedException {
+        final FlowController flowController = new FlowController(1000);
+        SenderThread senderThread = new SenderThread(flowController, 100);
+        senderThread.start();
+
+        assertFalse(senderThread.mIsDone.await(200, TimeUnit.MILLISECONDS));
+        flowController.onSendCreditGranted(1000);
+        assertTrue(senderThread.mIsDone.await(5, TimeUnit.SECONDS));
+        assertTrue(senderThread.mWasAcquired.get());
+        assertEquals(900, flowController.getSendCredit());
+        assertEquals(1, flowController.getNumberOfStalls());
+    }
+
+    @Test
+    public void testSenderWaitsUntilCreditIsReturned() throws InterruptedException {
+        FlowController flowController = new FlowController(1000);
+        flowController.onSendCreditGranted(1000);
+        assertTrue(flowController.acquireSendCredit(600));
+
+        SenderThread senderThread = new SenderThread(flowController, 600);
+        senderThread.start();
+
+        assertFalse(senderThread.mIsDone.await(200, TimeUnit.MILLISECONDS));
+        flowController.onSendCreditGranted(200);
+        assertTrue(senderThread.mIsDone.await(5, TimeUnit.SECONDS));
+        assertEquals(0, flowController.getSendCredit());
+    }
+
+    @Test
+    public void testMessageLargerThanWindowNeedsFullWindow() throws InterruptedException {
+        FlowController flowController = new FlowController(1000);
+        flowController.onSendCreditGranted(1000);
+        assertTrue(flowController.acquireSendCredit(2500));
+        assertEquals(-1500, flowController.getSendCredit());
+
+        SenderThread senderThread = new SenderThread(flowController, 2500);
+        senderThread.start();
+
+        flowController.onSendCreditGranted(2499);
+        assertFalse(senderThread.mIsDone.await(200, TimeUnit.MILLISECONDS));
+        flowController.onSendCreditGranted(1);
+        assertTrue(senderThread.mIsDone.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCloseWakesUpSenders() throws InterruptedException {
+        FlowController flowController = new FlowController(1000);
+        SenderThread senderThread = new SenderThread(flowController, 100);
+        senderThread.start();
+
+        flowController.close();
+        assertTrue(senderThread.mIsDone.await(5, TimeUnit.SECONDS));
+        assertFalse(senderThread.mWasAcquired.get());
+        assertFalse(flowController.acquireSendCredit(1));
+    }
+
+    @Test
+    public void testGrantsAreBatched() {
+        FlowController flowController = new FlowController(1000);
+        assertEquals(1000, flowController.getInitialGrant());
+
+        flowController.onBytesReceived(600);
+        assertEquals(600, flowController.getUnconsumedBytes());
+        assertEquals(0, flowController.onBytesConsumed(100));
+        assertEquals(0, flowController.onBytesConsumed(149));
+        assertEquals(250, flowController.onBytesConsumed(1)); // A quarter of the window
+        assertEquals(350, flowController.getUnconsumedBytes());
+
+        // Cannot consume more than was received
+        assertEquals(350, flowController.onBytesConsumed(10000));
+        assertEquals(0, flowController.getUnconsumedBytes());
+        assertEquals(0, flowController.onBytesConsumed(1));
+        assertEquals(600, flowController.getPeakUnconsumedBytes());
+    }
+
+    @Test
+    public void testInvalidGrantIsIgnored() {
+        FlowController flowController = new FlowController(1000);
+        flowController.onSendCreditGranted(-1);
+        flowController.onSendCreditGranted(0);
+        assertEquals(0, flowController.getSendCredit());
+    }
+
+    private static class SenderThread extends Thread {
+        private final FlowController mFlowController;
+        private final int mNumberOfBytes;
+        private final CountDownLatch mIsDone = new CountDownLatch(1);
+        private final AtomicBoolean mWasAcquired = new AtomicBoolean(false);
+
+        private SenderThread(FlowController flowController, int numberOfBytes) {
+            mFlowController = flowController;
+            mNumberOfBytes = numberOfBytes;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                mWasAcquired.set(mFlowController.acquireSendCredit(mNumberOfBytes));
+            } catch (InterruptedException e) {
+                // The test fails on the latch
+            }
+
+            mIsDone.countDown();
+        }
+    }
+}
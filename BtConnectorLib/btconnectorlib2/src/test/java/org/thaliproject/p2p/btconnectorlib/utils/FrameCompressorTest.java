@@ -0,0 +1,148 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.After;
+import org.junit.Test;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameCompressorTest {
+    private final FrameCompressor mFrameCompressor = new FrameCompressor();
+
+    @After
+    public void tearDown() {
+        mFrameCompressor.dispose();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] payload = createCompressiblePayload(10000);
+        byte[] compressedPayload = mFrameCompressor.compress(payload);
+        assertNotNull(compressedPayload);
+        assertTrue(compressedPayload.length < payload.length);
+
+        // Decompress from the middle of a larger array as the reader does
+        byte[] frame = new byte[compressedPayload.length + 10];
+        System.arraycopy(compressedPayload, 0, frame, 5, compressedPayload.length);
+        byte[] decompressed = mFrameCompressor.decompress(frame, 5, compressedPayload.length, payload.length);
+        assertEquals(payload.length, mFrameCompressor.getLastDecompressedLength());
+        assertArrayEquals(payload, Arrays.copyOf(decompressed, mFrameCompressor.getLastDecompressedLength()));
+
+        FrameCompressor.Statistics statistics = mFrameCompressor.getStatistics();
+        assertEquals(1, statistics.getNumberOfFramesCompressed());
+        assertEquals(1, statistics.getNumberOfFramesDecompressed());
+        assertEquals(payload.length, statistics.getNumberOfBytesBeforeCompression());
+        assertEquals(compressedPayload.length, statistics.getNumberOfBytesAfterCompression());
+    }
+
+    @Test
+    public void testPayloadBelowThresholdIsNotCompressed() {
+        assertNull(mFrameCompressor.compress(new byte[FrameCompressor.DEFAULT_THRESHOLD_IN_BYTES - 1]));
+        assertEquals(1, mFrameCompressor.getStatistics().getNumberOfFramesNotCompressed());
+    }
+
+    @Test
+    public void testIncompressiblePayloadIsNotCompressed() {
+        byte[] payload = new byte[4096];
+        new Random(payload.length).nextBytes(payload);
+        assertNull(mFrameCompressor.compress(payload));
+        assertEquals(1, mFrameCompressor.getStatistics().getNumberOfFramesNotCompressed());
+    }
+
+    @Test
+    public void testBufferIsReusedAcrossSizes() throws IOException {
+        int[] lengths = { 100000, 300, 5000, 100000 };
+
+        for (int length : lengths) {
+            byte[] payload = createCompressiblePayload(length);
+            byte[] compressedPayload = mFrameCompressor.compress(payload);
+            byte[] decompressed = mFrameCompressor.decompress(
+                    compressedPayload, 0, compressedPayload.length, length);
+            assertArrayEquals(payload, Arrays.copyOf(decompressed, mFrameCompressor.getLastDecompressedLength()));
+        }
+    }
+
+    @Test
+    public void testTinyPayloadsWithMinimumThreshold() throws IOException {
+        FrameCompressor frameCompressor = new FrameCompressor(1, FrameCompressor.DEFAULT_COMPRESSION_LEVEL);
+
+        for (int length = 1; length <= 300; ++length) {
+            byte[] payload = new byte[length];
+            byte[] compressedPayload = frameCompressor.compress(payload);
+
+            if (compressedPayload != null) {
+                assertTrue(compressedPayload.length < length);
+                byte[] decompressed = frameCompressor.decompress(
+                        compressedPayload, 0, compressedPayload.length, length);
+                assertArrayEquals(payload, Arrays.copyOf(decompressed, frameCompressor.getLastDecompressedLength()));
+            }
+        }
+
+        frameCompressor.dispose();
+    }
+
+    @Test
+    public void testLargeBuffersAreNotRetained() throws IOException {
+        int largeLength = FrameCompressor.MAX_RETAINED_BUFFER_SIZE_IN_BYTES * 4;
+        byte[] compressedPayload = mFrameCompressor.compress(createCompressiblePayload(largeLength));
+        byte[] largeBuffer = mFrameCompressor.decompress(compressedPayload, 0, compressedPayload.length, largeLength);
+        assertTrue(largeBuffer.length >= largeLength);
+
+        compressedPayload = mFrameCompressor.compress(createCompressiblePayload(1000));
+        byte[] smallBuffer = mFrameCompressor.decompress(compressedPayload, 0, compressedPayload.length, 1000);
+        assertTrue(smallBuffer.length <= FrameCompressor.MAX_RETAINED_BUFFER_SIZE_IN_BYTES);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecompressedLengthAboveMaximumIsRejected() throws IOException {
+        byte[] compressedPayload = mFrameCompressor.compress(createCompressiblePayload(10000));
+        mFrameCompressor.decompress(compressedPayload, 0, compressedPayload.length, 9999);
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptDataIsRejected() throws IOException {
+        byte[] compressedPayload = mFrameCompressor.compress(createCompressiblePayload(10000));
+        Arrays.fill(compressedPayload, 3, compressedPayload.length, (byte) 0xff);
+        mFrameCompressor.decompress(compressedPayload, 0, compressedPayload.length, 10000);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedDataIsRejected() throws IOException {
+        byte[] compressedPayload = mFrameCompressor.compress(createCompressiblePayload(10000));
+        mFrameCompressor.decompress(compressedPayload, 0, compressedPayload.length / 2, 10000);
+    }
+
+    @Test
+    public void testDisposedOf() {
+        byte[] compressedPayload = mFrameCompressor.compress(createCompressiblePayload(10000));
+        mFrameCompressor.dispose();
+        assertNull(mFrameCompressor.compress(createCompressiblePayload(10000)));
+
+        try {
+            mFrameCompressor.decompress(compressedPayload, 0, compressedPayload.length, 10000);
+            fail("Decompressing after dispose() should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /* Package */ static byte[] createCompressiblePayload(int length) {
+        byte[] payload = new byte[length];
+
+        for (int i = 0; i < length; ++i) {
+            payload[i] = (byte) ('a' + (i / 7) % 10);
+        }
+
+        return payload;
+    }
+}
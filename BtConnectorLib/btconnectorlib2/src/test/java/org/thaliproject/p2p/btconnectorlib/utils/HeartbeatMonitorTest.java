@@ -0,0 +1,106 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.After;
+import org.junit.Test;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class HeartbeatMonitorTest {
+    private static final long INTERVAL_IN_MILLISECONDS = 50;
+    private final BlockingQueue<byte[]> mPingRequests = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Integer> mUnresponsiveEvents = new LinkedBlockingQueue<>();
+    private volatile String mUnresponsiveThreadName = null;
+    private final HeartbeatMonitor mHeartbeatMonitor = new HeartbeatMonitor(new HeartbeatMonitor.Listener() {
+        @Override
+        public void onSendPingRequested(byte[] payload) {
+            mPingRequests.add(payload);
+        }
+
+        @Override
+        public void onPeerUnresponsive(int numberOfMissedHeartbeats) {
+            mUnresponsiveThreadName = Thread.currentThread().getName();
+            mUnresponsiveEvents.add(numberOfMissedHeartbeats);
+        }
+    }, INTERVAL_IN_MILLISECONDS, 2);
+
+    @After
+    public void tearDown() {
+        mHeartbeatMonitor.stop();
+    }
+
+    @Test
+    public void testPingNeverWrittenIsMissed() throws InterruptedException {
+        mHeartbeatMonitor.start();
+        assertNotNull(mPingRequests.poll(5, TimeUnit.SECONDS));
+
+        // The writer is blocked: the peer must still be detected as unresponsive
+        assertEquals(2, (int) mUnresponsiveEvents.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, mHeartbeatMonitor.getNumberOfPingsSent());
+    }
+
+    @Test
+    public void testWrittenPingWithoutReplyIsMissed() throws InterruptedException {
+        mHeartbeatMonitor.start();
+        byte[] payload = mPingRequests.poll(5, TimeUnit.SECONDS);
+        assertNotNull(payload);
+        mHeartbeatMonitor.onPingSent(payload);
+
+        assertEquals(2, (int) mUnresponsiveEvents.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testUnresponsivePeerIsNotReportedOnSchedulerThread() throws InterruptedException {
+        mHeartbeatMonitor.start();
+        assertNotNull(mPingRequests.poll(5, TimeUnit.SECONDS));
+        assertNotNull(mUnresponsiveEvents.poll(5, TimeUnit.SECONDS));
+
+        assertTrue(mUnresponsiveThreadName, mUnresponsiveThreadName.startsWith(
+                IoExecutor.Category.CLEANUP.getThreadNamePrefix()));
+    }
+
+    @Test
+    public void testFailedPingIsRequestedAgain() throws InterruptedException {
+        mHeartbeatMonitor.start();
+        byte[] payload = mPingRequests.poll(5, TimeUnit.SECONDS);
+        assertNotNull(payload);
+        mHeartbeatMonitor.onPingFailed(payload);
+
+        assertNotNull(mPingRequests.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, mHeartbeatMonitor.getNumberOfPingsSent());
+    }
+
+    @Test
+    public void testPongIsMeasuredFromWriteTime() throws InterruptedException {
+        mHeartbeatMonitor.start();
+        byte[] payload = mPingRequests.poll(5, TimeUnit.SECONDS);
+        assertNotNull(payload);
+
+        // Sits in the write queue for a while before being written
+        Thread.sleep(200);
+        mHeartbeatMonitor.onPingSent(payload);
+        mHeartbeatMonitor.onPongReceived(payload, 0, payload.length);
+
+        assertEquals(1, mHeartbeatMonitor.getNumberOfPongsReceived());
+        assertTrue("RTT " + mHeartbeatMonitor.getLatestRoundTripTime(),
+                mHeartbeatMonitor.getLatestRoundTripTime() < 100);
+        assertEquals(0, mHeartbeatMonitor.getNumberOfMissedHeartbeats());
+    }
+
+    @Test
+    public void testUnexpectedPongIsIgnored() throws InterruptedException {
+        mHeartbeatMonitor.start();
+        byte[] payload = mPingRequests.poll(5, TimeUnit.SECONDS);
+        assertNotNull(payload);
+        mHeartbeatMonitor.onPongReceived(new byte[payload.length], 0, payload.length);
+        mHeartbeatMonitor.onPongReceived(payload, 0, payload.length - 1);
+        assertEquals(0, mHeartbeatMonitor.getNumberOfPongsReceived());
+    }
+}
@@ -0,0 +1,143 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.After;
+import org.junit.Test;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IoExecutorTest {
+    private final IoExecutor mIoExecutor = new IoExecutor();
+    private final CountDownLatch mReleaseTasksLatch = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        mReleaseTasksLatch.countDown();
+        mIoExecutor.shutdown();
+    }
+
+    @Test
+    public void testNewThreadUsesCategorySettings() {
+        mIoExecutor.setPriority(IoExecutor.Category.SOCKET_IO, Thread.MAX_PRIORITY + 1);
+        Thread thread = mIoExecutor.newThread(IoExecutor.Category.SOCKET_IO, createBlockingTask());
+
+        assertEquals(IoExecutor.Category.SOCKET_IO.getThreadNamePrefix() + "-1", thread.getName());
+        assertSame(mIoExecutor.getThreadGroup(IoExecutor.Category.SOCKET_IO), thread.getThreadGroup());
+        assertEquals(Thread.MAX_PRIORITY, mIoExecutor.getPriority(IoExecutor.Category.SOCKET_IO)); // Clamped
+        assertEquals(Thread.MAX_PRIORITY, thread.getPriority());
+        assertEquals(1, mIoExecutor.getNumberOfThreadsCreated(IoExecutor.Category.SOCKET_IO));
+        assertEquals(0, mIoExecutor.getNumberOfThreadsCreated(IoExecutor.Category.CONNECT));
+    }
+
+    @Test(timeout = 10000)
+    public void testCapacityIsLimitedByLiveThreads() throws Exception {
+        mIoExecutor.setMaxNumberOfThreads(IoExecutor.Category.CONNECT, 1);
+        assertTrue(mIoExecutor.hasCapacity(IoExecutor.Category.CONNECT));
+
+        Thread thread = mIoExecutor.newThread(IoExecutor.Category.CONNECT, createBlockingTask());
+        thread.start();
+
+        assertEquals(1, mIoExecutor.getNumberOfLiveThreads(IoExecutor.Category.CONNECT));
+        assertFalse(mIoExecutor.hasCapacity(IoExecutor.Category.CONNECT));
+        assertTrue(mIoExecutor.hasCapacity(IoExecutor.Category.HANDSHAKE)); // No limit
+
+        mReleaseTasksLatch.countDown();
+        thread.join();
+        assertTrue(mIoExecutor.hasCapacity(IoExecutor.Category.CONNECT));
+    }
+
+    @Test(timeout = 10000)
+    public void testExecuteRunsTasksInBoundedPool() throws Exception {
+        final int numberOfTasks = IoExecutor.DEFAULT_MAX_NUMBER_OF_CLEANUP_THREADS * 3;
+        final AtomicInteger numberOfRunningTasks = new AtomicInteger(0);
+        final AtomicInteger maxNumberOfRunningTasks = new AtomicInteger(0);
+        final CountDownLatch completedLatch = new CountDownLatch(numberOfTasks);
+        final BlockingQueue<String> threadNames = new LinkedBlockingQueue<>();
+
+        for (int i = 0; i < numberOfTasks; ++i) {
+            assertTrue(mIoExecutor.execute(IoExecutor.Category.CLEANUP, new Runnable() {
+                @Override
+                public void run() {
+                    int running = numberOfRunningTasks.incrementAndGet();
+
+                    while (running > maxNumberOfRunningTasks.get()) {
+                        maxNumberOfRunningTasks.compareAndSet(maxNumberOfRunningTasks.get(), running);
+                    }
+
+                    threadNames.add(Thread.currentThread().getName());
+
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    numberOfRunningTasks.decrementAndGet();
+                    completedLatch.countDown();
+                }
+            }));
+        }
+
+        assertTrue(completedLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(IoExecutor.DEFAULT_MAX_NUMBER_OF_CLEANUP_THREADS, maxNumberOfRunningTasks.get());
+        assertEquals(IoExecutor.DEFAULT_MAX_NUMBER_OF_CLEANUP_THREADS,
+                mIoExecutor.getNumberOfThreadsCreated(IoExecutor.Category.CLEANUP));
+
+        for (String threadName : threadNames) {
+            assertTrue(threadName.startsWith(IoExecutor.Category.CLEANUP.getThreadNamePrefix()));
+        }
+    }
+
+    @Test
+    public void testExecuteIsRejectedAfterShutdown() {
+        assertTrue(mIoExecutor.execute(IoExecutor.Category.CLEANUP, createBlockingTask()));
+        mIoExecutor.shutdown();
+        assertFalse(mIoExecutor.execute(IoExecutor.Category.CLEANUP, createBlockingTask()));
+    }
+
+    @Test(timeout = 10000)
+    public void testSchedulerRunsOnTimerThread() throws Exception {
+        final BlockingQueue<String> threadNames = new LinkedBlockingQueue<>();
+
+        mIoExecutor.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                threadNames.add(Thread.currentThread().getName());
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+
+        String threadName = threadNames.poll(5, TimeUnit.SECONDS);
+        assertNotNull(threadName);
+        assertTrue(threadName.startsWith(IoExecutor.Category.TIMER.getThreadNamePrefix()));
+        assertSame(mIoExecutor.getScheduler(), mIoExecutor.getScheduler());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testDefaultInstanceCannotBeNull() {
+        IoExecutor.setDefault(null);
+    }
+
+    private Runnable createBlockingTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mReleaseTasksLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,149 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MessageFrameCodecTest {
+    private static final int[] VARINT_BOUNDARIES = {
+            0, 1, 127, 128, 16383, 16384, 2097151, 2097152, 268435455, 268435456, Integer.MAX_VALUE
+    };
+    private static final int[] VARINT_BOUNDARY_LENGTHS = { 1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5 };
+
+    @Test
+    public void testVarIntLengthAtBoundaries() {
+        for (int i = 0; i < VARINT_BOUNDARIES.length; ++i) {
+            assertEquals("Length of " + VARINT_BOUNDARIES[i],
+                    VARINT_BOUNDARY_LENGTHS[i], MessageFrameCodec.getVarIntLength(VARINT_BOUNDARIES[i]));
+        }
+    }
+
+    @Test
+    public void testVarIntRoundTripAtBoundaries() throws IOException {
+        byte[] buffer = new byte[MessageFrameCodec.MAX_VARINT_LENGTH_IN_BYTES + 2];
+
+        for (int value : VARINT_BOUNDARIES) {
+            int end = MessageFrameCodec.writeVarInt(value, buffer, 1);
+            assertEquals(1 + MessageFrameCodec.getVarIntLength(value), end);
+            assertEquals(value, MessageFrameCodec.readVarInt(buffer, 1, end - 1));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedVarIntIsRejected() throws IOException {
+        byte[] buffer = new byte[MessageFrameCodec.MAX_VARINT_LENGTH_IN_BYTES];
+        int end = MessageFrameCodec.writeVarInt(16384, buffer, 0);
+        MessageFrameCodec.readVarInt(buffer, 0, end - 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void testOverlongVarIntIsRejected() throws IOException {
+        byte[] buffer = new byte[MessageFrameCodec.MAX_VARINT_LENGTH_IN_BYTES + 1];
+        Arrays.fill(buffer, (byte) 0x80);
+        MessageFrameCodec.readVarInt(buffer, 0, buffer.length);
+    }
+
+    @Test
+    public void testRoundTripOverPipedStreams() throws Exception {
+        final PipedInputStream inputStream = new PipedInputStream(1024);
+        final PipedOutputStream outputStream = new PipedOutputStream(inputStream);
+        final byte[][] payloads = createPayloads();
+        final IOException[] writeException = new IOException[1];
+
+        Thread writerThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < payloads.length; ++i) {
+                        MessageFrameCodec.writeFrame(
+                                outputStream, (byte) i, payloads[i], 0, payloads[i].length);
+                    }
+
+                    outputStream.close();
+                } catch (IOException e) {
+                    writeException[0] = e;
+                }
+            }
+        };
+
+        writerThread.start();
+
+        for (int i = 0; i < payloads.length; ++i) {
+            MessageFrameCodec.Frame frame =
+                    MessageFrameCodec.readFrame(inputStream, MessageFrameCodec.DEFAULT_MAX_PAYLOAD_LENGTH_IN_BYTES);
+            assertEquals(i, frame.getType());
+            assertArrayEquals("Payload " + i, payloads[i], frame.getPayload());
+        }
+
+        writerThread.join(10000);
+        assertEquals(null, writeException[0]);
+
+        try {
+            MessageFrameCodec.readFrame(inputStream, MessageFrameCodec.DEFAULT_MAX_PAYLOAD_LENGTH_IN_BYTES);
+            fail("Expected the end of the stream");
+        } catch (EOFException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testFrameWithOffsetPayload() throws IOException {
+        byte[] bytes = { 9, 9, 1, 2, 3, 9 };
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        MessageFrameCodec.writeFrame(outputStream, MessageFrameCodec.TYPE_DATA, bytes, 2, 3);
+
+        assertArrayEquals(MessageFrameCodec.encodeFrame(MessageFrameCodec.TYPE_DATA, new byte[] { 1, 2, 3 }),
+                outputStream.toByteArray());
+        assertEquals(MessageFrameCodec.getFrameLength(3), outputStream.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testOversizedFrameIsRejected() throws IOException {
+        byte[] frame = MessageFrameCodec.encodeFrame(MessageFrameCodec.TYPE_DATA, new byte[1025]);
+        MessageFrameCodec.readFrame(new ByteArrayInputStream(frame), 1024);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNegativeFrameLengthIsRejected() throws IOException {
+        byte[] header = new byte[MessageFrameCodec.MAX_HEADER_LENGTH_IN_BYTES];
+        int headerLength = MessageFrameCodec.writeVarInt(-1, header, 0);
+        header[headerLength] = MessageFrameCodec.TYPE_DATA;
+        MessageFrameCodec.readFrame(new ByteArrayInputStream(header), Integer.MAX_VALUE);
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncatedFrameIsRejected() throws IOException {
+        byte[] frame = MessageFrameCodec.encodeFrame(MessageFrameCodec.TYPE_DATA, new byte[100]);
+        MessageFrameCodec.readFrame(new ByteArrayInputStream(frame, 0, frame.length - 1), 1024);
+    }
+
+    /**
+     * @return Payloads of various sizes including the empty one and the ones at the varint
+     * boundaries of the length.
+     */
+    /* Package */ static byte[][] createPayloads() {
+        int[] lengths = { 0, 1, 127, 128, 1000, 16383, 16384, 70000 };
+        byte[][] payloads = new byte[lengths.length][];
+        Random random = new Random(lengths.length);
+
+        for (int i = 0; i < lengths.length; ++i) {
+            payloads[i] = new byte[lengths[i]];
+            random.nextBytes(payloads[i]);
+        }
+
+        return payloads;
+    }
+}
@@ -0,0 +1,129 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageFrameDecoderTest {
+    private final List<Byte> mTypes = new ArrayList<>();
+    private final List<byte[]> mPayloads = new ArrayList<>();
+    private MessageFrameDecoder mDecoder;
+
+    @Before
+    public void setUp() {
+        mDecoder = new MessageFrameDecoder(new MessageFrameDecoder.Listener() {
+            @Override
+            public void onFrameDecoded(byte type, byte[] buffer, int offset, int length) {
+                mTypes.add(type);
+                mPayloads.add(Arrays.copyOfRange(buffer, offset, offset + length));
+            }
+        });
+    }
+
+    @Test
+    public void testWholeStreamInOneCall() throws IOException {
+        byte[][] payloads = MessageFrameCodecTest.createPayloads();
+        byte[] stream = encodeFrames(payloads);
+        mDecoder.decode(stream, 0, stream.length);
+        assertFrames(payloads);
+    }
+
+    @Test
+    public void testOneByteAtATime() throws IOException {
+        byte[][] payloads = MessageFrameCodecTest.createPayloads();
+        byte[] stream = encodeFrames(payloads);
+
+        for (int i = 0; i < stream.length; ++i) {
+            mDecoder.decode(stream, i, 1);
+        }
+
+        assertFrames(payloads);
+    }
+
+    @Test
+    public void testRandomSplits() throws IOException {
+        byte[][] payloads = MessageFrameCodecTest.createPayloads();
+        byte[] stream = encodeFrames(payloads);
+        Random random = new Random(stream.length);
+        int position = 0;
+
+        while (position < stream.length) {
+            int length = Math.min(1 + random.nextInt(3000), stream.length - position);
+
+            // Feed a copy, since the decoder must not rely on the array staying intact
+            byte[] chunk = Arrays.copyOfRange(stream, position, position + length);
+            mDecoder.decode(chunk, 0, length);
+            Arrays.fill(chunk, (byte) 0);
+            position += length;
+        }
+
+        assertFrames(payloads);
+    }
+
+    @Test
+    public void testPartialFrame() throws IOException {
+        byte[] frame = MessageFrameCodec.encodeFrame(MessageFrameCodec.TYPE_DATA, new byte[] { 1, 2, 3 });
+        mDecoder.decode(frame, 0, frame.length - 1);
+        assertTrue(mDecoder.hasPartialFrame());
+        assertEquals(0, mPayloads.size());
+
+        mDecoder.decode(frame, frame.length - 1, 1);
+        assertFalse(mDecoder.hasPartialFrame());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, mPayloads.get(0));
+
+        mDecoder.decode(frame, 0, 1);
+        assertTrue(mDecoder.hasPartialFrame());
+        mDecoder.reset();
+        assertFalse(mDecoder.hasPartialFrame());
+    }
+
+    @Test(expected = IOException.class)
+    public void testOversizedFrameIsRejected() throws IOException {
+        mDecoder.setMaxPayloadLength(1024);
+        byte[] frame = MessageFrameCodec.encodeFrame(MessageFrameCodec.TYPE_DATA, new byte[1025]);
+
+        // The header alone must be enough to reject the frame
+        mDecoder.decode(frame, 0, MessageFrameCodec.getVarIntLength(1025) + 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidHeaderIsRejected() throws IOException {
+        byte[] header = new byte[MessageFrameCodec.MAX_HEADER_LENGTH_IN_BYTES];
+        Arrays.fill(header, (byte) 0xff);
+        mDecoder.decode(header, 0, header.length);
+    }
+
+    private void assertFrames(byte[][] payloads) {
+        assertEquals(payloads.length, mPayloads.size());
+
+        for (int i = 0; i < payloads.length; ++i) {
+            assertEquals(i, (int) mTypes.get(i));
+            assertArrayEquals("Payload " + i, payloads[i], mPayloads.get(i));
+        }
+
+        assertFalse(mDecoder.hasPartialFrame());
+    }
+
+    private static byte[] encodeFrames(byte[][] payloads) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        for (int i = 0; i < payloads.length; ++i) {
+            MessageFrameCodec.writeFrame(outputStream, (byte) i, payloads[i], 0, payloads[i].length);
+        }
+
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,384 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.After;
+import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class SocketWriterThreadTest {
+    private static final int WINDOW_SIZE_IN_BYTES = 100;
+    private static final int CHUNK_SIZE_IN_BYTES = 32;
+    private static final int BATCH_SIZE_IN_BYTES = 100;
+    private static final long MAX_BATCH_DELAY_IN_MILLISECONDS = 200;
+    private final CountDownLatch mFirstWriteLatch = new CountDownLatch(1);
+    private final ByteArrayOutputStream mOutputStream = new ByteArrayOutputStream() {
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int length) {
+            try {
+                // Hold the first fragment until the high priority writes are queued
+                mFirstWriteLatch.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            super.write(buffer, offset, length);
+        }
+    };
+
+    private SocketWriterThread mSocketWriterThread;
+
+    @After
+    public void tearDown() {
+        if (mSocketWriterThread != null) {
+            mSocketWriterThread.shutdown();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testHighPriorityWritesDoNotDeadlockFragmentedMessage() throws Exception {
+        FlowController flowController = new FlowController(WINDOW_SIZE_IN_BYTES);
+        flowController.onSendCreditGranted(WINDOW_SIZE_IN_BYTES);
+        mSocketWriterThread = new SocketWriterThread(mOutputStream, mock(SocketWriterThread.Listener.class),
+                0, SocketWriterThread.QueueFullPolicy.BLOCK);
+        mSocketWriterThread.setChunking(CHUNK_SIZE_IN_BYTES);
+        mSocketWriterThread.setFlowController(flowController);
+        mSocketWriterThread.start();
+
+        // Larger than the window, the peer returns the credit only after the whole message
+        PendingWrite largeWrite = mSocketWriterThread.enqueue(new PendingWrite(
+                new byte[WINDOW_SIZE_IN_BYTES * 10], true, MessageFrameCodec.TYPE_DATA, false, null));
+        waitForQueueToDrain();
+
+        // The ping is queued behind a high priority message waiting for credit, but has a lane
+        // of its own
+        PendingWrite highPriorityWrite = mSocketWriterThread.enqueue(new PendingWrite(
+                new byte[10], true, MessageFrameCodec.TYPE_DATA, true, PendingWrite.Priority.HIGH, null));
+        PendingWrite pingWrite = mSocketWriterThread.enqueue(new PendingWrite(
+                new byte[8], true, MessageFrameCodec.TYPE_PING, true, PendingWrite.Priority.HIGH, null));
+        mFirstWriteLatch.countDown();
+
+        assertTrue(largeWrite.await(5000));
+        assertTrue(largeWrite.isSuccessful());
+        assertTrue(pingWrite.await(5000));
+        assertTrue(pingWrite.isSuccessful());
+        assertEquals(1, mSocketWriterThread.getNumberOfInterleavedWrites());
+
+        // The data message waits for the credit of the fragmented message
+        assertFalse(highPriorityWrite.isDone());
+        flowController.onSendCreditGranted(WINDOW_SIZE_IN_BYTES * 10);
+        assertTrue(highPriorityWrite.await(5000));
+        assertTrue(highPriorityWrite.isSuccessful());
+
+        // The ping is written between the fragments and the data message after the last one
+        List<Byte> types = decodeFrameTypes(mOutputStream.toByteArray());
+        int pingIndex = types.indexOf(MessageFrameCodec.TYPE_PING);
+        assertTrue(pingIndex > 0 && pingIndex < types.size() - 2);
+        assertEquals(MessageFrameCodec.TYPE_DATA, (byte) types.get(types.size() - 1));
+    }
+
+    @Test(timeout = 30000)
+    public void testCreditIsWrittenWhileWaitingForCredit() throws Exception {
+        mFirstWriteLatch.countDown();
+        FlowController flowController = new FlowController(WINDOW_SIZE_IN_BYTES);
+        mSocketWriterThread = new SocketWriterThread(mOutputStream, mock(SocketWriterThread.Listener.class),
+                0, SocketWriterThread.QueueFullPolicy.BLOCK);
+        mSocketWriterThread.setFlowController(flowController);
+        mSocketWriterThread.start();
+
+        // No credit has been granted by the peer
+        PendingWrite dataWrite = mSocketWriterThread.enqueue(new PendingWrite(
+                new byte[10], true, MessageFrameCodec.TYPE_DATA, false, null));
+        waitForQueueToDrain();
+
+        // The peer may be waiting for this credit before granting any to us
+        byte[] creditPayload = new byte[MessageFrameCodec.getVarIntLength(WINDOW_SIZE_IN_BYTES)];
+        MessageFrameCodec.writeVarInt(WINDOW_SIZE_IN_BYTES, creditPayload, 0);
+        PendingWrite creditWrite = mSocketWriterThread.enqueue(new PendingWrite(
+                creditPayload, true, MessageFrameCodec.TYPE_CREDIT, true, PendingWrite.Priority.HIGH, null));
+
+        assertTrue(creditWrite.await(5000));
+        assertTrue(creditWrite.isSuccessful());
+        assertFalse(dataWrite.isDone());
+
+        flowController.onSendCreditGranted(WINDOW_SIZE_IN_BYTES);
+        assertTrue(dataWrite.await(5000));
+        assertTrue(dataWrite.isSuccessful());
+
+        List<Byte> types = decodeFrameTypes(mOutputStream.toByteArray());
+        assertEquals(2, types.size());
+        assertEquals(MessageFrameCodec.TYPE_CREDIT, (byte) types.get(0));
+        assertEquals(MessageFrameCodec.TYPE_DATA, (byte) types.get(1));
+    }
+
+    @Test(timeout = 30000)
+    public void testWritesAreWrittenInOrderAndCompleted() throws Exception {
+        mFirstWriteLatch.countDown();
+        SocketWriterThread.Listener listener = mock(SocketWriterThread.Listener.class);
+        final BlockingQueue<PendingWrite> completedWrites = new LinkedBlockingQueue<>();
+        PendingWrite.Listener completionListener = new PendingWrite.Listener() {
+            @Override
+            public void onWriteCompleted(PendingWrite pendingWrite) {
+                completedWrites.add(pendingWrite);
+            }
+        };
+
+        mSocketWriterThread = new SocketWriterThread(mOutputStream, listener, 0, SocketWriterThread.QueueFullPolicy.BLOCK);
+        mSocketWriterThread.start();
+
+        PendingWrite firstWrite = mSocketWriterThread.enqueue(
+                new PendingWrite(new byte[] { 1, 2 }, false, (byte) 0, false, completionListener));
+        PendingWrite secondWrite = mSocketWriterThread.enqueue(
+                new PendingWrite(new byte[] { 3 }, false, (byte) 0, false, completionListener));
+
+        assertSame(firstWrite, completedWrites.poll(5, TimeUnit.SECONDS));
+        assertSame(secondWrite, completedWrites.poll(5, TimeUnit.SECONDS));
+        assertEquals(PendingWrite.State.SUCCEEDED, firstWrite.getState());
+        assertEquals(2, firstWrite.getNumberOfBytesWritten());
+        assertEquals(1, secondWrite.getNumberOfBytesWritten());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, mOutputStream.toByteArray());
+        verify(listener, timeout(5000)).onWriteSucceeded(firstWrite, mSocketWriterThread);
+        verify(listener, timeout(5000)).onWriteSucceeded(secondWrite, mSocketWriterThread);
+    }
+
+    @Test(timeout = 30000)
+    public void testWriteFailsFastWhenQueueIsFull() throws Exception {
+        mSocketWriterThread = new SocketWriterThread(mOutputStream, mock(SocketWriterThread.Listener.class),
+                1, SocketWriterThread.QueueFullPolicy.FAIL_FAST);
+        mSocketWriterThread.start();
+
+        PendingWrite writeInProgress = mSocketWriterThread.enqueue(createRawWrite(1));
+        waitForQueueToDrain(); // Held by the output stream
+        PendingWrite queuedWrite = mSocketWriterThread.enqueue(createRawWrite(2));
+        PendingWrite rejectedWrite = mSocketWriterThread.enqueue(createRawWrite(3));
+
+        assertTrue(rejectedWrite.isDone());
+        assertEquals(PendingWrite.State.FAILED, rejectedWrite.getState());
+        assertEquals("Write queue full", rejectedWrite.getFailureReason());
+
+        mFirstWriteLatch.countDown();
+        assertTrue(writeInProgress.await(5000) && writeInProgress.isSuccessful());
+        assertTrue(queuedWrite.await(5000) && queuedWrite.isSuccessful());
+        assertArrayEquals(new byte[] { 1, 2 }, mOutputStream.toByteArray());
+    }
+
+    @Test(timeout = 30000)
+    public void testOldestQueuedWriteIsDroppedWhenQueueIsFull() throws Exception {
+        mSocketWriterThread = new SocketWriterThread(mOutputStream, mock(SocketWriterThread.Listener.class),
+                1, SocketWriterThread.QueueFullPolicy.DROP_OLDEST);
+        mSocketWriterThread.start();
+
+        PendingWrite writeInProgress = mSocketWriterThread.enqueue(createRawWrite(1));
+        waitForQueueToDrain(); // Held by the output stream
+        PendingWrite droppedWrite = mSocketWriterThread.enqueue(createRawWrite(2));
+        PendingWrite newestWrite = mSocketWriterThread.enqueue(createRawWrite(3));
+
+        assertEquals(PendingWrite.State.FAILED, droppedWrite.getState());
+        assertEquals("Dropped due to full write queue", droppedWrite.getFailureReason());
+
+        mFirstWriteLatch.countDown();
+        assertTrue(writeInProgress.await(5000) && writeInProgress.isSuccessful());
+        assertTrue(newestWrite.await(5000) && newestWrite.isSuccessful());
+        assertArrayEquals(new byte[] { 1, 3 }, mOutputStream.toByteArray());
+    }
+
+    @Test(timeout = 30000)
+    public void testEnqueueBlocksUntilQueueHasSpace() throws Exception {
+        mSocketWriterThread = new SocketWriterThread(mOutputStream, mock(SocketWriterThread.Listener.class),
+                1, SocketWriterThread.QueueFullPolicy.BLOCK);
+        mSocketWriterThread.start();
+
+        mSocketWriterThread.enqueue(createRawWrite(1));
+        waitForQueueToDrain(); // Held by the output stream
+        mSocketWriterThread.enqueue(createRawWrite(2));
+
+        final BlockingQueue<PendingWrite> enqueuedWrites = new LinkedBlockingQueue<>();
+        Thread enqueuingThread = new Thread() {
+            @Override
+            public void run() {
+                enqueuedWrites.add(mSocketWriterThread.enqueue(createRawWrite(3)));
+            }
+        };
+
+        enqueuingThread.start();
+        assertNull(enqueuedWrites.poll(100, TimeUnit.MILLISECONDS));
+
+        mFirstWriteLatch.countDown();
+        PendingWrite blockedWrite = enqueuedWrites.poll(5, TimeUnit.SECONDS);
+        assertTrue(blockedWrite.await(5000) && blockedWrite.isSuccessful());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, mOutputStream.toByteArray());
+    }
+
+    @Test(timeout = 30000)
+    public void testQueuedWritesFailOnShutdown() throws Exception {
+        mSocketWriterThread = new SocketWriterThread(mOutputStream, mock(SocketWriterThread.Listener.class),
+                0, SocketWriterThread.QueueFullPolicy.BLOCK);
+        mSocketWriterThread.start();
+
+        mSocketWriterThread.enqueue(createRawWrite(1));
+        waitForQueueToDrain(); // Held by the output stream
+        PendingWrite queuedWrite = mSocketWriterThread.enqueue(createRawWrite(2));
+        mSocketWriterThread.shutdown();
+
+        assertTrue(queuedWrite.await(5000));
+        assertEquals("Writer shut down", queuedWrite.getFailureReason());
+
+        PendingWrite lateWrite = mSocketWriterThread.enqueue(createRawWrite(3));
+        assertTrue(lateWrite.isDone());
+        assertEquals("Writer shut down", lateWrite.getFailureReason());
+        mFirstWriteLatch.countDown();
+    }
+
+    @Test(timeout = 30000)
+    public void testWriteFailureFailsQueuedWritesAndNotifiesListener() throws Exception {
+        SocketWriterThread.Listener listener = mock(SocketWriterThread.Listener.class);
+        mSocketWriterThread = new SocketWriterThread(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        }, listener, 0, SocketWriterThread.QueueFullPolicy.BLOCK);
+        mSocketWriterThread.start();
+
+        PendingWrite failedWrite = mSocketWriterThread.enqueue(createRawWrite(1));
+
+        assertTrue(failedWrite.await(5000));
+        assertEquals("Failed to write to output stream: Broken pipe", failedWrite.getFailureReason());
+        verify(listener, timeout(5000)).onWriterFailed(anyString(), eq(mSocketWriterThread));
+
+        // No further writes are made
+        PendingWrite lateWrite = mSocketWriterThread.enqueue(createRawWrite(2));
+        assertTrue(lateWrite.isDone());
+        assertFalse(lateWrite.isSuccessful());
+    }
+
+    @Test(timeout = 30000)
+    public void testSmallWritesAreCoalescedUntilMaxDelay() throws Exception {
+        mSocketWriterThread = new SocketWriterThread(mOutputStream, mock(SocketWriterThread.Listener.class),
+                0, SocketWriterThread.QueueFullPolicy.BLOCK);
+        mSocketWriterThread.setCoalescing(BATCH_SIZE_IN_BYTES, MAX_BATCH_DELAY_IN_MILLISECONDS);
+        mSocketWriterThread.start();
+        PendingWrite lastWrite = null;
+
+        for (int i = 0; i < 10; ++i) {
+            lastWrite = mSocketWriterThread.enqueue(createRawWrite(i));
+        }
+
+        mFirstWriteLatch.countDown();
+        assertTrue(lastWrite.await(5000) && lastWrite.isSuccessful());
+
+        SocketWriterThread.CoalescingStatistics statistics = mSocketWriterThread.getCoalescingStatistics();
+        assertEquals(1, statistics.getNumberOfBatches());
+        assertEquals(10, statistics.getNumberOfWrites());
+        assertEquals(10, statistics.getNumberOfBytes());
+        assertEquals(1, statistics.getFlushCount(SocketWriterThread.FlushReason.MAX_DELAY));
+        assertArrayEquals(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 }, mOutputStream.toByteArray());
+    }
+
+    @Test(timeout = 30000)
+    public void testWriteAskingForImmediateFlushFlushesBatch() throws Exception {
+        mFirstWriteLatch.countDown();
+        mSocketWriterThread = new SocketWriterThread(mOutputStream, mock(SocketWriterThread.Listener.class),
+                0, SocketWriterThread.QueueFullPolicy.BLOCK);
+        mSocketWriterThread.setCoalescing(BATCH_SIZE_IN_BYTES, TimeUnit.SECONDS.toMillis(10));
+        mSocketWriterThread.start();
+
+        mSocketWriterThread.enqueue(createRawWrite(1));
+        PendingWrite urgentWrite = mSocketWriterThread.enqueue(
+                new PendingWrite(new byte[] { 2 }, false, (byte) 0, true, null));
+
+        // Written long before the maximum delay
+        assertTrue(urgentWrite.await(5000) && urgentWrite.isSuccessful());
+
+        SocketWriterThread.CoalescingStatistics statistics = mSocketWriterThread.getCoalescingStatistics();
+        assertEquals(1, statistics.getNumberOfBatches());
+        assertEquals(2, statistics.getNumberOfWrites());
+        assertEquals(1, statistics.getFlushCount(SocketWriterThread.FlushReason.IMMEDIATE));
+        assertArrayEquals(new byte[] { 1, 2 }, mOutputStream.toByteArray());
+    }
+
+    @Test(timeout = 30000)
+    public void testBatchIsFlushedWhenFull() throws Exception {
+        mSocketWriterThread = new SocketWriterThread(mOutputStream, mock(SocketWriterThread.Listener.class),
+                0, SocketWriterThread.QueueFullPolicy.BLOCK);
+        mSocketWriterThread.setCoalescing(BATCH_SIZE_IN_BYTES, MAX_BATCH_DELAY_IN_MILLISECONDS);
+        mSocketWriterThread.start();
+        int writeSizeInBytes = BATCH_SIZE_IN_BYTES * 2 / 5;
+
+        mSocketWriterThread.enqueue(new PendingWrite(new byte[writeSizeInBytes], false, (byte) 0, false, null));
+        mSocketWriterThread.enqueue(new PendingWrite(new byte[writeSizeInBytes], false, (byte) 0, false, null));
+        PendingWrite carriedOverWrite = mSocketWriterThread.enqueue(
+                new PendingWrite(new byte[writeSizeInBytes], false, (byte) 0, false, null));
+
+        mFirstWriteLatch.countDown();
+        assertTrue(carriedOverWrite.await(5000) && carriedOverWrite.isSuccessful());
+
+        // The third write did not fit and started the next batch
+        SocketWriterThread.CoalescingStatistics statistics = mSocketWriterThread.getCoalescingStatistics();
+        assertEquals(2, statistics.getNumberOfBatches());
+        assertEquals(1, statistics.getFlushCount(SocketWriterThread.FlushReason.BATCH_FULL));
+        assertEquals(1, statistics.getFlushCount(SocketWriterThread.FlushReason.MAX_DELAY));
+        assertEquals(writeSizeInBytes * 2, statistics.getLargestBatchInBytes());
+        assertEquals(writeSizeInBytes * 3, mOutputStream.size());
+    }
+
+    @Test(timeout = 30000)
+    public void testLargeWriteIsNotCoalesced() throws Exception {
+        mFirstWriteLatch.countDown();
+        mSocketWriterThread = new SocketWriterThread(mOutputStream, mock(SocketWriterThread.Listener.class),
+                0, SocketWriterThread.QueueFullPolicy.BLOCK);
+        mSocketWriterThread.setCoalescing(BATCH_SIZE_IN_BYTES, TimeUnit.SECONDS.toMillis(10));
+        mSocketWriterThread.start();
+
+        PendingWrite largeWrite = mSocketWriterThread.enqueue(
+                new PendingWrite(new byte[BATCH_SIZE_IN_BYTES], false, (byte) 0, false, null));
+
+        assertTrue(largeWrite.await(5000) && largeWrite.isSuccessful());
+        assertEquals(1, mSocketWriterThread.getCoalescingStatistics().getFlushCount(
+                SocketWriterThread.FlushReason.LARGE_WRITE));
+    }
+
+    private static PendingWrite createRawWrite(int value) {
+        return new PendingWrite(new byte[] { (byte) value }, false, (byte) 0, false, null);
+    }
+
+    private void waitForQueueToDrain() throws InterruptedException {
+        for (int i = 0; i < 500 && mSocketWriterThread.getQueueSize() > 0; ++i) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static List<Byte> decodeFrameTypes(byte[] bytes) throws IOException {
+        final List<Byte> types = new ArrayList<>();
+
+        new MessageFrameDecoder(new MessageFrameDecoder.Listener() {
+            @Override
+            public void onFrameDecoded(byte type, byte[] buffer, int offset, int length) {
+                types.add(type);
+            }
+        }).decode(bytes, 0, bytes.length);
+
+        return types;
+    }
+}
@@ -0,0 +1,121 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpscByteRingTest {
+    @Test
+    public void testCapacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(2, new SpscByteRing(0, SpscByteRing.OverflowPolicy.BLOCK).getCapacity());
+        assertEquals(1024, new SpscByteRing(1024, SpscByteRing.OverflowPolicy.BLOCK).getCapacity());
+        assertEquals(2048, new SpscByteRing(1025, SpscByteRing.OverflowPolicy.BLOCK).getCapacity());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullPolicy() {
+        new SpscByteRing(1024, null);
+    }
+
+    @Test
+    public void testWrapAround() throws InterruptedException {
+        SpscByteRing ring = new SpscByteRing(8, SpscByteRing.OverflowPolicy.FAIL);
+        byte[] destination = new byte[8];
+
+        for (int i = 0; i < 10; ++i) {
+            byte[] bytes = { (byte) i, (byte) (i + 1), (byte) (i + 2), (byte) (i + 3), (byte) (i + 4) };
+            assertTrue(ring.put(bytes, 0, bytes.length));
+            assertEquals(5, ring.getSize());
+            assertEquals(5, ring.poll(destination, 0, destination.length));
+            assertArrayEquals(bytes, Arrays.copyOf(destination, 5));
+        }
+
+        assertEquals(0, ring.poll(destination, 0, destination.length));
+    }
+
+    @Test
+    public void testFailPolicy() throws InterruptedException {
+        SpscByteRing ring = new SpscByteRing(8, SpscByteRing.OverflowPolicy.FAIL);
+        assertTrue(ring.put(new byte[6], 0, 6));
+        assertFalse(ring.put(new byte[3], 0, 3));
+        assertEquals(6, ring.getSize());
+    }
+
+    @Test
+    public void testDropPolicy() throws InterruptedException {
+        SpscByteRing ring = new SpscByteRing(8, SpscByteRing.OverflowPolicy.DROP);
+        assertTrue(ring.put(new byte[] { 1, 2, 3, 4, 5, 6 }, 0, 6));
+        assertTrue(ring.put(new byte[] { 7, 8, 9, 10 }, 0, 4));
+        assertEquals(8, ring.getSize());
+        assertEquals(2, ring.getNumberOfDroppedBytes());
+        assertEquals(8, ring.getHighWaterMark());
+
+        byte[] destination = new byte[8];
+        assertEquals(8, ring.poll(destination, 0, destination.length));
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, destination);
+    }
+
+    @Test
+    public void testCloseLetsConsumerDrain() throws InterruptedException {
+        SpscByteRing ring = new SpscByteRing(8, SpscByteRing.OverflowPolicy.BLOCK);
+        ring.put(new byte[] { 1, 2, 3 }, 0, 3);
+        ring.close();
+
+        assertTrue(ring.isClosed());
+        byte[] destination = new byte[8];
+        assertEquals(3, ring.take(destination, 0, destination.length));
+        assertEquals(-1, ring.take(destination, 0, destination.length));
+        assertFalse(ring.put(new byte[] { 4 }, 0, 1));
+    }
+
+    @Test(timeout = 30000)
+    public void testProducerAndConsumerThreads() throws Exception {
+        final SpscByteRing ring = new SpscByteRing(64, SpscByteRing.OverflowPolicy.BLOCK);
+        final byte[] data = new byte[100000];
+        new Random(data.length).nextBytes(data);
+        final Exception[] producerException = new Exception[1];
+
+        Thread producerThread = new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random(1);
+                int position = 0;
+
+                try {
+                    while (position < data.length) {
+                        int length = Math.min(1 + random.nextInt(100), data.length - position);
+                        ring.put(data, position, length);
+                        position += length;
+                    }
+                } catch (Exception e) {
+                    producerException[0] = e;
+                }
+
+                ring.close();
+            }
+        };
+
+        producerThread.start();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] destination = new byte[37];
+        int numberOfBytesTaken;
+
+        while ((numberOfBytesTaken = ring.take(destination, 0, destination.length)) >= 0) {
+            received.write(destination, 0, numberOfBytesTaken);
+        }
+
+        producerThread.join();
+        assertEquals(null, producerException[0]);
+        assertArrayEquals(data, received.toByteArray());
+        assertTrue(ring.getHighWaterMark() <= ring.getCapacity());
+    }
+}
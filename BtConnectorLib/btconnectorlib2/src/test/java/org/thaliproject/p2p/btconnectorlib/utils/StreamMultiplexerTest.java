@@ -0,0 +1,179 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyByte;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class StreamMultiplexerTest {
+    private final BlockingQueue<byte[]> mWrittenFrames = new LinkedBlockingQueue<>(); // [type][payload]
+    private final List<String> mEvents = new ArrayList<>();
+    private BluetoothSocketIoThread mBluetoothSocketIoThread;
+    private StreamMultiplexer mStreamMultiplexer;
+
+    private final StreamMultiplexer.Listener mListener = new StreamMultiplexer.Listener() {
+        @Override
+        public void onStreamOpened(StreamMultiplexer.Stream stream) {
+            mEvents.add("opened " + stream.getId());
+        }
+
+        @Override
+        public void onStreamData(StreamMultiplexer.Stream stream, byte[] buffer, int offset, int length) {
+            mEvents.add("data " + stream.getId() + " " + Arrays.toString(Arrays.copyOfRange(buffer, offset, offset + length)));
+        }
+
+        @Override
+        public void onStreamClosed(StreamMultiplexer.Stream stream) {
+            mEvents.add("closed " + stream.getId());
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mBluetoothSocketIoThread = mock(BluetoothSocketIoThread.class);
+
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                byte type = (Byte) invocation.getArguments()[0];
+                byte[] payload = (byte[]) invocation.getArguments()[1];
+                byte[] frame = new byte[payload.length + 1];
+                frame[0] = type;
+                System.arraycopy(payload, 0, frame, 1, payload.length);
+                mWrittenFrames.add(frame);
+                return true;
+            }
+        }).when(mBluetoothSocketIoThread).writeMessage(anyByte(), any(byte[].class));
+    }
+
+    @After
+    public void tearDown() {
+        if (mStreamMultiplexer != null) {
+            mStreamMultiplexer.shutdown();
+        }
+    }
+
+    @Test
+    public void testStreamIdParity() {
+        mStreamMultiplexer = new StreamMultiplexer(mBluetoothSocketIoThread, true, mListener);
+        assertEquals(1, mStreamMultiplexer.openStream().getId());
+        assertEquals(3, mStreamMultiplexer.openStream().getId());
+
+        StreamMultiplexer other = new StreamMultiplexer(mBluetoothSocketIoThread, false, mListener);
+        assertEquals(2, other.openStream().getId());
+        assertEquals(4, other.openStream().getId());
+        other.shutdown();
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        mStreamMultiplexer = new StreamMultiplexer(mBluetoothSocketIoThread, true, mListener);
+        mStreamMultiplexer.setMaxChunkSize(2);
+        StreamMultiplexer.Stream first = mStreamMultiplexer.openStream();
+        StreamMultiplexer.Stream second = mStreamMultiplexer.openStream();
+        assertTrue(first.write(new byte[] { 1, 2, 3, 4 }));
+        assertTrue(second.write(new byte[] { 5, 6, 7 }));
+        mStreamMultiplexer.start();
+
+        assertFrame(MessageFrameCodec.TYPE_STREAM_OPEN, 1);
+        assertFrame(MessageFrameCodec.TYPE_STREAM_OPEN, 3);
+        assertFrame(MessageFrameCodec.TYPE_STREAM_DATA, 1, 1, 2);
+        assertFrame(MessageFrameCodec.TYPE_STREAM_DATA, 3, 5, 6);
+        assertFrame(MessageFrameCodec.TYPE_STREAM_DATA, 1, 3, 4);
+        assertFrame(MessageFrameCodec.TYPE_STREAM_DATA, 3, 7);
+        assertEquals(0, first.getNumberOfBufferedBytes());
+
+        // The close frame follows the data written before closing
+        assertTrue(first.write(new byte[] { 8 }));
+        first.close();
+        assertTrue(first.isClosed());
+        assertFalse(first.write(new byte[] { 9 }));
+        assertFrame(MessageFrameCodec.TYPE_STREAM_DATA, 1, 8);
+        assertFrame(MessageFrameCodec.TYPE_STREAM_CLOSE, 1);
+    }
+
+    @Test
+    public void testIncomingFrames() throws Exception {
+        mStreamMultiplexer = new StreamMultiplexer(mBluetoothSocketIoThread, true, mListener);
+        mStreamMultiplexer.start();
+
+        deliver(MessageFrameCodec.TYPE_STREAM_OPEN, 2);
+        deliver(MessageFrameCodec.TYPE_STREAM_OPEN, 2); // Duplicate, ignored
+        deliver(MessageFrameCodec.TYPE_STREAM_DATA, 2, 10, 11);
+        deliver(MessageFrameCodec.TYPE_STREAM_DATA, 4, 12); // Unknown stream, ignored
+        assertEquals(1, mStreamMultiplexer.getNumberOfStreams());
+
+        deliver(MessageFrameCodec.TYPE_STREAM_CLOSE, 2);
+        assertEquals(0, mStreamMultiplexer.getNumberOfStreams());
+        assertEquals(Arrays.asList("opened 2", "data 2 [10, 11]", "closed 2"), mEvents);
+
+        // The close is acknowledged
+        assertFrame(MessageFrameCodec.TYPE_STREAM_CLOSE, 2);
+    }
+
+    @Test
+    public void testInvalidStreamIdIsIgnored() {
+        mStreamMultiplexer = new StreamMultiplexer(mBluetoothSocketIoThread, true, mListener);
+        mStreamMultiplexer.onMessage(MessageFrameCodec.TYPE_STREAM_OPEN, new byte[] { (byte) 0x80 }, 0, 1,
+                mBluetoothSocketIoThread);
+        assertEquals(0, mStreamMultiplexer.getNumberOfStreams());
+        assertTrue(mEvents.isEmpty());
+    }
+
+    @Test
+    public void testShutdownClosesStreams() {
+        mStreamMultiplexer = new StreamMultiplexer(mBluetoothSocketIoThread, true, mListener);
+        StreamMultiplexer.Stream stream = mStreamMultiplexer.openStream();
+        mStreamMultiplexer.shutdown();
+
+        assertTrue(stream.isClosed());
+        assertFalse(stream.write(new byte[] { 1 }));
+        assertNull(mStreamMultiplexer.openStream());
+        assertEquals(Arrays.asList("closed 1"), mEvents);
+    }
+
+    private void deliver(byte type, int streamId, int... data) throws IOException {
+        byte[] payload = createPayload(streamId, data);
+        mStreamMultiplexer.onMessage(type, payload, 0, payload.length, mBluetoothSocketIoThread);
+    }
+
+    private void assertFrame(byte type, int streamId, int... data) throws InterruptedException {
+        byte[] frame = mWrittenFrames.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Timed out waiting for a frame", frame);
+        assertEquals(type, frame[0]);
+        assertArrayEquals(createPayload(streamId, data), Arrays.copyOfRange(frame, 1, frame.length));
+    }
+
+    private static byte[] createPayload(int streamId, int... data) {
+        byte[] payload = new byte[MessageFrameCodec.getVarIntLength(streamId) + data.length];
+        int offset = MessageFrameCodec.writeVarInt(streamId, payload, 0);
+
+        for (int value : data) {
+            payload[offset++] = (byte) value;
+        }
+
+        return payload;
+    }
+}
@@ -0,0 +1,101 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Test;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+    @Test
+    public void testUnlimitedNeverWaits() throws InterruptedException {
+        TokenBucket tokenBucket = new TokenBucket(TokenBucket.UNLIMITED, 0);
+
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(tokenBucket.acquire(1024 * 1024));
+        }
+
+        assertEquals(0, tokenBucket.getNumberOfStalls());
+    }
+
+    @Test
+    public void testBurstSizeHasMinimum() {
+        TokenBucket tokenBucket = new TokenBucket(1000, 1);
+        assertEquals(TokenBucket.MIN_BURST_SIZE_IN_BYTES, tokenBucket.getBurstSize());
+    }
+
+    @Test
+    public void testRateIsKept() throws InterruptedException {
+        TokenBucket tokenBucket = new TokenBucket(10000, 1024);
+        assertTrue(tokenBucket.acquire(1024)); // The initial burst
+
+        long startTime = System.nanoTime();
+        assertTrue(tokenBucket.acquire(2000));
+        long elapsedTimeInMilliseconds = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+        // The write larger than the burst waits for a full bucket only
+        assertTrue("Elapsed " + elapsedTimeInMilliseconds, elapsedTimeInMilliseconds >= 90);
+        assertTrue(tokenBucket.getNumberOfTokens() < 0);
+        assertEquals(1, tokenBucket.getNumberOfStalls());
+    }
+
+    @Test
+    public void testCloseWakesUpSenders() throws InterruptedException {
+        final TokenBucket tokenBucket = new TokenBucket(1, 1024);
+        assertTrue(tokenBucket.acquire(1024));
+        final CountDownLatch isDone = new CountDownLatch(1);
+        final AtomicBoolean wasAcquired = new AtomicBoolean(true);
+
+        Thread senderThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    wasAcquired.set(tokenBucket.acquire(100));
+                } catch (InterruptedException e) {
+                    // The test fails on the latch
+                }
+
+                isDone.countDown();
+            }
+        };
+
+        senderThread.setDaemon(true);
+        senderThread.start();
+        assertFalse(isDone.await(100, TimeUnit.MILLISECONDS));
+        tokenBucket.close();
+        assertTrue(isDone.await(5, TimeUnit.SECONDS));
+        assertFalse(wasAcquired.get());
+    }
+
+    @Test
+    public void testRateChangeWakesUpSenders() throws InterruptedException {
+        final TokenBucket tokenBucket = new TokenBucket(1, 1024);
+        assertTrue(tokenBucket.acquire(1024));
+        final CountDownLatch isDone = new CountDownLatch(1);
+
+        Thread senderThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    tokenBucket.acquire(100);
+                } catch (InterruptedException e) {
+                    // The test fails on the latch
+                }
+
+                isDone.countDown();
+            }
+        };
+
+        senderThread.setDaemon(true);
+        senderThread.start();
+        assertFalse(isDone.await(100, TimeUnit.MILLISECONDS));
+        tokenBucket.setRate(TokenBucket.UNLIMITED, 1024);
+        assertTrue(isDone.await(5, TimeUnit.SECONDS));
+    }
+}
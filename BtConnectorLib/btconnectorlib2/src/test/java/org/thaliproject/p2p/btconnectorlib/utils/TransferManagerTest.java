@@ -0,0 +1,220 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.bluetooth.BluetoothSocket;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyByte;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TransferManagerTest {
+    private static final String TRANSFER_ID = "transfer";
+    private static final long TOTAL_LENGTH = 100;
+
+    @Test
+    public void testTransferOfUnknownPeerIsNotCheckpointed() {
+        BluetoothSocketIoThread bluetoothSocketIoThread = mock(BluetoothSocketIoThread.class);
+        when(bluetoothSocketIoThread.getPeerProperties()).thenReturn(new PeerProperties());
+        TransferManager.CheckpointStore checkpointStore = mock(TransferManager.CheckpointStore.class);
+        TransferManager.Listener listener = createListener();
+        TransferManager transferManager = new TransferManager(bluetoothSocketIoThread, checkpointStore, listener);
+
+        deliverOfferAndData(transferManager, bluetoothSocketIoThread);
+
+        verify(listener).onIncomingTransfer(any(TransferManager.Transfer.class), eq(0L));
+        verify(checkpointStore, never()).getCheckpoint(anyString());
+        verify(checkpointStore, never()).setCheckpoint(anyString(), anyLong());
+    }
+
+    @Test
+    public void testTransferOfKnownPeerIsCheckpointed() {
+        BluetoothSocketIoThread bluetoothSocketIoThread = mock(BluetoothSocketIoThread.class);
+        when(bluetoothSocketIoThread.getPeerProperties()).thenReturn(new PeerProperties("00:11:22:33:44:55"));
+        TransferManager.CheckpointStore checkpointStore = mock(TransferManager.CheckpointStore.class);
+        TransferManager transferManager = new TransferManager(bluetoothSocketIoThread, checkpointStore, createListener());
+
+        deliverOfferAndData(transferManager, bluetoothSocketIoThread);
+
+        verify(checkpointStore).getCheckpoint(anyString());
+    }
+
+    @Test(timeout = 30000)
+    public void testReceiverFailureAbortsSender() throws Exception {
+        BluetoothSocketIoThread senderIoThread = mock(BluetoothSocketIoThread.class);
+        BluetoothSocketIoThread receiverIoThread = mock(BluetoothSocketIoThread.class);
+        when(receiverIoThread.getPeerProperties()).thenReturn(new PeerProperties());
+        TransferManager.Listener senderListener = mock(TransferManager.Listener.class);
+        TransferManager.Listener receiverListener = mock(TransferManager.Listener.class);
+
+        when(receiverListener.onIncomingTransfer(any(TransferManager.Transfer.class), anyLong()))
+                .thenReturn(new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        throw new IOException("Disk full");
+                    }
+                });
+
+        TransferManager sender = new TransferManager(senderIoThread, null, senderListener);
+        TransferManager receiver = new TransferManager(receiverIoThread, null, receiverListener);
+        connect(senderIoThread, receiver, receiverIoThread);
+        connect(receiverIoThread, sender, senderIoThread);
+
+        long startTime = System.currentTimeMillis();
+        sender.send(TRANSFER_ID, new ByteArrayInputStream(new byte[(int) TOTAL_LENGTH]), TOTAL_LENGTH);
+
+        verify(receiverListener, timeout(5000)).onTransferFailed(
+                any(TransferManager.Transfer.class), eq("Failed to write the data: Disk full"));
+        verify(senderListener, timeout(5000)).onTransferFailed(
+                any(TransferManager.Transfer.class), eq("Aborted by the peer: Failed to write the data: Disk full"));
+
+        // The sender did not wait for the response timeout
+        assertTrue(System.currentTimeMillis() - startTime < TransferManager.DEFAULT_RESPONSE_TIMEOUT_IN_MILLISECONDS);
+    }
+
+    @Test(timeout = 30000)
+    public void testSenderFailureAbortsReceiver() throws Exception {
+        BluetoothSocketIoThread senderIoThread = mock(BluetoothSocketIoThread.class);
+        BluetoothSocketIoThread receiverIoThread = mock(BluetoothSocketIoThread.class);
+        when(receiverIoThread.getPeerProperties()).thenReturn(new PeerProperties());
+        TransferManager.Listener senderListener = mock(TransferManager.Listener.class);
+        TransferManager.Listener receiverListener = createListener();
+        TransferManager sender = new TransferManager(senderIoThread, null, senderListener);
+        TransferManager receiver = new TransferManager(receiverIoThread, null, receiverListener);
+        connect(senderIoThread, receiver, receiverIoThread);
+        connect(receiverIoThread, sender, senderIoThread);
+
+        // The stream ends before the announced length
+        sender.send(TRANSFER_ID, new ByteArrayInputStream(new byte[(int) TOTAL_LENGTH / 2]), TOTAL_LENGTH);
+
+        verify(senderListener, timeout(5000)).onTransferFailed(
+                any(TransferManager.Transfer.class), startsWith("Failed to read the data"));
+        verify(receiverListener, timeout(5000)).onTransferFailed(
+                any(TransferManager.Transfer.class), startsWith("Aborted by the peer: Failed to read the data"));
+    }
+
+    @Test
+    public void testClosingSocketIoThreadFailsTransfers() throws Exception {
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        when(bluetoothSocket.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(bluetoothSocket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        BluetoothSocketIoThread bluetoothSocketIoThread =
+                new BluetoothSocketIoThread(bluetoothSocket, mock(BluetoothSocketIoThread.Listener.class));
+
+        OutputStream sink = mock(OutputStream.class);
+        TransferManager.Listener listener = mock(TransferManager.Listener.class);
+        when(listener.onIncomingTransfer(any(TransferManager.Transfer.class), anyLong())).thenReturn(sink);
+        TransferManager transferManager = new TransferManager(bluetoothSocketIoThread, null, listener);
+
+        byte[] offer = createOffer();
+        transferManager.onMessage(MessageFrameCodec.TYPE_TRANSFER_OFFER, offer, 0, offer.length,
+                bluetoothSocketIoThread);
+        bluetoothSocketIoThread.close(true, false);
+
+        verify(listener).onTransferFailed(any(TransferManager.Transfer.class), eq("Closed"));
+        verify(sink).close();
+    }
+
+    @Test
+    public void testPeerIsNotAbortedWhenConnectionEnds() {
+        BluetoothSocketIoThread bluetoothSocketIoThread = mock(BluetoothSocketIoThread.class);
+        when(bluetoothSocketIoThread.getPeerProperties()).thenReturn(new PeerProperties());
+        TransferManager.Listener listener = createListener();
+        TransferManager transferManager = new TransferManager(bluetoothSocketIoThread, null, listener);
+
+        byte[] offer = createOffer();
+        transferManager.onMessage(MessageFrameCodec.TYPE_TRANSFER_OFFER, offer, 0, offer.length,
+                bluetoothSocketIoThread);
+        transferManager.onClosed(bluetoothSocketIoThread);
+
+        verify(listener).onTransferFailed(any(TransferManager.Transfer.class), eq("Closed"));
+        verify(bluetoothSocketIoThread, never()).writeMessageAsync(
+                eq(MessageFrameCodec.TYPE_TRANSFER_ABORT), any(byte[].class), anyBoolean(),
+                any(PendingWrite.Listener.class));
+    }
+
+    @Test
+    public void testPeerIsAbortedWhenClosed() {
+        BluetoothSocketIoThread bluetoothSocketIoThread = mock(BluetoothSocketIoThread.class);
+        when(bluetoothSocketIoThread.getPeerProperties()).thenReturn(new PeerProperties());
+        TransferManager transferManager = new TransferManager(bluetoothSocketIoThread, null, createListener());
+
+        byte[] offer = createOffer();
+        transferManager.onMessage(MessageFrameCodec.TYPE_TRANSFER_OFFER, offer, 0, offer.length,
+                bluetoothSocketIoThread);
+        transferManager.close();
+
+        verify(bluetoothSocketIoThread).writeMessageAsync(
+                eq(MessageFrameCodec.TYPE_TRANSFER_ABORT), any(byte[].class), anyBoolean(),
+                any(PendingWrite.Listener.class));
+        verify(bluetoothSocketIoThread).removeCloseListener(transferManager);
+    }
+
+    /**
+     * Delivers the messages written to the given thread to the given transfer manager.
+     */
+    private static void connect(
+            BluetoothSocketIoThread from, final TransferManager to, final BluetoothSocketIoThread toIoThread) {
+        Answer<Object> answer = new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                byte type = (Byte) invocation.getArguments()[0];
+                byte[] payload = (byte[]) invocation.getArguments()[1];
+                to.onMessage(type, payload, 0, payload.length, toIoThread);
+                return (invocation.getMethod().getReturnType() == boolean.class) ? true : null;
+            }
+        };
+
+        when(from.writeMessage(anyByte(), any(byte[].class))).thenAnswer(answer);
+        doAnswer(answer).when(from).writeMessageAsync(
+                anyByte(), any(byte[].class), anyBoolean(), any(PendingWrite.Listener.class));
+    }
+
+    private static TransferManager.Listener createListener() {
+        TransferManager.Listener listener = mock(TransferManager.Listener.class);
+        when(listener.onIncomingTransfer(any(TransferManager.Transfer.class), anyLong()))
+                .thenReturn(new ByteArrayOutputStream());
+        return listener;
+    }
+
+    private static void deliverOfferAndData(
+            TransferManager transferManager, BluetoothSocketIoThread bluetoothSocketIoThread) {
+        byte[] offer = createOffer();
+        transferManager.onMessage(MessageFrameCodec.TYPE_TRANSFER_OFFER, offer, 0, offer.length,
+                bluetoothSocketIoThread);
+
+        ByteBuffer data = ByteBuffer.allocate(12 + (int) TOTAL_LENGTH);
+        data.putInt(1).putLong(0);
+        transferManager.onMessage(MessageFrameCodec.TYPE_TRANSFER_DATA, data.array(), 0, data.capacity(),
+                bluetoothSocketIoThread);
+    }
+
+    private static byte[] createOffer() {
+        byte[] transferIdBytes = TRANSFER_ID.getBytes(Charset.forName("UTF-8"));
+        ByteBuffer offer = ByteBuffer.allocate(14 + transferIdBytes.length);
+        offer.putInt(1).putLong(TOTAL_LENGTH).putShort((short) transferIdBytes.length).put(transferIdBytes);
+        return offer.array();
+    }
+}
@@ -8,6 +8,7 @@ import android.content.Context;
 import android.util.Log;
 import org.thaliproject.nativetest.app.fragments.LogFragment;
 import org.thaliproject.nativetest.app.test.AbstractTest;
+import org.thaliproject.nativetest.app.test.FileSendBenchmarkTest;
 import org.thaliproject.nativetest.app.test.FindMyBluetoothAddressTest;
 import org.thaliproject.nativetest.app.test.FindPeersTest;
 import org.thaliproject.nativetest.app.test.TestListener;
@@ -38,6 +39,7 @@ public class TestEngine extends ConnectionEngine implements TestListener {
 
         mTests.add(new FindMyBluetoothAddressTest(this, this));
         mTests.add(new FindPeersTest(this, this));
+        mTests.add(new FileSendBenchmarkTest(this, this));
     }
 
     /**
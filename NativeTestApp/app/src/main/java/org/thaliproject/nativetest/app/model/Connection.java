@@ -7,6 +7,7 @@ import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 import org.thaliproject.p2p.btconnectorlib.utils.BluetoothSocketIoThread;
+import org.thaliproject.p2p.btconnectorlib.utils.PendingWrite;
 import java.io.IOException;
 import java.util.Date;
 
@@ -38,6 +39,19 @@ public class Connection implements BluetoothSocketIoThread.Listener {
     private float mCurrentDataTransferSpeedInMegaBytesPerSecond = 0f;
     private boolean mIsClosed = false;
 
+    /**
+     * Logs failed writes. The successful ones are handled in onBytesWritten.
+     */
+    private final PendingWrite.Listener mWriteCompletionListener = new PendingWrite.Listener() {
+        @Override
+        public void onWriteCompleted(PendingWrite pendingWrite) {
+            if (!pendingWrite.isSuccessful()) {
+                Log.e(TAG, "send: Failed to write " + pendingWrite.getBytes().length + " bytes: "
+                        + pendingWrite.getFailureReason());
+            }
+        }
+    };
+
     /**
      * Constructor.
      * @param listener The listener.
@@ -119,8 +133,7 @@ public class Connection implements BluetoothSocketIoThread.Listener {
      * @param bytes The bytes to send.
      */
     public void send(byte[] bytes) {
-        SocketWriterThread thread = new SocketWriterThread();
-        thread.write(bytes);
+        mBluetoothSocketIoThread.writeAsync(bytes, mWriteCompletionListener);
     }
 
     /**
@@ -195,6 +208,7 @@ public class Connection implements BluetoothSocketIoThread.Listener {
             if (dataAmountLeft == 0) {
                 final DataSenderHelper dataSenderHelper = mDataSenderHelper;
                 mDataSenderHelper = null;
+                dataSenderHelper.setEndTime(new Date().getTime());
                 mSendDataProgressInPercentages = 1.0f;
                 mCurrentDataTransferSpeedInMegaBytesPerSecond = 0f;
 
@@ -240,25 +254,6 @@ public class Connection implements BluetoothSocketIoThread.Listener {
         mListener.onDisconnected(reason, this);
     }
 
-    /**
-     * Thread for sending data to a peer using "fire and forget" principle.
-     */
-    private class SocketWriterThread extends Thread {
-        private byte[] mBytesToWrite = null;
-
-        public void write(byte[] bytes) {
-            mBytesToWrite = bytes;
-            this.start();
-        }
-
-        @Override
-        public void run() {
-            if (!mBluetoothSocketIoThread.write(mBytesToWrite)) {
-                Log.e(TAG, "SocketWriterThread: Failed to write " + mBytesToWrite.length + " bytes");
-            }
-        }
-    }
-
     /**
      * Helper for sending large amounts of data in chunks.
      */
@@ -295,21 +290,28 @@ public class Connection implements BluetoothSocketIoThread.Listener {
          */
         public float calculateCurrentTransferSpeed(long currentTime) {
             if (currentTime > mStartTime) {
-                long secondsElapsed = (currentTime - mStartTime) / 1000;
+                double secondsElapsed = (currentTime - mStartTime) / 1000d;
                 double dataSentSoFar = (double)(mDataAmount - mDataAmountLeft);
-                return (float)(dataSentSoFar / (1024 * 1024)) / secondsElapsed;
+                return (float)((dataSentSoFar / (1024 * 1024)) / secondsElapsed);
             }
 
             return 0;
         }
 
+        /**
+         * @param endTime The time the last chunk was written.
+         */
+        public void setEndTime(long endTime) {
+            mEndTime = endTime;
+        }
+
         /**
          * @return The final transfer speed in megabytes.
          */
         public float calculateFinalTransferSpeed() {
-            if (mEndTime != 0) {
-                long secondsElapsed = (mEndTime - mStartTime) / 1000;
-                return (float)mDataAmountInMegaBytes / secondsElapsed;
+            if (mEndTime > mStartTime) {
+                double secondsElapsed = (mEndTime - mStartTime) / 1000d;
+                return (float)(mDataAmountInMegaBytes / secondsElapsed);
             }
 
             return 0;
@@ -326,10 +328,6 @@ public class Connection implements BluetoothSocketIoThread.Listener {
                 mDataChunk = new byte[chunkSize];
                 mDataAmountLeft -= chunkSize;
                 send(mDataChunk);
-
-                if (mDataAmountLeft == 0) {
-                    mEndTime = new Date().getTime();
-                }
             }
         }
     }
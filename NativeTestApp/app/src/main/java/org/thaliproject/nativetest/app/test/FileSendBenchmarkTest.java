@@ -0,0 +1,251 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.nativetest.app.test;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import org.thaliproject.nativetest.app.TestEngine;
+import org.thaliproject.p2p.btconnectorlib.utils.FileSender;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A local benchmark comparing the ways to send a file: reading the file into new byte arrays in
+ * the application code (the way DataSenderHelper does) versus FileSender with and without
+ * read-ahead. A piped stream drained by a separate thread stands in for the socket, so no peers
+ * are needed.
+ */
+public class FileSendBenchmarkTest extends AbstractTest {
+    private static final String TAG = FileSendBenchmarkTest.class.getName();
+    private static final long DEFAULT_TEST_TIMEOUT = 120000;
+    private static final int FILE_SIZE_IN_BYTES = 16 * 1024 * 1024;
+    private static final int CHUNK_SIZE_IN_BYTES = 64 * 1024;
+    private static final int PIPE_SIZE_IN_BYTES = 256 * 1024;
+    private static final int NUMBER_OF_ROUNDS = 3;
+    private Thread mBenchmarkThread = null;
+    private String mResults = null;
+    private float mSuccessRate = 0f;
+
+    public FileSendBenchmarkTest(TestEngine testEngine, TestListener listener) {
+        super(testEngine, listener);
+        setTestTimeout(DEFAULT_TEST_TIMEOUT);
+        setNumberOfDesiredPeers(0);
+    }
+
+    @Override
+    public String getName() {
+        return "File send benchmark";
+    }
+
+    @Override
+    public boolean run() {
+        Log.i(TAG, "run");
+        super.run();
+        mResults = null;
+        mSuccessRate = 0f;
+        final Handler handler = new Handler(Looper.getMainLooper());
+
+        mBenchmarkThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mResults = runBenchmark();
+                    mSuccessRate = 1f;
+                } catch (IOException | InterruptedException e) {
+                    Log.e(TAG, "Benchmark failed: " + e.getMessage(), e);
+                    mResults = "Benchmark failed: " + e.getMessage();
+                }
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mIsRunning) {
+                            FileSendBenchmarkTest.this.finalize();
+                        }
+                    }
+                });
+            }
+        };
+
+        mBenchmarkThread.start();
+        return true;
+    }
+
+    @Override
+    public void finalize() {
+        super.finalize();
+
+        if (mBenchmarkThread != null) {
+            mBenchmarkThread.interrupt();
+            mBenchmarkThread = null;
+        }
+
+        if (mListener != null) {
+            mListener.onTestFinished(getName(), mSuccessRate,
+                    (mResults != null) ? mResults : "Benchmark did not complete");
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @return The results.
+     */
+    private String runBenchmark() throws IOException, InterruptedException {
+        File file = File.createTempFile("benchmark", ".bin");
+        file.deleteOnExit();
+        byte[] data = new byte[CHUNK_SIZE_IN_BYTES];
+        Random random = new Random();
+        FileOutputStream fileOutputStream = new FileOutputStream(file);
+
+        try {
+            for (int i = 0; i < FILE_SIZE_IN_BYTES / CHUNK_SIZE_IN_BYTES; ++i) {
+                random.nextBytes(data);
+                fileOutputStream.write(data);
+            }
+        } finally {
+            fileOutputStream.close();
+        }
+
+        long[] bestTimes = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        FileChannel fileChannel = randomAccessFile.getChannel();
+        FileSender fileSenderWithoutReadAhead = new FileSender(CHUNK_SIZE_IN_BYTES, 0);
+        FileSender fileSenderWithReadAhead = new FileSender(CHUNK_SIZE_IN_BYTES, FileSender.DEFAULT_NUMBER_OF_READ_AHEAD_SLICES);
+
+        try {
+            for (int round = 0; round < NUMBER_OF_ROUNDS && mIsRunning; ++round) {
+                for (int method = 0; method < bestTimes.length; ++method) {
+                    PipeDrainer pipeDrainer = new PipeDrainer();
+                    OutputStream outputStream = pipeDrainer.getOutputStream();
+                    long startTime = System.nanoTime();
+
+                    if (method == 0) {
+                        sendUsingByteArrays(file, outputStream);
+                    } else if (method == 1) {
+                        fileSenderWithoutReadAhead.send(fileChannel, 0, FILE_SIZE_IN_BYTES, outputStream);
+                    } else {
+                        fileSenderWithReadAhead.send(fileChannel, 0, FILE_SIZE_IN_BYTES, outputStream);
+                    }
+
+                    long numberOfBytesReceived = pipeDrainer.close();
+                    long elapsedTime = System.nanoTime() - startTime;
+
+                    if (numberOfBytesReceived != FILE_SIZE_IN_BYTES) {
+                        throw new IOException("Received " + numberOfBytesReceived
+                                + " bytes instead of " + FILE_SIZE_IN_BYTES + " (method " + method + ")");
+                    }
+
+                    bestTimes[method] = Math.min(bestTimes[method], elapsedTime);
+                }
+            }
+        } finally {
+            randomAccessFile.close();
+
+            if (!file.delete()) {
+                Log.w(TAG, "Failed to delete " + file);
+            }
+        }
+
+        return "Sent " + (FILE_SIZE_IN_BYTES / (1024 * 1024)) + " MB in " + CHUNK_SIZE_IN_BYTES / 1024
+                + " KB chunks (best of " + NUMBER_OF_ROUNDS + "): byte[] chunks "
+                + toThroughputString(bestTimes[0]) + ", FileSender "
+                + toThroughputString(bestTimes[1]) + ", FileSender with read-ahead "
+                + toThroughputString(bestTimes[2]);
+    }
+
+    /**
+     * Sends the file the way the application code would: reads the file into a buffer and copies
+     * each chunk to a new byte array before writing it.
+     */
+    private static void sendUsingByteArrays(File file, OutputStream outputStream) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        byte[] buffer = new byte[CHUNK_SIZE_IN_BYTES];
+
+        try {
+            int numberOfBytesRead;
+
+            while ((numberOfBytesRead = inputStream.read(buffer)) > 0) {
+                outputStream.write(Arrays.copyOf(buffer, numberOfBytesRead));
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static String toThroughputString(long elapsedTimeInNanoseconds) {
+        double megaBytesPerSecond = FILE_SIZE_IN_BYTES / (1024d * 1024d) / (elapsedTimeInNanoseconds / 1000000000d);
+        return String.format("%.1f MB/s", megaBytesPerSecond);
+    }
+
+    /**
+     * A piped stream, which stands in for the socket: another thread drains the pipe.
+     */
+    private static class PipeDrainer extends Thread {
+        private final PipedInputStream mPipedInputStream;
+        private final PipedOutputStream mPipedOutputStream;
+        private long mNumberOfBytesReceived = 0;
+
+        public PipeDrainer() throws IOException {
+            mPipedInputStream = new PipedInputStream(PIPE_SIZE_IN_BYTES);
+            mPipedOutputStream = new PipedOutputStream(mPipedInputStream);
+            start();
+        }
+
+        /**
+         * @return The stream to write to. Flushes after every write so that the draining thread
+         * is woken up immediately.
+         */
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int oneByte) throws IOException {
+                    mPipedOutputStream.write(oneByte);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int length) throws IOException {
+                    mPipedOutputStream.write(buffer, offset, length);
+                    mPipedOutputStream.flush();
+                }
+            };
+        }
+
+        /**
+         * Closes the pipe and waits for the draining thread to read the rest.
+         *
+         * @return The total number of bytes received.
+         */
+        public long close() throws IOException, InterruptedException {
+            mPipedOutputStream.close();
+            join();
+            return mNumberOfBytesReceived;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[CHUNK_SIZE_IN_BYTES];
+            int numberOfBytesRead;
+
+            try {
+                while ((numberOfBytesRead = mPipedInputStream.read(buffer)) >= 0) {
+                    mNumberOfBytesReceived += numberOfBytesRead;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "PipeDrainer: " + e.getMessage());
+            }
+        }
+    }
+}